@@ -0,0 +1,136 @@
+package statalign.base;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ *
+ * Minimal micro-benchmark harness in the spirit of JMH, for the benchmarks of
+ * the <tt>bench</tt> source root.
+ *
+ * A benchmark is first calibrated: the number of operations per iteration is
+ * doubled until an iteration takes at least {@link #iterationTime} ms. Then
+ * {@link #warmupIterations} iterations are run and discarded (to let the JIT
+ * compile the code) and {@link #iterations} iterations are measured. The mean,
+ * standard deviation and minimum of the time per operation are reported on
+ * the console and optionally as CSV lines, which can be compared between
+ * builds. Values returned by the operations go to a sink, so that the JIT can
+ * not eliminate them as dead code.
+ *
+ * @author miklos, novak
+ *
+ */
+public class BenchmarkHarness {
+
+	/**
+	 * A single benchmark. The fixture is prepared by {@link #setUp()}, then
+	 * {@link #op()} is called repeatedly, finally {@link #tearDown()}.
+	 */
+	public static abstract class Benchmark {
+
+		/** Name printed in the report */
+		final String name;
+
+		public Benchmark(String name) {
+			this.name = name;
+		}
+
+		/** Prepares the fixture, not measured. */
+		public void setUp() throws Exception {
+		}
+
+		/** Called before each operation, measured together with it, should be cheap. */
+		public void prepare() throws Exception {
+		}
+
+		/** The measured operation, the return value is consumed by the harness. */
+		public abstract double op() throws Exception;
+
+		/** Releases or repairs the fixture, not measured. */
+		public void tearDown() throws Exception {
+		}
+	}
+
+	/** Number of discarded iterations */
+	public int warmupIterations = 5;
+
+	/** Number of measured iterations */
+	public int iterations = 10;
+
+	/** Minimum length of an iteration (ms) */
+	public long iterationTime = 200;
+
+	/** If not null, a CSV line is written here for each benchmark */
+	public PrintStream csv;
+
+	private double sink;
+
+	/**
+	 * Writes the CSV header if CSV output is enabled.
+	 */
+	public void csvHeader() {
+		if(csv != null)
+			csv.println("dataset,benchmark,ops,mean_ns,stdev_ns,min_ns");
+	}
+
+	/**
+	 * Runs one benchmark and reports the results.
+	 * @param dataset name of the data set, used in the report
+	 * @param bench the benchmark
+	 * @return mean time per operation (ns)
+	 */
+	public double run(String dataset, Benchmark bench) throws Exception {
+		bench.setUp();
+		try {
+			int ops = 1;
+			while(iteration(bench, ops) < iterationTime*1000000L && ops < (1 << 30))
+				ops *= 2;
+
+			for(int i = 0; i < warmupIterations; i++)
+				iteration(bench, ops);
+
+			double[] times = new double[iterations];
+			double mean = 0, min = Double.MAX_VALUE;
+			for(int i = 0; i < iterations; i++) {
+				times[i] = (double)iteration(bench, ops)/ops;
+				mean += times[i];
+				min = Math.min(min, times[i]);
+			}
+			mean /= iterations;
+			double var = 0;
+			for(double t : times)
+				var += (t-mean)*(t-mean);
+			double stdev = iterations > 1 ? Math.sqrt(var/(iterations-1)) : 0;
+
+			System.out.println(String.format("  %-32s %14.1f ns/op +- %5.1f%%  (min %.1f, %d ops/iter)",
+					bench.name, mean, mean > 0 ? 100*stdev/mean : 0, min, ops));
+			if(csv != null) {
+				csv.println(String.format(Locale.US, "%s,%s,%d,%.1f,%.1f,%.1f", dataset, bench.name, ops, mean, stdev, min));
+				csv.flush();
+			}
+			return mean;
+		} finally {
+			bench.tearDown();
+		}
+	}
+
+	private long iteration(Benchmark bench, int ops) throws Exception {
+		double s = 0;
+		long time = System.nanoTime();
+		for(int i = 0; i < ops; i++) {
+			bench.prepare();
+			s += bench.op();
+		}
+		time = System.nanoTime()-time;
+		sink += s;
+		return time;
+	}
+
+	/**
+	 * Returns the accumulated results of the operations. Printing it keeps the
+	 * benchmarked code alive.
+	 */
+	public double getSink() {
+		return sink;
+	}
+}
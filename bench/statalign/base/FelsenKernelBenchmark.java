@@ -0,0 +1,125 @@
+package statalign.base;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ *
+ * Compares the alphabet specific {@link FelsenKernel}s with the generic
+ * <tt>Utils.calcFelsen</tt> and <tt>Utils.calcEmProb</tt> routines.
+ *
+ * Usage:
+ * <pre>
+ * java statalign.base.FelsenKernelBenchmark [-warmup=5] [-iterations=10] [-time=200]
+ *      [-csv=file]
+ * </pre>
+ * The options are those of {@link HotPathBenchmark}, the data set column of the
+ * CSV output is the alphabet size.
+ *
+ * @author miklos, novak
+ *
+ */
+public class FelsenKernelBenchmark {
+
+	/** Number of distinct likelihood vectors cycled through */
+	private static final int VECTORS = 256;
+
+	public static void main(String[] args) throws Exception {
+		BenchmarkHarness harness = new BenchmarkHarness();
+		for(String arg : args) {
+			if(arg.startsWith("-warmup="))
+				harness.warmupIterations = Integer.parseInt(value(arg));
+			else if(arg.startsWith("-iterations="))
+				harness.iterations = Integer.parseInt(value(arg));
+			else if(arg.startsWith("-time="))
+				harness.iterationTime = Long.parseLong(value(arg));
+			else if(arg.startsWith("-csv="))
+				harness.csv = new PrintStream(new FileOutputStream(value(arg)));
+			else {
+				System.err.println("Unknown option: "+arg);
+				System.exit(1);
+			}
+		}
+
+		harness.csvHeader();
+		for(int size : new int[] { 4, 20 }) {
+			Random rnd = new Random(size);
+			final double[][] trans1 = randomMatrix(rnd, size), trans2 = randomMatrix(rnd, size);
+			final double[] equDist = randomVector(rnd, size);
+			final double[][] fels = new double[VECTORS][];
+			for(int i = 0; i < VECTORS; i++)
+				fels[i] = randomVector(rnd, size);
+			final FelsenKernel kernel = FelsenKernel.forSize(size);
+			final double[] flat1 = FelsenKernel.flatten(trans1, null), flat2 = FelsenKernel.flatten(trans2, null);
+			final double[] res = new double[size];
+			String dataset = "alphabet"+size;
+
+			System.out.println("Alphabet size "+size+", "+kernel.getClass().getSimpleName()+" kernel:");
+			harness.run(dataset, new BenchmarkHarness.Benchmark("Utils.calcFelsen+calcEmProb") {
+				int i;
+				@Override
+				public double op() {
+					Utils.calcFelsen(res, fels[i%VECTORS], trans1, fels[(i+1)%VECTORS], trans2);
+					i++;
+					return Utils.calcEmProb(res, equDist);
+				}
+			});
+			harness.run(dataset, new BenchmarkHarness.Benchmark("FelsenKernel calcFelsen+emProb") {
+				int i;
+				@Override
+				public double op() {
+					kernel.calcFelsen(res, fels[i%VECTORS], flat1, fels[(i+1)%VECTORS], flat2);
+					i++;
+					return kernel.emProb(res, 0, equDist);
+				}
+			});
+			// the way the alignment moves use the kernels: transform once, combine per cell
+			harness.run(dataset, new BenchmarkHarness.Benchmark("FelsenKernel transform+emProb") {
+				int i;
+				double[] up1, up2;
+				@Override
+				public void setUp() {
+					int size = kernel.size;
+					up1 = new double[VECTORS*size];
+					up2 = new double[VECTORS*size];
+					for(int v = 0; v < VECTORS; v++) {
+						kernel.transform(flat1, fels[v], up1, v*size);
+						kernel.transform(flat2, fels[v], up2, v*size);
+					}
+				}
+				@Override
+				public double op() {
+					int size = kernel.size;
+					double p = kernel.emProb(up1, (i%VECTORS)*size, up2, ((i+1)%VECTORS)*size, equDist);
+					i++;
+					return p;
+				}
+			});
+		}
+		System.out.println("(sink "+harness.getSink()+")");
+		if(harness.csv != null)
+			harness.csv.close();
+	}
+
+	private static String value(String arg) {
+		return arg.substring(arg.indexOf('=')+1);
+	}
+
+	private static double[][] randomMatrix(Random rnd, int size) {
+		double[][] m = new double[size][];
+		for(int i = 0; i < size; i++)
+			m[i] = randomVector(rnd, size);
+		return m;
+	}
+
+	private static double[] randomVector(Random rnd, int size) {
+		double[] v = new double[size];
+		double sum = 0;
+		for(int i = 0; i < size; i++)
+			sum += v[i] = rnd.nextDouble();
+		for(int i = 0; i < size; i++)
+			v[i] /= sum;
+		return v;
+	}
+}
@@ -0,0 +1,260 @@
+package statalign.base;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import statalign.io.RawSequences;
+import statalign.io.input.plugins.FastaReader;
+import statalign.model.subst.RecognitionError;
+import statalign.model.subst.SubstitutionModel;
+import statalign.model.subst.plugins.Dayhoff;
+import statalign.model.subst.plugins.Kimura3;
+
+/**
+ *
+ * Benchmarks of the hot paths of the MCMC on the bundled example data sets:
+ * the HMM alignment moves, Felsenstein likelihood and transition matrix
+ * calculation, state extraction for the postprocessing and a full MCMC step.
+ *
+ * Usage:
+ * <pre>
+ * java statalign.base.HotPathBenchmark [-warmup=5] [-iterations=10] [-time=200]
+ *      [-seed=1] [-only=name,...] [-csv=file] [files.fasta...]
+ * </pre>
+ * Without files, all <tt>examples/*.fasta</tt> are used. <tt>-time</tt> is the
+ * minimum length of an iteration in ms, <tt>-only</tt> restricts the run to the
+ * benchmarks whose names contain any of the given strings. The CSV output of two
+ * builds can be compared to catch performance regressions.
+ *
+ * The substitution model is chosen as on the command line without <tt>-subst</tt>
+ * (Kimura3 for nucleotides, Dayhoff for proteins), the tree is the initial
+ * Steiner tree of the run.
+ *
+ * @author miklos, novak
+ *
+ */
+public class HotPathBenchmark {
+
+	private static String[] only;
+
+	public static void main(String[] args) throws Exception {
+		BenchmarkHarness harness = new BenchmarkHarness();
+		long seed = 1;
+		List<File> files = new ArrayList<File>();
+		for(String arg : args) {
+			if(arg.startsWith("-warmup="))
+				harness.warmupIterations = Integer.parseInt(value(arg));
+			else if(arg.startsWith("-iterations="))
+				harness.iterations = Integer.parseInt(value(arg));
+			else if(arg.startsWith("-time="))
+				harness.iterationTime = Long.parseLong(value(arg));
+			else if(arg.startsWith("-seed="))
+				seed = Long.parseLong(value(arg));
+			else if(arg.startsWith("-only="))
+				only = value(arg).split(",");
+			else if(arg.startsWith("-csv="))
+				harness.csv = new PrintStream(new FileOutputStream(value(arg)));
+			else if(arg.startsWith("-")) {
+				System.err.println("Unknown option: "+arg);
+				System.exit(1);
+			} else
+				files.add(new File(arg));
+		}
+		if(files.isEmpty()) {
+			File[] examples = new File("examples").listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".fasta");
+				}
+			});
+			if(examples == null) {
+				System.err.println("No input files given and examples/ not found");
+				System.exit(1);
+			}
+			Arrays.sort(examples);
+			files.addAll(Arrays.asList(examples));
+		}
+
+		harness.csvHeader();
+		for(File file : files)
+			runDataset(harness, file, seed);
+		System.out.println("(sink "+harness.getSink()+")");
+		if(harness.csv != null)
+			harness.csv.close();
+	}
+
+	private static String value(String arg) {
+		return arg.substring(arg.indexOf('=')+1);
+	}
+
+	private static void runDataset(BenchmarkHarness harness, File file, long seed) throws Exception {
+		FastaReader reader = new FastaReader();
+		RawSequences seqs = reader.read(file.getPath());
+		SubstitutionModel model = new Kimura3();
+		try {
+			model.acceptable(seqs);
+		} catch (RecognitionError e) {
+			model = new Dayhoff();
+			try {
+				model.acceptable(seqs);
+			} catch (RecognitionError ee) {
+				System.out.println(file.getName()+": no default substitution model accepts the sequences, skipped");
+				return;
+			}
+		}
+
+		String[] names = seqs.getSeqnames().toArray(new String[seqs.size()]);
+		String[] nongapped = new String[seqs.size()];
+		for(int i = 0; i < nongapped.length; i++)
+			nongapped[i] = seqs.getSequence(i).replaceAll("[\\s-]", "");
+
+		String dataset = file.getName();
+		System.out.println(dataset+": "+nongapped.length+" sequences, "+model.getClass().getSimpleName());
+		Utils.seedGenerator(seed);
+		final Tree tree = new Tree(nongapped, names, model, model.attachedScoringScheme);
+
+		List<BenchmarkHarness.Benchmark> benchmarks = new ArrayList<BenchmarkHarness.Benchmark>();
+
+		benchmarks.add(new BenchmarkHarness.Benchmark("Vertex.hmm3Align") {
+			@Override
+			public void prepare() {
+				tree.root.fullWin();
+				tree.root.left.fullWin();
+				tree.root.right.fullWin();
+			}
+			@Override
+			public double op() {
+				return tree.root.hmm3Align();
+			}
+			@Override
+			public void tearDown() {
+				repair(tree);
+			}
+		});
+
+		benchmarks.add(new BenchmarkHarness.Benchmark("Vertex.hmm2Align") {
+			@Override
+			public void prepare() {
+				tree.root.fullWin();
+				tree.root.left.fullWin();
+			}
+			@Override
+			public double op() {
+				return tree.root.left.hmm2Align();
+			}
+			@Override
+			public void tearDown() {
+				repair(tree);
+			}
+		});
+
+		benchmarks.add(new BenchmarkHarness.Benchmark("Vertex.calcFelsen (all)") {
+			List<Vertex> internal = new ArrayList<Vertex>();
+			@Override
+			public void setUp() {
+				postorder(tree.root, internal);
+			}
+			@Override
+			public double op() {
+				for(Vertex v : internal)
+					v.calcFelsen();
+				return tree.root.first.seq[0];
+			}
+		});
+
+		benchmarks.add(new BenchmarkHarness.Benchmark("updateTransitionMatrix") {
+			double[] edges;
+			double[][] matrix;
+			int next;
+			@Override
+			public void setUp() {
+				edges = new double[tree.vertex.size()];
+				for(int i = 0; i < edges.length; i++)
+					edges[i] = tree.vertex.get(i).edgeLength;
+			}
+			@Override
+			public double op() {
+				matrix = tree.substitutionModel.updateTransitionMatrix(matrix, edges[next]);
+				next = (next+1)%edges.length;
+				return matrix[0][0];
+			}
+		});
+
+		benchmarks.add(new BenchmarkHarness.Benchmark("Tree.getState") {
+			@Override
+			public double op() {
+				return tree.getState().logLike;
+			}
+		});
+
+		benchmarks.add(new BenchmarkHarness.Benchmark("Tree.getState+materialize") {
+			@Override
+			public double op() {
+				State state = tree.getState();
+				state.materialize();
+				return state.felsen[0].length;
+			}
+		});
+
+		benchmarks.add(new BenchmarkHarness.Benchmark("State.getLeafAlign") {
+			State state;
+			@Override
+			public void setUp() {
+				state = tree.getState();
+				state.materialize();
+			}
+			@Override
+			public double op() {
+				// a copy, as the alignment is cached in the State
+				return state.uncachedCopy().getLeafAlign()[0].length();
+			}
+		});
+
+		// must come last, changes the tree
+		benchmarks.add(new BenchmarkHarness.Benchmark("Mcmc.sample") {
+			Mcmc mcmc;
+			@Override
+			public void setUp() {
+				MainManager manager = new MainManager(null);
+				mcmc = new Mcmc(new SteinerTreeMCMCStrategy(tree), manager.inputData.pars, manager.postProcMan);
+			}
+			@Override
+			public double op() throws Exception {
+				mcmc.sample(0);
+				return tree.getLogLike();
+			}
+		});
+
+		for(BenchmarkHarness.Benchmark bench : benchmarks)
+			if(selected(bench.name))
+				harness.run(dataset, bench);
+	}
+
+	private static boolean selected(String name) {
+		if(only == null)
+			return true;
+		for(String s : only)
+			if(name.contains(s))
+				return true;
+		return false;
+	}
+
+	private static void postorder(Vertex v, List<Vertex> internal) {
+		if(v.left != null && v.right != null) {
+			postorder(v.left, internal);
+			postorder(v.right, internal);
+			internal.add(v);
+		}
+	}
+
+	/** Recomputes the likelihoods after the alignment benchmarks have changed the tree */
+	private static void repair(Tree tree) {
+		tree.root.calcFelsRecursively();
+		tree.root.calcIndelLikeRecursively();
+	}
+}
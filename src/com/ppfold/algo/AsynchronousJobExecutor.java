@@ -40,12 +40,6 @@ public abstract class AsynchronousJobExecutor {
 
 	// Static methods
 
-	static {
-		AsynchronousJobExecutorThreadPool executor = new AsynchronousJobExecutorThreadPool(
-				Runtime.getRuntime().availableProcessors());
-		setLocalExecutor(executor);
-	}
-
 	public static void setLocalExecutor(AsynchronousJobExecutor local) {
 		localExecutor = local;
 	}
@@ -55,7 +49,11 @@ public abstract class AsynchronousJobExecutor {
 	}
 
 	
-	public static AsynchronousJobExecutor getLocalExecutor() {
+	//The default executor is only made when first asked for, with nrcores threads
+	public static synchronized AsynchronousJobExecutor getLocalExecutor() {
+		if (localExecutor == null) {
+			localExecutor = new AsynchronousJobExecutorThreadPool(nrcores);
+		}
 		return localExecutor;
 	}
 
@@ -0,0 +1,487 @@
+package com.ppfold.algo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous job execution on remote workers. CYK and phylogenetic jobs are
+ * sent over TCP to {@link RemoteJobWorker} daemons, each of which gets one
+ * connection per worker thread.
+ *
+ * The jobs waiting for a connection are taken in the order of their execution
+ * time estimates, the longest first. The jobs that would not pay for their
+ * transport (estimated to run in less than {@link #minRemoteEstimate}), the
+ * jobs that need more memory than any worker has, and the fuzzy alignment jobs
+ * are executed by a local thread pool instead. When a worker is lost, its job
+ * is sent to another worker, at most {@link #MAX_ATTEMPTS} times, and
+ * reconnecting to the worker is tried; when all workers are lost, or a job
+ * fails on a worker, the jobs are executed locally.
+ *
+ * The workers are not authenticated (see {@link RemoteJobWorker}), remote
+ * workers are only for trusted networks.
+ */
+
+public class AsynchronousJobExecutorRemote extends AsynchronousJobExecutor {
+
+	static final int MAX_ATTEMPTS = 3;
+	static final int CONNECT_TIMEOUT_MILLIS = 10000;
+	// a worker that sends no heartbeat for this long is considered lost
+	static final int READ_TIMEOUT_MILLIS = 6 * RemoteJobWorker.HEARTBEAT_MILLIS;
+	static final int RECONNECT_MILLIS = 2000;
+
+	private final List<InetSocketAddress> workers;
+	private final AsynchronousJobExecutor localExecutor;
+	private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<Task>();
+	private final AtomicLong submitted = new AtomicLong();
+	private final List<Thread> connections = new ArrayList<Thread>();
+	private final Set<Connection> open = new HashSet<Connection>();
+	private final List<Process> localWorkers = new ArrayList<Process>();
+	private int liveConnections;
+	private long maxWorkerMemory;
+	private volatile boolean shutdown;
+
+	/** Jobs with a smaller execution time estimate are executed locally */
+	public long minRemoteEstimate = 1;
+
+	/**
+	 * Connects to the workers.
+	 *
+	 * @param workers
+	 *            the addresses of the workers; a worker that cannot be
+	 *            reached is left out
+	 * @param localThreads
+	 *            number of threads of the local pool
+	 */
+	public AsynchronousJobExecutorRemote(List<InetSocketAddress> workers,
+			int localThreads) {
+		this.workers = new ArrayList<InetSocketAddress>(workers);
+		localExecutor = new AsynchronousJobExecutorThreadPool(localThreads);
+		for (InetSocketAddress address : workers) {
+			connect(address);
+		}
+	}
+
+	/**
+	 * Parses a comma separated list of workers: <tt>host:port</tt>, <tt>host</tt>
+	 * for the default port, or <tt>local[:threads]</tt> for a worker process
+	 * started on this machine.
+	 */
+	public static AsynchronousJobExecutorRemote create(String workerList,
+			int localThreads) throws IOException {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		List<Process> processes = new ArrayList<Process>();
+		for (String worker : workerList.split(",")) {
+			worker = worker.trim();
+			if (worker.length() == 0) {
+				continue;
+			}
+			String[] parts = worker.split(":");
+			if (parts[0].equals("local")) {
+				int threads = parts.length > 1 ? Integer.parseInt(parts[1])
+						: Runtime.getRuntime().availableProcessors();
+				addresses.add(launchLocalWorker(threads, processes));
+			} else {
+				addresses.add(new InetSocketAddress(parts[0],
+						parts.length > 1 ? Integer.parseInt(parts[1])
+								: RemoteJobWorker.DEFAULT_PORT));
+			}
+		}
+		AsynchronousJobExecutorRemote executor = new AsynchronousJobExecutorRemote(
+				addresses, localThreads);
+		executor.localWorkers.addAll(processes);
+		return executor;
+	}
+
+	/**
+	 * Starts a worker in a new process on this machine, with the class path
+	 * of this one, and returns its address. The worker only listens on the
+	 * loopback address, so other hosts cannot reach it.
+	 */
+	static InetSocketAddress launchLocalWorker(int threads,
+			List<Process> processes) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java";
+		InetAddress loopback = InetAddress.getByName(null);
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+				System.getProperty("java.class.path"),
+				RemoteJobWorker.class.getName(), "0", "" + threads,
+				loopback.getHostAddress());
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		processes.add(process);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				process.getInputStream()));
+		String line = reader.readLine();
+		if (line == null || !line.startsWith("PPfold worker listening on port ")) {
+			process.destroy();
+			throw new IOException("Local worker did not start: " + line);
+		}
+		int port = Integer.parseInt(line.split(" ")[5]);
+		// keep reading the output, so the worker never blocks on it
+		final BufferedReader output = reader;
+		Thread drain = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (output.readLine() != null) {
+					}
+				} catch (IOException e) {
+				}
+			}
+		}, "PPfold local worker output");
+		drain.setDaemon(true);
+		drain.start();
+		return new InetSocketAddress(loopback, port);
+	}
+
+	/**
+	 * Opens the connections to a worker, one for each of its threads.
+	 */
+	private void connect(InetSocketAddress address) {
+		Connection first;
+		try {
+			first = new Connection(address);
+		} catch (IOException e) {
+			System.err.println("Could not connect to PPfold worker " + address
+					+ ": " + e);
+			return;
+		}
+		synchronized (this) {
+			maxWorkerMemory = Math.max(maxWorkerMemory, first.maxMemory);
+		}
+		start(first);
+		for (int i = 1; i < first.threads; i++) {
+			try {
+				start(new Connection(address));
+			} catch (IOException e) {
+				System.err.println("Could not connect to PPfold worker "
+						+ address + ": " + e);
+				break;
+			}
+		}
+	}
+
+	private synchronized void start(final Connection connection) {
+		liveConnections++;
+		open.add(connection);
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				work(connection);
+			}
+		}, "PPfold remote " + connection.address);
+		thread.setDaemon(true);
+		connections.add(thread);
+		thread.start();
+	}
+
+	/**
+	 * Sends the jobs of the queue through a connection, until the executor is
+	 * shut down or the worker is lost.
+	 */
+	private void work(Connection connection) {
+		try {
+			while (!shutdown) {
+				Task task = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (task == null) {
+					continue;
+				}
+				try {
+					task.run(connection);
+				} catch (RemoteJobException e) {
+					System.err.println("PPfold job " + task + " failed on "
+							+ connection.address + ": " + e.getMessage()
+							+ ", executing it locally");
+					task.runLocally();
+				} catch (IOException e) {
+					close(connection);
+					task.attempts++;
+					if (task.attempts < MAX_ATTEMPTS) {
+						queue.add(task);
+					} else {
+						task.runLocally();
+					}
+					if (shutdown) {
+						break;
+					}
+					System.err.println("Lost PPfold worker " + connection.address
+							+ ": " + e);
+					connection = reconnect(connection.address);
+					if (connection == null) {
+						break;
+					}
+					synchronized (this) {
+						open.add(connection);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// shut down
+		} finally {
+			if (connection != null) {
+				close(connection);
+			}
+			lost();
+		}
+	}
+
+	private synchronized void close(Connection connection) {
+		open.remove(connection);
+		connection.close();
+	}
+
+	private Connection reconnect(InetSocketAddress address)
+			throws InterruptedException {
+		for (int i = 0; i < MAX_ATTEMPTS && !shutdown; i++) {
+			Thread.sleep(RECONNECT_MILLIS);
+			try {
+				return new Connection(address);
+			} catch (IOException e) {
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Called when a connection is closed for good: the jobs waiting are
+	 * executed locally once no connection is left.
+	 */
+	private synchronized void lost() {
+		liveConnections--;
+		if (liveConnections == 0 && !shutdown) {
+			System.err.println("No PPfold workers left, executing jobs locally");
+			Task task;
+			while ((task = queue.poll()) != null) {
+				task.runLocally();
+			}
+		}
+	}
+
+	private synchronized void submit(Task task, long memoryRequirement) {
+		if (liveConnections == 0 || task.estimate < minRemoteEstimate
+				|| memoryRequirement > maxWorkerMemory) {
+			task.runLocally();
+		} else {
+			queue.add(task);
+		}
+	}
+
+	@Override
+	public void startExecution(final CYKJob cYKJob, final JobListener listener) {
+		submit(new Task(cYKJob.getExecutionTimeEstimate()) {
+			@Override
+			void run(Connection connection) throws IOException {
+				listener.jobFinished(connection.execute(cYKJob));
+			}
+
+			@Override
+			void runLocally() {
+				localExecutor.startExecution(cYKJob, listener);
+			}
+
+			@Override
+			public String toString() {
+				return cYKJob.toString();
+			}
+		}, cYKJob.getMemoryRequirement());
+	}
+
+	@Override
+	public void startExecution(final PhyloJob job, final JobListener listener) {
+		submit(new Task(job.getExecutionTimeEstimate()) {
+			@Override
+			void run(Connection connection) throws IOException {
+				listener.jobFinished(connection.execute(job));
+			}
+
+			@Override
+			void runLocally() {
+				localExecutor.startExecution(job, listener);
+			}
+
+			@Override
+			public String toString() {
+				return job.toString();
+			}
+		}, job.getMemoryRequirement());
+	}
+
+	@Override
+	public void startExecution(PhyloJobFuzzy job, JobListener listener) {
+		// fuzzy alignments are not serializable, they are always folded locally
+		localExecutor.startExecution(job, listener);
+	}
+
+	@Override
+	public String getDescription() {
+		return "Remote execution on " + workers;
+	}
+
+	@Override
+	public String getId() {
+		return this.getClass().getName() + workers;
+	}
+
+	public void shutDown() {
+		shutdown = true;
+		synchronized (this) {
+			for (Thread thread : connections) {
+				thread.interrupt();
+			}
+			// unblocks the connections waiting for results
+			for (Connection connection : open) {
+				connection.close();
+			}
+			open.clear();
+		}
+		queue.clear();
+		localExecutor.shutDown();
+		for (Process process : localWorkers) {
+			process.destroy();
+		}
+	}
+
+	public boolean isTerminated() {
+		synchronized (this) {
+			for (Thread thread : connections) {
+				if (thread.isAlive()) {
+					return false;
+				}
+			}
+		}
+		return localExecutor.isTerminated();
+	}
+
+	/**
+	 * A job waiting for execution, ordered by execution time estimate, the
+	 * longest first, then in the order of submission.
+	 */
+	private abstract class Task implements Comparable<Task> {
+		final long estimate;
+		final long order = submitted.getAndIncrement();
+		int attempts;
+
+		Task(long estimate) {
+			this.estimate = estimate;
+		}
+
+		abstract void run(Connection connection) throws IOException;
+
+		abstract void runLocally();
+
+		public int compareTo(Task other) {
+			if (estimate != other.estimate) {
+				return estimate > other.estimate ? -1 : 1;
+			}
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+	}
+
+	/**
+	 * A job failed with an exception on the worker.
+	 */
+	static class RemoteJobException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		RemoteJobException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A connection to a worker, executing one job at a time.
+	 */
+	static class Connection {
+		final InetSocketAddress address;
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+		final int threads;
+		final long maxMemory;
+
+		Connection(InetSocketAddress address) throws IOException {
+			this.address = address;
+			socket = new Socket();
+			try {
+				socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+				socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+				socket.setTcpNoDelay(true);
+				in = new DataInputStream(new BufferedInputStream(socket
+						.getInputStream()));
+				out = new DataOutputStream(new BufferedOutputStream(socket
+						.getOutputStream()));
+				if (in.readInt() != RemoteJobWorker.MAGIC) {
+					throw new IOException("Not a PPfold worker");
+				}
+				int version = in.readInt();
+				if (version != RemoteJobWorker.VERSION) {
+					throw new IOException("Unsupported worker version " + version);
+				}
+				threads = in.readInt();
+				maxMemory = in.readLong();
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		JobResults execute(CYKJob job) throws IOException {
+			out.writeByte(RemoteJobWorker.CYK_JOB);
+			job.write(out);
+			out.flush();
+			awaitResult();
+			return JobResults.read(in);
+		}
+
+		double[][] execute(PhyloJob job) throws IOException {
+			out.writeByte(RemoteJobWorker.PHYLO_JOB);
+			job.write(out);
+			out.flush();
+			awaitResult();
+			return RemoteJobWorker.readMatrix(in);
+		}
+
+		/**
+		 * Reads the heartbeats until the results follow.
+		 */
+		private void awaitResult() throws IOException {
+			while (true) {
+				byte status = in.readByte();
+				if (status == RemoteJobWorker.OK) {
+					in.readInt(); // length of the results
+					return;
+				} else if (status == RemoteJobWorker.FAILED) {
+					throw new RemoteJobException(in.readUTF());
+				} else if (status != RemoteJobWorker.HEARTBEAT) {
+					throw new IOException("Unknown reply " + status);
+				}
+			}
+		}
+
+		void close() {
+			try {
+				out.writeByte(RemoteJobWorker.CLOSE);
+				out.flush();
+			} catch (IOException e) {
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package com.ppfold.algo;
+
+/**
+ * Arithmetic of the matrix products summed by the inside, outside and
+ * expectation jobs, the bulk of their work.
+ *
+ * POINTRES multiplies and adds PointRes values cell by cell, as the rest of
+ * the algorithms do; it is the reference. SCALED converts the operands to
+ * doubles scaled by a power of two per row or column, sums the products on
+ * the primitive arrays and converts each sum back. It has no per-cell object
+ * operations and keeps double precision within the products. A product whose
+ * operand rows span more than the range of a double falls back to POINTRES.
+ *
+ * @see ResMatrix
+ */
+public enum CYKArithmetic {
+	POINTRES, SCALED;
+
+	/**
+	 * Returns the arithmetic of a name, ignoring case.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if there is no such arithmetic
+	 */
+	public static CYKArithmetic parse(String name) {
+		return valueOf(name.trim().toUpperCase());
+	}
+}
@@ -1,5 +1,8 @@
 package com.ppfold.algo;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -38,6 +41,8 @@ public class CYKJob implements Serializable {
 	ResMatrix basepairs2; 
 	private boolean diffBasepairs; //1 if inner and outer basepairs should be distinguished. 
 	
+	private CYKArithmetic arithmetic = CYKArithmetic.POINTRES; //of the matrix products
+	
 	
 	PointRes[] vertF;
 	PointRes[] diagF;
@@ -459,6 +464,14 @@ public class CYKJob implements Serializable {
 		this.diffBasepairs = diffBasepairs;
 	}
 
+	public CYKArithmetic getArithmetic() {
+		return arithmetic;
+	}
+
+	public void setArithmetic(CYKArithmetic arithmetic) {
+		this.arithmetic = arithmetic;
+	}
+
 	public PointRes getinnerBPProb(int s, int t) {
 		return this.basepairs.getProb(s,t);
 	}
@@ -473,5 +486,135 @@ public class CYKJob implements Serializable {
 			return this.basepairs.getProb(s, t);
 		}
 	}
+
+	/**
+	 * Writes the job in a compact binary form, for executing it in another
+	 * process. The matrices are written by
+	 * {@link ResMatrix#write(DataOutputStream, ResMatrix)}.
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(sectorid);
+		out.writeInt(n);
+		out.writeInt(type);
+		out.writeInt(mini);
+		out.writeInt(minj);
+		out.writeInt(seqlength);
+		out.writeInt(fullseqlength);
+		out.writeInt(prob.length);
+		for (double[] row : prob) {
+			out.writeInt(row.length);
+			for (double p : row) {
+				out.writeDouble(p);
+			}
+		}
+		writeMatrices(out, below);
+		writeMatrices(out, diagbelow);
+		writeMatrices(out, aboveS);
+		writeMatrices(out, diagaboveS);
+		writeMatrices(out, aboveF);
+		writeMatrices(out, diagaboveF);
+		ResMatrix.write(out, insideresultsL);
+		ResMatrix.write(out, insideresultsS);
+		ResMatrix.write(out, basepairs);
+		ResMatrix.write(out, basepairs2);
+		out.writeBoolean(diffBasepairs);
+		out.writeByte(arithmetic.ordinal());
+		writePoints(out, vertF);
+		writePoints(out, diagF);
+		writePoints(out, vertL);
+		writePoints(out, diagL);
+		writePoints(out, new PointRes[] { specialF, specialL });
+		out.writeChar(specialntfirst);
+		out.writeChar(specialntsecond);
+	}
+
+	/**
+	 * Reads a job written by {@link #write(DataOutputStream)}.
+	 */
+	static CYKJob read(DataInputStream in) throws IOException {
+		int sectorid = in.readInt();
+		int n = RemoteJobWorker.checkLength(in.readInt());
+		int type = in.readInt();
+		CYKJob job = new CYKJob(sectorid, n, type);
+		job.mini = in.readInt();
+		job.minj = in.readInt();
+		job.seqlength = in.readInt();
+		job.fullseqlength = in.readInt();
+		job.prob = new double[RemoteJobWorker.checkLength(in.readInt())][];
+		for (int i = 0; i < job.prob.length; i++) {
+			job.prob[i] = new double[RemoteJobWorker.checkLength(in.readInt())];
+			for (int j = 0; j < job.prob[i].length; j++) {
+				job.prob[i][j] = in.readDouble();
+			}
+		}
+		job.below = readMatrices(in);
+		job.diagbelow = readMatrices(in);
+		job.aboveS = readMatrices(in);
+		job.diagaboveS = readMatrices(in);
+		job.aboveF = readMatrices(in);
+		job.diagaboveF = readMatrices(in);
+		job.insideresultsL = ResMatrix.read(in);
+		job.insideresultsS = ResMatrix.read(in);
+		job.basepairs = ResMatrix.read(in);
+		job.basepairs2 = ResMatrix.read(in);
+		job.diffBasepairs = in.readBoolean();
+		int arithmetic = in.readByte();
+		if (arithmetic < 0 || arithmetic >= CYKArithmetic.values().length) {
+			throw new IOException("Unknown arithmetic " + arithmetic);
+		}
+		job.arithmetic = CYKArithmetic.values()[arithmetic];
+		job.vertF = readPoints(in);
+		job.diagF = readPoints(in);
+		job.vertL = readPoints(in);
+		job.diagL = readPoints(in);
+		PointRes[] special = readPoints(in);
+		if (special.length != 2) {
+			throw new IOException("Invalid number of special points " + special.length);
+		}
+		job.specialF = special[0];
+		job.specialL = special[1];
+		job.specialntfirst = in.readChar();
+		job.specialntsecond = in.readChar();
+		return job;
+	}
+
+	private static void writeMatrices(DataOutputStream out, List<ResMatrix> matrices)
+			throws IOException {
+		out.writeInt(matrices.size());
+		for (ResMatrix matrix : matrices) {
+			ResMatrix.write(out, matrix);
+		}
+	}
+
+	private static List<ResMatrix> readMatrices(DataInputStream in) throws IOException {
+		int size = RemoteJobWorker.checkLength(in.readInt());
+		List<ResMatrix> matrices = new ArrayList<ResMatrix>(size);
+		for (int i = 0; i < size; i++) {
+			matrices.add(ResMatrix.read(in));
+		}
+		return matrices;
+	}
+
+	private static void writePoints(DataOutputStream out, PointRes[] points)
+			throws IOException {
+		out.writeInt(points.length);
+		for (PointRes point : points) {
+			out.writeBoolean(point != null);
+			if (point != null) {
+				out.writeFloat(point.getFraction());
+				out.writeInt(point.getExponent());
+			}
+		}
+	}
+
+	private static PointRes[] readPoints(DataInputStream in) throws IOException {
+		PointRes[] points = new PointRes[RemoteJobWorker.checkLength(in.readInt())];
+		for (int i = 0; i < points.length; i++) {
+			if (in.readBoolean()) {
+				points[i] = new PointRes(in.readFloat(), in.readInt());
+			}
+		}
+		return points;
+	}
 	
 }
@@ -40,7 +40,7 @@ public class ExpectationMatrixCalc {
 				// diagbelow: E matrix of that sector
 				partialE.replaceWithMaxSum(job.getBelow().get(
 						job.getBelow().size() - c - 1), job.getDiagbelow().get(
-						c - 1), tmp, tmp2);
+						c - 1), job.getArithmetic(), tmp, tmp2);
 			}
 		}
 
@@ -1,6 +1,7 @@
 package com.ppfold.algo;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -17,6 +18,17 @@ import com.ppfold.algo.extradata.ForcedConstraints;
 public class FoldingProject {
 	static final double LOG_TWO = Math.log(2d);
 
+	//Arithmetic of the matrix products of the CYK jobs, for all folds
+	private static volatile CYKArithmetic arithmetic = CYKArithmetic.POINTRES;
+
+	public static void setArithmetic(CYKArithmetic arithmetic) {
+		FoldingProject.arithmetic = arithmetic;
+	}
+
+	public static CYKArithmetic getArithmetic() {
+		return arithmetic;
+	}
+
 	/**
 	 * Makes sure that all leaves of the tree can be found, and creates a list
 	 * of leaves for easy access.
@@ -210,11 +222,21 @@ public class FoldingProject {
 		//RNAFoldingTools.writeMatrix(probmatrix, new File("probmatrix.txt"));
 		
 		//Shut down the executor so we aren't hanging at the end
-		executor.shutDown();
+		releaseExecutor(executor);
 		return result;
 
 	}
 	
+	/**
+	 * Shuts down the executor of a finished fold, unless it is the remote
+	 * executor shared by all folds.
+	 */
+	private static void releaseExecutor(AsynchronousJobExecutor executor) {
+		if (executor != AsynchronousJobExecutor.getRemoteExecutor()) {
+			executor.shutDown();
+		}
+	}
+
 	public static ResultBundle foldMatrix(Progress act, int phylojobsnr,
 			int scfgjobsnr, List<char[]> columns,
 			List<String> names, double [][] inputMatrix, Parameters param,
@@ -356,7 +378,7 @@ public class FoldingProject {
 		//System.out.println("Time in SCFG part: " + (System.currentTimeMillis()-starttime));
 
 		//Shut down the executor so we aren't hanging at the end
-		executor.shutDown();
+		releaseExecutor(executor);
 		return result;
 
 	}
@@ -489,7 +511,7 @@ public class FoldingProject {
 		//System.out.println("Time in SCFG part: " + (System.currentTimeMillis()-starttime));
 
 		//Shut down the executor so we aren't hanging at the end
-		executor.shutDown();
+		releaseExecutor(executor);
 		return result;
 
 	}
@@ -925,7 +947,7 @@ public class FoldingProject {
 		Sector top = SectorGenerator.GenerateSectors(nrsectors, distance,
 				nrdivisions, length,diffbp);
 
-		final Master master = new Master(top, prob);
+		final Master master = new Master(top, prob, arithmetic);
 
 		// sector: set basepairs (phylogenetic probabilities) for inside sectors
 		PointRes number = new PointRes(0, 0);
@@ -970,51 +992,8 @@ public class FoldingProject {
 			System.out.println("Calculating inside values... ");
 		}
 
-		final AtomicInteger finishedinsidejobscount = new AtomicInteger(0); // counts
-		// how many inside jobs are done
-		master.CreateInsideJobChannel();
 		Progress insideAct = act.getChildProgress(0.32);
-		//final long gridstarttime = System.nanoTime();
-		while (master.unProcessedInsideSectors()) {
-			if(act.shouldStop()){
-				executor.shutDown();
-			}
-			act.checkStop();
-			CYKJob cYKJob = master.takeNextInsideJob(); // This call will block
-			// until a job is ready
-			final Progress jobAct = insideAct.getChildProgress(1.0 / nrsectors);
-			// System.out.println(cYKJob.sectorid + " " + " 0 " +
-			// (System.nanoTime()-starttime));
-			final int sectorNumber = cYKJob.getSectorid();
-			executor.startExecution(cYKJob, new JobListener() {
-				@Override
-				public void jobFinished(JobResults result) {
-					master.setInsideResult(sectorNumber, result);
-					jobAct.setProgress(1.0);
-					// System.out.println(sectorNumber + " " + " 1 " +
-					// (System.nanoTime()-starttime));
-					finishedinsidejobscount.incrementAndGet();
-				}
-
-				@Override
-				public void jobFinished(double[][] result) {
-				}// doesn't happen here
-
-				@Override
-				public void jobFinished(List<ResultBundle> result) {
-				} // doesn't happen here
-			});
-		}
-
-		// wait for last job to finish
-		while (finishedinsidejobscount.get() < nrsectors) {
-			Thread.sleep(100);
-			if(act.shouldStop()){	
-				executor.shutDown();
-			}
-			act.checkStop();
-		}
-
+		master.runPass(Master.INSIDE, executor, insideAct);
 		insideAct.setProgress(1.0);
 
 		if(verbose){
@@ -1045,9 +1024,6 @@ public class FoldingProject {
 		if (verbose) {
 			System.out.println("Calculating outside values...");
 		}
-		master.CreateOutsideJobChannel();
-		final AtomicInteger finishedoutsidejobscount = new AtomicInteger(0); // counts
-		// how many outside jobs are done
 
 		// outside algorithm
 		// set basepairs for outside algorithm (they are shifted relative to
@@ -1087,49 +1063,8 @@ public class FoldingProject {
 			}
 		}
 		
-		//final long outsidegridstarttime = System.nanoTime();
 		Progress outsideAct = act.getChildProgress(0.50);
-		while (master.unProcessedOutsideSectors()) {
-			if(act.shouldStop()){
-				executor.shutDown();
-			}
-			act.checkStop();
-			final Progress jobAct = outsideAct
-					.getChildProgress(1.0 / nrsectors);
-			CYKJob cYKJob = master.takeNextOutsideJob(); // This call will block
-			// until a job is
-			// ready
-			final int sectorNumber = cYKJob.getSectorid();
-			executor.startExecution(cYKJob, new JobListener() {
-				// System.out.println(sectorNumber + " " + " 2 " +
-				// (System.nanoTime()-starttime));
-				@Override
-				public void jobFinished(List<ResultBundle> result) {
-				} // doesn't happen here
-
-				@Override
-				public void jobFinished(JobResults result) {
-					master.setOutsideResult(sectorNumber, result);
-					jobAct.setProgress(1.0);
-					// System.out.println(sectorNumber + " " + " 3 " +
-					// (System.nanoTime()-starttime));
-					finishedoutsidejobscount.incrementAndGet();
-				}
-
-				@Override
-				public void jobFinished(double[][] result) {
-				}// doesn't happen here
-			});
-		}
-
-		// wait for last job to finish
-		while (finishedoutsidejobscount.get() < nrsectors) {
-			Thread.sleep(100);
-			if(act.shouldStop()){
-				executor.shutDown();
-			}
-			act.checkStop();
-		}
+		master.runPass(Master.OUTSIDE, executor, outsideAct);
 		outsideAct.setProgress(1.0);
 
 		if (verbose) {
@@ -1517,49 +1452,8 @@ public class FoldingProject {
 			act.setCurrentActivity("Applying grammar: setting expectation values");
 
 		// calculate expectation values
-		master.CreateExpectationJobChannel();
-		final AtomicInteger finishedexpectationjobscount = new AtomicInteger(0); // counts
-		// how many exp jobs are done
 		Progress expectAct = act.getChildProgress(0.11);
-		//final long expgridstarttime = System.nanoTime();
-		while (master.unProcessedExpectationSectors()) {
-			if(act.shouldStop()){
-				executor.shutDown();
-			}
-			act.checkStop();
-			final Progress jobAct = expectAct.getChildProgress(1.0 / nrsectors);
-			CYKJob cYKJob = master.takeNextExpectationJob(); // This call will
-			// block until a job is ready 
-			// System.out.println(cYKJob.sectorid + " " + " 4 " +
-			// (System.nanoTime()-starttime));
-			final int sectorNumber = cYKJob.getSectorid();
-			executor.startExecution(cYKJob, new JobListener() {
-				@Override
-				public void jobFinished(JobResults result) {
-					master.setExpectationResult(sectorNumber, result);
-					jobAct.setProgress(1.0);
-					// System.out.println(sectorNumber + " " + " 5 " +
-					// (System.nanoTime()-starttime));
-					finishedexpectationjobscount.incrementAndGet();
-				}
-
-				@Override
-				public void jobFinished(double[][] result) {
-				}// doesn't happen here
-
-				@Override
-				public void jobFinished(List<ResultBundle> result) {
-				} // doesn't happen here
-			});
-		}
-		// wait for last job to finish
-		while (finishedexpectationjobscount.get() < nrsectors) {
-			Thread.sleep(100);
-			if(act.shouldStop()){
-				executor.shutDown();
-			}
-			act.checkStop();
-		}
+		master.runPass(Master.EXPECTATION, executor, expectAct);
 		expectAct.setProgress(1.0);
 
 		if (verbose) {
@@ -1853,6 +1747,22 @@ public class FoldingProject {
 		tree.getRoot().calculateChildrenMatrix(param.getSD(), param.getSV(),
 				param.getSV1());
 
+		// Identical columns have the same probabilities, so the probabilities
+		// are calculated once for each column pattern (and pair of patterns),
+		// and kept for the next alignment folded on the same tree.
+		final PhyloPatternCache cache = PhyloPatternCache.forTree(tree, names,
+				param);
+		final int[] pattern = new int[length];
+		int patterncnt = 0;
+		for (int col = 0; col < length; col++) {
+			pattern[col] = cache.getPattern(columns.get(col));
+			patterncnt = Math.max(patterncnt, pattern[col] + 1);
+		}
+		List<int[]> patterns = new ArrayList<int[]>();
+		for (int p = 0; p < patterncnt; p++) {
+			patterns.add(cache.getColumn(p));
+		}
+
 		if (verbose) {
 			System.out.println("Done. (time: "
 					+ (System.nanoTime() - starttime) * 1e-9 + " s)");
@@ -1871,9 +1781,10 @@ public class FoldingProject {
 		}
 
 		// Create jobs for SINGLE columns
-		// now all single columns are in one job
+		// now all single column patterns not known yet are in one job
 		// Add the only single-column job
-		int colcnt = 0;
+		BitSet listed = new BitSet(patterncnt);
+		final List<Integer> singleids = new ArrayList<Integer>();
 		PhyloJob lastjob = new PhyloJob();
 		lastjob.tree = Tree.copyTree(tree); // must copy the entire tree into
 		// each phylojob
@@ -1881,36 +1792,65 @@ public class FoldingProject {
 		// debugging only)
 		lastjob.startcol = 0;
 		lastjob.jobid = 0;
-		lastjob.endcol = length - 1;
 		lastjob.type = false;
 		lastjob.param = param;
 		for (int col = 0; col < length; col++) {
-			// send columns
-			lastjob.columns.add(columns.get(col));
-			colcnt++;
+			int p = pattern[col];
+			if (!listed.get(p) && Double.isNaN(cache.getSingle(p))) {
+				// send columns
+				listed.set(p);
+				singleids.add(p);
+				lastjob.columns.add(patterns.get(p));
+			}
 		}
+		lastjob.endcol = lastjob.columns.size() - 1;
 		jobs.add(lastjob);
 
 		// Create jobs for column PAIRS
-		// count total number of column pairs
-		int paircnt = 0;
+		// collect the pattern pairs (in column order) not known yet
+		BitSet[] needed = new BitSet[patterncnt];
+		long paircnt = 0;
 		for (int i = 0; i < length; i++) {
+			int p = pattern[i];
 			for (int j = i + 1; j < length; j++) {
+				int q = pattern[j];
+				if (needed[p] != null && needed[p].get(q)) {
+					continue;
+				}
+				if (!Double.isNaN(cache.getPair(p, q))) {
+					continue;
+				}
+				if (needed[p] == null) {
+					needed[p] = new BitSet(patterncnt);
+				}
+				needed[p].set(q);
 				paircnt++;
 			}
 		}
+		final int[][] partners = new int[patterncnt][];
+		for (int p = 0; p < patterncnt; p++) {
+			if (needed[p] != null) {
+				partners[p] = new int[needed[p].cardinality()];
+				int k = 0;
+				for (int q = needed[p].nextSetBit(0); q >= 0; q = needed[p]
+						.nextSetBit(q + 1)) {
+					partners[p][k++] = q;
+				}
+			}
+		}
 		if(verbose){
-			System.out.println("Total number of pairs: " + paircnt);
+			System.out.println("Total number of column patterns: " + patterncnt);
+			System.out.println("Total number of pattern pairs: " + paircnt);
 			System.out.println("Pairs in a job: " + (paircnt) / nrjobs);
 		}
 		// have to calculate matrices, but only once
 		tree.getRoot().calculateChildrenMatrix(param.getDD(), param.getDV(),
 				param.getDV1());
 
-		int lastendcol = -1;
-		int paircolcnt = 0;
-		// add all jobs except last
-		for (int jobnr = 0; jobnr < nrjobs - 1; jobnr++) {
+		// divide the patterns with pairs to calculate among the jobs
+		int p = 0;
+		long jobpaircnt = 0;
+		for (int jobnr = 0; jobnr < nrjobs && p < patterncnt; jobnr++) {
 			PhyloJob job = new PhyloJob();
 			job.tree = Tree.copyTree(tree); // must copy the entire tree into
 			// each phylojob
@@ -1918,49 +1858,25 @@ public class FoldingProject {
 			job.type = true;
 			job.param = param;
 			job.jobid = jobnr + 1;
-
-			int col1 = lastendcol + 1;
-			job.startcol = col1;
-			paircolcnt += length - col1;
-			col1--;
-			while (paircolcnt < ((long)(jobnr + 1) * (paircnt)) / nrjobs) {
-				col1++;
-				if (col1 == length) { // no more columns left, finish
-					col1--;
-					break;
+			job.startcol = p;
+			job.columns2 = patterns;
+			List<int[]> jobpartners = new ArrayList<int[]>();
+			while (p < patterncnt
+					&& (jobnr == nrjobs - 1 || jobpaircnt < ((jobnr + 1) * paircnt)
+							/ nrjobs)) {
+				if (partners[p] != null) {
+					job.columns.add(patterns.get(p));
+					jobpartners.add(partners[p]);
+					jobpaircnt += partners[p].length;
 				}
-				job.columns.add(columns.get(col1));
-				paircolcnt += length - col1;
+				p++;
 			}
-
-			job.endcol = col1;
-			lastendcol = col1;
-			for (int col2 = job.startcol + 1; col2 < length; col2++) {
-				// send pairing columns
-				job.columns2.add(columns.get(col2));
+			job.endcol = p - 1;
+			job.partners = jobpartners.toArray(new int[jobpartners.size()][]);
+			if (job.columns.size() != 0) {
+				jobs.add(job);
 			}
-			jobs.add(job);
-			paircolcnt -= length - col1;
 		}
-		// Add the last job
-		lastjob = new PhyloJob();
-		lastjob.tree = Tree.copyTree(tree); // must copy the entire tree into
-		// each phylojob
-		lastjob.names = names; // must copy the names into each phylojob
-		lastjob.startcol = lastendcol + 1;
-		lastjob.endcol = length;
-		lastjob.type = true;
-		lastjob.param = param;
-		lastjob.jobid = nrjobs;
-		for (int col1 = lastjob.startcol; col1 < length; col1++) {
-			// send columns
-			lastjob.columns.add(columns.get(col1));
-		}
-		for (int col2 = lastjob.startcol + 1; col2 < length; col2++) {
-			// send pairing columns
-			lastjob.columns2.add(columns.get(col2));
-		}
-		jobs.add(lastjob);
 
 		if (verbose) {
 			System.out.println("Done. (time: "
@@ -1997,48 +1913,8 @@ public class FoldingProject {
 			}
 			act.checkStop();
 			PhyloJob job = jobs.get(jobnr);
-			//final int jn = jobnr;
-			final int startcol = job.startcol;
-
-			final Progress jobAct = singleColAct
-					.getChildProgress((float) job.columns.size()
-							/ (float) colcnt);
-			executor.startExecution(job, new JobListener() {
-				@Override
-				public void jobFinished(JobResults result) {
-				} // doesn't happen here
-
-				@Override
-				public void jobFinished(List<ResultBundle> result) {
-				} // doesn't happen here
-
-				@Override
-				public void jobFinished(double[][] result) {
-					for (int col = 0; col < result.length; col++) {
-						probmatrix[col + startcol][col + startcol] = result[col][0];
-					}
-					finishedphylojobscount.incrementAndGet();
-					jobAct.setProgress(1.0);
-				}
-			});
-		}
-
-		Progress doubleColAct = act.getChildProgress(0.9);
-
-		// execute double column jobs
-		for (int jobnr = 1; jobnr < jobs.size(); jobnr++) {
-			if(act.shouldStop()){
-				executor.shutDown();
-			}
-			act.checkStop();
-			PhyloJob job = jobs.get(jobnr);
-			//final int jn = jobnr;
-			final int startcol = job.startcol;
-			final int endcol = job.endcol;
-			final Progress jobAct = doubleColAct
-					.getChildProgress((float) job.columns.size()
-							/ (float) length);
-			if (job.columns2.size() != 0) {
+			final Progress jobAct = singleColAct;
+			if (job.columns.size() != 0) {
 				executor.startExecution(job, new JobListener() {
 					@Override
 					public void jobFinished(JobResults result) {
@@ -2050,14 +1926,8 @@ public class FoldingProject {
 
 					@Override
 					public void jobFinished(double[][] result) {
-						for (int col1 = startcol; col1 < endcol + 1; col1++) {
-							for (int col2 = col1 + 1; col2 < length; col2++) {
-								probmatrix[col1][col2] = result[col1 - startcol][col2
-										- startcol - 1];
-								probmatrix[col2][col1] = probmatrix[col1][col2]; // make
-								// it
-								// symmetric
-							}
+						for (int k = 0; k < result.length; k++) {
+							cache.putSingle(singleids.get(k), result[k][0]);
 						}
 						finishedphylojobscount.incrementAndGet();
 						jobAct.setProgress(1.0);
@@ -2069,6 +1939,50 @@ public class FoldingProject {
 			}
 		}
 
+		Progress doubleColAct = act.getChildProgress(0.9);
+
+		// execute double column jobs
+		// the pair probabilities of each pattern, in the order of its partners
+		final double[][] pairprobs = new double[patterncnt][];
+		for (int jobnr = 1; jobnr < jobs.size(); jobnr++) {
+			if(act.shouldStop()){
+				executor.shutDown();
+			}
+			act.checkStop();
+			final PhyloJob job = jobs.get(jobnr);
+			long jobpairs = 0;
+			for (int[] row : job.partners) {
+				jobpairs += row.length;
+			}
+			final Progress jobAct = doubleColAct
+					.getChildProgress((float) jobpairs / (float) paircnt);
+			executor.startExecution(job, new JobListener() {
+				@Override
+				public void jobFinished(JobResults result) {
+				} // doesn't happen here
+
+				@Override
+				public void jobFinished(List<ResultBundle> result) {
+				} // doesn't happen here
+
+				@Override
+				public void jobFinished(double[][] result) {
+					int k = 0;
+					for (int p = job.startcol; p <= job.endcol; p++) {
+						if (partners[p] == null) {
+							continue;
+						}
+						pairprobs[p] = result[k++];
+						for (int l = 0; l < partners[p].length; l++) {
+							cache.putPair(p, partners[p][l], pairprobs[p][l]);
+						}
+					}
+					finishedphylojobscount.incrementAndGet();
+					jobAct.setProgress(1.0);
+				}
+			});
+		}
+
 		// wait for last thread to finish
 		// wait for jobs to finish
 		while (finishedphylojobscount.get() < jobs.size()) {
@@ -2078,6 +1992,26 @@ public class FoldingProject {
 			}
 			act.checkStop();
 		}
+
+		// expand the patterns into the columns
+		double[] row = new double[patterncnt];
+		int rowpattern = -1;
+		for (int i = 0; i < length; i++) {
+			p = pattern[i];
+			probmatrix[i][i] = cache.getSingle(p);
+			if (p != rowpattern && partners[p] != null) {
+				for (int l = 0; l < partners[p].length; l++) {
+					row[partners[p][l]] = pairprobs[p][l];
+				}
+				rowpattern = p;
+			}
+			for (int j = i + 1; j < length; j++) {
+				int q = pattern[j];
+				probmatrix[i][j] = needed[p] != null && needed[p].get(q) ? row[q]
+						: cache.getPair(p, q);
+				probmatrix[j][i] = probmatrix[i][j]; // make it symmetric
+			}
+		}
 		singleColAct.setProgress(1.0);
 		doubleColAct.setProgress(1.0);
 		act.setProgress(1.0);
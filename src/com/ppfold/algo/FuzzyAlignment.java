@@ -104,6 +104,57 @@ public class FuzzyAlignment implements Serializable {
 		return vector;
 	}*/
 	
+	/**
+	 * Creates a fuzzy alignment from a single alignment, further samples can be added
+	 * one by one with {@link #addAlignment(AlignmentData)}.
+	 */
+	public static FuzzyAlignment getIncrementalFuzzyAlignment(AlignmentData alignment)
+	{
+		ArrayList<AlignmentData> alignments = new ArrayList<AlignmentData>();
+		alignments.add(alignment);
+		return getFuzzyAlignment(alignments);
+	}
+	
+	/**
+	 * Adds an alignment sample (projected the same way as the others) and updates the
+	 * column probabilities in place, in O(columns x sequences) time.
+	 * 
+	 * The probabilities are running means, adding the n-th sample moves each of them by
+	 * (sample - mean) / n, so the AMA similarity between the fuzzy alignment before and
+	 * after the update is obtained in the same pass, without rebuilding either of them.
+	 * 
+	 * @return AMA(fuzzy alignment before the update, after the update)
+	 */
+	public double addAlignment(AlignmentData a)
+	{
+		alignments.add(a);
+		double numAlignmentsDouble = (double) alignments.size();
+		double distance = 0;
+		for(int row = 0 ; row < a.sequences.size() ; row++)
+		{
+			String seq = a.sequences.get(row);
+			for(int col = 0 ; col < seq.length() ; col++)
+			{
+				double [] ambiguities = normalize(MatrixTools.createSVector(seq.charAt(col)));
+				double [] probability = columns.get(col)[row].probability;
+				double squares = 0;
+				for(int l = 0 ; l < ambiguities.length ; l++)
+				{
+					double delta = (ambiguities[l] - probability[l]) / numAlignmentsDouble;
+					probability[l] += delta;
+					squares += delta * delta;
+				}
+				distance += Math.sqrt(squares);
+			}
+		}
+		
+		int sum = 0;
+		for(int i = 0; i<getNumSequences(); ++i){
+			sum += sequences.get(i).length();
+		}
+		return 1 - distance / (double)( sum );
+	}
+	
 	public static FuzzyAlignment getFuzzyAlignmentAndProject(List<AlignmentData> alignments, int seqno)
 	{
 		ArrayList<AlignmentData> projectedAlignments = new ArrayList<AlignmentData>();
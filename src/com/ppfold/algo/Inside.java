@@ -43,10 +43,12 @@ public class Inside {
 			for (int c = 1; c <= cYKJob.getBelow().size() - 1; c++) {
 				partialS.incrementWithLS(cYKJob.getBelow().get(
 						cYKJob.getBelow().size() - c - 1), cYKJob
-						.getDiagbelow().get(c - 1), prob[0][0], tmp, tmp2);
+						.getDiagbelow().get(c - 1), prob[0][0],
+						cYKJob.getArithmetic(), tmp, tmp2);
 				partialF.incrementWithLS(cYKJob.getBelow().get(
 						cYKJob.getBelow().size() - c - 1), cYKJob
-						.getDiagbelow().get(c - 1), prob[2][1], tmp, tmp2);
+						.getDiagbelow().get(c - 1), prob[2][1],
+						cYKJob.getArithmetic(), tmp, tmp2);
 			}
 		}
 
@@ -1,5 +1,8 @@
 package com.ppfold.algo;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -25,6 +28,20 @@ public class JobResults implements Serializable {
 		F = new ResMatrix(n);
 	}
 	
+	void write(DataOutputStream out) throws IOException {
+		ResMatrix.write(out, L);
+		ResMatrix.write(out, S);
+		ResMatrix.write(out, F);
+	}
+
+	static JobResults read(DataInputStream in) throws IOException {
+		JobResults results = new JobResults();
+		results.L = ResMatrix.read(in);
+		results.S = ResMatrix.read(in);
+		results.F = ResMatrix.read(in);
+		return results;
+	}
+
 	public String toString(){
 		String reString = "";
 		if(L != null){
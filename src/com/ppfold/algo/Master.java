@@ -1,10 +1,19 @@
 package com.ppfold.algo;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
- * Created by FoldingProject, steers asynchronous execution with queues
+ * Created by FoldingProject, steers asynchronous execution of the sectors.
+ * 
+ * Each pass (inside, outside, expectation) is a wavefront over the sectors:
+ * every sector counts the results of its dependencies (below and diagbelow,
+ * or above and diagabove for the outside pass) it still waits for, and the job
+ * finishing the last of them starts the sector's job on the executor. Sectors therefore
+ * start as soon as they can, without polling.
  * 
  * @author Z.Sukosd
  * @author M.Vaerum
@@ -12,207 +21,157 @@ import java.util.concurrent.LinkedBlockingQueue;
  */
 
 public class Master {
+	/** Passes over the sectors, numbered as the types of their jobs */
+	public static final int INSIDE = 0;
+	public static final int OUTSIDE = 1;
+	public static final int EXPECTATION = 2;
+
 	Sector top;
 	Sector bottom;
 	double[][] prob;
-
-	BlockingQueue<CYKJob> jobChannelInside = new LinkedBlockingQueue<CYKJob>();
-	BlockingQueue<CYKJob> jobChannelOutside = new LinkedBlockingQueue<CYKJob>();
-	BlockingQueue<CYKJob> jobChannelExpectation = new LinkedBlockingQueue<CYKJob>();
+	Sector[] sectors; // indexed by sectorid
+	CYKArithmetic arithmetic = CYKArithmetic.POINTRES; // of the jobs
 
 	public Master() {
 	}
 
 	public Master(Sector topsec, double[][] prob) {
+		this(topsec, prob, CYKArithmetic.POINTRES);
+	}
+
+	public Master(Sector topsec, double[][] prob, CYKArithmetic arithmetic) {
+		this.arithmetic = arithmetic;
 		top = topsec;
 		bottom = findBottom();
 		this.prob = prob;
-	}
-
-	public boolean outsideFinished() {
-		// returns true if outside is finished, otherwise false
-		Sector current = bottom;
-		while (current.pos[1] == -1 && current.next != null) {
-			if (current.getOutsideResults() == null) {
-				return false;
-			}
-			current = current.next;
+		int count = 0;
+		for (Sector sec = bottom; sec != null; sec = sec.next) {
+			count++;
+		}
+		sectors = new Sector[count];
+		for (Sector sec = bottom; sec != null; sec = sec.next) {
+			sectors[sec.sectorid] = sec;
 		}
-		return true;
 	}
 
-	public void CreateInsideJobChannel() {
-
-		Sector sec = this.bottom;
-		// loop to create inside jobchannel
-		while (sec != null && sec.below == null) {
-			// first job to have below != null is the first one outside the
-			// zeroth row
-			// ie. enough to check sec.below, loop exists at the right time
-			try {
-				jobChannelInside.put(createInsideJobFromSector(sec));
-				sec.setIsBeingInsideProcessed(true);
-			} catch (InterruptedException e) {
-				//System.out.println("Process interrupted!");
+	/**
+	 * Runs a pass over all sectors on the executor and returns when all its
+	 * jobs are finished. The inside and expectation passes go from the bottom
+	 * row up, the outside pass from the top down.
+	 * 
+	 * @param pass
+	 *            INSIDE, OUTSIDE or EXPECTATION
+	 * @param act
+	 *            progress of the pass, also checked for stopping
+	 */
+	public void runPass(int pass, AsynchronousJobExecutor executor,
+			Progress act) throws InterruptedException {
+		Pass run = new Pass(pass, executor, act);
+		// the first jobs can finish and start others while these are started
+		List<Sector> ready = new ArrayList<Sector>();
+		for (Sector sec : sectors) {
+			if (run.waiting.get(sec.sectorid) == 0) {
+				ready.add(sec);
 			}
-			sec = sec.next;
 		}
-	}
-
-	public CYKJob takeNextInsideJob() throws InterruptedException {
-		return jobChannelInside.take();
-	}
-
-	public void CreateOutsideJobChannel() {
-		// create outside jobchannel - consists of top job to start with
-		try {
-			jobChannelOutside.put(createOutsideJobFromSector(top));
-		} catch (InterruptedException e) {
-			//System.out.println("Process interrupted!");
+		for (Sector sec : ready) {
+			run.start(sec);
 		}
-	}
-
-	public CYKJob takeNextOutsideJob() throws InterruptedException {
-		return jobChannelOutside.take();
-	}
-
-	public void CreateExpectationJobChannel() {
-		Sector sec = this.bottom;
-		// loop to create expectation jobchannel
-		while (sec != null && sec.below == null) {
-			// first job to have below != null is the first one outside the
-			// zeroth row
-			// ie. enough to check sec.below, loop exists at the right time
-			try {
-				jobChannelExpectation.put(createExpectationJobFromSector(sec));
-				sec.setIsBeingExpectationProcessed(true);
-			} catch (InterruptedException e) {
-				//System.out.println("Process interrupted!");
+		while (!run.finished.await(100, TimeUnit.MILLISECONDS)) {
+			if (act.shouldStop()) {
+				executor.shutDown();
 			}
-			sec = sec.next;
+			act.checkStop();
 		}
 	}
 
-	public CYKJob takeNextExpectationJob() throws InterruptedException {
-		return jobChannelExpectation.take();
-	}
-
-	public synchronized boolean unProcessedInsideSectors() {
-		return !jobChannelInside.isEmpty()
-				|| (top.getInsideResults() == null && !top
-						.isBeingInsideProcessed());
-	}
-
-	public synchronized boolean unProcessedOutsideSectors() {
-		// returns true if:
-		// there are jobs in outside queue
-		// there is at least one job with getOutsideResults()==null
-		// there is at least one job with isBeingOutsideProcessed() = true
-		boolean value = false;
-		Sector current = bottom;
-		while (current.pos[1] == -1 && current.next != null) {
-			if (current.getOutsideResults() == null
-					&& !current.isBeingOutsideProcessed()) {
-				value = true;
+	/**
+	 * State of one pass: the number of results each sector waits for and the
+	 * number of sectors not finished.
+	 */
+	private class Pass {
+		final int pass;
+		final AsynchronousJobExecutor executor;
+		final AtomicIntegerArray waiting;
+		final CountDownLatch finished;
+		final Progress[] jobActs;
+		/** The sectors waiting for the result of each sector */
+		final List<List<Sector>> dependents;
+
+		Pass(int pass, AsynchronousJobExecutor executor, Progress act) {
+			this.pass = pass;
+			this.executor = executor;
+			waiting = new AtomicIntegerArray(sectors.length);
+			finished = new CountDownLatch(sectors.length);
+			jobActs = new Progress[sectors.length];
+			dependents = new ArrayList<List<Sector>>(sectors.length);
+			for (int i = 0; i < sectors.length; i++) {
+				dependents.add(new ArrayList<Sector>(2));
+			}
+			for (Sector sec : sectors) {
+				jobActs[sec.sectorid] = act.getChildProgress(1.0 / sectors.length);
+			}
+			for (Sector sec : sectors) {
+				if (pass == OUTSIDE) {
+					dependOn(sec, sec.above);
+					dependOn(sec, sec.diagabove);
+				} else {
+					dependOn(sec, sec.below);
+					dependOn(sec, sec.diagbelow);
+				}
 			}
-			current = current.next;
-		}
-
-		return !jobChannelOutside.isEmpty() || value;
-	}
-
-	public synchronized boolean unProcessedExpectationSectors() {
-		return !jobChannelExpectation.isEmpty()
-				|| (top.getExpectationResults() == null && !top
-						.isBeingExpectationProcessed());
-	}
-
-	public synchronized void setInsideResult(int sectorNumber,
-			JobResults results) {
-		// Traverse sector structure and find the sector
-		Sector sector = findSector(sectorNumber);
-		// Update sector with result
-		sector.setInsideResults(results);
-		sector.setIsBeingInsideProcessed(false);
-		// Check to see if a new job is ready and insert into queue
-		if (sector.above != null && sector.above.readyForInsideProcessing()) {
-			processInside(sector.above);
-
-		}
-		if (sector.diagabove != null
-				&& sector.diagabove.readyForInsideProcessing()) {
-			processInside(sector.diagabove);
-		}
-
-	}
-
-	public synchronized void setOutsideResult(int sectorNumber,
-			JobResults results) {
-		// Traverse sector structure and find the sector
-		Sector sector = findSector(sectorNumber);
-		// Update sector with result
-		sector.setOutsideResults(results);
-		sector.setIsBeingOutsideProcessed(false);
-		// Check to see if a new job is ready and insert into queue
-		if (sector.below != null && sector.below.readyForOutsideProcessing()) {
-			processOutside(sector.below);
-
-		}
-		if (sector.diagbelow != null
-				&& sector.diagbelow.readyForOutsideProcessing()) {
-			processOutside(sector.diagbelow);
-		}
-	}
-
-	public synchronized void setExpectationResult(int sectorNumber,
-			JobResults results) {
-		// Traverse sector structure and find the sector
-		Sector sector = findSector(sectorNumber);
-		// Update sector with result
-		sector.setExpectationResults(results);
-		sector.setIsBeingExpectationProcessed(false);
-		// Check to see if a new job is ready and insert into queue
-		if (sector.above != null
-				&& sector.above.readyForExpectationProcessing()) {
-			processExpectation(sector.above);
-
-		}
-		if (sector.diagabove != null
-				&& sector.diagabove.readyForExpectationProcessing()) {
-			processExpectation(sector.diagabove);
-		}
-	}
-
-	private void processInside(Sector sector) {
-		sector.setIsBeingInsideProcessed(true);
-		CYKJob nextJob = createInsideJobFromSector(sector);
-		// System.out.println("Job created from sector " + sector.sectorid);
-		try {
-			jobChannelInside.put(nextJob);
-		} catch (InterruptedException e) {
-			//System.out.println("Process interrupted!");
 		}
-	}
 
-	private void processOutside(Sector sector) {
-		sector.setIsBeingOutsideProcessed(true);
-		CYKJob nextJob = createOutsideJobFromSector(sector);
-		// System.out.println("Job created from sector " + sector.sectorid);
-		try {
-			jobChannelOutside.put(nextJob);
-		} catch (InterruptedException e) {
-			//System.out.println("Process interrupted!");
+		private void dependOn(Sector sector, Sector other) {
+			if (other != null) {
+				waiting.incrementAndGet(sector.sectorid);
+				dependents.get(other.sectorid).add(sector);
+			}
 		}
-	}
 
-	private void processExpectation(Sector sector) {
-		sector.setIsBeingExpectationProcessed(true);
-		CYKJob nextJob = createExpectationJobFromSector(sector);
-		// System.out.println("Job created from sector " + sector.sectorid);
-		try {
-			jobChannelExpectation.put(nextJob);
-		} catch (InterruptedException e) {
-			//System.out.println("Process interrupted!");
+		void start(final Sector sector) {
+			CYKJob cYKJob;
+			if (pass == INSIDE) {
+				cYKJob = createInsideJobFromSector(sector);
+			} else if (pass == OUTSIDE) {
+				cYKJob = createOutsideJobFromSector(sector);
+			} else {
+				cYKJob = createExpectationJobFromSector(sector);
+			}
+			cYKJob.setArithmetic(arithmetic);
+			executor.startExecution(cYKJob, new JobListener() {
+				@Override
+				public void jobFinished(JobResults result) {
+					finish(sector, result);
+				}
+
+				@Override
+				public void jobFinished(double[][] result) {
+				}// doesn't happen here
+
+				@Override
+				public void jobFinished(List<ResultBundle> result) {
+				} // doesn't happen here
+			});
+		}
+
+		void finish(Sector sector, JobResults results) {
+			if (pass == INSIDE) {
+				sector.setInsideResults(results);
+			} else if (pass == OUTSIDE) {
+				sector.setOutsideResults(results);
+			} else {
+				sector.setExpectationResults(results);
+			}
+			jobActs[sector.sectorid].setProgress(1.0);
+			// count the result for the sectors waiting for it, starting those
+			// it was the last result for
+			for (Sector dependent : dependents.get(sector.sectorid)) {
+				if (waiting.decrementAndGet(dependent.sectorid) == 0) {
+					start(dependent);
+				}
+			}
+			finished.countDown();
 		}
 	}
 
@@ -405,11 +364,7 @@ public class Master {
 	}
 
 	public Sector findSector(int sector) {
-		Sector current = this.bottom;
-		while (current.sectorid != sector) {
-			current = current.next;
-		}
-		return current;
+		return sectors[sector];
 	}
 
 	private Sector findBottom() {
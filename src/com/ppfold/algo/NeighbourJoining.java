@@ -3,6 +3,8 @@ package com.ppfold.algo;
 import java.util.ArrayList;
 import java.util.List;
 
+import statalign.base.NeighbourJoiner;
+
 /**
  * Contains methods to create a tree by neighbour-joining from the alignment.
  * 
@@ -116,172 +118,60 @@ public class NeighbourJoining {
 	}
 	
 	private static Node joinNeighbourTaxa(Progress activity, List<Node> taxa, double[][] d) throws InterruptedException{
-		activity.checkStop();
-		//printTaxa(taxa);
-		if(taxa.size()==1){
-			//stopping criterion, return the root. 
-			if(taxa.get(0).getName()==null){
-				//taxa.get(0).setName("root");
-			}
-			return taxa.remove(0);
-		}
-		else if(taxa.size()==2){
-			//only 2 nodes left.
-			//Special case, join them, designate one as root.
-			taxa.get(0).addChild(taxa.get(1));
-			taxa.get(1).setDistanceFromParent(d[1][0]);
-			taxa.get(0).setDistanceFromParent(0);
-			taxa.remove(1);
-			double[][] newd = new double[1][1];
-			newd[0][0] = 1;
-			return joinNeighbourTaxa(activity, taxa,newd);		
-		}
-		else{
-			int n = taxa.size(); //how many taxa should be joined
-			double partial1 = 0;
-			double partial2 = 0;
-			double [][] Q = new double [n][n]; 
-			for(int i = 0; i<n; i++){
-				partial1 = 0;
-				for(int k = 0; k<n; k++){
-					if(i!=k){
-						partial1 = partial1+d[i][k];
-					}
-				}	
-				for(int j = 0; j<i; j++){
-					partial2 = 0;
-					for(int k = 0; k<n; k++){
-						if(j!=k){
-						partial2 = partial2+d[j][k];
-						}
-					}	
-			 		Q[i][j] = Q[j][i] = (n-2)*d[i][j] - partial1 - partial2;
-			     }
-			}
-			//System.out.println("Ids:");
-			//for(Node tax:taxa){
-			//	System.out.print(tax.getId() + " ");
-			//}
-			//System.out.println();
-			//System.out.println("Distance matrix:");
-			//MatrixTools.print(d);
-			//System.out.println("Q: ");
-			//MatrixTools.print(Q);
-			
-			int[] tojoin = minCoords(Q);
-			//System.out.println("Chosen value:" + tojoin[0] + ", " + tojoin[1] + " = " + Q[tojoin[0]][tojoin[1]]);
-			//System.out.println("Joining " + taxa.get(tojoin[0]).getId() + "(" + taxa.get(tojoin[0]).getName() + ") " +  
-			//		" to " + taxa.get(tojoin[1]).getId()+ "(" + taxa.get(tojoin[1]).getName() + ") ");
+		//The taxa are indexed as in the joining engine: the leaves in list order, 
+		//then each new node at the next index (as if appended to the end of the list). 
+		int n = taxa.size();
+		Node[] nodes = new Node[2*n-1];
+		taxa.toArray(nodes);
+		NeighbourJoiner joiner = new NeighbourJoiner(d, false, false);
+		while(joiner.getRemaining()>2){
+			activity.checkStop();
+			int remaining = joiner.getRemaining(); //how many taxa should be joined
+			//the first coordinate is always larger
+			int[] tojoin = joiner.findPair();
 
 			Node newnode = new Node();			
 			idcounter++;
 			newnode.setId(idcounter);
-			//System.out.println("Created node id " + newnode.getId());
-			newnode.addChild(taxa.get(tojoin[1]));
-			newnode.addChild(taxa.get(tojoin[0]));
+			newnode.addChild(nodes[tojoin[1]]);
+			newnode.addChild(nodes[tojoin[0]]);
 			
 			//the right coordinates tojoin[1] vs. tojoin[0] are very important here, do not mess! 
-			partial1 = 0; //"g" sum, wikipedia definition 
-			for(int k = 0; k<n; k++){
-				partial1 = partial1+d[tojoin[1]][k];
-			}	
-			partial2 = 0;//"f" sum, wikipedia definition 
-			for(int k = 0; k<n; k++){
-				partial2 = partial2+d[tojoin[0]][k];
-			}	
-			
-			//System.out.println("Partial2 (f sum): " + partial2);
-			//System.out.println("Partial1 (g sum): " + partial1);
-			//System.out.println("Distance of two taxa:" + d[tojoin[0]][tojoin[1]]);
+			//"f" sum minus "g" sum, wikipedia definition 
+			double dist = joiner.getDistance(tojoin[0], tojoin[1]);
+			double distance = 0.5*dist + 
+				(joiner.getSum(tojoin[0])-joiner.getSum(tojoin[1]))/(2*remaining-4); //"f"'s distance from new node
 			
-			double distance = 0.5*d[tojoin[0]][tojoin[1]] + 
-				(partial2-partial1)/(2*n-4); //"f"'s distance from new node
-			
-			taxa.get(tojoin[0]).setDistanceFromParent(distance);
+			nodes[tojoin[0]].setDistanceFromParent(distance);
 			//distance of second taxon by reflection
-		//	System.out.println(taxa.get(tojoin[0]).getId() + " calculated first ");
-			//System.out.println("Distance to new taxon: " + distance);
-			double dist1 = distance; 
-			
-			distance = d[tojoin[0]][tojoin[1]]-distance; //"f"'s distance from the new node
-			//System.out.println("Distance of second new taxon: " + distance );
-			taxa.get(tojoin[1]).setDistanceFromParent(distance);
-			double dist2 = distance; 
+			nodes[tojoin[1]].setDistanceFromParent(dist-distance);
 			
 			//Check for negative branch lengths - in this case just set the negative one to
 			//zero and the other one to the whole difference
-			if(taxa.get(tojoin[0]).getDistanceFromParent()<0){
-				taxa.get(tojoin[0]).setDistanceFromParent(0);
-				taxa.get(tojoin[1]).setDistanceFromParent(d[tojoin[0]][tojoin[1]]);
+			if(nodes[tojoin[0]].getDistanceFromParent()<0){
+				nodes[tojoin[0]].setDistanceFromParent(0);
+				nodes[tojoin[1]].setDistanceFromParent(dist);
 			}
-			else if(taxa.get(tojoin[1]).getDistanceFromParent()<0){
-				taxa.get(tojoin[1]).setDistanceFromParent(0);
-				taxa.get(tojoin[0]).setDistanceFromParent(d[tojoin[0]][tojoin[1]]);	
+			else if(nodes[tojoin[1]].getDistanceFromParent()<0){
+				nodes[tojoin[1]].setDistanceFromParent(0);
+				nodes[tojoin[0]].setDistanceFromParent(dist);	
 			}
 			else{}
 			
-			//System.out.println("Children of new node: " + 
-			//		newnode.getChildren().get(0).getId() + ":" + newnode.getChildren().get(0).getName()
-			//		+ " ( "  + newnode.getChildren().get(0).getDistanceFromParent() + ")" + 
-			//		" and " + newnode.getChildren().get(1).getId() + ":" + newnode.getChildren().get(1).getName()
-			//		+ " ( "  + newnode.getChildren().get(1).getDistanceFromParent() + ")");
-			
-			//calculate new distance matrix
-			double [][] newd = new double[n-1][n-1];
-			//First copy the numbers that are the same. 
-			//position in old matrix
-			int icnt = 0; 
-			int jcnt = 0; 
-			for(int i = 0; i<n-2; i++){
-				for(int j = 0; j<n-2; j++){
-					//icnt=i;
-					while(icnt==tojoin[0]||icnt==tojoin[1]){
-						//System.out.println("A: Skipping " +icnt);
-						icnt++;
-					}
-					while(jcnt==tojoin[0]||jcnt==tojoin[1]){
-						//System.out.println("B: Skipping " + jcnt);
-						jcnt++;
-					}
-					newd[i][j] = d[icnt][jcnt];
-				//	System.out.println("Setting " + i + ", " + j + "(" +  newd[i][j] + ") from " + icnt + ", " + jcnt +
-				//			"(" +  d[icnt][jcnt] + ")");
-				//	System.out.println("NEWD is now: ");
-				//	MatrixTools.print(newd);
-					jcnt++;
-				}
-				icnt++;
-				jcnt=0;
-			}
-			//System.out.println("New d before last ones: ");
-			//MatrixTools.print(newd);
-			
-			//Now fill distances to last taxon 
-			//(which is always positioned at the end of the new distance table/taxa list) 
-			icnt = 0; 
-			for(int k = 0; k<n-2; k++){
-				//coordinate in new matrix: (i,n-2) and (n-2,i) as it is symmetric.
-				while(icnt==tojoin[0]||icnt==tojoin[1]){
-					icnt++;
-				}
-				//System.out.println("Trying to fill " + k + ", " + (n-2) + ", old matrix equivalent " + icnt);
-				newd[k][n-2] = newd[n-2][k] = 0.5*(d[tojoin[1]][icnt] + d[tojoin[0]][icnt] - d[tojoin[0]][tojoin[1]]);
-				//System.out.println("0.5 * (" + d[tojoin[1]][icnt] + " + " + d[tojoin[0]][icnt] + " - " + d[tojoin[0]][tojoin[1]] + ") = " + newd[k][n-2]);
-				icnt++;
-			}
-			
-			//System.out.println("New d:");
-			//MatrixTools.print(newd);
-			
-			//printTaxa(taxa);
-			//the second coordinate is always larger so remove that taxon first 
-			taxa.remove(tojoin[0]); 
-			taxa.remove(tojoin[1]);
-			taxa.add(newnode);
-			//printTaxa(taxa);
-			
-			return joinNeighbourTaxa(activity, taxa,newd);
+			//new distances are calculated by the engine
+			nodes[joiner.join(tojoin[0], tojoin[1])] = newnode;
 		}
+		activity.checkStop();
+		int[] last = joiner.getRemainingIndices();
+		if(last.length==2){
+			//only 2 nodes left.
+			//Special case, join them, designate one as root.
+			nodes[last[0]].addChild(nodes[last[1]]);
+			nodes[last[1]].setDistanceFromParent(joiner.getDistance(last[1], last[0]));
+			nodes[last[0]].setDistanceFromParent(0);
+		}
+		//return the root. 
+		return nodes[last[0]];
 	}
 	
 	private static void printTaxa(List<Node> taxa){
@@ -291,27 +181,6 @@ public class NeighbourJoining {
 		}
 	}
 	
-	private static int[] minCoords(double [][] matrix){
-		//returns the coordinates of the minimum element in the matrix
-		if(matrix.length<2){
-			System.out.println("Warning: matrix has length 1");
-			int [] point = {0, 0};
-			return point; 
-		}
-		double minimum = 100000000; //a very big number. 
-		int [] point = {0, 0};  
-		for(int i = 0; i<matrix.length; i++){
-			for(int j = 0; j<i; j++){
-				if(minimum>matrix[i][j]){
-					minimum = matrix[i][j];
-					point[0] = i; //the second coordinate is always larger 
-					point[1] = j;
-				}
-			}
-		}
-		return point; 
-	}
-	
 	private static double goldenSectionSearch(Progress act,
 			String seq1, String seq2, 
 			double[][] D, double[][] V, double [][] V1, double [] Pr,
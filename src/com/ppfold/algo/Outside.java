@@ -54,20 +54,24 @@ public class Outside {
 		for (int c = 0; c <= cYKJob.getAboveF().size() - 1; c++) {
 			// S->LS
 			partialL.incrementLWithDirectProduct(cYKJob.getAboveS().get(c),
-					cYKJob.getBelow().get(c + 1), prob[0][0], tmp, tmp2);
+					cYKJob.getBelow().get(c + 1), prob[0][0],
+					cYKJob.getArithmetic(), tmp, tmp2);
 			// F->LS
 			partialL.incrementLWithDirectProduct(cYKJob.getAboveF().get(c),
-					cYKJob.getBelow().get(c + 1), prob[2][1], tmp, tmp2);
+					cYKJob.getBelow().get(c + 1), prob[2][1],
+					cYKJob.getArithmetic(), tmp, tmp2);
 		}
 
 		// Second half of sums: diagonal
 		for (int c = 0; c <= cYKJob.getDiagaboveF().size() - 1; c++) {
 			// S->LS
 			partialS.incrementSWithDirectProduct(cYKJob.getDiagaboveS().get(c),
-					cYKJob.getDiagbelow().get(c + 1), prob[0][0], tmp, tmp2);
+					cYKJob.getDiagbelow().get(c + 1), prob[0][0],
+					cYKJob.getArithmetic(), tmp, tmp2);
 			// F->LS
 			partialS.incrementSWithDirectProduct(cYKJob.getDiagaboveF().get(c),
-					cYKJob.getDiagbelow().get(c + 1), prob[2][1], tmp, tmp2);
+					cYKJob.getDiagbelow().get(c + 1), prob[2][1],
+					cYKJob.getArithmetic(), tmp, tmp2);
 			;
 		}
 
@@ -1,6 +1,8 @@
 package com.ppfold.algo;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.List;
@@ -455,4 +457,48 @@ public class Parameters implements Serializable {
 		return entropycalc;
 	}
 
+	/**
+	 * Writes all the parameters, for a remote worker.
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeBoolean(entropycalc);
+		RemoteJobWorker.writeMatrix(out, prob);
+		RemoteJobWorker.writeVector(out, pr);
+		RemoteJobWorker.writeMatrix(out, rV);
+		RemoteJobWorker.writeMatrix(out, rD);
+		RemoteJobWorker.writeMatrix(out, rV1);
+		RemoteJobWorker.writeVector(out, ps);
+		RemoteJobWorker.writeMatrix(out, sV);
+		RemoteJobWorker.writeMatrix(out, sD);
+		RemoteJobWorker.writeMatrix(out, sV1);
+		RemoteJobWorker.writeMatrix(out, pd);
+		RemoteJobWorker.writeMatrix(out, dV);
+		RemoteJobWorker.writeMatrix(out, dD);
+		RemoteJobWorker.writeMatrix(out, dV1);
+	}
+
+	/**
+	 * Reads parameters written by {@link #write(DataOutputStream)}.
+	 */
+	static Parameters read(DataInputStream in) throws IOException {
+		boolean entropycalc = in.readBoolean();
+		double[][] prob = RemoteJobWorker.readMatrix(in);
+		double[] pr = RemoteJobWorker.readVector(in);
+		double[][] rV = RemoteJobWorker.readMatrix(in);
+		double[][] rD = RemoteJobWorker.readMatrix(in);
+		double[][] rV1 = RemoteJobWorker.readMatrix(in);
+		double[] ps = RemoteJobWorker.readVector(in);
+		double[][] sV = RemoteJobWorker.readMatrix(in);
+		double[][] sD = RemoteJobWorker.readMatrix(in);
+		double[][] sV1 = RemoteJobWorker.readMatrix(in);
+		double[][] pd = RemoteJobWorker.readMatrix(in);
+		double[][] dV = RemoteJobWorker.readMatrix(in);
+		double[][] dD = RemoteJobWorker.readMatrix(in);
+		double[][] dV1 = RemoteJobWorker.readMatrix(in);
+		Parameters param = new Parameters(prob, pr, ps, pd, rV, rD, rV1, sV,
+				sD, sV1, dV, dD, dV1);
+		param.entropycalc = entropycalc;
+		return param;
+	}
+
 }
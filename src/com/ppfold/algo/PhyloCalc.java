@@ -15,10 +15,13 @@ public class PhyloCalc {
 
 		Tree tree = phyloJob.tree;
 		List<int[]> columns = phyloJob.columns;
-		List<String> names = phyloJob.names;
 
 		double[][] result = new double[columns.size()][1];
 		double[][] ntvectors = MatrixTools.createSingleVectors();
+		Node[] leaves = findLeaves(phyloJob, columns.get(0).length);
+		if (leaves == null) {
+			return null;
+		}
 
 		for (int col = 0; col < columns.size(); col++) {
 			// Reset all vectors
@@ -28,17 +31,10 @@ public class PhyloCalc {
 			// Each column has the nt in the same position from all sequences.
 			int[] column = columns.get(col);
 			for (int row = 0; row < column.length; row++) {
-				// find node corresponding to the rownumber (sequence)
-				Node node = tree.findNodeWithName(row);
-				if (node == null) {
-					System.out.println("Can't find node with name "
-							+ names.get(row));
-					return null;
-				}
-				// now set the vector of this Node.
+				// now set the vector of the node of this row.
 				// the vector of all other nodes will be [1 1 1 1] by default
 				// (Node constructor)
-				double[] vector = node.getVector();
+				double[] vector = leaves[row].getVector();
 				MatrixTools.copyFromTo(ntvectors[column[row]], vector);
 			}
 			// recursively find the vector of all other nodes for this column.
@@ -50,41 +46,42 @@ public class PhyloCalc {
 		return result;
 	}
 
+	/**
+	 * Calculates the probabilities of the column pairs of a job: the row of
+	 * each column has the probability of the pair with each of its partners.
+	 */
 	public static double[][] calcDoubleColumn(PhyloJob phyloJob) {
 		long starttime = System.nanoTime();
 		Tree tree = phyloJob.tree;
 		List<int[]> columns = phyloJob.columns;
 		List<int[]> columns2 = phyloJob.columns2;
-		List<String> names = phyloJob.names;
 		int length = columns.size();
-		int width = columns2.size();
 
-		double[][] result = new double[length][width];
+		double[][] result = new double[length][];
 		double[][][] doublevectors = MatrixTools.createDoubleVectors();
+		double[] pd = MatrixTools.serializeMatrix(phyloJob.param.getPd(),
+				new double[16]);
+		Node[] leaves = findLeaves(phyloJob, columns.get(0).length);
+		if (leaves == null) {
+			return null;
+		}
 		tree.getRoot().resetChildrenVector(16, 1);
 		for (int col1 = 0; col1 < length; col1++) {
-			for (int col2 = col1; col2 < width; col2++) {
+			int[] partners = phyloJob.partners[col1];
+			result[col1] = new double[partners.length];
+			int[] column1 = columns.get(col1);
+			for (int k = 0; k < partners.length; k++) {
 
 				// have to reset all vectors.
 				tree.getRoot().resetChildrenVector(1);
 
-				int[] column1 = columns.get(col1);
-				int[] column2 = columns2.get(col2);
+				int[] column2 = columns2.get(partners[k]);
 
 				for (int row = 0; row < column1.length; row++) {
-					// find node corresponding to the row number (sequence)
-					Node node = tree.findNodeWithName(row);
-
-					if (node == null) {
-						System.out.println("Can't find node with name "
-								+ names.get(row));
-						return null;
-					}
-
-					// now set the matrix of this Node.
+					// now set the matrix of the node of this row.
 					// the vector of all other nodes will be [1 1 1 1] by
 					// default (Node constructor)
-					double[] vector = node.getVector();
+					double[] vector = leaves[row].getVector();
 					MatrixTools.copyFromTo(
 							doublevectors[column1[row]][column2[row]], vector);
 				}
@@ -93,13 +90,28 @@ public class PhyloCalc {
 				// column pair.
 				tree.calculateVectors();
 
-				result[col1][col2] = MatrixTools.scalarProduct(
-						tree.getRoot().getVector(), 
-						MatrixTools.serializeMatrix(phyloJob.param.getPd(), tree.getRoot()
-								.getTmpNtVector()));
+				result[col1][k] = MatrixTools.scalarProduct(
+						tree.getRoot().getVector(), pd);
 			}
 		}
 		return result;
 	}
 
+	/**
+	 * Finds the node corresponding to each row number (sequence), null if a
+	 * node is missing.
+	 */
+	private static Node[] findLeaves(PhyloJob phyloJob, int rows) {
+		Node[] leaves = new Node[rows];
+		for (int row = 0; row < rows; row++) {
+			leaves[row] = phyloJob.tree.findNodeWithName(row);
+			if (leaves[row] == null) {
+				System.out.println("Can't find node with name "
+						+ phyloJob.names.get(row));
+				return null;
+			}
+		}
+		return leaves;
+	}
+
 }
@@ -1,7 +1,11 @@
 package com.ppfold.algo;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -17,6 +21,8 @@ public class PhyloJob implements Serializable {
 	public Tree tree;
 	public List<int[]> columns = new ArrayList<int[]>(); // single pairs only
 	public List<int[]> columns2 = new ArrayList<int[]>(); // pairing columns
+	// for each column, the indices of the columns2 it is paired with
+	public int[][] partners;
 
 	public List<String> names = new ArrayList<String>();
 	public int startcol; // starting column number
@@ -45,9 +51,8 @@ public class PhyloJob implements Serializable {
 		// content
 		totaluse += 13000; // parameters = 13 kB;
 		totaluse += 16; // small things
-		totaluse += columns.size() == 0 ? 0 : (columns2.size() == 0 ? columns
-				.size() * 8 + 12 : columns.size() * (columns2.size() + 1) * 8
-				+ 12); // processing space for results.
+		totaluse += columns.size() == 0 ? 0 : (partners == null ? columns
+				.size() * 8 + 12 : pairs() * 8 + columns.size() * 12); // processing space for results.
 		totaluse *= 1.25; // add 25% extra for safety
 		return totaluse;
 	}
@@ -70,27 +75,24 @@ public class PhyloJob implements Serializable {
 
 	public long getResultTransportRequirement() {
 		int totaluse = 0;
-		totaluse += columns.size() == 0 ? 0 : (columns2.size() == 0 ? columns
-				.size() * 8 + 12 : columns.size() * (columns2.size() + 1) * 8
-				+ 12); // storing the probmatrix.
+		totaluse += columns.size() == 0 ? 0 : (partners == null ? columns
+				.size() * 8 + 12 : pairs() * 8 + columns.size() * 12); // storing the probmatrix.
 		return totaluse;
 	}
 
 	public long getExecutionTimeEstimate() {
 		// scaling does not work (much faster in reality than given here)
 		if (isType())
-			return pairs(columns.size(), columns2.size())
-					* columns.get(0).length / 100000;
+			return pairs() * columns.get(0).length / 100000;
 		else
 			return columns.size() * columns.get(0).length / 100000;
 	}
 
-	static int pairs(int a, int b) {
-		int answer = 0;
-		for (int c1 = 0; c1 < a; c1++) {
-			for (int c2 = c1 + 1; c2 < b; c2++) {
-				answer++;
-			}
+	// number of column pairs calculated by a double-column job
+	long pairs() {
+		long answer = 0;
+		for (int[] row : partners) {
+			answer += row.length;
 		}
 		return answer;
 	}
@@ -102,4 +104,78 @@ public class PhyloJob implements Serializable {
 	public boolean isType() {
 		return type;
 	}
+
+	/**
+	 * Writes the job for a remote worker, field by field.
+	 */
+	void write(DataOutputStream out) throws IOException {
+		tree.write(out);
+		writeColumns(out, columns);
+		writeColumns(out, columns2);
+		out.writeBoolean(partners != null);
+		if (partners != null) {
+			writeColumns(out, Arrays.asList(partners));
+		}
+		out.writeInt(names.size());
+		for (String name : names) {
+			out.writeUTF(name);
+		}
+		out.writeInt(startcol);
+		out.writeInt(endcol);
+		out.writeBoolean(type);
+		out.writeBoolean(finished);
+		out.writeInt(jobid);
+		out.writeInt(size);
+		param.write(out);
+	}
+
+	/**
+	 * Reads a job written by {@link #write(DataOutputStream)}.
+	 */
+	static PhyloJob read(DataInputStream in) throws IOException {
+		PhyloJob job = new PhyloJob();
+		job.tree = Tree.read(in);
+		job.columns = readColumns(in);
+		job.columns2 = readColumns(in);
+		if (in.readBoolean()) {
+			List<int[]> partners = readColumns(in);
+			job.partners = partners.toArray(new int[partners.size()][]);
+		}
+		int names = RemoteJobWorker.checkLength(in.readInt());
+		for (int i = 0; i < names; i++) {
+			job.names.add(in.readUTF());
+		}
+		job.startcol = in.readInt();
+		job.endcol = in.readInt();
+		job.type = in.readBoolean();
+		job.finished = in.readBoolean();
+		job.jobid = in.readInt();
+		job.size = in.readInt();
+		job.param = Parameters.read(in);
+		return job;
+	}
+
+	private static void writeColumns(DataOutputStream out, List<int[]> columns)
+			throws IOException {
+		out.writeInt(columns.size());
+		for (int[] column : columns) {
+			out.writeInt(column.length);
+			for (int value : column) {
+				out.writeInt(value);
+			}
+		}
+	}
+
+	private static List<int[]> readColumns(DataInputStream in) throws IOException {
+		int size = RemoteJobWorker.checkLength(in.readInt());
+		List<int[]> columns = new ArrayList<int[]>(size);
+		for (int i = 0; i < size; i++) {
+			int[] column = new int[RemoteJobWorker.checkLength(in.readInt())];
+			for (int j = 0; j < column.length; j++) {
+				column[j] = in.readInt();
+			}
+			columns.add(column);
+		}
+		return columns;
+	}
 }
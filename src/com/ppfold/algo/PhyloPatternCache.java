@@ -0,0 +1,216 @@
+package com.ppfold.algo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Phylogenetic probabilities of the distinct column patterns of alignments, for one tree
+ * and parameter set.
+ *
+ * Alignments repeat columns a lot, so the probabilities of a column and of a column pair
+ * only depend on the pattern of the column (the nucleotides of the sequences). Each
+ * pattern gets a number the first time it is seen, and the probabilities computed are
+ * kept by these numbers. The cache of the last tree is kept between folds, so folding
+ * the next alignment on the same tree only computes the new patterns and pattern pairs.
+ *
+ * The pair probabilities are kept in an open addressing table of at most
+ * {@link #MAX_PAIRS} entries; when it is full, the new pairs are not kept any more.
+ */
+public class PhyloPatternCache {
+
+	/**
+	 * Maximum number of pair probabilities kept. At a load factor of 1/2 the full
+	 * table has 4M slots of a long and a double (64 MB), 96 MB during the last rehash.
+	 */
+	static final int MAX_PAIRS = 1 << 21;
+
+	/** The cache of the tree folded last */
+	private static PhyloPatternCache last;
+
+	private final String treeKey;
+	private final Parameters param;
+
+	/** Number of each pattern seen */
+	private final Map<Pattern, Integer> ids = new HashMap<Pattern, Integer>();
+	private final List<int[]> patterns = new ArrayList<int[]>();
+	/** Single column probability of each pattern, NaN if not known */
+	private double[] single = new double[16];
+
+	/** Pair keys (first pattern number in the upper half), -1 for empty slots */
+	private long[] pairKeys;
+	private double[] pairValues;
+	private int pairCount;
+
+	private PhyloPatternCache(String treeKey, Parameters param) {
+		this.treeKey = treeKey;
+		this.param = param;
+		Arrays.fill(single, Double.NaN);
+		pairKeys = new long[1024];
+		pairValues = new double[1024];
+		Arrays.fill(pairKeys, -1);
+	}
+
+	/**
+	 * Returns the cache of a tree, which is the cache of the previous fold if that was on
+	 * the same tree (same names, topology and branch lengths) with the same parameters, a
+	 * new cache otherwise.
+	 *
+	 * @param names
+	 *            the names of the sequences in the order of the rows of the columns
+	 */
+	public static synchronized PhyloPatternCache forTree(Tree tree,
+			List<String> names, Parameters param) {
+		StringBuilder key = new StringBuilder();
+		for (String name : names) {
+			key.append(name).append('\n');
+		}
+		appendNode(key, tree.getRoot());
+		String treeKey = key.toString();
+		if (last == null || last.param != param || !last.treeKey.equals(treeKey)) {
+			last = new PhyloPatternCache(treeKey, param);
+		}
+		return last;
+	}
+
+	private static void appendNode(StringBuilder key, Node node) {
+		key.append(node.getName()).append(':')
+				.append(Double.doubleToLongBits(node.getDistanceFromParent()));
+		if (!node.isLeaf()) {
+			key.append('(');
+			for (Node child : node.getChildren()) {
+				appendNode(key, child);
+				key.append(',');
+			}
+			key.append(')');
+		}
+	}
+
+	/**
+	 * Returns the number of the pattern of a column, numbering it if it is new.
+	 */
+	public synchronized int getPattern(int[] column) {
+		Pattern pattern = new Pattern(column);
+		Integer id = ids.get(pattern);
+		if (id == null) {
+			id = patterns.size();
+			ids.put(pattern, id);
+			patterns.add(column);
+			if (id == single.length) {
+				int old = single.length;
+				single = Arrays.copyOf(single, 2 * old);
+				Arrays.fill(single, old, single.length, Double.NaN);
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the column of a pattern.
+	 */
+	public synchronized int[] getColumn(int id) {
+		return patterns.get(id);
+	}
+
+	/**
+	 * Returns the single column probability of a pattern, NaN if it is not known.
+	 */
+	public synchronized double getSingle(int id) {
+		return single[id];
+	}
+
+	public synchronized void putSingle(int id, double value) {
+		single[id] = value;
+	}
+
+	/**
+	 * Returns the probability of a pair of patterns (in this order), NaN if it is not
+	 * known.
+	 */
+	public synchronized double getPair(int id1, int id2) {
+		long key = pairKey(id1, id2);
+		int mask = pairKeys.length - 1;
+		for (int slot = hash(key) & mask; pairKeys[slot] != -1; slot = (slot + 1) & mask) {
+			if (pairKeys[slot] == key) {
+				return pairValues[slot];
+			}
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * Keeps the probability of a pair of patterns, unless the table is full.
+	 */
+	public synchronized void putPair(int id1, int id2, double value) {
+		if (pairCount >= MAX_PAIRS) {
+			return;
+		}
+		if (2 * (pairCount + 1) > pairKeys.length) {
+			rehash();
+		}
+		long key = pairKey(id1, id2);
+		int mask = pairKeys.length - 1;
+		int slot = hash(key) & mask;
+		while (pairKeys[slot] != -1 && pairKeys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		if (pairKeys[slot] == -1) {
+			pairCount++;
+		}
+		pairKeys[slot] = key;
+		pairValues[slot] = value;
+	}
+
+	private void rehash() {
+		long[] oldKeys = pairKeys;
+		double[] oldValues = pairValues;
+		pairKeys = new long[2 * oldKeys.length];
+		pairValues = new double[2 * oldKeys.length];
+		Arrays.fill(pairKeys, -1);
+		int mask = pairKeys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != -1) {
+				int slot = hash(oldKeys[i]) & mask;
+				while (pairKeys[slot] != -1) {
+					slot = (slot + 1) & mask;
+				}
+				pairKeys[slot] = oldKeys[i];
+				pairValues[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private static long pairKey(int id1, int id2) {
+		return ((long) id1 << 32) | id2;
+	}
+
+	private static int hash(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key >>> 32);
+	}
+
+	/**
+	 * A column as a hash key.
+	 */
+	private static class Pattern {
+		final int[] column;
+		final int hash;
+
+		Pattern(int[] column) {
+			this.column = column;
+			hash = Arrays.hashCode(column);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Pattern && Arrays.equals(column, ((Pattern) o).column);
+		}
+	}
+}
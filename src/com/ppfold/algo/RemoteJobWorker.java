@@ -0,0 +1,295 @@
+package com.ppfold.algo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Worker daemon executing the CYK and phylogenetic jobs of
+ * {@link AsynchronousJobExecutorRemote} sent over TCP.
+ *
+ * On each connection the worker first sends its magic number, protocol
+ * version, number of threads and maximum memory, then executes the jobs
+ * received one after the other. A job request is a byte giving its kind
+ * followed by the job; the reply is a status byte followed by the results, or
+ * by the message of the exception thrown by the job. While a job runs, the
+ * worker sends a heartbeat every {@link #HEARTBEAT_MILLIS} ms, so the client
+ * can tell a long job from a lost worker. The jobs of all connections run on
+ * one pool of the given number of threads.
+ *
+ * The connections are neither authenticated nor encrypted: a worker executes
+ * the jobs of anyone who can reach its port, so it must only be run on a
+ * trusted network, bound to an address that untrusted hosts cannot reach. The
+ * jobs are decoded field by field, never by Java deserialization.
+ *
+ * Usage: <tt>java com.ppfold.algo.RemoteJobWorker [port [threads [address]]]</tt>,
+ * port 0 picks a free port, the worker listens on all addresses unless one is
+ * given. The port is printed on the first line of the output.
+ */
+public class RemoteJobWorker {
+
+	static final int MAGIC = 0x50504657; // "PPFW"
+	static final int VERSION = 3;
+	static final int DEFAULT_PORT = 7777;
+	static final int HEARTBEAT_MILLIS = 5000;
+
+	// request kinds
+	static final byte CYK_JOB = 1;
+	static final byte PHYLO_JOB = 2;
+	static final byte CLOSE = 3;
+
+	// reply statuses
+	static final byte OK = 0;
+	static final byte FAILED = 1;
+	static final byte HEARTBEAT = 2;
+
+	private final ServerSocket serverSocket;
+	private final int threads;
+	private final ExecutorService pool;
+
+	/**
+	 * @param address
+	 *            the address to listen on, null for all addresses
+	 */
+	public RemoteJobWorker(int port, int threads, InetAddress address)
+			throws IOException {
+		this.threads = threads;
+		serverSocket = new ServerSocket(port, 0, address);
+		pool = Executors.newFixedThreadPool(threads);
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until the worker is closed, serving each on its own
+	 * thread.
+	 */
+	public void serve() {
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					System.err.println("Worker could not accept connection: "
+							+ e.getMessage());
+				}
+				continue;
+			}
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					serve(socket);
+				}
+			}, "PPfold worker " + socket.getRemoteSocketAddress());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+		}
+		pool.shutdownNow();
+	}
+
+	private void serve(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream()));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(threads);
+			out.writeLong(Runtime.getRuntime().maxMemory());
+			out.flush();
+			while (true) {
+				byte kind = in.readByte();
+				if (kind == CLOSE) {
+					break;
+				}
+				Callable<byte[]> task;
+				if (kind == CYK_JOB) {
+					final CYKJob job = CYKJob.read(in);
+					task = new Callable<byte[]>() {
+						public byte[] call() throws IOException {
+							ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+							DataOutputStream result = new DataOutputStream(bytes);
+							execute(job).write(result);
+							result.close();
+							return bytes.toByteArray();
+						}
+					};
+				} else if (kind == PHYLO_JOB) {
+					final PhyloJob job = PhyloJob.read(in);
+					task = new Callable<byte[]>() {
+						public byte[] call() throws IOException {
+							ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+							DataOutputStream result = new DataOutputStream(bytes);
+							writeMatrix(result, execute(job));
+							result.close();
+							return bytes.toByteArray();
+						}
+					};
+				} else {
+					throw new IOException("Unknown request " + kind);
+				}
+				reply(out, pool.submit(task));
+			}
+		} catch (EOFException e) {
+			// the client closed the connection
+		} catch (SocketException e) {
+			// the client was lost
+		} catch (IOException e) {
+			System.err.println("Worker connection failed: " + e.getMessage());
+		} catch (InterruptedException e) {
+			// the worker is closed
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Sends heartbeats until the job is finished, then its results.
+	 */
+	private static void reply(DataOutputStream out, Future<byte[]> result)
+			throws IOException, InterruptedException {
+		while (true) {
+			try {
+				byte[] bytes = result.get(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+				out.writeByte(OK);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+				out.flush();
+				return;
+			} catch (TimeoutException e) {
+				out.writeByte(HEARTBEAT);
+				out.flush();
+			} catch (ExecutionException e) {
+				out.writeByte(FAILED);
+				out.writeUTF(String.valueOf(e.getCause()));
+				out.flush();
+				return;
+			}
+		}
+	}
+
+	static JobResults execute(CYKJob job) {
+		if (job.isType() == 0) {
+			return Inside.buildInside(job);
+		} else if (job.isType() == 1) {
+			return Outside.buildOutside(job);
+		} else {
+			return ExpectationMatrixCalc.buildExpectation(job);
+		}
+	}
+
+	static double[][] execute(PhyloJob job) {
+		if (job.isType() == false) {
+			return PhyloCalc.calcSingleColumn(job);
+		} else {
+			return PhyloCalc.calcDoubleColumn(job);
+		}
+	}
+
+	/**
+	 * Writes a vector, null as -1 elements.
+	 */
+	static void writeVector(DataOutputStream out, double[] vector)
+			throws IOException {
+		if (vector == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(vector.length);
+		for (double value : vector) {
+			out.writeDouble(value);
+		}
+	}
+
+	static double[] readVector(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == -1) {
+			return null;
+		}
+		double[] vector = new double[checkLength(length)];
+		for (int i = 0; i < vector.length; i++) {
+			vector[i] = in.readDouble();
+		}
+		return vector;
+	}
+
+	/**
+	 * Writes a matrix, row by row. A null matrix (e.g. the result of a
+	 * phylogenetic job with a missing tree node) is written as -1 rows.
+	 */
+	static void writeMatrix(DataOutputStream out, double[][] matrix)
+			throws IOException {
+		if (matrix == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(matrix.length);
+		for (double[] row : matrix) {
+			writeVector(out, row);
+		}
+	}
+
+	static double[][] readMatrix(DataInputStream in) throws IOException {
+		int rows = in.readInt();
+		if (rows == -1) {
+			return null;
+		}
+		double[][] matrix = new double[checkLength(rows)][];
+		for (int i = 0; i < matrix.length; i++) {
+			matrix[i] = readVector(in);
+		}
+		return matrix;
+	}
+
+	/**
+	 * Returns a length read from a stream, if it is not negative.
+	 */
+	static int checkLength(int length) throws IOException {
+		if (length < 0) {
+			throw new IOException("Invalid length " + length);
+		}
+		return length;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime
+				.getRuntime().availableProcessors();
+		InetAddress address = args.length > 2 ? InetAddress.getByName(args[2])
+				: null;
+		RemoteJobWorker worker = new RemoteJobWorker(port, threads, address);
+		System.out.println("PPfold worker listening on port " + worker.getPort()
+				+ " with " + threads + " threads");
+		System.out.flush();
+		worker.serve();
+	}
+}
@@ -1,45 +1,46 @@
 package com.ppfold.algo;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 
 /**
  * Contains matrices for storing inside, outside, expectation variables, and
  * methods for operations with them.
  * 
+ * The matrices are stored row by row in flat primitive arrays, element (s,t)
+ * is at index s*n+t. Java zero-fills new arrays, so no initialisation is needed.
+ * 
  * @author Z.Sukosd
  * @see JobResults
  * @see CYKJob
  */
 public class ResMatrix implements Serializable {
 
-	private static final long serialVersionUID = 1L;
+	// changed with the flat array layout, so older matrices are rejected
+	private static final long serialVersionUID = 2L;
 
-	private float[][] fraction;
-	private int[][] exponent;
+	private float[] fraction;
+	private int[] exponent;
 
 	// dimensions of this resmatrix
 	private int n;
 
 	// Constructor
 	public ResMatrix(int n) {
-		fraction = new float[n][n];
-		exponent = new int[n][n];
+		fraction = new float[n * n];
+		exponent = new int[n * n];
 		this.n = n;
-
-		for (int i = 0; i < n; i++) {
-			for (int j = 0; j < n; j++) {
-				fraction[i][j] = 0;
-				exponent[i][j] = 0;
-			}
-		}
 	}
 
 	public void print() {
 		for (int s = 0; s < n; s++) {
 			for (int t = 0; t < n; t++) {
-				System.out.print("(" + s + ", " + t + ")=" + fraction[s][t]
-						+ "E" + exponent[s][t]);
+				System.out.print("(" + s + ", " + t + ")=" + fraction[s * n + t]
+						+ "E" + exponent[s * n + t]);
 			}
 			System.out.println();
 		}
@@ -50,7 +51,7 @@ public class ResMatrix implements Serializable {
 		for (int s = 0; s < n; s++) {
 			for (int t = 0; t < n; t++) {
 				result = result.concat("(" + s + ", " + t + ")="
-						+ fraction[s][t] + "E" + exponent[s][t]);
+						+ fraction[s * n + t] + "E" + exponent[s * n + t]);
 			}
 			result.concat("\n");
 		}
@@ -58,18 +59,21 @@ public class ResMatrix implements Serializable {
 	}
 
 	public PointRes getProb(int n, int m) {
-		return new PointRes(fraction[n][m], exponent[n][m]);
+		int idx = n * this.n + m;
+		return new PointRes(fraction[idx], exponent[idx]);
 	}
 
 	public PointRes fetchProb(int n, int m, PointRes tmp) {
-		tmp.setFraction(fraction[n][m]);
-		tmp.setExponent(exponent[n][m]);
+		int idx = n * this.n + m;
+		tmp.setFraction(fraction[idx]);
+		tmp.setExponent(exponent[idx]);
 		return tmp;
 	}
 
 	public void setProb(int n, int m, PointRes point) {
-		this.fraction[n][m] = point.getFraction();
-		this.exponent[n][m] = point.getExponent();
+		int idx = n * this.n + m;
+		this.fraction[idx] = point.getFraction();
+		this.exponent[idx] = point.getExponent();
 	}
 
 	public void addToProb(int n, int m, PointRes point) {
@@ -135,11 +139,234 @@ public class ResMatrix implements Serializable {
 		}
 	}
 
+	/**
+	 * Largest span of exponents in a row or column that the SCALED arithmetic
+	 * handles, so that products of scaled values stay normal doubles.
+	 */
+	private static final int MAX_SCALED_SPAN = 480;
+
+	public void replaceWithMaxSum(ResMatrix E1, ResMatrix E2,
+			CYKArithmetic arithmetic, PointRes tmp, PointRes tmp2) {
+		if (arithmetic == CYKArithmetic.SCALED) {
+			double[] a = E1.toDoubles();
+			double[] b = E2.toDoubles();
+			double[] c = this.toDoubles();
+			if (a != null && b != null && c != null) {
+				for (int s = 0; s < this.n; s++) {
+					for (int t = 0; t < this.n; t++) {
+						double max = c[s * n + t];
+						boolean replaced = false;
+						for (int ss = 0; ss < this.n; ss++) {
+							double sum = a[s * n + ss] + b[(this.n - ss - 1) * n + t];
+							if (max < sum) {
+								max = sum;
+								replaced = true;
+							}
+						}
+						if (replaced) {
+							tmp.setToDouble(max);
+							this.setProb(s, t, tmp.convert());
+						}
+					}
+				}
+				return;
+			}
+		}
+		replaceWithMaxSum(E1, E2, tmp, tmp2);
+	}
+
+	public void incrementLWithDirectProduct(ResMatrix A, ResMatrix B,
+			double prob, CYKArithmetic arithmetic, PointRes tmp, PointRes tmp2) {
+		if (arithmetic == CYKArithmetic.SCALED) {
+			double[] a = new double[n * n];
+			int[] ea = new int[n];
+			double[] b = new double[n * n];
+			int[] eb = new int[n];
+			if (A.scale(a, ea, true) && B.scale(b, eb, true)) {
+				// L(s,t) += A(s,k) * B(n-t-1,k)
+				for (int s = 0; s < this.n; s++) {
+					for (int t = 0; t < this.n; t++) {
+						addProducts(s, t, a, s, ea, b, this.n - t - 1, eb, prob, tmp, tmp2);
+					}
+				}
+				return;
+			}
+		}
+		incrementLWithDirectProduct(A, B, prob, tmp, tmp2);
+	}
+
+	public void incrementSWithDirectProduct(ResMatrix A, ResMatrix B,
+			double prob, CYKArithmetic arithmetic, PointRes tmp, PointRes tmp2) {
+		if (arithmetic == CYKArithmetic.SCALED) {
+			double[] a = new double[n * n];
+			int[] ea = new int[n];
+			double[] b = new double[n * n];
+			int[] eb = new int[n];
+			if (A.scale(a, ea, false) && B.scale(b, eb, false)) {
+				// S(s,t) += A(k,t) * B(k,n-s-1), by columns of A and B
+				for (int s = 0; s < this.n; s++) {
+					for (int t = 0; t < this.n; t++) {
+						addProducts(s, t, a, t, ea, b, this.n - s - 1, eb, prob, tmp, tmp2);
+					}
+				}
+				return;
+			}
+		}
+		incrementSWithDirectProduct(A, B, prob, tmp, tmp2);
+	}
+
+	public void incrementWithLS(ResMatrix L, ResMatrix S, double prob,
+			CYKArithmetic arithmetic, PointRes tmp, PointRes tmp2) {
+		if (arithmetic == CYKArithmetic.SCALED) {
+			double[] a = new double[n * n];
+			int[] ea = new int[n];
+			double[] b = new double[n * n];
+			int[] eb = new int[n];
+			if (L.scale(a, ea, true) && S.scale(b, eb, false)) {
+				// reverse the columns of S, so that L(s,ss) meets S(n-ss-1,t)
+				// at the same index
+				for (int t = 0; t < this.n; t++) {
+					for (int lo = t * n, hi = lo + n - 1; lo < hi; lo++, hi--) {
+						double swap = b[lo];
+						b[lo] = b[hi];
+						b[hi] = swap;
+					}
+				}
+				for (int s = 0; s < this.n; s++) {
+					for (int t = 0; t < this.n; t++) {
+						addProducts(s, t, a, s, ea, b, t, eb, prob, tmp, tmp2);
+					}
+				}
+				return;
+			}
+		}
+		incrementWithLS(L, S, prob, tmp, tmp2);
+	}
+
+	/**
+	 * Adds the products of row ra of a and row rb of b, scaled back by their
+	 * exponents and multiplied by prob, to element (s,t).
+	 */
+	private void addProducts(int s, int t, double[] a, int ra, int[] ea,
+			double[] b, int rb, int[] eb, double prob, PointRes tmp, PointRes tmp2) {
+		double sum = 0;
+		for (int k = 0, ia = ra * n, ib = rb * n; k < n; k++, ia++, ib++) {
+			sum += a[ia] * b[ib];
+		}
+		sum *= prob;
+		if (sum == 0) {
+			return;
+		}
+		int exp = ea[ra] + eb[rb];
+		if (Math.getExponent(sum) < Double.MIN_EXPONENT) {
+			// subnormal
+			sum = Math.scalb(sum, 64);
+			exp -= 64;
+		}
+		tmp.setToDouble(sum);
+		tmp.convert();
+		tmp.setExponent(tmp.getExponent() + exp);
+		this.setProb(s, t, tmp.add(this.fetchProb(s, t, tmp2)));
+	}
+
+	/**
+	 * Converts the rows (or the columns, into the rows of values) of the matrix
+	 * to doubles, each scaled by 2 to the minus the exponent of its largest
+	 * element, which goes into scale. Returns false if a row or column spans
+	 * more than MAX_SCALED_SPAN binary orders of magnitude.
+	 */
+	private boolean scale(double[] values, int[] scale, boolean byRows) {
+		for (int r = 0; r < n; r++) {
+			int max = Integer.MIN_VALUE;
+			int min = Integer.MAX_VALUE;
+			for (int k = 0; k < n; k++) {
+				int idx = byRows ? r * n + k : k * n + r;
+				if (fraction[idx] != 0) {
+					max = Math.max(max, exponent[idx]);
+					min = Math.min(min, exponent[idx]);
+				}
+			}
+			if (max == Integer.MIN_VALUE) {
+				scale[r] = 0;
+				continue;
+			}
+			if (max - min > MAX_SCALED_SPAN) {
+				return false;
+			}
+			scale[r] = max;
+			for (int k = 0; k < n; k++) {
+				int idx = byRows ? r * n + k : k * n + r;
+				values[r * n + k] = fraction[idx] == 0 ? 0 : Math.scalb(
+						(double) fraction[idx], exponent[idx] - max);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the matrix as plain doubles, or null if an element is outside
+	 * the normal range of doubles.
+	 */
+	private double[] toDoubles() {
+		double[] values = new double[n * n];
+		for (int idx = 0; idx < values.length; idx++) {
+			if (fraction[idx] != 0) {
+				if (exponent[idx] < Double.MIN_EXPONENT
+						|| exponent[idx] > Double.MAX_EXPONENT - 1) {
+					return null;
+				}
+				values[idx] = Math.scalb((double) fraction[idx], exponent[idx]);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Writes the matrix in a compact binary form: the dimension, then the
+	 * fractions and the exponents as raw arrays. A null matrix is written as
+	 * dimension -1.
+	 */
+	static void write(DataOutputStream out, ResMatrix matrix) throws IOException {
+		if (matrix == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(matrix.n);
+		ByteBuffer buffer = ByteBuffer.allocate(8 * matrix.fraction.length);
+		buffer.asFloatBuffer().put(matrix.fraction);
+		buffer.position(4 * matrix.fraction.length);
+		buffer.asIntBuffer().put(matrix.exponent);
+		out.write(buffer.array());
+	}
+
+	/**
+	 * Reads a matrix written by {@link #write(DataOutputStream, ResMatrix)}.
+	 */
+	static ResMatrix read(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		if (n == -1) {
+			return null;
+		}
+		RemoteJobWorker.checkLength(n);
+		// the fractions and the exponents take 8 bytes per cell, in one array
+		if (8L * n * n > Integer.MAX_VALUE) {
+			throw new IOException("Matrix too large: " + n);
+		}
+		ResMatrix matrix = new ResMatrix(n);
+		byte[] bytes = new byte[8 * n * n];
+		in.readFully(bytes);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		buffer.asFloatBuffer().get(matrix.fraction);
+		buffer.position(4 * n * n);
+		buffer.asIntBuffer().get(matrix.exponent);
+		return matrix;
+	}
+
 	public String toString(){
 		String matrixString = "";
 		for (int s = 0; s < n; s++) {
 			for (int t = 0; t < n; t++) {
-				matrixString += fraction[s][t]	+ "E" + exponent[s][t] + "\t";
+				matrixString += fraction[s * n + t]	+ "E" + exponent[s * n + t] + "\t";
 			}
 			matrixString += "\n";
 			
@@ -1,5 +1,8 @@
 package com.ppfold.algo;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.LinkedList;
@@ -148,6 +151,71 @@ public class Tree implements Serializable {
 		}
 	}
 
+	/**
+	 * Writes the tree as {@link #copyTree(Tree)} copies it: the names, ids,
+	 * distances and transition matrices of the nodes, and the leaf list.
+	 */
+	void write(DataOutputStream out) throws IOException {
+		List<Node> nodes = new ArrayList<Node>();
+		writeNode(out, root, nodes);
+		// the leaves as indices in the preorder of the nodes, -1 if missing
+		out.writeInt(leaves.size());
+		for (Node leaf : leaves) {
+			out.writeInt(leaf == null ? -1 : nodes.indexOf(leaf));
+		}
+	}
+
+	/**
+	 * Reads a tree written by {@link #write(DataOutputStream)}.
+	 */
+	static Tree read(DataInputStream in) throws IOException {
+		List<Node> nodes = new ArrayList<Node>();
+		Tree tree = new Tree(readNode(in, nodes));
+		int size = RemoteJobWorker.checkLength(in.readInt());
+		tree.leaves = new ArrayList<Node>(size);
+		for (int i = 0; i < size; i++) {
+			int index = in.readInt();
+			if (index < -1 || index >= nodes.size()) {
+				throw new IOException("Invalid leaf " + index);
+			}
+			tree.leaves.add(index == -1 ? null : nodes.get(index));
+		}
+		return tree;
+	}
+
+	private static void writeNode(DataOutputStream out, Node node,
+			List<Node> nodes) throws IOException {
+		nodes.add(node);
+		out.writeBoolean(node.getName() != null);
+		if (node.getName() != null) {
+			out.writeUTF(node.getName());
+		}
+		out.writeInt(node.getId());
+		out.writeDouble(node.getDistanceFromParent());
+		RemoteJobWorker.writeMatrix(out, node.getMatrix());
+		out.writeInt(node.Children.size());
+		for (Node child : node.Children) {
+			writeNode(out, child, nodes);
+		}
+	}
+
+	private static Node readNode(DataInputStream in, List<Node> nodes)
+			throws IOException {
+		Node node = new Node();
+		nodes.add(node);
+		if (in.readBoolean()) {
+			node.setName(in.readUTF());
+		}
+		node.setId(in.readInt());
+		node.setDistanceFromParent(in.readDouble());
+		node.setMatrix(RemoteJobWorker.readMatrix(in));
+		int children = RemoteJobWorker.checkLength(in.readInt());
+		for (int i = 0; i < children; i++) {
+			node.addChild(readNode(in, nodes));
+		}
+		return node;
+	}
+
 	public int numberOfNodes() {
 		return root.countTotalChildren() + 1;
 	}
@@ -14,6 +14,9 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 
+import com.ppfold.algo.CYKArithmetic;
+import com.ppfold.algo.FoldingProject;
+
 public class ArgumentParser {
 	
 		
@@ -220,6 +223,23 @@ public class ArgumentParser {
             			}	
         			}
         		}
+        		else if(argument.startsWith("--arithmetic")){
+        			if(args.length < i+2){
+        				System.out.println("Not enough arguments: arithmetic missing");
+        				quitWithUsageMessage();
+        			}
+        			else{
+        				String newargument = args[i+1];
+        				i++;
+        				try {
+        					FoldingProject.setArithmetic(CYKArithmetic.parse(newargument));
+        				}
+        				catch (IllegalArgumentException e1) {
+        					System.out.println("Unknown arithmetic: " + newargument);
+        					quitWithUsageMessage();
+        				}
+        			}
+        		}
         		else if(argument.startsWith("--outputd")||argument.startsWith("-o")){
         			if(args.length < i+2){
         				System.out.println("Not enough arguments: output directory missing");
@@ -303,6 +323,9 @@ public class ArgumentParser {
 		System.out.println("--phyljnr or -p:   Number of phylogenetic divisions (default=available cores*2)" );
 		
 		System.out.println("--proccnt or -c:   Number of processors to use (default=max)");
+		
+		System.out.println("--arithmetic:      Arithmetic of the matrix products, POINTRES (default) or SCALED");
+		System.out.println("                   (doubles scaled per row, faster and more precise)");
     	
     	System.out.println("--entropy:         calculates the information entropy for the named sequence");
     	
@@ -252,11 +252,34 @@ public class PPfoldMain implements Runnable {
 	}
 
 
+	/**
+	 * Returns the executor of a fold: the remote executor if one is set, a new
+	 * local thread pool otherwise.
+	 */
+	static AsynchronousJobExecutor createExecutor() {
+		AsynchronousJobExecutor remote = AsynchronousJobExecutor.getRemoteExecutor();
+		return remote != null ? remote : new AsynchronousJobExecutorThreadPool(nrprocessors);
+	}
+
+	/**
+	 * Stops the executor of an interrupted fold. The remote executor is shared
+	 * by all folds, so it is left running.
+	 */
+	static void stopExecutor(AsynchronousJobExecutor executor) throws InterruptedException {
+		if(executor == AsynchronousJobExecutor.getRemoteExecutor()){
+			return;
+		}
+		executor.shutDown();
+		while(!executor.isTerminated()){
+			Thread.sleep(100);
+		}
+	}
+
 	public static ResultBundle fold(Progress progress, List<String> sequences, List<String> names, Tree tree, 
 			Parameters param, List<ExtraData> extradata) throws  InterruptedException, Exception{
 
 		//PPfoldResult ppfoldResult = new PPfoldResult();
-		AsynchronousJobExecutor executor = new AsynchronousJobExecutorThreadPool(nrprocessors); 
+		AsynchronousJobExecutor executor = createExecutor(); 
 		progress.setProgress(0.0);
 
 
@@ -370,10 +393,7 @@ public class PPfoldMain implements Runnable {
 				//tree.print();
 			}catch (InterruptedException e) {
 				System.out.println("Process interrupted by user! Stopping...");
-				executor.shutDown();
-				while(!executor.isTerminated()){
-					Thread.sleep(100);
-				}
+				stopExecutor(executor);
 				throw new InterruptedException();
 			}
 		}
@@ -397,10 +417,7 @@ public class PPfoldMain implements Runnable {
 				tree.optimizeBranchLengths(activity2, columns_int,fullcolumns,names,param, iterlimit);
 			} catch (InterruptedException e) {
 				System.out.println("Process interrupted by user! Stopping...");
-				executor.shutDown();
-				while(!executor.isTerminated()){
-					Thread.sleep(100);
-				}
+				stopExecutor(executor);
 				throw new InterruptedException();
 			}
 			//if(!onlyCT){
@@ -419,10 +436,7 @@ public class PPfoldMain implements Runnable {
 		}
 		catch(InterruptedException e){
 			System.out.println("Process interrupted by user! Stopping...");
-			executor.shutDown();
-			while(!executor.isTerminated()){
-				Thread.sleep(100);
-			}
+			stopExecutor(executor);
 			throw new InterruptedException();
 		}
 		activity3.setProgress(1.0);
@@ -470,7 +484,7 @@ public class PPfoldMain implements Runnable {
 			Parameters param, List<ExtraData> extradata) throws  InterruptedException, Exception{
 
 		//PPfoldResult ppfoldResult = new PPfoldResult();
-		AsynchronousJobExecutor executor = new AsynchronousJobExecutorThreadPool(nrprocessors); 
+		AsynchronousJobExecutor executor = createExecutor(); 
 		progress.setProgress(0.0);
 
 
@@ -584,10 +598,7 @@ public class PPfoldMain implements Runnable {
 				//tree.print();
 			}catch (InterruptedException e) {
 				System.out.println("Process interrupted by user! Stopping...");
-				executor.shutDown();
-				while(!executor.isTerminated()){
-					Thread.sleep(100);
-				}
+				stopExecutor(executor);
 				throw new InterruptedException();
 			}
 		}
@@ -611,10 +622,7 @@ public class PPfoldMain implements Runnable {
 				tree.optimizeBranchLengths(activity2, columns_int,fullcolumns,names,param, iterlimit);
 			} catch (InterruptedException e) {
 				System.out.println("Process interrupted by user! Stopping...");
-				executor.shutDown();
-				while(!executor.isTerminated()){
-					Thread.sleep(100);
-				}
+				stopExecutor(executor);
 				throw new InterruptedException();
 			}
 			//if(!onlyCT){
@@ -633,10 +641,7 @@ public class PPfoldMain implements Runnable {
 		}
 		catch(InterruptedException e){
 			System.out.println("Process interrupted by user! Stopping...");
-			executor.shutDown();
-			while(!executor.isTerminated()){
-				Thread.sleep(100);
-			}
+			stopExecutor(executor);
 			throw new InterruptedException();
 		}
 		activity3.setProgress(1.0);
@@ -685,7 +690,7 @@ public class PPfoldMain implements Runnable {
 			Parameters param, List<ExtraData> extradata) throws  InterruptedException, Exception{
 
 		//PPfoldResult ppfoldResult = new PPfoldResult();
-		AsynchronousJobExecutor executor = new AsynchronousJobExecutorThreadPool(nrprocessors); 
+		AsynchronousJobExecutor executor = createExecutor(); 
 		progress.setProgress(0.0);
 
 
@@ -799,10 +804,7 @@ public class PPfoldMain implements Runnable {
 				//tree.print();
 			}catch (InterruptedException e) {
 				System.out.println("Process interrupted by user! Stopping...");
-				executor.shutDown();
-				while(!executor.isTerminated()){
-					Thread.sleep(100);
-				}
+				stopExecutor(executor);
 				throw new InterruptedException();
 			}
 		}
@@ -826,10 +828,7 @@ public class PPfoldMain implements Runnable {
 				tree.optimizeBranchLengths(activity2, columns_int,fullcolumns,names,param, iterlimit);
 			} catch (InterruptedException e) {
 				System.out.println("Process interrupted by user! Stopping...");
-				executor.shutDown();
-				while(!executor.isTerminated()){
-					Thread.sleep(100);
-				}
+				stopExecutor(executor);
 				throw new InterruptedException();
 			}
 			//if(!onlyCT){
@@ -848,10 +847,7 @@ public class PPfoldMain implements Runnable {
 		}
 		catch(InterruptedException e){
 			System.out.println("Process interrupted by user! Stopping...");
-			executor.shutDown();
-			while(!executor.isTerminated()){
-				Thread.sleep(100);
-			}
+			stopExecutor(executor);
 			throw new InterruptedException();
 		}
 		activity3.setProgress(1.0);
@@ -899,7 +895,7 @@ public class PPfoldMain implements Runnable {
 	public static ResultBundle foldFuzzyAlignment(Progress progress, FuzzyAlignment fuzzyAlignment, Tree tree, 
 			Parameters param, List<ExtraData> extradata, boolean useExpectedFrequencies) throws  InterruptedException, Exception{
 		fuzzyAlignment.useExpectedFrequencies = useExpectedFrequencies;
-		AsynchronousJobExecutor executor = new AsynchronousJobExecutorThreadPool(nrprocessors); 
+		AsynchronousJobExecutor executor = createExecutor(); 
 		progress.setProgress(0.0);
 
 
@@ -1029,10 +1025,7 @@ public class PPfoldMain implements Runnable {
 				//tree.print();
 			}catch (InterruptedException e) {
 				System.out.println("Process interrupted by user! Stopping...");
-				executor.shutDown();
-				while(!executor.isTerminated()){
-					Thread.sleep(100);
-				}
+				stopExecutor(executor);
 				throw new InterruptedException();
 			}
 		}
@@ -1056,10 +1049,7 @@ public class PPfoldMain implements Runnable {
 				tree.optimizeBranchLengths(activity2, columns_int,fullcolumns,fuzzyAlignment.names,param, iterlimit);
 			} catch (InterruptedException e) {
 				System.out.println("Process interrupted by user! Stopping...");
-				executor.shutDown();
-				while(!executor.isTerminated()){
-					Thread.sleep(100);
-				}
+				stopExecutor(executor);
 				throw new InterruptedException();
 			}
 			//if(!onlyCT){
@@ -1091,10 +1081,7 @@ public class PPfoldMain implements Runnable {
 		}
 		catch(InterruptedException e){
 			System.out.println("Process interrupted by user! Stopping...");
-			executor.shutDown();
-			while(!executor.isTerminated()){
-				Thread.sleep(100);
-			}
+			stopExecutor(executor);
 			throw new InterruptedException();
 		}
 		activity3.setProgress(1.0);
@@ -1157,4 +1144,9 @@ public class PPfoldMain implements Runnable {
 		progress = progressin;
 	}
 
+	//Sets the number of threads each fold runs its jobs on
+	public static void setNrProcessors(int nr){
+		nrprocessors = nr;
+	}
+
 }
@@ -78,8 +78,14 @@ public class CommandLine {
 				.addOption("subst", Separator.EQUALS)
 				.addOption("mcmc", Separator.EQUALS)
 				.addOption("seed", Separator.EQUALS)
+				.addOption("chains", Separator.EQUALS)
 				.addOption("ot", Separator.EQUALS)
 				.addOption("log", Separator.EQUALS)
+				.addOption("metrics", Separator.EQUALS)
+				.addOption("async", Separator.EQUALS)
+				.addOption("trace", Separator.EQUALS)
+				.addOption("checkpoint", Separator.EQUALS)
+				.addOption("resume", Separator.EQUALS)
 				.addOption("plugin", Separator.COLON, Multiplicity.ZERO_OR_MORE)
 				.addOption("automate", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
 
@@ -175,7 +181,7 @@ public class CommandLine {
 				manager.inputData.pars.sampRate = parseValue(pars[2]);
 
 				if (pars.length == 4) {
-					if (!isParallel) {
+					if (!isParallel && !set.isSet("chains")) {
 						return error("Unrecognized MCMC parameters for non-parallel version.");
 					}
 
@@ -202,6 +208,21 @@ public class CommandLine {
 				}
 			}
 
+			if (set.isSet("chains")) {
+				if (isParallel) {
+					return error("Chains are given by the number of processes in the parallel version.");
+				}
+				String chainsPar = set.getOption("chains").getResultValue(0);
+				try {
+					manager.inputData.pars.noOfChains = Integer.parseInt(chainsPar);
+				} catch (NumberFormatException e) {
+					return error("error parsing chains parameter: " + chainsPar);
+				}
+				if (manager.inputData.pars.noOfChains < 1) {
+					return error("Number of chains must be positive: " + chainsPar);
+				}
+			}
+
 			if (set.isSet("ot")) {
 				String outType = set.getOption("ot").getResultValue(0);
 				int i;
@@ -234,6 +255,84 @@ public class CommandLine {
 				}
 			}
 
+			if (set.isSet("metrics")) {
+				String metrics = set.getOption("metrics").getResultValue(0);
+				String[] pars = metrics.split(",");
+				if (pars.length > 2 || pars[0].isEmpty()) {
+					return error("Metrics parameters not recognized: " + metrics);
+				}
+				manager.inputData.pars.metricsFile = pars[0];
+				if (pars.length == 2) {
+					try {
+						manager.inputData.pars.metricsPeriod = Integer.parseInt(pars[1]);
+					} catch (NumberFormatException e) {
+						return error("error parsing metrics period: " + pars[1]);
+					}
+					if (manager.inputData.pars.metricsPeriod < 1) {
+						return error("Metrics period must be positive: " + pars[1]);
+					}
+				}
+			}
+
+			if (set.isSet("async")) {
+				String asyncPar = set.getOption("async").getResultValue(0);
+				try {
+					manager.postProcMan.asyncQueueSize = Integer.parseInt(asyncPar);
+				} catch (NumberFormatException e) {
+					return error("error parsing async parameter: " + asyncPar);
+				}
+				if (manager.postProcMan.asyncQueueSize < 1) {
+					return error("Async queue size must be positive: " + asyncPar);
+				}
+			}
+
+			if (set.isSet("trace")) {
+				String tracePar = set.getOption("trace").getResultValue(0);
+				if (tracePar.equalsIgnoreCase("deflate")) {
+					manager.postProcMan.compressTrace = true;
+				} else if (tracePar.equalsIgnoreCase("raw")) {
+					manager.postProcMan.compressTrace = false;
+				} else {
+					return error("Unknown trace format: " + tracePar);
+				}
+				manager.postProcMan.writeTrace = true;
+			}
+
+			if (set.isSet("checkpoint")) {
+				String checkpoint = set.getOption("checkpoint").getResultValue(0);
+				String[] pars = checkpoint.split(",");
+				if (pars.length > 2 || pars[0].isEmpty()) {
+					return error("Checkpoint parameters not recognized: " + checkpoint);
+				}
+				manager.inputData.pars.checkpointFile = pars[0];
+				if (pars.length == 2) {
+					try {
+						manager.inputData.pars.checkpointPeriod = Integer.parseInt(pars[1]);
+					} catch (NumberFormatException e) {
+						return error("error parsing checkpoint period: " + pars[1]);
+					}
+					if (manager.inputData.pars.checkpointPeriod < 1) {
+						return error("Checkpoint period must be positive: " + pars[1]);
+					}
+				}
+			}
+
+			if (set.isSet("resume")) {
+				String resume = set.getOption("resume").getResultValue(0);
+				if (!new File(resume).isFile()) {
+					return error("Checkpoint file not found: " + resume);
+				}
+				manager.inputData.pars.resumeFile = resume;
+				if (manager.inputData.pars.checkpointFile == null) {
+					manager.inputData.pars.checkpointFile = resume;
+				}
+			}
+
+			// the samples are replayed to the plugins from the trace when resuming
+			if (manager.inputData.pars.checkpointFile != null) {
+				manager.postProcMan.writeTrace = true;
+			}
+
 			// retrieve all parameters starting with plugin:
 			OptionData plugins = set.getOption("plugin");
 			ArrayList<String> argsVector = new ArrayList<String>();
@@ -270,6 +369,10 @@ public class CommandLine {
 						autoPars.automateNumberOfSamplesToTake = true;
 					}
 				}
+				if (manager.inputData.pars.noOfChains > 1
+						&& (autoPars.automateBurnIn || autoPars.automateSamplingRate || autoPars.automateNumberOfSamplesToTake)) {
+					return error("Automation of MCMC parameters cannot be used with multiple chains.");
+				}
 				/*
 				else if (automation.getResultCount() == 0) {
 					System.out.println("automating all parameters");
@@ -318,10 +421,16 @@ public class CommandLine {
 			sb.append("          Abbreviations k and m mean 1e3 and 1e6 factors.\n");
 			sb.append("        Default: 10k,100k,1k,100\n\n");
 		} else {
-			sb.append("    -mcmc=burn,cycl,rate\n");
-			sb.append("        Sets MCMC parameters: burn-in, cycles after burn-in, sampling rate.\n");
+			sb.append("    -mcmc=burn,cycl,rate[,swaprate]\n");
+			sb.append("        Sets MCMC parameters: burn-in, cycles after burn-in, sampling rate\n");
+			sb.append("          and swap rate (only with -chains).\n");
 			sb.append("          Abbreviations k and m mean 1e3 and 1e6 factors.\n");
-			sb.append("        Default: 10k,100k,1k\n\n");
+			sb.append("        Default: 10k,100k,1k,100\n\n");
+
+			sb.append("    -chains=N\n");
+			sb.append("        Runs N Metropolis-coupled chains in parallel threads, samples are\n");
+			sb.append("          taken from the cold chain.\n");
+			sb.append("        Default: 1\n\n");
 		}
 		
 		sb.append("    -automate=burn,cycl,rate\n");
@@ -331,9 +440,23 @@ public class CommandLine {
 		sb.append("    -plugins:ppfold,rnaalifold\n");
 		sb.append("        Specify which RNA plugins you want to run and the corresponding parameters for each.\n");
 		sb.append("        Each plugin should be specified seperately, e.g. -plugin:ppfold plugin:rnaalifold\n");
-		sb.append("        Currently only the RNAalifold plugin takes additional options.\n");
+		sb.append("        The plugins also take the additional options below.\n");
 		sb.append("        For RNAalifold you should specify the path of the RNAalifold executable followed by the  RNAalifold command-line options in inverted commas.\n");
-		sb.append("        e.g. -plugin:rnalifold=\"C:\\ViennaRNA\\RNAalifold.exe -T 37 -cv 1\"\n\n");
+		sb.append("        e.g. -plugin:rnalifold=\"C:\\ViennaRNA\\RNAalifold.exe -T 37 -cv 1\"\n");
+		sb.append("        -plugin:ppfoldjobs=N folds N samples concurrently with PPfold (default 2).\n");
+		sb.append("        -plugin:ppfoldthreads=N runs the jobs of each PPfold fold on N threads\n");
+		sb.append("          (default: the number of processors divided by the number of\n");
+		sb.append("          concurrent folds of -plugin:ppfoldjobs, at least 1).\n");
+		sb.append("        -plugin:ppfoldarithmetic=SCALED sums the PPfold matrix products in doubles scaled\n");
+		sb.append("          per row instead of POINTRES values (the default).\n");
+		sb.append("        -plugin:ppfoldmmap[=DIR] keeps the summed base-pairing matrices in memory-mapped\n");
+		sb.append("          files in DIR (default: the temporary directory) instead of the heap.\n");
+		sb.append("        -plugin:ppfoldworkers=HOST[:PORT],... runs the PPfold jobs on remote workers started\n");
+		sb.append("          with java com.ppfold.algo.RemoteJobWorker [PORT [THREADS [ADDRESS]]] (default port 7777);\n");
+		sb.append("          local[:THREADS] starts a worker process on this machine, listening on loopback only.\n");
+		sb.append("          Workers do not authenticate clients: only run them on trusted networks.\n");
+		sb.append("        -plugin:ctreemaxsplits=N counts at most N distinct splits for the consensus tree\n");
+		sb.append("          and network, forgetting the rarest ones first (default: no bound).\n\n");
 
 		sb.append("    -seed=value\n");
 		sb.append("        Sets the random seed (same value will reproduce same results for\n");
@@ -353,6 +476,39 @@ public class CommandLine {
 		sb.append("        for each sample).\n");
 		sb.append(buildPpListStr(man, "          "));
 		sb.append("        Default: " + buildDefPpList(man) + "\n\n");
+
+		sb.append("    -metrics=FILE[,SECONDS]\n");
+		sb.append("        Periodically dumps the number, acceptance, latency and allocation\n");
+		sb.append("          statistics of each MCMC move type into FILE (JSON if the name ends\n");
+		sb.append("          with .json, CSV otherwise). The statistics are also available\n");
+		sb.append("          through JMX as statalign:type=McmcMetrics.\n");
+		sb.append("        Default: no dump, every 10 seconds if FILE is given\n\n");
+
+		sb.append("    -async=N\n");
+		sb.append("        Runs the postprocessing plugins that do not write into the log file\n");
+		sb.append("          on background threads, so that they do not slow down the sampler.\n");
+		sb.append("          At most N samples can be waiting for a plugin.\n");
+		sb.append("        Default: all plugins run on the sampler's thread\n\n");
+
+		sb.append("    -trace=deflate|raw\n");
+		sb.append("        Also writes the samples (alignment, tree, parameters and log-likelihood)\n");
+		sb.append("          into a compact binary file with the extension .trace, compressed or\n");
+		sb.append("          not. It can be converted to the text format of the log file with\n");
+		sb.append("          java statalign.io.trace.TraceConverter\n");
+		sb.append("        Default: no trace file\n\n");
+
+		sb.append("    -checkpoint=FILE[,SECONDS]\n");
+		sb.append("        Periodically saves a checkpoint of the run into FILE, from which it can\n");
+		sb.append("          be resumed with -resume. A checkpoint is also saved when the run is\n");
+		sb.append("          stopped. Implies -trace, the trace is needed to resume the run.\n");
+		sb.append("        Default: no checkpoints, every 600 seconds if FILE is given\n\n");
+
+		sb.append("    -resume=FILE\n");
+		sb.append("        Resumes a run from the checkpoint in FILE, with the same input and\n");
+		sb.append("          output files. The MCMC parameters are those of the saved run, the\n");
+		sb.append("          log and trace files are continued from the checkpoint and the run\n");
+		sb.append("          goes on saving checkpoints into FILE.\n");
+		sb.append("        Default: a new run is started\n\n");
 		
 	
 
@@ -0,0 +1,210 @@
+package statalign.base;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * A checkpoint of a single chain MCMC run, from which the run can be resumed and goes
+ * on exactly as it would have gone on without stopping.
+ *
+ * It contains the state of the chain (tree, alignments of all nodes, indel and
+ * substitution parameters), the state of the random number generator of the chain,
+ * the position of the run, and the acceptance counters and {@link McmcMetrics} of the
+ * moves. The postprocessing plugins are not saved: the samples taken so far are
+ * replayed to them from the trace file, the log file and the trace file are cut back
+ * to their lengths at the checkpoint. The log of a resumed run is that of the
+ * uninterrupted run except for the <tt>Time:</tt> shares of the moves, which are
+ * measured on the wall clock.
+ *
+ * @author miklos, novak
+ *
+ */
+public class Checkpoint implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// State of the chain
+
+	private int nn, nl, root;
+	private int[][] children;
+	private int[] parent;
+	private double[] edgeLen;
+	private String[] name;
+	private int[][] align;
+	private String[] seq;
+	private double[] indelParams, substParams;
+	private double logLike;
+
+	/** The random number generator of the chain, serialized */
+	private byte[] generator;
+
+	// Position of the run
+
+	/** Number of burn-in steps made */
+	public int burnInSteps;
+	/** Number of samples taken */
+	public int samples;
+	/** Number of steps made towards the next sample */
+	public int steps;
+
+	/** MCMC parameters of the run, a resumed run goes on with these */
+	public int burnIn, cycles, sampRate;
+
+	/** Numbers of proposed and accepted moves, in the order of {@link #saveCounters(Mcmc)} */
+	private int[] counters;
+	/** Statistics of the moves, see {@link McmcMetrics#saveState()}; null in older checkpoints */
+	private long[][] metrics;
+
+	/** Length of the log file and the trace file at the checkpoint */
+	public long logLength, traceLength;
+
+	/**
+	 * Saves the state of a chain. The state is copied, so the chain can go on.
+	 * @param state the current state of the chain, lazy states are filled in
+	 * @param random the random number generator of the chain
+	 */
+	public Checkpoint(State state, Random random) throws IOException {
+		nn = state.nn;
+		nl = state.nl;
+		root = state.root;
+		children = new int[nn][];
+		for(int i = 0; i < nn; i++)
+			children[i] = state.children[i].clone();
+		parent = state.parent.clone();
+		edgeLen = state.edgeLen.clone();
+		name = state.name.clone();
+		align = state.getAlign().clone();
+		seq = state.getSeq().clone();
+		indelParams = state.indelParams.clone();
+		substParams = state.substParams.clone();
+		logLike = state.logLike;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(random);
+		out.close();
+		generator = bytes.toByteArray();
+	}
+
+	/**
+	 * Returns the saved state of the chain, with the alignments and sequences filled in.
+	 */
+	public State toState() {
+		State state = new State(nn, nl);
+		state.root = root;
+		for(int i = 0; i < nn; i++) {
+			state.children[i] = children[i].clone();
+			state.align[i] = align[i].clone();
+		}
+		System.arraycopy(parent, 0, state.parent, 0, nn);
+		System.arraycopy(edgeLen, 0, state.edgeLen, 0, nn);
+		System.arraycopy(name, 0, state.name, 0, nn);
+		System.arraycopy(seq, 0, state.seq, 0, nn);
+		state.indelParams = indelParams.clone();
+		state.substParams = substParams.clone();
+		state.logLike = logLike;
+		return state;
+	}
+
+	/**
+	 * Returns a copy of the saved random number generator, in the state it was saved in.
+	 */
+	public Random getGenerator() {
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(generator));
+			try {
+				return (Random)in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Corrupt random number generator in checkpoint", e);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Corrupt random number generator in checkpoint", e);
+		}
+	}
+
+	/**
+	 * Returns the names of the sequences the chain was run on.
+	 */
+	public String[] getLeafNames() {
+		String[] names = new String[nl];
+		System.arraycopy(name, 0, names, 0, nl);
+		return names;
+	}
+
+	/**
+	 * Saves the move counters and statistics of a chain.
+	 */
+	void saveCounters(Mcmc mcmc) {
+		counters = new int[] {
+				mcmc.alignmentSampled, mcmc.alignmentAccepted, mcmc.edgeSampled, mcmc.edgeAccepted,
+				mcmc.topologySampled, mcmc.topologyAccepted, mcmc.indelSampled, mcmc.indelAccepted,
+				mcmc.substSampled, mcmc.substAccepted };
+		metrics = mcmc.metrics.saveState();
+	}
+
+	/**
+	 * Sets the move counters and statistics of a chain to the saved values.
+	 */
+	void restoreCounters(Mcmc mcmc) {
+		mcmc.alignmentSampled = counters[0];
+		mcmc.alignmentAccepted = counters[1];
+		mcmc.edgeSampled = counters[2];
+		mcmc.edgeAccepted = counters[3];
+		mcmc.topologySampled = counters[4];
+		mcmc.topologyAccepted = counters[5];
+		mcmc.indelSampled = counters[6];
+		mcmc.indelAccepted = counters[7];
+		mcmc.substSampled = counters[8];
+		mcmc.substAccepted = counters[9];
+		if(metrics != null)
+			mcmc.metrics.restoreState(metrics);
+	}
+
+	/**
+	 * Writes the checkpoint into a file. It is written into a temporary file first, which
+	 * then replaces the file, so the previous checkpoint is kept if writing fails.
+	 */
+	public void write(File file) throws IOException {
+		File tmp = new File(file.getPath()+".tmp");
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeObject(this);
+		} finally {
+			out.close();
+		}
+		if(!tmp.renameTo(file)) {
+			// renaming does not replace an existing file on some platforms
+			file.delete();
+			if(!tmp.renameTo(file))
+				throw new IOException("Could not rename "+tmp+" to "+file);
+		}
+	}
+
+	/**
+	 * Reads a checkpoint written by {@link #write(File)}.
+	 */
+	public static Checkpoint read(File file) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return (Checkpoint)in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Not a checkpoint file: "+file);
+		} catch (ClassCastException e) {
+			throw new IOException("Not a checkpoint file: "+file);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package statalign.base;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes the checkpoints of a run into a file on a background thread, so that the
+ * sampler only pauses while the checkpoint is taken, not while it is written.
+ *
+ * @author miklos, novak
+ *
+ */
+class CheckpointWriter {
+
+	private final File file;
+	private final ExecutorService executor;
+	/** The checkpoint being written, null if none */
+	private Future<?> pending;
+
+	CheckpointWriter(File file) {
+		this.file = file;
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Checkpoint writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Returns whether the previous checkpoint is still being written.
+	 */
+	boolean isBusy() {
+		return pending != null && !pending.isDone();
+	}
+
+	/**
+	 * Starts writing a checkpoint in the background.
+	 */
+	void writeAsync(final Checkpoint checkpoint) {
+		pending = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkpoint.write(file);
+				} catch (IOException e) {
+					System.err.println("Could not write checkpoint: "+e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes a checkpoint and waits until it is written.
+	 */
+	void write(Checkpoint checkpoint) throws IOException {
+		await();
+		checkpoint.write(file);
+	}
+
+	/**
+	 * Waits until the checkpoint being written (if any) is written.
+	 */
+	void await() {
+		if(pending == null)
+			return;
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+		}
+		pending = null;
+	}
+
+	/**
+	 * Waits for the checkpoint being written and stops the background thread.
+	 */
+	void shutdown() {
+		await();
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,60 @@
+package statalign.base;
+
+/**
+ *
+ * Reusable storage for the dynamic programming matrices of the alignment moves.
+ *
+ * A matrix of <tt>rows x cols x states</tt> cells is kept in a single flat array
+ * that only grows, so resampling alignments does not allocate once the largest
+ * window size has been seen. Each tree owns one workspace, as only one matrix is
+ * in use at a time within a chain.
+ *
+ * @author miklos, novak
+ *
+ */
+class DPWorkspace {
+
+	/** The flattened matrix, cell (i,j,k) is at <tt>(i*cols+j)*states+k</tt> */
+	private double[] matrix = new double[0];
+
+	/** Scratch arrays for the stochastic traceback, indexed by their length */
+	private double[][] prJump = new double[0][];
+
+	private int cols;
+	private int states;
+
+	/**
+	 * Prepares the workspace for a matrix of the given dimensions. The contents are
+	 * undefined, all cells must be written before they are read.
+	 * @return the array holding the matrix
+	 */
+	double[] matrix(int rows, int cols, int states) {
+		this.cols = cols;
+		this.states = states;
+		int size = rows*cols*states;
+		if(matrix.length < size)
+			matrix = new double[Math.max(size, matrix.length + matrix.length/2)];
+		return matrix;
+	}
+
+	/**
+	 * Index of cell (i,j,k) in the array returned by the last call to {@link #matrix}.
+	 */
+	int index(int i, int j, int k) {
+		return (i*cols+j)*states+k;
+	}
+
+	/**
+	 * Returns a scratch array of exactly the given length (callers rely on its length).
+	 */
+	double[] prJump(int length) {
+		if(prJump.length <= length) {
+			double[][] grown = new double[length+1][];
+			System.arraycopy(prJump, 0, grown, 0, prJump.length);
+			prJump = grown;
+		}
+		if(prJump[length] == null)
+			prJump[length] = new double[length];
+		return prJump[length];
+	}
+}
@@ -0,0 +1,212 @@
+package statalign.base;
+
+/**
+ *
+ * Felsenstein likelihood kernels working on flattened, row-major transition
+ * matrices (element (i,j) at <tt>i*size+j</tt>).
+ *
+ * The DP cells of the alignment moves spend most of their time in these
+ * products, so nucleotide and amino acid models get fully unrolled versions
+ * that the JIT compiles to straight-line (and where supported, SIMD) code.
+ * All kernels add the terms in the same order as {@link Utils#calcFelsen} and
+ * {@link Utils#calcEmProb}, so results do not depend on the kernel chosen.
+ *
+ * @author miklos, novak
+ *
+ */
+public abstract class FelsenKernel {
+
+	/** Number of states of the substitution model */
+	public final int size;
+
+	/** Scratch vector for {@link #calcFelsen} */
+	private final double[] temp;
+
+	protected FelsenKernel(int size) {
+		this.size = size;
+		temp = new double[size];
+	}
+
+	/**
+	 * Returns a new kernel for the given number of states, specialised if possible.
+	 * Kernels hold scratch space, so each tree (chain) should have its own.
+	 * @param size number of states, normally <tt>SubstitutionModel.e.length</tt>
+	 */
+	public static FelsenKernel forSize(int size) {
+		switch(size) {
+		case 4:
+			return new Nucleotide();
+		case 20:
+			return new AminoAcid();
+		default:
+			return new Generic(size);
+		}
+	}
+
+	/**
+	 * Copies a square matrix into a row-major flat array.
+	 * @param matrix the matrix to copy
+	 * @param flat array to reuse if it has the right length, may be null
+	 * @return the flattened matrix
+	 */
+	public static double[] flatten(double[][] matrix, double[] flat) {
+		int n = matrix.length;
+		if(flat == null || flat.length != n*n)
+			flat = new double[n*n];
+		for(int i = 0; i < n; i++)
+			System.arraycopy(matrix[i], 0, flat, i*n, n);
+		return flat;
+	}
+
+	/**
+	 * Multiplies a likelihood vector by a transition matrix:
+	 * <tt>res[off+i] = sum_j trans[i][j]*fel[j]</tt>.
+	 */
+	public abstract void transform(double[] trans, double[] fel, double[] res, int off);
+
+	/**
+	 * Emission probability of a likelihood vector stored from <tt>off</tt>.
+	 */
+	public abstract double emProb(double[] fel, int off, double[] equDist);
+
+	/**
+	 * Emission probability of the elementwise product of two likelihood vectors.
+	 */
+	public abstract double emProb(double[] fel1, int off1, double[] fel2, int off2, double[] equDist);
+
+	/**
+	 * Flattened-matrix equivalent of {@link Utils#calcFelsen}: Felsenstein likelihoods
+	 * of a column from those of its (possibly missing) children.
+	 * @param res array to store the result in
+	 * @param fel1 likelihoods of the first child or null
+	 * @param trans1 flattened transition matrix towards the first child
+	 * @param fel2 likelihoods of the second child or null
+	 * @param trans2 flattened transition matrix towards the second child
+	 */
+	public void calcFelsen(double[] res, double[] fel1, double[] trans1, double[] fel2, double[] trans2) {
+		int i;
+		if(fel1 != null)
+			transform(trans1, fel1, res, 0);
+		else
+			for(i = 0; i < size; i++)
+				res[i] = 1.0;
+		if(fel2 != null) {
+			transform(trans2, fel2, temp, 0);
+			for(i = 0; i < size; i++)
+				res[i] *= temp[i];
+		}
+	}
+
+	/**
+	 * Kernel for any number of states.
+	 */
+	static class Generic extends FelsenKernel {
+		Generic(int size) {
+			super(size);
+		}
+
+		@Override
+		public void transform(double[] trans, double[] fel, double[] res, int off) {
+			double s;
+			int i, j, t;
+			for(i = 0, t = 0; i < size; i++, t += size) {
+				s = 0.0;
+				for(j = 0; j < size; j++)
+					s += trans[t+j]*fel[j];
+				res[off+i] = s;
+			}
+		}
+
+		@Override
+		public double emProb(double[] fel, int off, double[] equDist) {
+			double p = 0;
+			for(int i = 0; i < size; i++)
+				p += fel[off+i]*equDist[i];
+			return p;
+		}
+
+		@Override
+		public double emProb(double[] fel1, int off1, double[] fel2, int off2, double[] equDist) {
+			double p = 0, f;
+			for(int i = 0; i < size; i++) {
+				f = fel1[off1+i];
+				f *= fel2[off2+i];
+				p += f*equDist[i];
+			}
+			return p;
+		}
+	}
+
+	/**
+	 * Kernel for 4-state (nucleotide) models, fully unrolled.
+	 */
+	static class Nucleotide extends FelsenKernel {
+		Nucleotide() {
+			super(4);
+		}
+
+		@Override
+		public void transform(double[] trans, double[] fel, double[] res, int off) {
+			double f0 = fel[0], f1 = fel[1], f2 = fel[2], f3 = fel[3];
+			for(int i = 0, t = 0; i < 4; i++, t += 4)
+				res[off+i] = trans[t]*f0 + trans[t+1]*f1 + trans[t+2]*f2 + trans[t+3]*f3;
+		}
+
+		@Override
+		public double emProb(double[] fel, int off, double[] equDist) {
+			return fel[off]*equDist[0] + fel[off+1]*equDist[1] + fel[off+2]*equDist[2] + fel[off+3]*equDist[3];
+		}
+
+		@Override
+		public double emProb(double[] fel1, int off1, double[] fel2, int off2, double[] equDist) {
+			return fel1[off1]*fel2[off2]*equDist[0] + fel1[off1+1]*fel2[off2+1]*equDist[1] +
+					fel1[off1+2]*fel2[off2+2]*equDist[2] + fel1[off1+3]*fel2[off2+3]*equDist[3];
+		}
+	}
+
+	/**
+	 * Kernel for 20-state (amino acid) models, fully unrolled.
+	 */
+	static class AminoAcid extends FelsenKernel {
+		AminoAcid() {
+			super(20);
+		}
+
+		@Override
+		public void transform(double[] trans, double[] fel, double[] res, int off) {
+			double f0 = fel[0], f1 = fel[1], f2 = fel[2], f3 = fel[3], f4 = fel[4];
+			double f5 = fel[5], f6 = fel[6], f7 = fel[7], f8 = fel[8], f9 = fel[9];
+			double f10 = fel[10], f11 = fel[11], f12 = fel[12], f13 = fel[13], f14 = fel[14];
+			double f15 = fel[15], f16 = fel[16], f17 = fel[17], f18 = fel[18], f19 = fel[19];
+			for(int i = 0, t = 0; i < 20; i++, t += 20)
+				res[off+i] = trans[t]*f0 + trans[t+1]*f1 + trans[t+2]*f2 + trans[t+3]*f3 +
+						trans[t+4]*f4 + trans[t+5]*f5 + trans[t+6]*f6 + trans[t+7]*f7 +
+						trans[t+8]*f8 + trans[t+9]*f9 + trans[t+10]*f10 + trans[t+11]*f11 +
+						trans[t+12]*f12 + trans[t+13]*f13 + trans[t+14]*f14 + trans[t+15]*f15 +
+						trans[t+16]*f16 + trans[t+17]*f17 + trans[t+18]*f18 + trans[t+19]*f19;
+		}
+
+		@Override
+		public double emProb(double[] fel, int off, double[] equDist) {
+			return fel[off]*equDist[0] + fel[off+1]*equDist[1] + fel[off+2]*equDist[2] + fel[off+3]*equDist[3] +
+					fel[off+4]*equDist[4] + fel[off+5]*equDist[5] + fel[off+6]*equDist[6] + fel[off+7]*equDist[7] +
+					fel[off+8]*equDist[8] + fel[off+9]*equDist[9] + fel[off+10]*equDist[10] + fel[off+11]*equDist[11] +
+					fel[off+12]*equDist[12] + fel[off+13]*equDist[13] + fel[off+14]*equDist[14] + fel[off+15]*equDist[15] +
+					fel[off+16]*equDist[16] + fel[off+17]*equDist[17] + fel[off+18]*equDist[18] + fel[off+19]*equDist[19];
+		}
+
+		@Override
+		public double emProb(double[] fel1, int off1, double[] fel2, int off2, double[] equDist) {
+			return fel1[off1]*fel2[off2]*equDist[0] + fel1[off1+1]*fel2[off2+1]*equDist[1] +
+					fel1[off1+2]*fel2[off2+2]*equDist[2] + fel1[off1+3]*fel2[off2+3]*equDist[3] +
+					fel1[off1+4]*fel2[off2+4]*equDist[4] + fel1[off1+5]*fel2[off2+5]*equDist[5] +
+					fel1[off1+6]*fel2[off2+6]*equDist[6] + fel1[off1+7]*fel2[off2+7]*equDist[7] +
+					fel1[off1+8]*fel2[off2+8]*equDist[8] + fel1[off1+9]*fel2[off2+9]*equDist[9] +
+					fel1[off1+10]*fel2[off2+10]*equDist[10] + fel1[off1+11]*fel2[off2+11]*equDist[11] +
+					fel1[off1+12]*fel2[off2+12]*equDist[12] + fel1[off1+13]*fel2[off2+13]*equDist[13] +
+					fel1[off1+14]*fel2[off2+14]*equDist[14] + fel1[off1+15]*fel2[off2+15]*equDist[15] +
+					fel1[off1+16]*fel2[off2+16]*equDist[16] + fel1[off1+17]*fel2[off2+17]*equDist[17] +
+					fel1[off1+18]*fel2[off2+18]*equDist[18] + fel1[off1+19]*fel2[off2+19]*equDist[19];
+		}
+	}
+}
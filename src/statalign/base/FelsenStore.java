@@ -0,0 +1,117 @@
+package statalign.base;
+
+/**
+ *
+ * Contiguous store of the Felsenstein likelihoods of a window of alignment
+ * columns, as seen from the other end of an edge.
+ *
+ * The likelihood vectors of the columns are multiplied by the transition
+ * matrix of the edge once, when the window is loaded, and are kept one after
+ * the other in a single array. The dynamic programming of the alignment moves
+ * then combines two such vectors per cell instead of chasing <tt>AlignColumn</tt>
+ * references and multiplying by the transition matrices for every cell.
+ * The arithmetic is done by the {@link FelsenKernel} of the tree.
+ *
+ * The arrays grow on demand and are reused by later loads.
+ *
+ * @author miklos, novak
+ *
+ */
+class FelsenStore {
+
+	/** Kernel doing the arithmetic */
+	final FelsenKernel kernel;
+
+	/** Alphabet size */
+	final int size;
+
+	/** Number of columns currently loaded */
+	int length;
+
+	/** Transformed likelihoods, <tt>size</tt> values per column */
+	double[] up;
+
+	/** Emission probabilities of the untransformed columns */
+	double[] emit;
+
+	/** False where the column is missing (only for {@link #loadChildren}) */
+	boolean[] present;
+
+	FelsenStore(FelsenKernel kernel) {
+		this.kernel = kernel;
+		size = kernel.size;
+		ensureCapacity(16);
+	}
+
+	private void ensureCapacity(int count) {
+		if(emit == null || emit.length < count) {
+			int cap = Math.max(count, emit == null ? 0 : 2*emit.length);
+			up = new double[cap*size];
+			emit = new double[cap];
+			present = new boolean[cap];
+		}
+	}
+
+	/**
+	 * Loads <tt>count</tt> consecutive columns.
+	 * @param first the first column of the window
+	 * @param count number of columns to load
+	 * @param trans flattened transition matrix of the edge to multiply the likelihoods with
+	 * @param equDist equilibrium distribution used for emission probabilities
+	 */
+	void load(AlignColumn first, int count, double[] trans, double[] equDist) {
+		ensureCapacity(count);
+		length = count;
+		AlignColumn c = first;
+		for(int idx = 0; idx < count; idx++, c = c.next) {
+			kernel.transform(trans, c.seq, up, idx*size);
+			emit[idx] = kernel.emProb(c.seq, 0, equDist);
+			present[idx] = true;
+		}
+	}
+
+	/**
+	 * Loads the left (or right) children of <tt>count</tt> consecutive columns of the parent.
+	 * Emission probabilities are not computed.
+	 * @param first the first parent column of the window
+	 * @param count number of columns to load
+	 * @param leftChild true to load the left children, false for the right ones
+	 * @param trans flattened transition matrix of the edge to multiply the likelihoods with
+	 */
+	void loadChildren(AlignColumn first, int count, boolean leftChild, double[] trans) {
+		ensureCapacity(count);
+		length = count;
+		AlignColumn p = first;
+		for(int idx = 0; idx < count; idx++, p = p.next) {
+			AlignColumn c = leftChild ? p.left : p.right;
+			present[idx] = c != null;
+			if(c != null)
+				kernel.transform(trans, c.seq, up, idx*size);
+		}
+	}
+
+	/**
+	 * Emission probability of an ancestral character given two (possibly missing)
+	 * descendant columns. Gives the same result as {@link Utils#calcFelsen} followed
+	 * by {@link Utils#calcEmProb}.
+	 * @param s1 first store or null if the character has no descendant there
+	 * @param i1 column index in <tt>s1</tt>
+	 * @param s2 second store or null if the character has no descendant there
+	 * @param i2 column index in <tt>s2</tt>
+	 * @param equDist equilibrium distribution
+	 * @return the emission probability
+	 */
+	static double emProb(FelsenStore s1, int i1, FelsenStore s2, int i2, double[] equDist) {
+		int len = equDist.length;
+		if(s1 != null && s2 != null)
+			return s1.kernel.emProb(s1.up, i1*len, s2.up, i2*len, equDist);
+		if(s1 != null)
+			return s1.kernel.emProb(s1.up, i1*len, equDist);
+		if(s2 != null)
+			return s2.kernel.emProb(s2.up, i2*len, equDist);
+		double p = 0;
+		for(int i = 0; i < len; i++)
+			p += 1.0*equDist[i];
+		return p;
+	}
+}
@@ -0,0 +1,132 @@
+package statalign.base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Exchanger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import statalign.base.thread.StoppedException;
+
+/**
+ *
+ * Meeting point of Metropolis-coupled MCMC chains running as threads of the
+ * same process. It replaces <tt>MPI.COMM_WORLD</tt> for the in-process
+ * version of parallel tempering.
+ *
+ * Swap partners trade their (log-likelihood, log-prior, heat) triples through
+ * an <tt>Exchanger</tt> dedicated to the pair, so a swap never takes a lock
+ * shared with the other chains. Samples are handed to the postprocessing
+ * plugins in increasing order by whichever chain is cold at the time.
+ *
+ * @author novak
+ *
+ */
+public class HeatExchange {
+
+	/** How long a chain waits for its partner before checking for abortion (ms). */
+	private static final long POLL_INTERVAL = 200;
+
+	/** Number of chains taking part in the exchange. */
+	private final int noOfChains;
+
+	/** One exchange point for each unordered pair of chains. */
+	private final List<Exchanger<double[]>> exchangers;
+
+	/** Number of the sample that is to be reported next. */
+	private int nextReport;
+
+	/** Set when a chain has terminated abnormally, releases all waiting chains. */
+	private volatile boolean aborted;
+
+	/**
+	 * Constructs an exchange for the given number of chains.
+	 *
+	 * @param noOfChains number of chains, ranked from 0 to <tt>noOfChains-1</tt>
+	 */
+	public HeatExchange(int noOfChains) {
+		this.noOfChains = noOfChains;
+		exchangers = new ArrayList<Exchanger<double[]>>(noOfChains * noOfChains);
+		for (int a = 0; a < noOfChains; a++)
+			for (int b = 0; b < noOfChains; b++)
+				exchangers.add(a < b ? new Exchanger<double[]>() : null);
+	}
+
+	/**
+	 * @return the number of chains taking part in the exchange
+	 */
+	public int getNoOfChains() {
+		return noOfChains;
+	}
+
+	/**
+	 * Hands over the state information of chain <tt>rank</tt> to chain
+	 * <tt>partner</tt> and returns the information received from it. Blocks
+	 * until the partner arrives at the same swap.
+	 *
+	 * @param rank rank of the calling chain
+	 * @param partner rank of the swap partner
+	 * @param info state information of the calling chain
+	 * @return state information of the partner
+	 * @throws StoppedException if the run has been aborted meanwhile
+	 */
+	public double[] exchange(int rank, int partner, double[] info) throws StoppedException {
+		Exchanger<double[]> exchanger = exchangers.get(Math.min(rank, partner) * noOfChains
+				+ Math.max(rank, partner));
+		while (true) {
+			if (aborted)
+				throw new StoppedException();
+			try {
+				return exchanger.exchange(info, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				// partner not there yet, check for abortion
+			} catch (InterruptedException e) {
+				abort();
+			}
+		}
+	}
+
+	/**
+	 * Blocks until all samples preceding sample <tt>no</tt> have been reported.
+	 *
+	 * @param no number of the sample the caller is about to report
+	 * @throws StoppedException if the run has been aborted meanwhile
+	 */
+	public synchronized void awaitReport(int no) throws StoppedException {
+		while (nextReport < no) {
+			if (aborted)
+				throw new StoppedException();
+			try {
+				wait(POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				abort();
+			}
+		}
+	}
+
+	/**
+	 * Signals that sample <tt>no</tt> has been reported.
+	 *
+	 * @param no number of the sample
+	 */
+	public synchronized void reportDone(int no) {
+		nextReport = no + 1;
+		notifyAll();
+	}
+
+	/**
+	 * Releases all chains waiting for a partner or a report, they will receive a
+	 * <tt>StoppedException</tt>.
+	 */
+	public synchronized void abort() {
+		aborted = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return true if the run has been aborted
+	 */
+	public boolean isAborted() {
+		return aborted;
+	}
+}
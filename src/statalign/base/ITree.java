@@ -17,4 +17,5 @@ public interface ITree {
     double getMu();
 
     double getHeat();
+    void setHeat(double heat);
 }
@@ -72,6 +72,39 @@ public class MCMCPars {
 	 */
 	public int swapRate;
 	
+	/**
+	 * Number of Metropolis-coupled chains run as threads of this process.
+	 * A single chain means a plain MCMC run.
+	 */
+	public int noOfChains = 1;
+	
+	/**
+	 * File to dump the per-move statistics of the chains into periodically,
+	 * null for no dump. See {@link McmcMetrics#startDump(String, long)}.
+	 */
+	public String metricsFile;
+	
+	/**
+	 * Time between two dumps of the per-move statistics (seconds).
+	 */
+	public int metricsPeriod = 10;
+	
+	/**
+	 * File to save checkpoints of the run into periodically, null for no checkpoints.
+	 * See {@link Checkpoint}.
+	 */
+	public String checkpointFile;
+	
+	/**
+	 * Time between two checkpoints (seconds).
+	 */
+	public int checkpointPeriod = 600;
+	
+	/**
+	 * Checkpoint file to resume the run from, null to start a new run.
+	 */
+	public String resumeFile;
+	
 	/**
 	 * MCMC parameter automation settings
 	 */
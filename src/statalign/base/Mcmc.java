@@ -1,5 +1,6 @@
 package statalign.base;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -15,7 +16,6 @@ import statalign.postprocess.PostprocessManager;
 import statalign.postprocess.plugins.contree.CNetwork;
 import statalign.ui.ErrorMessage;
 import statalign.ui.MainFrame;
-import statalign.utils.SimpleStats;
 
 import com.ppfold.algo.AlignmentData;
 import com.ppfold.algo.FuzzyAlignment;
@@ -62,6 +62,9 @@ public class Mcmc extends Stoppable {
 	/** The random number generator used for swapping. */
 	private Random swapGenerator;
 
+	/** Exchange point of the chains if they run as threads of this process, null with MPI. */
+	private HeatExchange exchange;
+
 	// Non parallelization
 
 	public CNetwork network; 
@@ -81,6 +84,9 @@ public class Mcmc extends Stoppable {
 
 	public McmcStep mcmcStep = new McmcStep();
 
+	/** Per-move statistics of this chain, see {@link McmcMetrics}. */
+	public final McmcMetrics metrics = new McmcMetrics();
+
 	/** PostprocessManager that handles the postprocessing modules. */
 	public PostprocessManager postprocMan;
 
@@ -89,6 +95,18 @@ public class Mcmc extends Stoppable {
 
     private double heat;
 
+	/** Checkpoint the run is resumed from, null for a new run. */
+	private Checkpoint resumeFrom;
+
+	/** Writes the checkpoints of the run, null if no checkpoints are saved. */
+	private CheckpointWriter checkpointWriter;
+
+	/** Time of the next periodic checkpoint. */
+	private long nextCheckpoint;
+
+	/** Position of the run: burn-in steps made, samples taken and steps made towards the next sample. */
+	private int burnInSteps, samplesTaken, sampleSteps;
+
 	public Mcmc(MCMCStrategy strategy, MCMCPars mcmcpars, PostprocessManager ppm) {
 		postprocMan = ppm;
 		ppm.mcmc = this;
@@ -103,12 +121,23 @@ public class Mcmc extends Stoppable {
 		this(strategy, mcmcpars, ppm);
 		this.noOfProcesses = noOfProcesses;
 		this.rank = rank;
-		heat = heat;
+		this.heat = heat;
+		strategy.getTree().setHeat(heat);
 
 		// Is parallel!
 		isParallel = true;
 	}
 
+	/**
+	 * Constructs a chain that is run in a thread of this process together with
+	 * the other chains sharing <tt>exchange</tt>.
+	 */
+	public Mcmc(MCMCStrategy strategy, MCMCPars mcmcpars, PostprocessManager ppm,
+			HeatExchange exchange, int rank, double heat) {
+		this(strategy, mcmcpars, ppm, exchange.getNoOfChains(), rank, heat);
+		this.exchange = exchange;
+	}
+
 	public int alignmentSampled = 0;
     public int alignmentAccepted = 0;
     public int edgeSampled = 0;
@@ -122,6 +151,15 @@ public class Mcmc extends Stoppable {
 	
 	private static final DecimalFormat df = new DecimalFormat("0.0000");
 
+	/**
+	 * Makes the run resume from a checkpoint when it is started: the random number
+	 * generator, the move counters and the position of the run are restored. The tree
+	 * of the chain must have been rebuilt from the state saved in the checkpoint.
+	 */
+	public void resume(Checkpoint checkpoint) {
+		resumeFrom = checkpoint;
+	}
+
 	/**
 	 * In effect starts an MCMC run. It first performs a prescribed number of
 	 * burn-in steps, then, if one wants to automate the sampling rate, goes to 
@@ -143,9 +181,38 @@ public class Mcmc extends Stoppable {
 		}
 
 		MainFrame frame = postprocMan.mainManager.frame;
-		Utils.generator = new Random(mcmcpars.seed + rank);
+		Utils.seedGenerator(mcmcpars.seed + rank);
+		if (exchange != null && MPIUtils.isMaster(rank)) {
+			postprocMan.mcmc = this;
+		}
+		if (resumeFrom != null) {
+			Utils.setGenerator(resumeFrom.getGenerator());
+			resumeFrom.restoreCounters(this);
+			burnInSteps = resumeFrom.burnInSteps;
+			samplesTaken = resumeFrom.samples;
+			sampleSteps = resumeFrom.steps;
+		}
 		long currentTime, start = System.currentTimeMillis();
 
+		if (mcmcpars.checkpointFile != null) {
+			if (isParallel || !(getTree() instanceof Tree) || autoPar.automateBurnIn
+					|| autoPar.automateSamplingRate || autoPar.automateNumberOfSamplesToTake) {
+				System.out.println("Checkpoints can only be saved for single chains of Steiner trees "
+						+ "with fixed MCMC parameters, no checkpoints will be saved.");
+			} else {
+				checkpointWriter = new CheckpointWriter(new File(mcmcpars.checkpointFile));
+				nextCheckpoint = start + 1000L * mcmcpars.checkpointPeriod;
+			}
+		}
+
+		metrics.register(rank);
+		if (mcmcpars.metricsFile != null) {
+			String file = mcmcpars.metricsFile;
+			if (isParallel)
+				file += "." + rank;
+			metrics.startDump(file, 1000L * mcmcpars.metricsPeriod);
+		}
+
 		// Triggers a /before first sample/ of the plugins.
 		if ((isParallel && MPIUtils.isMaster(rank)) || !isParallel) {
 			postprocMan.beforeFirstSample();
@@ -170,7 +237,7 @@ public class Mcmc extends Stoppable {
 			}
 
 			burnin = true;
-			for (int i = 0; i < burnIn; i++) {
+			for (int i = burnInSteps; i < burnIn; i++) {
 
 				sample(0);
 
@@ -180,16 +247,18 @@ public class Mcmc extends Stoppable {
 					// TODO do above inside sample() and add more info
 					mcmcStep.newLogLike = getTree().getLogLike();
 					mcmcStep.burnIn = burnin;
-					postprocMan.newStep(mcmcStep);
-					if (i % mcmcpars.sampRate == 0) {
-						postprocMan.newPeek();
+					synchronized (postprocMan) {
+						postprocMan.newStep(mcmcStep);
+						if (i % mcmcpars.sampRate == 0) {
+							postprocMan.newPeek();
+						}
 					}
 				}
 				
 				//every 50 steps, add the current loglikelihood to a list
 				// and check if we find a major decline in that list 
 				if(autoPar.automateBurnIn && i % 50 == 0){
-					logLikeList.add(getState().logLike);
+					logLikeList.add(getTree().getLogLike());
 					if(!stopBurnIn){
 						stopBurnIn = AutomateParameters.shouldStopBurnIn(logLikeList);
 						if(autoPar.automateSamplingRate && stopBurnIn){
@@ -222,6 +291,11 @@ public class Mcmc extends Stoppable {
 					String[] align = getState().getLeafAlign();
 					alignmentsFromSamples.add(align);
 				}	
+
+				burnInSteps = i + 1;
+				if (checkpointDue()) {
+					saveCheckpoint(false);
+				}
 			}
 			
 			//both real burn-in and the one to determine the sampling rate have now been completed.
@@ -254,16 +328,17 @@ public class Mcmc extends Stoppable {
 
 			int swapNo = 0; // TODO: delete?
 			swapCounter = mcmcpars.swapRate;
-			AlignmentData alignment = new AlignmentData(getState().getLeafAlign());
-			ArrayList<AlignmentData> allAlignments = new ArrayList<AlignmentData>();
+			// posterior of the samples so far, updated as the samples arrive
+			FuzzyAlignment fuzzyAlignment = null;
 			ArrayList<Double> distances = new ArrayList<Double>();
 
 			boolean shouldStop = false;
 			double currScore = 0;
-			for (int i = 0; i < period && !shouldStop; i++) {
-				for (int j = 0; j < sampRate; j++) {
+			for (int i = samplesTaken; i < period && !shouldStop; i++) {
+				for (int j = sampleSteps; j < sampRate; j++) {
 					// Samples.
 					sample(0);
+					sampleSteps = j + 1;
 
 					//FuzzyAlignment fuzzyAlignment2 = FuzzyAlignment.getFuzzyAlignmentAndProject(alignments, "");
 
@@ -283,13 +358,16 @@ public class Mcmc extends Stoppable {
 					if ((isParallel && MPIUtils.isMaster(rank)) || !isParallel) {
 						mcmcStep.newLogLike = getTree().getLogLike();
 						mcmcStep.burnIn = burnin;
-						postprocMan.newStep(mcmcStep);
-						if (burnIn + i * period + j % mcmcpars.sampRate == 0) {
-							postprocMan.newPeek();
+						synchronized (postprocMan) {
+							postprocMan.newStep(mcmcStep);
+							if (burnIn + i * period + j % mcmcpars.sampRate == 0) {
+								postprocMan.newPeek();
+							}
 						}
 					}
 
 				}
+				sampleSteps = 0;
 				currentTime = System.currentTimeMillis();
 				if (frame == null && !isParallel) {
 					System.out.println("Sample: " + (i + 1));
@@ -312,18 +390,14 @@ public class Mcmc extends Stoppable {
 					frame.statusText.setText(text );
 				}
 				if(autoPar.automateNumberOfSamplesToTake){
-					alignment = new AlignmentData(getState().getLeafAlign());
-					allAlignments.add(alignment);
-					if (allAlignments.size() >1){
-						FuzzyAlignment Fa = FuzzyAlignment.getFuzzyAlignmentAndProject(allAlignments.subList(0, allAlignments.size()-1), 0);
-						FuzzyAlignment Fb = FuzzyAlignment.getFuzzyAlignmentAndProject(allAlignments, 0);
-						//System.out.println(Fa);
-						//System.out.println("xxxx");
-						//System.out.println(Fb);
-						currScore = FuzzyAlignment.AMA(Fa, Fb);
+					AlignmentData alignment = FuzzyAlignment.projectAlignment(new AlignmentData(getState().getLeafAlign()), 0);
+					if (fuzzyAlignment == null){
+						fuzzyAlignment = FuzzyAlignment.getIncrementalFuzzyAlignment(alignment);
+					} else {
+						currScore = fuzzyAlignment.addAlignment(alignment);
 						System.out.println(currScore);
 						distances.add(currScore);
-						if (allAlignments.size() >5){
+						if (fuzzyAlignment.alignments.size() >5){
 							shouldStop = AutomateParameters.shouldStopSampling(distances);
 						}
 
@@ -331,19 +405,38 @@ public class Mcmc extends Stoppable {
 				}
 				// Report the results of the sample.
 				report(i, period);
+
+				samplesTaken = i + 1;
+				if (checkpointDue()) {
+					saveCheckpoint(false);
+				}
+			}
+
+			// The cold chain may be elsewhere, wait for the last sample to arrive.
+			if (exchange != null && MPIUtils.isMaster(rank)) {
+				exchange.awaitReport(period);
 			}
 		} catch (StoppedException ex) {
 			// stopped: report and save state
 			errorCode = 1;
+			if (exchange != null) {
+				// release the chains waiting for this one
+				exchange.abort();
+			}
+			if (checkpointWriter != null) {
+				saveCheckpoint(true);
+			}
+		}
+		if (checkpointWriter != null) {
+			checkpointWriter.shutdown();
+			checkpointWriter = null;
 		}
 
+		metrics.stopDump();
+		metrics.unregister();
 		if(Utils.DEBUG) {
-			System.out.println("Times spent in each MCMC step type (ms):");
-			System.out.println(ali);
-			System.out.println(top);
-			System.out.println(edge);
-			System.out.println(ind);
-			System.out.println(sub);
+			System.out.println("Time spent in each MCMC step type:");
+			System.out.println(metrics);
 		}
 
 		// Triggers a /after first sample/ of the plugins.
@@ -354,7 +447,41 @@ public class Mcmc extends Stoppable {
 		return errorCode;
 	}
 
-	private void doSwap(int swapNo) {
+	private boolean checkpointDue() {
+		return checkpointWriter != null && System.currentTimeMillis() >= nextCheckpoint;
+	}
+
+	/**
+	 * Saves a checkpoint of the run at its current position. The checkpoint is taken on
+	 * the sampler's thread and written in the background, unless <tt>wait</tt> is set.
+	 * A periodic checkpoint is skipped if the previous one is still being written.
+	 */
+	private void saveCheckpoint(boolean wait) {
+		nextCheckpoint = System.currentTimeMillis() + 1000L * mcmcpars.checkpointPeriod;
+		if (!wait && checkpointWriter.isBusy()) {
+			return;
+		}
+		try {
+			Checkpoint checkpoint = new Checkpoint(getState(), Utils.getGenerator());
+			checkpoint.burnInSteps = burnInSteps;
+			checkpoint.samples = samplesTaken;
+			checkpoint.steps = sampleSteps;
+			checkpoint.burnIn = mcmcpars.burnIn;
+			checkpoint.cycles = mcmcpars.cycles;
+			checkpoint.sampRate = mcmcpars.sampRate;
+			checkpoint.saveCounters(this);
+			postprocMan.checkpoint(checkpoint);
+			if (wait) {
+				checkpointWriter.write(checkpoint);
+			} else {
+				checkpointWriter.writeAsync(checkpoint);
+			}
+		} catch (IOException e) {
+			System.err.println("Could not save checkpoint: " + e.getMessage());
+		}
+	}
+
+	private void doSwap(int swapNo) throws StoppedException {
 		int swapA, swapB;
 		swapA = swapGenerator.nextInt(noOfProcesses);
 		do {
@@ -374,21 +501,25 @@ public class Mcmc extends Stoppable {
 
 			double[] partnerStateInfo = new double[3];
 
-			mpi.Request send, recieve;
-
-			if (rank == swapA) {
-				send = MPI.COMM_WORLD.Isend(myStateInfo, 0, 3, MPI.DOUBLE,
-						swapB, 0);
-				recieve = MPI.COMM_WORLD.Irecv(partnerStateInfo, 0, 3,
-						MPI.DOUBLE, swapB, 1);
+			if (exchange != null) {
+				partnerStateInfo = exchange.exchange(rank, rank == swapA ? swapB : swapA, myStateInfo);
 			} else {
-				send = MPI.COMM_WORLD.Isend(myStateInfo, 0, 3, MPI.DOUBLE,
-						swapA, 1);
-				recieve = MPI.COMM_WORLD.Irecv(partnerStateInfo, 0, 3,
-						MPI.DOUBLE, swapA, 0);
-			}
+				mpi.Request send, recieve;
+
+				if (rank == swapA) {
+					send = MPI.COMM_WORLD.Isend(myStateInfo, 0, 3, MPI.DOUBLE,
+							swapB, 0);
+					recieve = MPI.COMM_WORLD.Irecv(partnerStateInfo, 0, 3,
+							MPI.DOUBLE, swapB, 1);
+				} else {
+					send = MPI.COMM_WORLD.Isend(myStateInfo, 0, 3, MPI.DOUBLE,
+							swapA, 1);
+					recieve = MPI.COMM_WORLD.Irecv(partnerStateInfo, 0, 3,
+							MPI.DOUBLE, swapA, 0);
+				}
 
-			mpi.Request.Waitall(new mpi.Request[] { send, recieve });
+				mpi.Request.Waitall(new mpi.Request[] { send, recieve });
+			}
 
 			System.out
 			.printf("[Worker %d] Heat: [%f] - Sent: [%f,%f,%f] - Recv: [%f,%f,%f]\n",
@@ -418,6 +549,7 @@ public class Mcmc extends Stoppable {
 						"Just swapped heat with my partner. New heat: "
 								+ hisTemp);
 				heat = hisTemp;
+				getTree().setHeat(heat);
 			}
 
 			// MPI.COMM_WORLD.Send(myStateInfo, 0, 3, MPI.DOUBLE,
@@ -434,97 +566,89 @@ public class Mcmc extends Stoppable {
 				(x / 60) % 60, x % 60);
 	}
 
-	SimpleStats ali;
-	SimpleStats top;
-	SimpleStats edge;
-	SimpleStats ind;
-	SimpleStats sub;
-
-	{
-		if(Utils.DEBUG) {
-			ali = new SimpleStats("Alignment");
-			top = new SimpleStats("Topology");
-			edge = new SimpleStats("Edge len");
-			ind = new SimpleStats("Indel param");
-			sub = new SimpleStats("Subst param");
-		}
-	}
-
-	private void sample(int samplingMethod) throws StoppedException {
+	/**
+	 * Performs one MCMC step. Package-private so that benchmarks can drive
+	 * single steps without running a whole chain.
+	 * @param samplingMethod 0 to choose one move at random, otherwise all moves are made in turn
+	 */
+	void sample(int samplingMethod) throws StoppedException {
+		stoppable();
 		if (samplingMethod == 0) {
-			long timer;
-			stoppable();
 			switch (getTree().getSubstitutionModel().params != null
 					&& getTree().getSubstitutionModel().params.length > 0 ? Utils
 							.weightedChoose(FIVECHOOSE) : Utils
 							.weightedChoose(FOURCHOOSE)) {
-							case 0:
-								if(Utils.DEBUG)
-									timer = -System.currentTimeMillis();
-                                edgeSampled++;
-								edgeAccepted += strategy.sampleEdge() ? 1 : 0;
-								if(Utils.DEBUG) {
-									timer += System.currentTimeMillis();
-									edge.addData(timer);
-								}
+							case McmcMetrics.EDGE:
+								sampleEdge();
 								break;
-							case 1:
-								if(Utils.DEBUG)
-									timer = -System.currentTimeMillis();
-                                topologySampled++;
-								topologyAccepted += strategy.sampleTopology() ? 1 : 0;
-								if(Utils.DEBUG) {
-									timer += System.currentTimeMillis();
-									top.addData(timer);
-								}
+							case McmcMetrics.TOPOLOGY:
+								sampleTopology();
 								break;
-							case 2:
-								if(Utils.DEBUG)
-									timer = -System.currentTimeMillis();
-                                indelSampled++;
-								indelAccepted += strategy.sampleIndelParameter() ? 1 : 0;
-								if(Utils.DEBUG) {
-									timer += System.currentTimeMillis();
-									ind.addData(timer);
-								}
+							case McmcMetrics.INDEL:
+								sampleIndelParameter();
 								break;
-							case 3:
-								if(Utils.DEBUG)
-									timer = -System.currentTimeMillis();
-                                alignmentSampled++;
-								alignmentAccepted += strategy.sampleAlignment() ? 1 : 0;
-								if(Utils.DEBUG) {
-									timer += System.currentTimeMillis();
-									ali.addData(timer);
-								}
+							case McmcMetrics.ALIGNMENT:
+								sampleAlignment();
 								break;
-							case 4:
-								if(Utils.DEBUG)
-									timer = -System.currentTimeMillis();
-                                substSampled++;
-								substAccepted += strategy.sampleSubstParameter() ? 1 : 0;
-								if(Utils.DEBUG) {
-									timer += System.currentTimeMillis();
-									sub.addData(timer);
-								}
+							case McmcMetrics.SUBST:
+								sampleSubstParameter();
 								break;
 			}
 		} else {
-			stoppable();
-			strategy.sampleEdge();
-            strategy.sampleTopology();
-            strategy.sampleIndelParameter();
-            strategy.sampleSubstParameter();
-            strategy.sampleAlignment();
+			sampleEdge();
+			sampleTopology();
+			sampleIndelParameter();
+			sampleSubstParameter();
+			sampleAlignment();
 		}
 	}
 
+	private void sampleEdge() {
+		long time = System.nanoTime(), alloc = metrics.allocatedBytes();
+		boolean accepted = strategy.sampleEdge();
+		metrics.record(McmcMetrics.EDGE, accepted, time, alloc);
+		edgeSampled++;
+		edgeAccepted += accepted ? 1 : 0;
+	}
+
+	private void sampleTopology() {
+		long time = System.nanoTime(), alloc = metrics.allocatedBytes();
+		boolean accepted = strategy.sampleTopology();
+		metrics.record(McmcMetrics.TOPOLOGY, accepted, time, alloc);
+		topologySampled++;
+		topologyAccepted += accepted ? 1 : 0;
+	}
+
+	private void sampleIndelParameter() {
+		long time = System.nanoTime(), alloc = metrics.allocatedBytes();
+		boolean accepted = strategy.sampleIndelParameter();
+		metrics.record(McmcMetrics.INDEL, accepted, time, alloc);
+		indelSampled++;
+		indelAccepted += accepted ? 1 : 0;
+	}
+
+	private void sampleAlignment() {
+		long time = System.nanoTime(), alloc = metrics.allocatedBytes();
+		boolean accepted = strategy.sampleAlignment();
+		metrics.record(McmcMetrics.ALIGNMENT, accepted, time, alloc);
+		alignmentSampled++;
+		alignmentAccepted += accepted ? 1 : 0;
+	}
+
+	private void sampleSubstParameter() {
+		long time = System.nanoTime(), alloc = metrics.allocatedBytes();
+		boolean accepted = strategy.sampleSubstParameter();
+		metrics.record(McmcMetrics.SUBST, accepted, time, alloc);
+		substSampled++;
+		substAccepted += accepted ? 1 : 0;
+	}
+
 	/**
 	 * Returns a string representation describing the acceptance ratios of the current MCMC run.
 	 * @return a string describing the acceptance ratios.
 	 */
 	public String getInfoString() {
-		return String.format(Locale.US, "Acceptances: [Alignment: %f, Edge: %f, Topology: %f, Indel: %f, Substitution: %f]",
+		return String.format(Locale.US, "Acceptances: [Alignment: %f, Edge: %f, Topology: %f, Indel: %f, Substitution: %f] %s",
 				(alignmentSampled == 0 ? 0 : (double) alignmentAccepted
 						/ (double) alignmentSampled),
 						(edgeSampled == 0 ? 0 : (double) edgeAccepted
@@ -534,13 +658,17 @@ public class Mcmc extends Stoppable {
 										(indelSampled == 0 ? 0 : (double) indelAccepted
 												/ (double) indelSampled),
 												(substSampled == 0 ? 0 : (double) substAccepted
-														/ (double) substSampled));
+														/ (double) substSampled),
+														metrics.getTimeShareString());
 	}
 
 	/**
 	 * Returns a {@link State} object that describes the current state of the
 	 * MCMC. This can then be passed on to other classes such as postprocessing
 	 * plugins.
+	 * 
+	 * The state may be lazy (see {@link State}): it is only valid until the
+	 * next MCMC step, callers keeping it for longer must materialise it.
 	 */
 	public State getState() {
 		return getTree().getState();
@@ -621,6 +749,7 @@ public class Mcmc extends Stoppable {
 
 	private void MPIStateSend(State state) {
 
+		state.materialize();
 		String[] seq = state.seq;
 		int[][] align = state.align;
 		double[][][] felsen = state.felsen;
@@ -699,11 +828,24 @@ public class Mcmc extends Stoppable {
 
 	}
 
-	private void report(int no, int total) {
+	private void report(int no, int total) throws StoppedException {
 
 		int coldChainLocation = -1;
 
-		if (isParallel) {
+		if (exchange != null) {
+			// Only the cold chain reports, in the order of the samples.
+			if (!isColdChain()) {
+				return;
+			}
+			coldChainLocation = rank;
+			exchange.awaitReport(no);
+			synchronized (postprocMan) {
+				postprocMan.newSample(getState(), no, total);
+				writeLog(coldChainLocation);
+			}
+			exchange.reportDone(no);
+			return;
+		} else if (isParallel) {
 			// Get rank of cold chain.
 			int[] ranks = new int[] { (isColdChain() ? rank : 0) };
 			int[] coldChainLoc = new int[1];
@@ -732,27 +874,8 @@ public class Mcmc extends Stoppable {
 			postprocMan.newSample(getState(), no, total);
 		}
 
-		// Log the accept ratios/params to the (.log) file. TODO: move to a plugin.
-		try {
-			if ((isParallel && MPIUtils.isMaster(rank)) || !isParallel) {
-				postprocMan.logFile.write(getInfoString() + "\n");
-				postprocMan.logFile.write("Report\tLogLikelihood\t"
-						// + (tree.root.orphanLogLike + tree.root.indelLogLike)
-                        + getTree().getLogLike()
-						+ "\tR\t" + getTree().getR() + "\tLamda\t"
-						+ getTree().getLambda() + "\tMu\t" + getTree().getMu()
-								+ "\t" + getTree().getSubstitutionModel().print() + "\n");
-				if (isParallel) {
-					postprocMan.logFile.write("Cold chain location: " + coldChainLocation + "\n");
-				}
-
-			}
-		} catch (IOException e) {
-			if (postprocMan.mainManager.frame != null) {
-				ErrorMessage.showPane(postprocMan.mainManager.frame, e, true);
-			} else {
-				e.printStackTrace(System.out);
-			}
+		if ((isParallel && MPIUtils.isMaster(rank)) || !isParallel) {
+			writeLog(coldChainLocation);
 		}
 
 		// alignmentSampled = 0;
@@ -768,6 +891,30 @@ public class Mcmc extends Stoppable {
 
 	}
 
+	/**
+	 * Logs the accept ratios/params to the (.log) file. TODO: move to a plugin.
+	 */
+	private void writeLog(int coldChainLocation) {
+		try {
+			postprocMan.logFile.write(getInfoString() + "\n");
+			postprocMan.logFile.write("Report\tLogLikelihood\t"
+					// + (tree.root.orphanLogLike + tree.root.indelLogLike)
+					+ getTree().getLogLike()
+					+ "\tR\t" + getTree().getR() + "\tLamda\t"
+					+ getTree().getLambda() + "\tMu\t" + getTree().getMu()
+					+ "\t" + getTree().getSubstitutionModel().print() + "\n");
+			if (isParallel) {
+				postprocMan.logFile.write("Cold chain location: " + coldChainLocation + "\n");
+			}
+		} catch (IOException e) {
+			if (postprocMan.mainManager.frame != null) {
+				ErrorMessage.showPane(postprocMan.mainManager.frame, e, true);
+			} else {
+				e.printStackTrace(System.out);
+			}
+		}
+	}
+
     public ITree getTree() {
         return strategy.getTree();
     }
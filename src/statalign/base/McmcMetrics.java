@@ -0,0 +1,408 @@
+package statalign.base;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ *
+ * Always-on statistics of the moves of an MCMC chain: number of proposals,
+ * acceptances, latency histograms and allocated bytes for each move type of
+ * {@link MCMCStrategy}.
+ *
+ * Recording a move costs two <tt>System.nanoTime()</tt> calls, two reads of the
+ * allocation counter of the thread and a few array updates, so it is done in
+ * every run. The statistics are written by the chain's thread only; readers
+ * (JMX, the periodic dump) may see values that are a move behind.
+ *
+ * The statistics can be watched live through JMX under the name
+ * <tt>statalign:type=McmcMetrics,chain=RANK</tt> and can be dumped periodically
+ * into a CSV file (one line per move type per dump) or a JSON file (rewritten
+ * at each dump), see {@link #startDump(String, long)}.
+ *
+ * @author miklos, novak
+ *
+ */
+public class McmcMetrics implements McmcMetricsMBean {
+
+	/** Move type indices, as chosen in <tt>Mcmc.sample</tt> */
+	public static final int EDGE = 0, TOPOLOGY = 1, INDEL = 2, ALIGNMENT = 3, SUBST = 4;
+
+	/** Names of the move types */
+	public static final String[] MOVE_NAMES = { "Edge", "Topology", "Indel", "Alignment", "Substitution" };
+
+	/** Number of latency histogram buckets, the last one collects everything above 2^(BUCKETS-1) ns */
+	public static final int BUCKETS = 40;
+
+	private final int moves = MOVE_NAMES.length;
+
+	private long[] count = new long[moves];
+	private long[] accepted = new long[moves];
+	private long[] totalNanos = new long[moves];
+	private long[] maxNanos = new long[moves];
+	private long[] allocated = new long[moves];
+	private long[][] histogram = new long[moves][BUCKETS];
+
+	/** Allocation counter of the HotSpot JVM, null if not available */
+	private final com.sun.management.ThreadMXBean allocBean;
+
+	private ObjectName objectName;
+	private Timer dumpTimer;
+	private String dumpFile;
+	private long dumpStart;
+
+	public McmcMetrics() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean alloc = null;
+		if(bean instanceof com.sun.management.ThreadMXBean) {
+			alloc = (com.sun.management.ThreadMXBean) bean;
+			try {
+				if(!alloc.isThreadAllocatedMemorySupported())
+					alloc = null;
+				else if(!alloc.isThreadAllocatedMemoryEnabled())
+					alloc.setThreadAllocatedMemoryEnabled(true);
+			} catch (UnsupportedOperationException e) {
+				alloc = null;
+			}
+		}
+		allocBean = alloc;
+	}
+
+	/**
+	 * Returns the number of bytes allocated so far by the calling thread, or 0
+	 * if this cannot be measured. To be passed to {@link #record}.
+	 */
+	public long allocatedBytes() {
+		return allocBean == null ? 0 : allocBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Records a move.
+	 * @param move move type index
+	 * @param acc whether the move was accepted
+	 * @param startNanos value of <tt>System.nanoTime()</tt> before the move
+	 * @param startAlloc value of {@link #allocatedBytes()} before the move
+	 */
+	public void record(int move, boolean acc, long startNanos, long startAlloc) {
+		long nanos = System.nanoTime()-startNanos;
+		long alloc = allocatedBytes()-startAlloc;
+		count[move]++;
+		if(acc)
+			accepted[move]++;
+		totalNanos[move] += nanos;
+		if(nanos > maxNanos[move])
+			maxNanos[move] = nanos;
+		allocated[move] += alloc;
+		histogram[move][bucket(nanos)]++;
+	}
+
+	private static int bucket(long nanos) {
+		int b = 63-Long.numberOfLeadingZeros(Math.max(nanos, 1));
+		return Math.min(b, BUCKETS-1);
+	}
+
+	/**
+	 * Estimates a latency quantile from the histogram: returns the upper end of
+	 * the bucket containing the quantile, so it is exact up to a factor of 2.
+	 */
+	private long quantile(int move, double q) {
+		long[] h = histogram[move];
+		long n = 0;
+		for(long c : h)
+			n += c;
+		if(n == 0)
+			return 0;
+		long rank = (long)Math.ceil(q*n), sum = 0;
+		for(int b = 0; b < BUCKETS; b++) {
+			sum += h[b];
+			if(sum >= Math.max(rank, 1))
+				return Math.min(1L << (b+1), maxNanos[move]);
+		}
+		return maxNanos[move];
+	}
+
+	private static double ratio(long a, long b) {
+		return b == 0 ? 0 : (double)a/b;
+	}
+
+	@Override
+	public String[] getMoveNames() {
+		return MOVE_NAMES.clone();
+	}
+
+	@Override
+	public long[] getCounts() {
+		return count.clone();
+	}
+
+	@Override
+	public long[] getAccepted() {
+		return accepted.clone();
+	}
+
+	@Override
+	public double[] getAcceptanceRatios() {
+		double[] r = new double[moves];
+		for(int i = 0; i < moves; i++)
+			r[i] = ratio(accepted[i], count[i]);
+		return r;
+	}
+
+	@Override
+	public long[] getTotalNanos() {
+		return totalNanos.clone();
+	}
+
+	@Override
+	public double[] getTimeShares() {
+		long total = 0;
+		for(long t : totalNanos)
+			total += t;
+		double[] r = new double[moves];
+		for(int i = 0; i < moves; i++)
+			r[i] = ratio(totalNanos[i], total);
+		return r;
+	}
+
+	@Override
+	public double[] getMeanNanos() {
+		double[] r = new double[moves];
+		for(int i = 0; i < moves; i++)
+			r[i] = ratio(totalNanos[i], count[i]);
+		return r;
+	}
+
+	@Override
+	public long[] getMedianNanos() {
+		long[] r = new long[moves];
+		for(int i = 0; i < moves; i++)
+			r[i] = quantile(i, 0.5);
+		return r;
+	}
+
+	@Override
+	public long[] getP99Nanos() {
+		long[] r = new long[moves];
+		for(int i = 0; i < moves; i++)
+			r[i] = quantile(i, 0.99);
+		return r;
+	}
+
+	@Override
+	public long[] getMaxNanos() {
+		return maxNanos.clone();
+	}
+
+	@Override
+	public long[] getAllocatedBytes() {
+		if(allocBean == null) {
+			long[] r = new long[moves];
+			Arrays.fill(r, -1);
+			return r;
+		}
+		return allocated.clone();
+	}
+
+	@Override
+	public long[] getHistogram(String move) {
+		for(int i = 0; i < moves; i++)
+			if(MOVE_NAMES[i].equalsIgnoreCase(move))
+				return histogram[i].clone();
+		throw new IllegalArgumentException("Unknown move type: "+move);
+	}
+
+	@Override
+	public void reset() {
+		count = new long[moves];
+		accepted = new long[moves];
+		totalNanos = new long[moves];
+		maxNanos = new long[moves];
+		allocated = new long[moves];
+		histogram = new long[moves][BUCKETS];
+	}
+
+	/**
+	 * Returns a copy of all the statistics, to be saved in a {@link Checkpoint}: the
+	 * counts, acceptances, total and maximum times and allocations, then the
+	 * histogram of each move type.
+	 */
+	long[][] saveState() {
+		long[][] state = new long[5+moves][];
+		state[0] = count.clone();
+		state[1] = accepted.clone();
+		state[2] = totalNanos.clone();
+		state[3] = maxNanos.clone();
+		state[4] = allocated.clone();
+		for(int i = 0; i < moves; i++)
+			state[5+i] = histogram[i].clone();
+		return state;
+	}
+
+	/**
+	 * Sets the statistics to the values returned by {@link #saveState()}, e.g. when a
+	 * run is resumed.
+	 */
+	void restoreState(long[][] state) {
+		if(state.length != 5+moves)
+			throw new IllegalArgumentException("Metrics of "+(state.length-5)+" move types, expected "+moves);
+		count = state[0].clone();
+		accepted = state[1].clone();
+		totalNanos = state[2].clone();
+		maxNanos = state[3].clone();
+		allocated = state[4].clone();
+		long[][] h = new long[moves][];
+		for(int i = 0; i < moves; i++)
+			h[i] = state[5+i].clone();
+		histogram = h;
+	}
+
+	/**
+	 * Returns the share of the move types in the time spent in moves, in the
+	 * style of <tt>Mcmc.getInfoString()</tt>.
+	 */
+	public String getTimeShareString() {
+		double[] share = getTimeShares();
+		return String.format(Locale.US, "Time: [Alignment: %.1f%%, Edge: %.1f%%, Topology: %.1f%%, Indel: %.1f%%, Substitution: %.1f%%]",
+				100*share[ALIGNMENT], 100*share[EDGE], 100*share[TOPOLOGY], 100*share[INDEL], 100*share[SUBST]);
+	}
+
+	@Override
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		double[] share = getTimeShares();
+		long[] median = getMedianNanos(), p99 = getP99Nanos(), alloc = getAllocatedBytes();
+		sb.append(String.format("%-13s %10s %7s %7s %12s %12s %12s %12s %14s\n", "Move", "count", "accept",
+				"time", "mean(ns)", "median(ns)", "p99(ns)", "max(ns)", "alloc(B/move)"));
+		for(int i = 0; i < moves; i++)
+			sb.append(String.format(Locale.US, "%-13s %10d %6.1f%% %6.1f%% %12.0f %12d %12d %12d %14.0f\n", MOVE_NAMES[i],
+					count[i], 100*ratio(accepted[i], count[i]), 100*share[i], ratio(totalNanos[i], count[i]),
+					median[i], p99[i], maxNanos[i], alloc[i] < 0 ? -1 : ratio(alloc[i], count[i])));
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return getSummary();
+	}
+
+	/**
+	 * Registers the statistics in the platform MBean server. Failures are
+	 * reported but do not stop the run.
+	 * @param rank rank of the chain, part of the MBean name
+	 */
+	public void register(int rank) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("statalign:type=McmcMetrics,chain="+rank);
+			if(server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(this, name);
+			objectName = name;
+		} catch (Exception e) {
+			System.err.println("Could not register MCMC metrics MBean: "+e);
+		}
+	}
+
+	/**
+	 * Removes the statistics from the platform MBean server if registered.
+	 */
+	public void unregister() {
+		if(objectName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (Exception e) {
+		}
+		objectName = null;
+	}
+
+	/**
+	 * Starts dumping the statistics into a file every <tt>period</tt> ms, on a
+	 * background thread. Files ending with <tt>.json</tt> are rewritten with
+	 * the current statistics at each dump, otherwise a CSV line is appended
+	 * for each move type.
+	 * @param file name of the file, it is truncated first
+	 * @param period time between dumps (ms)
+	 */
+	public void startDump(String file, long period) {
+		dumpFile = file;
+		dumpStart = System.currentTimeMillis();
+		if(!isJson()) {
+			try {
+				PrintWriter out = new PrintWriter(new FileWriter(file));
+				out.println("time_ms,move,count,accepted,total_ns,mean_ns,median_ns,p99_ns,max_ns,alloc_bytes");
+				out.close();
+			} catch (IOException e) {
+				System.err.println("Could not write MCMC metrics file "+file+": "+e.getMessage());
+				dumpFile = null;
+				return;
+			}
+		}
+		dumpTimer = new Timer("MCMC metrics dump", true);
+		dumpTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				dump();
+			}
+		}, period, period);
+	}
+
+	/**
+	 * Stops the periodic dump and writes the final statistics.
+	 */
+	public void stopDump() {
+		if(dumpTimer == null)
+			return;
+		dumpTimer.cancel();
+		dumpTimer = null;
+		dump();
+	}
+
+	private boolean isJson() {
+		return dumpFile.toLowerCase().endsWith(".json");
+	}
+
+	private synchronized void dump() {
+		if(dumpFile == null)
+			return;
+		long time = System.currentTimeMillis()-dumpStart;
+		long[] cnt = getCounts(), acc = getAccepted(), total = getTotalNanos(), max = getMaxNanos();
+		long[] median = getMedianNanos(), p99 = getP99Nanos(), alloc = getAllocatedBytes();
+		double[] mean = getMeanNanos();
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(dumpFile, !isJson()));
+			if(isJson()) {
+				out.println("{");
+				out.println("  \"time_ms\": "+time+",");
+				out.println("  \"moves\": {");
+				for(int i = 0; i < moves; i++) {
+					out.print(String.format(Locale.US, "    \"%s\": {\"count\": %d, \"accepted\": %d, \"total_ns\": %d, \"mean_ns\": %.1f, " +
+							"\"median_ns\": %d, \"p99_ns\": %d, \"max_ns\": %d, \"alloc_bytes\": %d, \"histogram\": [",
+							MOVE_NAMES[i], cnt[i], acc[i], total[i], mean[i], median[i], p99[i], max[i], alloc[i]));
+					long[] h = histogram[i];
+					for(int b = 0; b < BUCKETS; b++)
+						out.print((b > 0 ? ", " : "")+h[b]);
+					out.println("]}"+(i < moves-1 ? "," : ""));
+				}
+				out.println("  }");
+				out.println("}");
+			} else {
+				for(int i = 0; i < moves; i++)
+					out.println(String.format(Locale.US, "%d,%s,%d,%d,%d,%.1f,%d,%d,%d,%d", time, MOVE_NAMES[i],
+							cnt[i], acc[i], total[i], mean[i], median[i], p99[i], max[i], alloc[i]));
+			}
+			out.close();
+		} catch (IOException e) {
+			System.err.println("Could not write MCMC metrics file "+dumpFile+": "+e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package statalign.base;
+
+/**
+ *
+ * Management interface of {@link McmcMetrics}, the per-move statistics of an
+ * MCMC chain as seen through JMX (e.g. in JConsole or VisualVM).
+ *
+ * Array attributes are indexed as {@link #getMoveNames()}.
+ *
+ * @author miklos, novak
+ *
+ */
+public interface McmcMetricsMBean {
+
+	/** Names of the move types */
+	String[] getMoveNames();
+
+	/** Number of proposals made by each move type */
+	long[] getCounts();
+
+	/** Number of accepted proposals of each move type */
+	long[] getAccepted();
+
+	/** Acceptance ratio of each move type */
+	double[] getAcceptanceRatios();
+
+	/** Total wall-clock time spent in each move type (ns) */
+	long[] getTotalNanos();
+
+	/** Share of each move type in the total time spent in moves */
+	double[] getTimeShares();
+
+	/** Mean latency of each move type (ns) */
+	double[] getMeanNanos();
+
+	/** Median latency of each move type (ns), estimated from the histogram */
+	long[] getMedianNanos();
+
+	/** 99th percentile latency of each move type (ns), estimated from the histogram */
+	long[] getP99Nanos();
+
+	/** Longest latency of each move type (ns) */
+	long[] getMaxNanos();
+
+	/** Bytes allocated by each move type, -1 if the JVM does not support measuring it */
+	long[] getAllocatedBytes();
+
+	/**
+	 * Latency histogram of one move type: element <tt>b</tt> is the number of
+	 * proposals that took at least <tt>2^b</tt> and less than <tt>2^(b+1)</tt> ns.
+	 * @param move name of the move type
+	 */
+	long[] getHistogram(String move);
+
+	/** Human readable summary of all move types */
+	String getSummary();
+
+	/** Clears all statistics */
+	void reset();
+}
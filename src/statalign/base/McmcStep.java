@@ -25,6 +25,21 @@ public class McmcStep {
 	/** <code>true</code> if this step was accepted */
 	public boolean accepted;
 	
+	/**
+	 * Returns a copy of this step, for consumers that process it later.
+	 */
+	public McmcStep copy() {
+		McmcStep step = new McmcStep();
+		step.burnIn = burnIn;
+		step.oldLogLike = oldLogLike;
+		step.proposedLogLike = proposedLogLike;
+		step.newLogLike = newLogLike;
+		step.heat = heat;
+		step.bpp = bpp;
+		step.accepted = accepted;
+		return step;
+	}
+	
 	// TODO add step type
 	
 	// TODO add statistics (acceptance rates etc)
@@ -8,6 +8,14 @@ public class NJTree {
     private static final int GAPEXT = 2;
 
     public static String getNJTree(int[][][] seq, String[] names, SubstitutionScore ss) {
+        return buildNJTree(seq, names, ss).toString();
+    }
+
+    /**
+     * Builds the neighbour joining tree of the sequences, as {@link #getNJTree}, without
+     * converting it to Newick format.
+     */
+    public static TreeNode buildNJTree(int[][][] seq, String[] names, SubstitutionScore ss) {
         // now the pairwise distances
         int[][] dist = new int[seq.length][seq.length];
         int[][] d = null;
@@ -53,13 +61,7 @@ public class NJTree {
         // initialization
         TreeNode[] nodes = new TreeNode[2 * seq.length - 1];
 
-        double[] sumDist = new double[dist.length];
-        for (int i = 0; i < dist.length; i++) {
-            sumDist[i] = 0;
-            for (int j = 0; j < dist.length; j++) {
-                sumDist[i] += dist[i][j];
-            }
-        }
+        NeighbourJoiner nj = new NeighbourJoiner(dist, true, true);
         int[] where = new int[dist.length];
         for (int i = 0; i < where.length; i++) {
             where[i] = i;
@@ -73,19 +75,10 @@ public class NJTree {
         int vnum = seq.length;
         TreeNode newNode;
         for (int remN = dist.length; remN > 1; remN--) {
-            double minVal = Double.MAX_VALUE;
-            double val = 0.0;
-            int i = -1;
-            int j = -1;
-            for (int k = 1; k < dist.length; k++) {
-                for (int l = 0; l < k; l++) {
-                    if (where[k] > -1 && where[l] > -1 && (val = (remN - 2) * dist[k][l] - sumDist[k] - sumDist[l]) < minVal) {
-                        i = k;
-                        j = l;
-                        minVal = val;
-                    }
-                }
-            }
+            int[] pair = nj.findPair();
+            int i = pair[0];
+            int j = pair[1];
+            int dij = (int) nj.getDistance(i, j);
 
             newNode = new TreeNode(null, 0.0);
             nodes[vnum] = newNode;
@@ -94,8 +87,8 @@ public class NJTree {
 
             TreeNode left = newNode.children.get(0);
             TreeNode right = newNode.children.get(1);
-            left.edgeLength = dist[i][j] / 2 - (remN > 2 ? (sumDist[i] - sumDist[j]) / (2 * remN - 4) : 0.001);
-            right.edgeLength = dist[i][j] - left.edgeLength;
+            left.edgeLength = dij / 2 - (remN > 2 ? (nj.getSum(i) - nj.getSum(j)) / (2 * remN - 4) : 0.001);
+            right.edgeLength = dij - left.edgeLength;
 
             double length = (seq[i].length + seq[j].length) / 2;
             double scale = 0.1 / length;
@@ -105,21 +98,10 @@ public class NJTree {
             left.edgeLength = Math.max(left.edgeLength, 0.01);
             right.edgeLength = Math.max(right.edgeLength, 0.01);
 
-            where[i] = where[j] = -1;
-            sumDist[i] = 0;
-            for (int a = 0; a < dist.length; a++) {
-                if (where[a] > -1) {
-                    sumDist[a] -= dist[a][i] + dist[a][j];
-                    dist[a][i] = dist[i][a] = (dist[a][i] + dist[a][j] - dist[i][j]) / 2;
-                    sumDist[a] += dist[a][i];
-                    sumDist[i] += dist[a][i];
-                }
-            }
-
+            nj.join(i, j);
             where[i] = vnum;
             vnum++;
         }
-        TreeNode root = nodes[vnum - 1];
-        return root.toString();
+        return nodes[vnum - 1];
     }
 }
@@ -0,0 +1,376 @@
+package statalign.base;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Neighbour joining engine shared by the initial tree construction of {@link Tree},
+ * {@link NJTree} and PPfold's neighbour joining.
+ *
+ * The nodes are referred to by indices: the leaves are 0..n-1, the index of a joined
+ * node is either the larger index of the two nodes joined (as in {@link Tree}) or the
+ * next free index n, n+1, ... (as in PPfold). The pair to join is the one minimising
+ * <tt>(r-2)*d(i,j) - S(i) - S(j)</tt>, where r is the number of nodes left and S is
+ * the sum of distances to the other nodes left. Of the pairs with the same value, the
+ * one with the smallest larger index wins, and then the one with the smallest smaller
+ * index, so the tree is the same as that of the straightforward scan of the matrix.
+ *
+ * The distances are stored in a flat lower triangular array. The search is that of
+ * RapidNJ (Simonsen et al.): each row keeps its distances sorted, and a row is only
+ * scanned until the lower bound of the remaining values, computed from the largest
+ * row sum, exceeds the best value found. The rows are scanned in place, deleted nodes
+ * are skipped and cleared out from time to time.
+ *
+ * @author miklos, novak
+ *
+ */
+public class NeighbourJoiner {
+
+	private final int n;
+	private final boolean reuseIndex;
+	private final boolean integral;
+
+	/** Distances of the nodes in the slots, lower triangle row by row */
+	private final double[] dist;
+	/** Sums of distances to the other active nodes, by slot */
+	private final double[] sum;
+	/** Whether a slot holds a node that has not been joined yet */
+	private final boolean[] active;
+	/** Join step when the node in a slot has been created (0 for the leaves) */
+	private final int[] born;
+	/** Index of the node in a slot */
+	private final int[] indexOf;
+	/** Slot of the node with an index, -1 if it has already been joined */
+	private final int[] slotOf;
+
+	/** Row of each slot: distances in ascending order and the slots they belong to */
+	private final double[][] rowDist;
+	private final int[][] rowSlot;
+	/** Number of entries in each row and the first entry that may still be valid */
+	private final int[] rowLen;
+	private final int[] rowStart;
+
+	/** Number of nodes left */
+	private int remaining;
+	/** Number of joins done */
+	private int joins;
+	/** Number of nodes left when the rows were last cleared out */
+	private int lastCleanup;
+	private boolean sorted;
+
+	/**
+	 * Creates an engine for the given number of leaves. All distances are 0 until set by
+	 * {@link #setDistance(int, int, double)}.
+	 * @param n number of leaves
+	 * @param reuseIndex if true, a joined node gets the larger index of the two nodes,
+	 *  otherwise the next unused index
+	 * @param integral if true, the distances of joined nodes are rounded towards zero, as
+	 *  in integer arithmetic
+	 */
+	public NeighbourJoiner(int n, boolean reuseIndex, boolean integral) {
+		this.n = n;
+		this.reuseIndex = reuseIndex;
+		this.integral = integral;
+		dist = new double[n*(n-1)/2];
+		sum = new double[n];
+		active = new boolean[n];
+		born = new int[n];
+		indexOf = new int[n];
+		slotOf = new int[reuseIndex ? n : Math.max(2*n-1, n)];
+		Arrays.fill(slotOf, -1);
+		for(int i = 0; i < n; i++) {
+			active[i] = true;
+			indexOf[i] = slotOf[i] = i;
+		}
+		rowDist = new double[n][];
+		rowSlot = new int[n][];
+		rowLen = new int[n];
+		rowStart = new int[n];
+		remaining = lastCleanup = n;
+	}
+
+	/**
+	 * Creates an engine for the given distance matrix.
+	 * @param d symmetric distance matrix of the leaves
+	 */
+	public NeighbourJoiner(int[][] d, boolean reuseIndex, boolean integral) {
+		this(d.length, reuseIndex, integral);
+		for(int i = 1; i < n; i++)
+			for(int j = 0; j < i; j++)
+				setDistance(i, j, d[i][j]);
+	}
+
+	/**
+	 * Creates an engine for the given distance matrix.
+	 * @param d symmetric distance matrix of the leaves
+	 */
+	public NeighbourJoiner(double[][] d, boolean reuseIndex, boolean integral) {
+		this(d.length, reuseIndex, integral);
+		for(int i = 1; i < n; i++)
+			for(int j = 0; j < i; j++)
+				setDistance(i, j, d[i][j]);
+	}
+
+	private static int pos(int s, int t) {
+		return s > t ? s*(s-1)/2+t : t*(t-1)/2+s;
+	}
+
+	/**
+	 * Sets the distance of two leaves, only allowed before the first join.
+	 */
+	public void setDistance(int i, int j, double d) {
+		if(joins > 0)
+			throw new IllegalStateException("Distances cannot be set after joining");
+		if(i == j)
+			return;
+		int p = pos(i, j);
+		sum[i] += d-dist[p];
+		sum[j] += d-dist[p];
+		dist[p] = d;
+		sorted = false;
+	}
+
+	/** Returns the distance of two nodes that have not been joined yet */
+	public double getDistance(int i, int j) {
+		return i == j ? 0 : dist[pos(slotOf[i], slotOf[j])];
+	}
+
+	/** Returns the sum of distances of a node to all other nodes left */
+	public double getSum(int i) {
+		return sum[slotOf[i]];
+	}
+
+	/** Returns the number of nodes that have not been joined yet */
+	public int getRemaining() {
+		return remaining;
+	}
+
+	/** Returns the indices of the nodes that have not been joined yet, in ascending order */
+	public int[] getRemainingIndices() {
+		int[] ind = new int[remaining];
+		int k = 0;
+		for(int i = 0; i < slotOf.length; i++)
+			if(slotOf[i] >= 0)
+				ind[k++] = i;
+		return ind;
+	}
+
+	/**
+	 * Finds the pair of nodes to join next.
+	 * @return the indices of the two nodes, the larger one first
+	 */
+	public int[] findPair() {
+		if(remaining < 2)
+			throw new IllegalStateException("Less than two nodes left");
+		sortRows();
+		double maxSum = Double.NEGATIVE_INFINITY;
+		for(int s = 0; s < n; s++)
+			if(active[s] && sum[s] > maxSum)
+				maxSum = sum[s];
+		int r2 = remaining-2;
+		double best = Double.POSITIVE_INFINITY;
+		int bestHi = -1, bestLo = -1;
+
+		for(int s = 0; s < n; s++) {
+			if(!active[s])
+				continue;
+			double sumS = sum[s];
+			int keyS = indexOf[s];
+			double[] rd = rowDist[s];
+			int[] rs = rowSlot[s];
+			int len = rowLen[s];
+			for(int p = rowStart[s]; p < len; p++) {
+				int t = rs[p];
+				if(!active[t] || born[t] > born[s]) {
+					if(p == rowStart[s])
+						rowStart[s]++;
+					continue;
+				}
+				double a = r2*rd[p];
+				// lower bound of this and all later entries of the row, valid in both
+				// orders of subtraction used below
+				if(Math.min(a-sumS-maxSum, a-maxSum-sumS) > best)
+					break;
+				int keyT = indexOf[t];
+				int hi, lo;
+				double q;
+				if(keyS > keyT) {
+					hi = keyS; lo = keyT;
+					q = a-sumS-sum[t];
+				} else {
+					hi = keyT; lo = keyS;
+					q = a-sum[t]-sumS;
+				}
+				if(q < best || (q == best && (hi < bestHi || (hi == bestHi && lo < bestLo)))) {
+					best = q;
+					bestHi = hi;
+					bestLo = lo;
+				}
+			}
+		}
+		if(bestHi < 0) {
+			// all values are NaN, take the first pair as the matrix scan would
+			int[] ind = getRemainingIndices();
+			return new int[] { ind[1], ind[0] };
+		}
+		return new int[] { bestHi, bestLo };
+	}
+
+	/**
+	 * Joins two nodes: the distance of the new node to each other node k is
+	 * <tt>(d(i,k)+d(j,k)-d(i,j))/2</tt>.
+	 * @return the index of the new node
+	 */
+	public int join(int i, int j) {
+		sortRows();
+		int si = slotOf[i], sj = slotOf[j];
+		double dij = dist[pos(si, sj)];
+		active[si] = active[sj] = false;
+		slotOf[i] = slotOf[j] = -1;
+		joins++;
+		remaining--;
+
+		// the new node takes the slot of the node with the larger index
+		int s = i > j ? si : sj;
+		int index = reuseIndex ? Math.max(i, j) : n+joins-1;
+		double newSum = 0;
+		for(int a = 0; a < n; a++) {
+			if(!active[a])
+				continue;
+			double dai = dist[pos(a, si)], daj = dist[pos(a, sj)];
+			double d = (dai+daj-dij)/2;
+			if(integral)
+				d = (long)d;
+			sum[a] -= dai+daj;
+			sum[a] += d;
+			newSum += d;
+			dist[pos(a, s)] = d;
+		}
+		sum[s] = newSum;
+		active[s] = true;
+		born[s] = joins;
+		indexOf[s] = index;
+		slotOf[index] = s;
+
+		if(remaining <= lastCleanup/2) {
+			for(int a = 0; a < n; a++)
+				if(active[a] && a != s)
+					cleanRow(a);
+			lastCleanup = remaining;
+		}
+		buildRow(s);
+		return index;
+	}
+
+	private void sortRows() {
+		if(sorted)
+			return;
+		for(int s = 0; s < n; s++)
+			buildRow(s);
+		sorted = true;
+	}
+
+	/**
+	 * Fills the row of a slot with its distances to the other nodes in the row's scope
+	 * (the smaller slots for leaves, every other node for joined ones) and sorts it.
+	 */
+	private void buildRow(int s) {
+		if(!active[s]) {
+			rowDist[s] = null;
+			rowSlot[s] = null;
+			rowLen[s] = rowStart[s] = 0;
+			return;
+		}
+		int len = 0;
+		for(int t = 0; t < n; t++)
+			if(t != s && active[t] && born[t] <= born[s] && (born[t] < born[s] || t < s))
+				len++;
+		double[] rd = rowDist[s] != null && rowDist[s].length >= len ? rowDist[s] : new double[len];
+		int[] rs = rowSlot[s] != null && rowSlot[s].length >= len ? rowSlot[s] : new int[len];
+		len = 0;
+		for(int t = 0; t < n; t++) {
+			if(t != s && active[t] && born[t] <= born[s] && (born[t] < born[s] || t < s)) {
+				rd[len] = dist[pos(s, t)];
+				rs[len++] = t;
+			}
+		}
+		sort(rd, rs, 0, len-1);
+		rowDist[s] = rd;
+		rowSlot[s] = rs;
+		rowLen[s] = len;
+		rowStart[s] = 0;
+	}
+
+	/**
+	 * Removes the entries of joined nodes from a row, keeping the order.
+	 */
+	private void cleanRow(int s) {
+		double[] rd = rowDist[s];
+		int[] rs = rowSlot[s];
+		int len = 0;
+		for(int p = rowStart[s]; p < rowLen[s]; p++) {
+			int t = rs[p];
+			if(active[t] && born[t] <= born[s]) {
+				rd[len] = rd[p];
+				rs[len++] = t;
+			}
+		}
+		rowLen[s] = len;
+		rowStart[s] = 0;
+	}
+
+	/**
+	 * Sorts the distances between the given bounds (inclusive) in ascending order,
+	 * moving the slots with them.
+	 */
+	private static void sort(double[] d, int[] s, int lo, int hi) {
+		while(hi-lo > 16) {
+			int mid = (lo+hi) >>> 1;
+			if(d[mid] < d[lo])
+				swap(d, s, mid, lo);
+			if(d[hi] < d[lo])
+				swap(d, s, hi, lo);
+			if(d[hi] < d[mid])
+				swap(d, s, hi, mid);
+			double pivot = d[mid];
+			int i = lo, j = hi;
+			while(i <= j) {
+				while(d[i] < pivot)
+					i++;
+				while(d[j] > pivot)
+					j--;
+				if(i <= j)
+					swap(d, s, i++, j--);
+			}
+			// recurse into the smaller part
+			if(j-lo < hi-i) {
+				sort(d, s, lo, j);
+				lo = i;
+			} else {
+				sort(d, s, i, hi);
+				hi = j;
+			}
+		}
+		for(int i = lo+1; i <= hi; i++) {
+			double v = d[i];
+			int t = s[i];
+			int j = i-1;
+			while(j >= lo && d[j] > v) {
+				d[j+1] = d[j];
+				s[j+1] = s[j];
+				j--;
+			}
+			d[j+1] = v;
+			s[j+1] = t;
+		}
+	}
+
+	private static void swap(double[] d, int[] s, int i, int j) {
+		double v = d[i];
+		d[i] = d[j];
+		d[j] = v;
+		int t = s[i];
+		s[i] = s[j];
+		s[j] = t;
+	}
+}
@@ -0,0 +1,157 @@
+package statalign.base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import statalign.base.thread.Stoppable;
+import statalign.base.thread.StoppedException;
+
+/**
+ *
+ * Pairwise distances of the input sequences for building the initial (neighbour
+ * joining) tree: the score of the optimal affine gap alignment (Gotoh) of each
+ * pair of sequences, using the character distances of the substitution score.
+ *
+ * The sequences are encoded as arrays of character indices, the alignments are
+ * scored in linear space and the pairs are distributed among worker threads. The
+ * calculation can be stopped at any time if the object has been created from
+ * within a StoppableThread.
+ *
+ * @author miklos, novak
+ *
+ */
+public class PairwiseDistances extends Stoppable {
+
+	/** How often the calling thread checks whether it has been stopped (ms) */
+	private static final long POLL_INTERVAL = 100;
+
+	/** Number of worker threads */
+	public int threads = Runtime.getRuntime().availableProcessors();
+
+	private int[][] seqs;
+	private int[][] charDist;
+
+	/** Set when the calculation has been stopped, the workers quit */
+	private volatile boolean cancelled;
+
+	/**
+	 * @param seqs the sequences, each character as an array with nonzero elements at the
+	 *  characters it may stand for (as in {@link Vertex#seq})
+	 * @param charDist the character distances, indexed by the first possible character
+	 *  of each of the two characters
+	 */
+	public PairwiseDistances(int[][][] seqs, int[][] charDist) {
+		this.seqs = new int[seqs.length][];
+		for(int i = 0; i < seqs.length; i++)
+			this.seqs[i] = encode(seqs[i]);
+		this.charDist = charDist;
+	}
+
+	/**
+	 * Replaces each character with the index of the first character it may stand for.
+	 */
+	static int[] encode(int[][] seq) {
+		int[] enc = new int[seq.length];
+		for(int i = 0; i < seq.length; i++) {
+			int x;
+			for(x = 0; seq[i][x] == 0; x++)
+				;
+			enc[i] = x;
+		}
+		return enc;
+	}
+
+	/**
+	 * Calculates the distance of all pairs of sequences.
+	 * @return symmetric matrix of the distances
+	 * @throws StoppedException if the calculation has been stopped
+	 */
+	public int[][] calculate() throws StoppedException {
+		final int n = seqs.length;
+		final int[][] dist = new int[n][n];
+		int maxLen = 0;
+		for(int[] seq : seqs)
+			maxLen = Math.max(maxLen, seq.length);
+		final int width = maxLen+1;
+
+		cancelled = false;
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Pairwise distances");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			// one task for each sequence with all shorter indices, longest rows first
+			List<Future<?>> futures = new ArrayList<Future<?>>(n);
+			for(int k = n-1; k >= 0; k--) {
+				final int row = k;
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						int[] d = new int[width], p = new int[width];
+						for(int l = 0; l <= row && !cancelled; l++)
+							dist[row][l] = dist[l][row] = distance(seqs[row], seqs[l], charDist, d, p);
+					}
+				}));
+			}
+			for(Future<?> future : futures) {
+				while(true) {
+					stoppable();
+					try {
+						future.get(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+						break;
+					} catch (TimeoutException e) {
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new StoppedException();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			cancelled = true;
+			executor.shutdown();
+		}
+		return dist;
+	}
+
+	/**
+	 * Score of the optimal alignment of two sequences with affine gap penalties, in
+	 * linear space: only the current row of the dynamic programming matrices is kept.
+	 * @param a first sequence (character indices)
+	 * @param b second sequence (character indices)
+	 * @param charDist character distances
+	 * @param d work array of at least <tt>b.length+1</tt> elements
+	 * @param p work array of at least <tt>b.length+1</tt> elements
+	 */
+	static int distance(int[] a, int[] b, int[][] charDist, int[] d, int[] p) {
+		final int gapOpen = Tree.GAPOPEN, gapExt = Tree.GAPEXT;
+		int m = b.length;
+		d[0] = 0;
+		for(int j = 1; j <= m; j++)
+			d[j] = p[j] = gapOpen - gapExt + j * gapExt;
+		for(int i = 1; i <= a.length; i++) {
+			int[] dRow = charDist[a[i-1]];
+			int diag = d[0];
+			int q = d[0] = gapOpen - gapExt + i * gapExt;
+			for(int j = 1; j <= m; j++) {
+				int up = d[j];
+				int pj = p[j] = Math.min(up + gapOpen, p[j] + gapExt);
+				q = Math.min(d[j-1] + gapOpen, q + gapExt);
+				d[j] = Math.min(diag + dRow[b[j-1]], Math.min(pj, q));
+				diag = up;
+			}
+		}
+		return d[m];
+	}
+}
@@ -0,0 +1,175 @@
+package statalign.base;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import statalign.base.thread.Stoppable;
+import statalign.base.thread.StoppableThread;
+import statalign.base.thread.StoppedException;
+import statalign.model.subst.SubstitutionModel;
+
+/**
+ *
+ * Runs Metropolis-coupled MCMC chains as threads of this process. Each chain
+ * has its own tree, substitution model and random number generator, heats are
+ * swapped through a {@link HeatExchange}. Only the chain of rank 0 drives the
+ * postprocessing plugins apart from the samples, which are always taken from
+ * the cold chain.
+ *
+ * Must be created and run from within the <tt>StoppableThread</tt> that
+ * would otherwise run a single <tt>Mcmc</tt>, so that stopping that thread
+ * stops all the chains.
+ *
+ * @author novak
+ *
+ */
+public class ParallelTempering extends Stoppable {
+
+	/** How often the controlling thread checks for stop requests (ms). */
+	private static final long POLL_INTERVAL = 200;
+
+	private MainManager owner;
+	private String[] sequences;
+	private String[] names;
+
+	private HeatExchange exchange;
+	private ChainThread[] threads;
+	private Mcmc[] chains;
+
+	/** Released when all chains have finished building their trees. */
+	private CountDownLatch ready;
+
+	/** First error thrown by any of the chains. */
+	private volatile Exception error;
+
+	/**
+	 * Prepares a run of <tt>owner.inputData.pars.noOfChains</tt> chains.
+	 *
+	 * @param owner the MainManager holding the input data and the postprocessing
+	 * @param sequences the input sequences without gaps
+	 * @param names the names of the sequences
+	 */
+	public ParallelTempering(MainManager owner, String[] sequences, String[] names) {
+		this.owner = owner;
+		this.sequences = sequences;
+		this.names = names;
+	}
+
+	/**
+	 * Returns the heat of a chain, using the same ladder as the MPI version.
+	 *
+	 * @param rank the rank of the chain
+	 * @param noOfChains the number of chains
+	 * @return the heat, 1.0 for the chain of rank 0
+	 */
+	public static double chainHeat(int rank, int noOfChains) {
+		return 1.0d / (1.0d + ((double) rank / noOfChains));
+	}
+
+	/**
+	 * Builds the initial tree of the type given in <tt>pars</tt> and wraps it
+	 * into the corresponding MCMC strategy.
+	 */
+	public static MCMCStrategy createStrategy(MCMCPars pars, String[] sequences, String[] names,
+			SubstitutionModel model) throws StoppedException, IOException, InterruptedException {
+		switch (pars.treeType) {
+		case STEINER:
+			Tree tree = new Tree(sequences, names, model, model.attachedScoringScheme);
+			return new SteinerTreeMCMCStrategy(tree);
+
+		case SPANNOID:
+			Spannoid spannoid = new Spannoid(pars.componentSize, pars.bonphyStrategy, sequences,
+					names, model, model.attachedScoringScheme);
+			return new SpannoidMCMCStrategy(spannoid);
+
+		default:
+			throw new RuntimeException("Invalid tree topology!");
+		}
+	}
+
+	/**
+	 * Starts the chains and waits for them to finish.
+	 *
+	 * @return the error code of the chain of rank 0, see <tt>Mcmc.doMCMC</tt>
+	 * @throws StoppedException if the run was stopped before sampling started
+	 * @throws Exception the first error thrown by any of the chains
+	 */
+	public int run() throws Exception {
+		int noOfChains = owner.inputData.pars.noOfChains;
+		exchange = new HeatExchange(noOfChains);
+		threads = new ChainThread[noOfChains];
+		chains = new Mcmc[noOfChains];
+		ready = new CountDownLatch(noOfChains);
+
+		for (int i = 0; i < noOfChains; i++) {
+			threads[i] = new ChainThread(i);
+			threads[i].start();
+		}
+
+		try {
+			Thread current = Thread.currentThread();
+			for (ChainThread thread : threads) {
+				while (thread.isAlive()) {
+					synchronized (current) {
+						current.wait(POLL_INTERVAL);
+					}
+					stoppable();
+				}
+			}
+		} catch (StoppedException e) {
+			for (ChainThread thread : threads)
+				thread.stopNoWait();
+			exchange.abort();
+			for (ChainThread thread : threads)
+				thread.join();
+			if (chains[0] == null)
+				throw e;
+		}
+
+		if (error != null)
+			throw error;
+		return threads[0].errorCode;
+	}
+
+	/**
+	 * Builds the tree of one chain and runs the chain.
+	 */
+	private class ChainThread extends StoppableThread {
+		private final int rank;
+		private int errorCode = 2;
+
+		ChainThread(int rank) {
+			super();
+			this.rank = rank;
+			setName("MCMC chain " + rank);
+		}
+
+		@Override
+		public synchronized void run() {
+			try {
+				try {
+					// substitution parameters are sampled, so each chain needs its own model
+					SubstitutionModel model = owner.inputData.model;
+					if (rank > 0)
+						model = model.copy();
+					MCMCPars pars = owner.inputData.pars;
+					chains[rank] = new Mcmc(createStrategy(pars, sequences, names, model), pars,
+							owner.postProcMan, exchange, rank, chainHeat(rank, exchange.getNoOfChains()));
+				} finally {
+					ready.countDown();
+				}
+				ready.await();
+				for (Mcmc chain : chains)
+					if (chain == null)
+						return;
+				errorCode = chains[rank].doMCMC();
+			} catch (StoppedException e) {
+				exchange.abort();
+			} catch (Throwable e) {
+				if (error == null)
+					error = e instanceof Exception ? (Exception) e : new RuntimeException(e);
+				exchange.abort();
+			}
+		}
+	}
+}
@@ -10,35 +10,51 @@ import statalign.model.subst.plugins.Kimura3;
 import statalign.postprocess.plugins.TreeNode;
 import statalign.postprocess.utils.NewickParser;
 
-import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.*;
 
 public class Spannoid extends Stoppable implements ITree {
     private int n;
     private List<Tree> components = new ArrayList<Tree>();
 
-    private final String BONPHY_PATH = "/Users/kasper0406/Desktop/bonphy/bonphy.py";
-
     private SubstitutionModel substitutionModel;
 
-    // TODO: Add more options
+    /**
+     * Objectives of the construction of a spannoid from the neighbour joining tree, named
+     * after the options of the bonphy tool. Each minimises the summed cost of moving
+     * leaves onto internal nodes, see {@link SpannoidDecomposition}.
+     */
     public enum BonphyStrategy {
-        TOTAL_LENGTH("Total length", 1),
-        CONTRACTED("Contracted length", 2),
-        INTERNAL_MOVED("Internal nodes moved", 3);
+        /** Length of the moved paths, counted for each component the moved leaf joins */
+        TOTAL_LENGTH("Total length") {
+            double moveCost(double pathLength, int degree) {
+                return pathLength * (degree - 1);
+            }
+        },
+        /** Length of the paths contracted by the moves */
+        CONTRACTED("Contracted length") {
+            double moveCost(double pathLength, int degree) {
+                return pathLength;
+            }
+        },
+        /** Number of internal nodes leaves are moved onto */
+        INTERNAL_MOVED("Internal nodes moved") {
+            double moveCost(double pathLength, int degree) {
+                return 1;
+            }
+        };
 
-        private int bonphyOptimizationNumber;
         private String name;
 
-        private BonphyStrategy(String name, int bonphyOptimizationNumber) {
+        private BonphyStrategy(String name) {
             this.name = name;
-            this.bonphyOptimizationNumber = bonphyOptimizationNumber;
         }
 
-        public String getOptimizationNumber() {
-            return Integer.toString(bonphyOptimizationNumber);
-        }
+        /**
+         * Returns the cost of moving a leaf along a path onto an internal node.
+         * @param pathLength length of the path from the node to the leaf
+         * @param degree degree of the node
+         */
+        abstract double moveCost(double pathLength, int degree);
 
         public String toString() {
             return name;
@@ -57,79 +73,21 @@ public class Spannoid extends Stoppable implements ITree {
     public Spannoid(int componentSize, BonphyStrategy optimizationStrategy,
                     String[] sequences, String[] names,
                     SubstitutionModel model, SubstitutionScore ss)
-            throws StoppedException, IOException, InterruptedException {
+            throws StoppedException {
         this.substitutionModel = model;
         n = sequences.length;
         for (int i = 0; i < n; i++)
             componentConnections.put(i, new HashSet<Vertex>());
 
         int[][][] convertedSequences = convertSequences(sequences, model, ss);
-        String njTree = NJTree.getNJTree(convertedSequences, names, ss);
+        TreeNode njTree = NJTree.buildNJTree(convertedSequences, names, ss);
 
         Map<String, Integer> nameMap = new HashMap<String, Integer>();
         for (int i = 0; i < names.length; i++)
             nameMap.put(names[i], i);
 
-        Process bonphy = Runtime.getRuntime().exec(BONPHY_PATH + " -k" + componentSize
-                + " -s" + optimizationStrategy.getOptimizationNumber());
-        OutputStreamWriter output = new OutputStreamWriter(bonphy.getOutputStream());
-        output.write(njTree);
-        output.close();
-
-        bonphy.waitFor();
-        Scanner scanner = new Scanner(bonphy.getInputStream()).useDelimiter("\\n");
-        scanner.next(); // Skip first line
-        while (scanner.hasNext()) {
-            String newickComponent = scanner.next();
-            NewickParser parser = new NewickParser(newickComponent);
-            TreeNode root = parser.parse();
-            root = shrinkTree(root);
-            createComponents(root, model, nameMap, convertedSequences, sequences);
-        }
-        scanner.close();
-    }
-
-    /**
-     * Removes all Steiner nodes of degree 2 from the tree.
-     */
-    /*
-    private TreeNode shrinkTree(TreeNode node) {
-        // TODO: This seems overly complicated, since it seems only root node can have the problem.
-        //       Should be made simpler!
-        //       If it turns out we need to do it for all nodes, this should be generalized instead.
-        if (node.children.size() == 2 && node.parent == null) {
-            if (node.name != null && !node.name.isEmpty())
-                throw new RuntimeException("Invalid format of component!");
-
-            TreeNode left = shrinkTree(node.children.get(0));
-            TreeNode right = shrinkTree(node.children.get(1));
-            left.parent = null;
-            left.addChild(right);
-            right.edgeLength = left.edgeLength + right.edgeLength;
-            left.edgeLength = node.edgeLength;
-            return left;
-        }
-        for (int i = 0; i < node.children.size(); i++)
-            node.children.set(i, shrinkTree(node.children.get(i)));
-
-        return node;
-    }
-    */
-
-    private TreeNode shrinkTree(TreeNode node) {
-        if (node.children.size() == 2 && node.parent == null) {
-            if (node.name != null && !node.name.isEmpty())
-                throw new RuntimeException("Invalid format of component!");
-
-            TreeNode left = node.children.get(0);
-            TreeNode right = node.children.get(1);
-            left.parent = null;
-            left.addChild(right);
-            right.edgeLength = left.edgeLength + right.edgeLength;
-            left.edgeLength = node.edgeLength;
-            return left;
-        }
-        return node;
+        TreeNode spannoid = SpannoidDecomposition.decompose(njTree, componentSize, optimizationStrategy);
+        createComponents(spannoid, model, nameMap, convertedSequences, sequences);
     }
 
     /**
@@ -452,6 +410,13 @@ public class Spannoid extends Stoppable implements ITree {
         return heat;
     }
 
+    @Override
+    public void setHeat(double heat) {
+        this.heat = heat;
+        for (Tree component : components)
+            component.setHeat(heat);
+    }
+
     public State getState() {
         Tree firstComponent = components.iterator().next();
         final Vertex rootVertex = firstComponent.vertex.get(0);
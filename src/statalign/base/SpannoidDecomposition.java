@@ -0,0 +1,285 @@
+package statalign.base;
+
+import statalign.postprocess.plugins.TreeNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns a phylogeny into a k-spannoid: a tree in which some labeled nodes are internal,
+ * and cutting the tree at its labeled nodes leaves components of at most k labeled nodes
+ * each. The spannoid is made by moving labeled leaves onto internal nodes: the path from
+ * the node to the leaf is contracted, so the leaf's sequence becomes the ancestor shared
+ * by the components meeting at the node.
+ *
+ * The tree is rooted at a leaf and leaves are moved towards the root along edge-disjoint
+ * paths, which makes any binary tree decomposable for k &gt;= 2. The moves are chosen by
+ * dynamic programming over the tree to minimise the cost of the
+ * {@link Spannoid.BonphyStrategy} given. A leaf moved out of a component is still counted
+ * in the size of that component.
+ */
+class SpannoidDecomposition {
+
+    /**
+     * A way of decomposing the subtree below a node. Only the options that no other
+     * option beats in the number of labeled nodes left in the open component above the
+     * node, the cost and the reaches are kept.
+     */
+    private static class Option {
+        /** Number of labeled nodes in the component above the node */
+        int labeled;
+        /** Summed cost of the leaves moved in the subtree */
+        double cost;
+        /** Distance to the nearest leaf in the component above the node, infinite if none */
+        double reachOpen;
+        TreeNode nearestOpen;
+        /** Distance to the nearest leaf that can still be moved above the node, infinite if none */
+        double reachAny;
+        TreeNode nearestAny;
+        /** Options chosen for the children */
+        Option[] children;
+        /** Child whose leaf is moved onto the node, -1 if none is */
+        int supplier = -1;
+        /** Whether the moved leaf is the nearest leaf of the supplier's open component */
+        boolean supplierOpen;
+
+        Option(int labeled, double cost, Option[] children) {
+            this.labeled = labeled;
+            this.cost = cost;
+            this.children = children;
+            reachOpen = reachAny = Double.POSITIVE_INFINITY;
+        }
+
+        /**
+         * Takes the reaches of a child's option, if they are nearer.
+         */
+        void reach(Option child, double length, boolean open) {
+            if (open && child.reachOpen + length < reachOpen) {
+                reachOpen = child.reachOpen + length;
+                nearestOpen = child.nearestOpen;
+            }
+            if (child.reachAny + length < reachAny) {
+                reachAny = child.reachAny + length;
+                nearestAny = child.nearestAny;
+            }
+        }
+
+        boolean dominates(Option other) {
+            return labeled <= other.labeled && cost <= other.cost
+                    && reachOpen <= other.reachOpen && reachAny <= other.reachAny;
+        }
+    }
+
+    private final int k;
+    private final Spannoid.BonphyStrategy strategy;
+
+    private SpannoidDecomposition(int k, Spannoid.BonphyStrategy strategy) {
+        this.k = k;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Builds a k-spannoid from a phylogeny with labeled leaves and unlabeled internal nodes.
+     * The nodes of the phylogeny are reused.
+     *
+     * @param tree the phylogeny, rooted anywhere
+     * @param k the maximum number of labeled nodes in a component, at least 2
+     * @param strategy the objective that the moves of leaves minimise
+     * @return the spannoid, rooted at a leaf, with the moved leaves labeling internal nodes
+     */
+    static TreeNode decompose(TreeNode tree, int k, Spannoid.BonphyStrategy strategy) {
+        if (k < 2)
+            throw new IllegalArgumentException("Components must have at least 2 labeled nodes, got " + k);
+
+        TreeNode root = tree.rootAtLeaf();
+        suppress(root);
+        if (root.children.isEmpty())
+            return root;
+        TreeNode top = root.children.get(0);
+
+        SpannoidDecomposition decomposition = new SpannoidDecomposition(k, strategy);
+        Option best = null;
+        for (Option option : decomposition.options(top))
+            if (option.labeled + 1 <= k && (best == null || option.cost < best.cost))
+                best = option;
+        if (best == null)
+            throw new IllegalArgumentException("The tree cannot be decomposed into components of " + k + " labeled nodes");
+
+        List<TreeNode> moved = new ArrayList<TreeNode>();
+        apply(top, best, moved);
+        for (TreeNode leaf : moved)
+            remove(leaf);
+        return root;
+    }
+
+    /**
+     * Returns the options of decomposing the subtree of a node, by dynamic programming
+     * over its children.
+     */
+    private List<Option> options(TreeNode node) {
+        List<Option> result = new ArrayList<Option>();
+        if (node.isLeaf()) {
+            Option leaf = new Option(1, 0, null);
+            leaf.reachOpen = leaf.reachAny = 0;
+            leaf.nearestOpen = leaf.nearestAny = node;
+            result.add(leaf);
+            return result;
+        }
+
+        int n = node.children.size();
+        List<List<Option>> childOptions = new ArrayList<List<Option>>(n);
+        for (TreeNode child : node.children)
+            childOptions.add(options(child));
+
+        // the node is not a target: the open components of the children are joined
+        List<Option> partial = new ArrayList<Option>();
+        partial.add(new Option(0, 0, new Option[n]));
+        for (int c = 0; c < n; c++) {
+            double length = edgeLength(node.children.get(c));
+            List<Option> next = new ArrayList<Option>();
+            for (Option p : partial) {
+                for (Option o : childOptions.get(c)) {
+                    if (p.labeled + o.labeled > k)
+                        continue;
+                    Option[] chosen = p.children.clone();
+                    chosen[c] = o;
+                    Option joined = new Option(p.labeled + o.labeled, p.cost + o.cost, chosen);
+                    joined.reach(p, 0, true);
+                    joined.reach(o, length, true);
+                    addPareto(next, joined);
+                }
+            }
+            partial = next;
+        }
+        for (Option option : partial)
+            addPareto(result, option);
+
+        // the node is a target: a leaf below one child is moved onto it, the components
+        // of all children are closed, and the leaves below the other children can still
+        // be moved further up
+        for (int s = 0; s < n; s++) {
+            List<Option> others = new ArrayList<Option>();
+            others.add(new Option(1, 0, new Option[n]));
+            for (int c = 0; c < n; c++) {
+                if (c == s)
+                    continue;
+                double length = edgeLength(node.children.get(c));
+                List<Option> next = new ArrayList<Option>();
+                for (Option p : others) {
+                    for (Option o : childOptions.get(c)) {
+                        if (o.labeled + 1 > k)
+                            continue;
+                        Option[] chosen = p.children.clone();
+                        chosen[c] = o;
+                        Option closed = new Option(1, p.cost + o.cost, chosen);
+                        closed.reach(p, 0, false);
+                        closed.reach(o, length, false);
+                        addPareto(next, closed);
+                    }
+                }
+                others = next;
+            }
+
+            double length = edgeLength(node.children.get(s));
+            for (Option o : childOptions.get(s)) {
+                for (int open = 0; open < 2; open++) {
+                    // a leaf of the supplier's open component keeps its place among the
+                    // labeled nodes of the component, a leaf from further below joins it
+                    double reach = open == 1 ? o.reachOpen : o.reachAny;
+                    if (reach == Double.POSITIVE_INFINITY || (open == 0 && o.labeled + 1 > k))
+                        continue;
+                    double cost = o.cost + strategy.moveCost(reach + length, n + 1);
+                    for (Option p : others) {
+                        Option target = new Option(1, p.cost + cost, p.children.clone());
+                        target.children[s] = o;
+                        target.supplier = s;
+                        target.supplierOpen = open == 1;
+                        target.reach(p, 0, false);
+                        addPareto(result, target);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds an option to a list unless an option of the list dominates it, removing the
+     * options it dominates.
+     */
+    private static void addPareto(List<Option> options, Option option) {
+        for (Option o : options)
+            if (o.dominates(option))
+                return;
+        for (int i = options.size() - 1; i >= 0; i--)
+            if (option.dominates(options.get(i)))
+                options.remove(i);
+        options.add(option);
+    }
+
+    private static double edgeLength(TreeNode node) {
+        return Math.max(node.edgeLength, 0);
+    }
+
+    /**
+     * Labels the targets of the moves of the chosen option and collects the moved leaves.
+     */
+    private static void apply(TreeNode node, Option option, List<TreeNode> moved) {
+        if (option.children == null)
+            return;
+        if (option.supplier != -1) {
+            Option supplier = option.children[option.supplier];
+            TreeNode leaf = option.supplierOpen ? supplier.nearestOpen : supplier.nearestAny;
+            node.name = leaf.name;
+            moved.add(leaf);
+        }
+        for (int c = 0; c < option.children.length; c++)
+            apply(node.children.get(c), option.children[c], moved);
+    }
+
+    /**
+     * Removes a moved leaf, and the unlabeled nodes that are left without children.
+     */
+    private static void remove(TreeNode leaf) {
+        TreeNode node = leaf;
+        TreeNode parent = node.parent;
+        while (parent != null) {
+            parent.children.remove(node);
+            node.parent = null;
+            if (parent.name != null || !parent.children.isEmpty())
+                break;
+            node = parent;
+            parent = node.parent;
+        }
+        if (parent != null && parent.name == null && parent.children.size() == 1)
+            splice(parent);
+    }
+
+    /**
+     * Removes the unlabeled nodes with a single child from a tree rooted at a leaf.
+     */
+    private static void suppress(TreeNode node) {
+        for (int i = 0; i < node.children.size(); i++) {
+            TreeNode child = node.children.get(i);
+            while (child.name == null && child.children.size() == 1) {
+                splice(child);
+                child = node.children.get(i);
+            }
+            suppress(child);
+        }
+    }
+
+    /**
+     * Replaces a node with a single child by the child, joining the two edges.
+     */
+    private static void splice(TreeNode node) {
+        TreeNode child = node.children.get(0);
+        TreeNode parent = node.parent;
+        child.edgeLength += node.edgeLength;
+        child.parent = parent;
+        if (parent != null)
+            parent.children.set(parent.children.indexOf(node), child);
+        node.children.clear();
+        node.parent = null;
+    }
+}
@@ -24,6 +24,13 @@ import statalign.postprocess.utils.NewickParser;
  * <p>Tree node representation assumption: first {@link #nl} nodes are the leaves,
  * then come the ancestral nodes.
  * 
+ * <p>States created with a {@link NodeSource} are lazy: {@link #align}, {@link #felsen}
+ * and {@link #seq} are only filled in when first requested through {@link #getAlign()},
+ * {@link #getFelsen()} and {@link #getSeq()} (or all at once by {@link #materialize()}),
+ * so that a state whose alignment is never used does not copy all the Felsenstein
+ * likelihoods. A lazy state reads the current data of its source, so it must be
+ * materialised before the source changes.
+ * 
  * @author novak
  */
 public class State {
@@ -53,13 +60,19 @@ public class State {
 	 * Alignment: for each sequence and each character in the sequence the index of the
 	 * ancestral character that it is aligned to, or -i-1 if it is not homologous to
 	 * any character in the ancestor (gap) and the next character in the ancestor sequence
-	 * (to the right) has index i
+	 * (to the right) has index i. Not yet filled in lazy states, see {@link #getAlign()}.
 	 */
 	public int[][] align;
 	
-	/** Felsenstein likelihoods for each sequence and each character therein */
+	/**
+	 * Felsenstein likelihoods for each sequence and each character therein. Not yet
+	 * filled in lazy states, see {@link #getFelsen()}.
+	 */
 	public double[][][] felsen;
-	/** All sequences as strings, including most likely ancestral characters */
+	/**
+	 * All sequences as strings, including most likely ancestral characters. Not yet
+	 * filled in lazy states, see {@link #getSeq()}.
+	 */
 	public String[] seq;
 	/** Names of the leaf sequences */
 	public String[] name;
@@ -73,6 +86,22 @@ public class State {
 	public double logLike;
 	
 	
+	/**
+	 * Provides the per-node data of a lazy state, see {@link State#State(int, NodeSource)}.
+	 */
+	public interface NodeSource {
+		/** Returns the alignment of <tt>node</tt> to its parent, in the format of {@link State#align}. */
+		int[] getAlign(int node);
+		/** Returns the Felsenstein likelihoods of <tt>node</tt>. */
+		double[][] getFelsen(int node);
+		/** Returns the sequence of <tt>node</tt>. */
+		String getSeq(int node);
+	}
+	
+	/** Source of the fields not yet filled in, null if the state is complete */
+	private NodeSource source;
+	private boolean alignLoaded, felsenLoaded, seqLoaded;
+	
 	/** Cache to store previously calculated leaf alignment by {@link #getLeafAlign()} */
 	private String[] leafAlign;
 	/** Cache to store previously calculated full alignment by {@link #getFullAlign()} */
@@ -109,6 +138,100 @@ public class State {
             name[i] = "";
     }
 
+    /**
+     * Constructs a lazy state: {@link #align}, {@link #felsen} and {@link #seq} are
+     * filled in from <tt>source</tt> on first request. All other fields must be
+     * filled in by the caller.
+     * 
+     * @param nn  number of nodes total (including leaves)
+     * @param source  provides the per-node data
+     */
+    public State(int nn, NodeSource source) {
+        this(nn);
+        this.source = source;
+    }
+
+	/**
+	 * Returns {@link #align}, filling it in first if the state is lazy.
+	 */
+	public synchronized int[][] getAlign() {
+		if(source != null && !alignLoaded) {
+			for(int i = 0; i < nn; i++)
+				align[i] = source.getAlign(i);
+			alignLoaded = true;
+		}
+		return align;
+	}
+
+	/**
+	 * Returns {@link #felsen}, filling it in first if the state is lazy.
+	 */
+	public synchronized double[][][] getFelsen() {
+		if(source != null && !felsenLoaded) {
+			for(int i = 0; i < nn; i++)
+				felsen[i] = source.getFelsen(i);
+			felsenLoaded = true;
+		}
+		return felsen;
+	}
+
+	/**
+	 * Returns {@link #seq}, filling it in first if the state is lazy.
+	 */
+	public synchronized String[] getSeq() {
+		if(source != null && !seqLoaded) {
+			for(int i = 0; i < nn; i++)
+				seq[i] = source.getSeq(i);
+			seqLoaded = true;
+		}
+		return seq;
+	}
+
+	/**
+	 * Fills in all fields of a lazy state and detaches it from its source, after
+	 * which the source may change. Does nothing for complete states.
+	 */
+	public synchronized void materialize() {
+		if(source != null) {
+			getAlign();
+			getFelsen();
+			getSeq();
+			source = null;
+		}
+	}
+
+	/**
+	 * @return true if some fields of the state are still to be filled in from its source
+	 */
+	public synchronized boolean isLazy() {
+		return source != null;
+	}
+
+	/**
+	 * Returns a shallow copy of the state, sharing all its arrays (and its source if it
+	 * is lazy) but none of the cached alignments and Newick string, e.g. to time their
+	 * construction.
+	 */
+	synchronized State uncachedCopy() {
+		State copy = new State(nn, nl);
+		copy.root = root;
+		copy.children = children;
+		copy.parent = parent;
+		copy.edgeLen = edgeLen;
+		copy.align = align;
+		copy.felsen = felsen;
+		copy.seq = seq;
+		copy.name = name;
+		copy.indelParams = indelParams;
+		copy.substParams = substParams;
+		copy.logLike = logLike;
+		copy.source = source;
+		copy.alignLoaded = alignLoaded;
+		copy.felsenLoaded = felsenLoaded;
+		copy.seqLoaded = seqLoaded;
+		return copy;
+	}
+
     public String[] getPaddedNames() {
         String[] result = new String[name.length];
 
@@ -140,6 +263,8 @@ public class State {
 	public String[] getPairwiseAlign(int node) {
 		StringBuilder par = new StringBuilder();	// parent
 		StringBuilder des = new StringBuilder();	// descendant
+		getAlign();
+		getSeq();
 		String s = seq[node], ps = seq[parent[node]];
 		
 		int[] al = align[node];
@@ -170,7 +295,7 @@ public class State {
 	/**
 	 * Returns the multiple alignment of all leaf sequences.
 	 */
-	public String[] getLeafAlign() {
+	public synchronized String[] getLeafAlign() {
 		if(leafAlign == null) {
 			Aligner aligner = new Aligner(true);
 			leafAlign = aligner.createAlign();
@@ -184,7 +309,7 @@ public class State {
 	/**
 	 * Returns the multiple alignment of all sequences, including ancestors.
 	 */
-	public String[] getFullAlign() {
+	public synchronized String[] getFullAlign() {
 		if(fullAlign == null) {
 			Aligner aligner = new Aligner(false);
 			fullAlign = aligner.createAlign();
@@ -198,7 +323,7 @@ public class State {
 	/**
 	 * Returns the Newick string representation of the tree
 	 */
-	public String getNewickString() {
+	public synchronized String getNewickString() {
 		if(newickString == null) {
 			StringBuilder sb = new StringBuilder();
 			newick(root, sb);
@@ -249,6 +374,8 @@ public class State {
 		
 		public Aligner(boolean labeledOnly) {
 			fullAlign = !labeledOnly;
+			getAlign();
+			getSeq();
 			
 			int len = labeledOnly ? nl : nn;
 			allGap = new char[len];
@@ -60,6 +60,12 @@ public class Tree extends Stoppable implements ITree {
     /** The heat parameter for this MCMC chain. */
 	public double heat = 1.0d;
 
+    /** Reusable matrices for the alignment moves on this tree. */
+    final DPWorkspace dpWorkspace = new DPWorkspace();
+
+    /** Likelihood kernel matching the alphabet size, see {@link #felsenKernel()}. */
+    private FelsenKernel felsenKernel;
+
 	/* TODO: what the fuck? */
     // public CNetwork network;
 
@@ -326,82 +332,9 @@ public class Tree extends Stoppable implements ITree {
         hmm3 = new HmmNonParam();
 
         //reading the sequences, transforming them into integer arrays, according to the model
-        int[][][] seq = new int[sequences.length][][];
-        for (int i = 0; i < sequences.length; i++) {
-            //System.out.println(sequences[i]);
-            //System.out.println(ss.which);
-            int k = 0;
-            for (int j = 0; j < sequences[i].length(); j++) {
-                int sum = 0;
-                char ch = sequences[i].charAt(j);
-                for (int l = 0; l < ss.which[ch].length; l++) {
-                    sum += ss.which[ch][l];
-                }
-                if (sum > 0) {
-                    k++;
-                }
-            }
-            seq[i] = new int[k][model.e.length];
-            k = 0;
-            for (int j = 0; j < sequences[i].length(); j++) {
-                int sum = 0;
-                char ch = sequences[i].charAt(j);
-                for (int l = 0; l < ss.which[ch].length; l++) {
-                    sum += ss.which[ch][l];
-                }
-                if (sum > 0) {
-                    seq[i][k] = ss.which[ch];
-                    k++;
-                }
-            }
-            //			for(int j = 0; j < seq[i].length; j++){
-            //	System.out.print(seq[i][j]+"\t");
-            //}
-            //System.out.println();
-        }
+        int[][][] seq = encodeSequences(sequences, model, ss);
         // now the pairwise distances
-        int[][] dist = new int[seq.length][seq.length];
-        int[][] d = null;
-        int[][] p = null;
-        int[][] q = null;
-        int[][] charDist = ss.dist;
-        for (int k = 0; k < seq.length; k++) {
-            for (int l = 0; l <= k; l++) {
-                stoppable();
-                if (d == null || d.length < seq[k].length + 1 || d[0].length < seq[l].length + 1) {
-                    d = new int[seq[k].length + 1][seq[l].length + 1];
-                    p = new int[seq[k].length + 1][seq[l].length + 1];
-                    q = new int[seq[k].length + 1][seq[l].length + 1];
-                }
-                ////////////
-                d[0][0] = 0;
-                for (int i = 1; i <= seq[k].length; i++) {
-                    d[i][0] = q[i][0] = GAPOPEN - GAPEXT + i * GAPEXT;
-                }
-                for (int j = 1; j <= seq[l].length; j++) {
-                    d[0][j] = p[0][j] = GAPOPEN - GAPEXT + j * GAPEXT;
-                }
-                for (int i = 1; i <= seq[k].length; i++) {
-                    for (int j = 1; j <= seq[l].length; j++) {
-                        p[i][j] = Math.min(d[i - 1][j] + GAPOPEN, p[i - 1][j] + GAPEXT);
-                        q[i][j] = Math.min(d[i][j - 1] + GAPOPEN, q[i][j - 1] + GAPEXT);
-                        int x, y;
-                        for (x = 0; seq[k][i - 1][x] == 0; x++) {
-                            ;
-                        }
-                        for (y = 0; seq[l][j - 1][y] == 0; y++) {
-                            ;
-                        }
-                        d[i][j] = Math.min(d[i - 1][j - 1] + charDist[x][y],
-                                Math.min(p[i][j], q[i][j]));
-                    }
-                }
-                dist[k][l] = dist[l][k] = d[seq[k].length][seq[l].length];
-                ////////////
-                //System.out.println(k+"\t"+l+"\t"+dist[k][l]);
-            }
-
-        }
+        int[][] dist = new PairwiseDistances(seq, ss.dist).calculate();
 
         //// Neighbor Joining algorithm based on the distances calculated above
         // initialization
@@ -409,13 +342,7 @@ public class Tree extends Stoppable implements ITree {
 //                  for (int i = 0; i < vertex.length; i++) {
 //            vertex[i] = new Vertex();
 //        }
-                double[] sumDist = new double[dist.length];
-                for (int i = 0; i < dist.length; i++) {
-                    sumDist[i] = 0;
-                    for (int j = 0; j < dist.length; j++) {
-                        sumDist[i] += dist[i][j];
-                    }
-                }
+                NeighbourJoiner nj = new NeighbourJoiner(dist, true, true);
                 int[] where = new int[dist.length];
                 for (int i = 0; i < where.length; i++) {
                     where[i] = i;
@@ -429,19 +356,11 @@ public class Tree extends Stoppable implements ITree {
                 Vertex newVert;
                 for (int remN = dist.length; remN > 1; remN--) {
                     stoppable();
-                    double minVal = BIGNUM;
                     double val = 0.0;
-                    int i = -1;
-                    int j = -1;
-                    for (int k = 1; k < dist.length; k++) {
-                        for (int l = 0; l < k; l++) {
-                            if (where[k] > -1 && where[l] > -1 && (val = (remN - 2) * dist[k][l] - sumDist[k] - sumDist[l]) < minVal) {
-                                i = k;
-                                j = l;
-                                minVal = val;
-                            }
-                        }
-                    }
+                    int[] pair = nj.findPair();
+                    int i = pair[0];
+                    int j = pair[1];
+                    int dij = (int) nj.getDistance(i, j);
                     newVert = new Vertex(this, 0.0);    /* new vertex */
                     vertex.set(vnum, newVert);
                     newVert.left = vertex.get(where[i]);
@@ -449,8 +368,8 @@ public class Tree extends Stoppable implements ITree {
                     //System.out.println("Joining vertices "+where[i]+" and "+where[j]);
                     newVert.parent = null;
                     newVert.left.parent = newVert.right.parent = newVert;
-                    newVert.left.edgeLength = dist[i][j] / 2 - (remN > 2 ? (sumDist[i] - sumDist[j]) / (2 * remN - 4) : 0.001);
-                    newVert.right.edgeLength = dist[i][j] - newVert.left.edgeLength;
+                    newVert.left.edgeLength = dij / 2 - (remN > 2 ? (nj.getSum(i) - nj.getSum(j)) / (2 * remN - 4) : 0.001);
+                    newVert.right.edgeLength = dij - newVert.left.edgeLength;
 
                     val = (newVert.left.length + newVert.right.length) / 0.2;
                     newVert.left.edgeLength /= val;
@@ -531,17 +450,7 @@ public class Tree extends Stoppable implements ITree {
             //s = newVert.right.printedAlignment();
             //System.out.println(s[0]+"\n"+s[1]+"\n");
 
-            where[i] = where[j] = -1;
-            sumDist[i] = 0;
-            for (int a = 0; a < dist.length; a++) {
-                if (where[a] > -1) {
-                    sumDist[a] -= dist[a][i] + dist[a][j];
-                    dist[a][i] = dist[i][a] = (dist[a][i] + dist[a][j] - dist[i][j]) / 2;
-                    sumDist[a] += dist[a][i];
-                    sumDist[i] += dist[a][i];
-                }
-            }
-
+            nj.join(i, j);
             where[i] = vnum;
             vnum++;
         }
@@ -553,6 +462,145 @@ public class Tree extends Stoppable implements ITree {
         System.out.println(String.format("Log likelihood: %f", getLogLike()));
     }
 
+    /**
+     * This constructor rebuilds a tree from a {@link State}, e.g. one saved in a
+     * {@link Checkpoint}, without redoing the pairwise alignments and Neighbor Joining.
+     * The vertices are in the order of the nodes of the state, so the run goes on
+     * exactly as it would have gone on from the state.
+     * @param state The state, with the alignments and the sequences filled in. The leaf
+     *              sequences must be the original (ungapped) sequences.
+     * @param model The substitution model, its parameters are set from the state.
+     * @param ss    The substitution score matrix, used to encode the leaf sequences.
+     */
+    public Tree(State state, SubstitutionModel model, SubstitutionScore ss) {
+        substitutionModel = model;
+        model.setParameters(state.substParams);
+        hmm2 = new HmmTkf92(state.indelParams);
+        hmm3 = new HmmNonParam();
+
+        int nn = state.nn, nl = state.nl;
+        int[][] align = state.getAlign();
+        String[] seqs = state.getSeq();
+        int[][][] seq = encodeSequences(Arrays.copyOf(seqs, nl), model, ss);
+
+        vertex = new ArrayList<Vertex>(nn);
+        for (int i = 0; i < nn; i++) {
+            Vertex v;
+            if (i < nl) {
+                v = new Vertex(this, state.edgeLen[i], seq[i], state.name[i], seqs[i]);
+            } else {
+                v = new Vertex(this, state.edgeLen[i]);
+                v.length = align[i].length;
+                v.last = new AlignColumn(v);
+                AlignColumn next = v.last;
+                for (int j = v.length - 1; j >= 0; j--) {
+                    AlignColumn actual = new AlignColumn(v);
+                    actual.seq = new double[model.e.length];
+                    actual.next = next;
+                    next.prev = actual;
+                    next = actual;
+                }
+                v.first = next;
+            }
+            if (v.length != align[i].length) {
+                throw new IllegalArgumentException("Sequence " + i + " does not match its alignment");
+            }
+            vertex.add(v);
+        }
+        root = vertex.get(state.root);
+        for (int i = 0; i < nn; i++) {
+            Vertex v = vertex.get(i);
+            int[] ch = state.children[i];
+            if (ch.length == 2) {
+                v.left = vertex.get(ch[0]);
+                v.right = vertex.get(ch[1]);
+                v.left.parent = v.right.parent = v;
+            } else if (ch.length != 0) {
+                throw new IllegalArgumentException("Node " + i + " has " + ch.length + " children");
+            }
+        }
+
+        // alignment of each vertex to its parent
+        for (int i = 0; i < nn; i++) {
+            Vertex v = vertex.get(i);
+            if (v.parent == null) {
+                continue;
+            }
+            AlignColumn[] parentColumns = new AlignColumn[v.parent.length + 1];
+            int j = 0;
+            for (AlignColumn p = v.parent.first; p != null; p = p.next) {
+                parentColumns[j++] = p;
+            }
+            boolean isLeft = v.parent.left == v;
+            AlignColumn c = v.first;
+            for (int x = 0; x < v.length; x++, c = c.next) {
+                int a = align[i][x];
+                if (a >= 0) {
+                    c.parent = parentColumns[a];
+                    c.orphan = false;
+                    if (isLeft) {
+                        c.parent.left = c;
+                    } else {
+                        c.parent.right = c;
+                    }
+                } else {
+                    c.parent = parentColumns[-a - 1];
+                    c.orphan = true;
+                }
+            }
+            v.last.parent = v.parent.last;
+            v.last.orphan = false;
+            if (isLeft) {
+                v.parent.last.left = v.last;
+            } else {
+                v.parent.last.right = v.last;
+            }
+        }
+
+        for (Vertex v : vertex) {
+            v.edgeChangeUpdate();
+            v.fullWin();
+        }
+        root.calcFelsRecursively();
+        root.calcIndelLikeRecursively();
+    }
+
+    /**
+     * Transforms the sequences into arrays of characters, each character as an array
+     * with nonzero elements at the characters it may stand for, according to the model.
+     * Characters that stand for none of the characters of the model are left out.
+     */
+    static int[][][] encodeSequences(String[] sequences, SubstitutionModel model, SubstitutionScore ss) {
+        int[][][] seq = new int[sequences.length][][];
+        for (int i = 0; i < sequences.length; i++) {
+            int k = 0;
+            for (int j = 0; j < sequences[i].length(); j++) {
+                int sum = 0;
+                char ch = sequences[i].charAt(j);
+                for (int l = 0; l < ss.which[ch].length; l++) {
+                    sum += ss.which[ch][l];
+                }
+                if (sum > 0) {
+                    k++;
+                }
+            }
+            seq[i] = new int[k][model.e.length];
+            k = 0;
+            for (int j = 0; j < sequences[i].length(); j++) {
+                int sum = 0;
+                char ch = sequences[i].charAt(j);
+                for (int l = 0; l < ss.which[ch].length; l++) {
+                    sum += ss.which[ch][l];
+                }
+                if (sum > 0) {
+                    seq[i][k] = ss.which[ch];
+                    k++;
+                }
+            }
+        }
+        return seq;
+    }
+
     public double getLogLike() {
         return root.indelLogLike + root.orphanLogLike;
     }
@@ -578,11 +626,29 @@ public class Tree extends Stoppable implements ITree {
     /**
      * Returns a {@link State} object representing the current state. Assumes that
      * leaves come first in the {@link #vertex} array.
+     * 
+     * The state is lazy: alignments, Felsenstein likelihoods and sequences are
+     * only copied when first requested, so it must be materialised (see
+     * {@link State#materialize()}) before the tree changes if it is kept.
      */
 	public State getState() {
 		int nn = vertex.size();
 		int nl = (nn+1)/2;
-		State state = new State(nn);
+		final Vertex[] nodes = vertex.toArray(new Vertex[nn]);
+		State state = new State(nn, new State.NodeSource() {
+			@Override
+			public int[] getAlign(int node) {
+				return nodes[node].getAlign();
+			}
+			@Override
+			public double[][] getFelsen(int node) {
+				return nodes[node].getFelsen();
+			}
+			@Override
+			public String getSeq(int node) {
+				return nodes[node].sequence();
+			}
+		});
 		
 		int i;
 		HashMap<Vertex, Integer> lookup = new HashMap<Vertex, Integer>();
@@ -608,10 +674,6 @@ public class Tree extends Stoppable implements ITree {
 
 			state.parent[i] = v.parent != null ? lookup.get(v.parent) : -1;
 			state.edgeLen[i] = v.edgeLength;
-
-			state.align[i] = v.getAlign();
-			state.felsen[i] = v.getFelsen();
-			state.seq[i] = v.sequence();
 		}
 		for(i = 0; i < nl; i++)
 			state.name[i] = vertex.get(i).name;
@@ -658,11 +720,26 @@ public class Tree extends Stoppable implements ITree {
         return hmm2.params[2];
     }
 
+    /**
+     * Returns the Felsenstein likelihood kernel of this tree, chosen by the alphabet
+     * size of the substitution model on first use.
+     */
+    FelsenKernel felsenKernel() {
+        if (felsenKernel == null)
+            felsenKernel = FelsenKernel.forSize(substitutionModel.e.length);
+        return felsenKernel;
+    }
+
     @Override
     public double getHeat() {
         return heat;
     }
 
+    @Override
+    public void setHeat(double heat) {
+        this.heat = heat;
+    }
+
     /**
      * Returns with a String array containing the alignment of sequences on the tree.
      * @param type This can be
@@ -30,12 +30,47 @@ public class Utils{
 	 */
 	static final boolean DEBUG = false;// = true;
 	
+	/**
+	 * Per-thread generators behind {@link #generator}. Every MCMC chain runs in its
+	 * own thread, so chains running side by side in one JVM never share a stream.
+	 */
+	private static final ThreadLocal<Random> chainGenerator = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random(1);
+		}
+	};
+
 	/**
 	 * The random number generator used throughout the program.
-	 * A new generator is constructed at each MCMC run using the seed in the
-	 * corresponding MCMCPars object.
+	 * Calls are forwarded to the generator of the calling thread, which is
+	 * reseeded at each MCMC run using the seed in the corresponding MCMCPars
+	 * object (see {@link #seedGenerator(long)}).
+	 */
+	public static final Random generator = new ChainRandom();
+
+	/**
+	 * Replaces the generator of the calling thread with a freshly seeded one.
+	 * @param seed the seed of the new generator
+	 */
+	public static void seedGenerator(long seed) {
+		chainGenerator.set(new Random(seed));
+	}
+
+	/**
+	 * Returns the generator of the calling thread, e.g. to save its state.
+	 */
+	public static Random getGenerator() {
+		return chainGenerator.get();
+	}
+
+	/**
+	 * Replaces the generator of the calling thread, e.g. with one restored from a checkpoint.
+	 * @param random the new generator
 	 */
-	public static Random generator = new Random(1);
+	public static void setGenerator(Random random) {
+		chainGenerator.set(random);
+	}
 	/**
 	 * When a new edge length is proposed in MCMC, it is drawn uniformly from the
 	 * neighborhood of the current value. The neighborhood size has this span.
@@ -63,7 +98,16 @@ public class Utils{
 	 */
 	public static final double log0 = Double.NEGATIVE_INFINITY;
 	
-	private static double[] tempDoubleArray;
+	private static final ThreadLocal<double[]> tempDoubleArray = new ThreadLocal<double[]>();
+
+	private static double[] tempDoubleArray(int length) {
+		double[] temp = tempDoubleArray.get();
+		if(temp == null || temp.length < length){
+			temp = new double[length];
+			tempDoubleArray.set(temp);
+		}
+		return temp;
+	}
 
 	/**
 	 * This function selects a random integer such that the expected squared value will be O(length)
@@ -77,9 +121,7 @@ public class Utils{
 	 * @return A random integer as described above
 	 */
 	public static int linearizerWeight(int length, MuDouble selectLike){
-		if(tempDoubleArray == null || tempDoubleArray.length < length){
-			tempDoubleArray = new double[length];
-		}
+		double[] tempDoubleArray = tempDoubleArray(length);
 		double root = Math.sqrt(length);
 		double p = 1.0 - 1.0/root;
 		tempDoubleArray[0] = 1.0/root;
@@ -112,9 +154,7 @@ public class Utils{
 	 * @return Probability of the selection
 	 */
 	public static double linearizerWeightProb(int length, int index){
-		if(tempDoubleArray == null || tempDoubleArray.length < length){
-			tempDoubleArray = new double[length];
-		}
+		double[] tempDoubleArray = tempDoubleArray(length);
 		double root = Math.sqrt(length);
 		double p = 1.0 - 1.0/root;
 		tempDoubleArray[0] = 1.0/root;
@@ -743,6 +783,73 @@ public class Utils{
 //
 //		}
 	}
+
+	/**
+	 * Random generator that forwards every call to the generator of the calling
+	 * thread. Sequences drawn in a single thread are identical to those of a plain
+	 * <tt>Random</tt> seeded with the same value.
+	 */
+	private static class ChainRandom extends Random {
+		private static final long serialVersionUID = 1L;
+
+		private boolean constructed;
+
+		ChainRandom() {
+			constructed = true;
+		}
+
+		@Override
+		protected int next(int bits) {
+			return chainGenerator.get().nextInt() >>> (32 - bits);
+		}
+
+		@Override
+		public synchronized void setSeed(long seed) {
+			// also called by the Random constructor, which must not reseed the caller
+			if(constructed)
+				seedGenerator(seed);
+		}
+
+		@Override
+		public int nextInt() {
+			return chainGenerator.get().nextInt();
+		}
+
+		@Override
+		public int nextInt(int n) {
+			return chainGenerator.get().nextInt(n);
+		}
+
+		@Override
+		public long nextLong() {
+			return chainGenerator.get().nextLong();
+		}
+
+		@Override
+		public boolean nextBoolean() {
+			return chainGenerator.get().nextBoolean();
+		}
+
+		@Override
+		public float nextFloat() {
+			return chainGenerator.get().nextFloat();
+		}
+
+		@Override
+		public double nextDouble() {
+			return chainGenerator.get().nextDouble();
+		}
+
+		@Override
+		public double nextGaussian() {
+			return chainGenerator.get().nextGaussian();
+		}
+
+		@Override
+		public void nextBytes(byte[] bytes) {
+			chainGenerator.get().nextBytes(bytes);
+		}
+	}
 }
 
 /**
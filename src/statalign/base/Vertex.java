@@ -58,6 +58,8 @@ public class Vertex {
     /** The length of the edge that connects this vertex with its parent. */
     public double edgeLength;                            // length of edge to parent vertex
     double[][] charTransMatrix;            // precalculated character transition likelihoods (subst. model)
+    double[] charTransFlat;                // charTransMatrix flattened row by row, for FelsenKernel
+    private FelsenStore felsenStore;        // window of Felsenstein likelihoods seen from the parent, see felsenStore()
     double[][] charPropTransMatrix;        // precalculated character transition likelihoods for proposals (subst. model)
     double[][] hmm2TransMatrix;            // precalculated state transition likelihoods for 2-seq HMM (indel model)
     double[][] hmm2PropTransMatrix;        // precalculated state transition likelihoods for 2-seq HMM used for proposals (indel model)
@@ -223,6 +225,7 @@ public class Vertex {
         //	System.out.println("owner: "+owner);
         //System.out.println("");
         charTransMatrix = owner.substitutionModel.updateTransitionMatrix(charTransMatrix, edgeLength);
+        charTransFlat = FelsenKernel.flatten(charTransMatrix, charTransFlat);
         charPropTransMatrix = new double[charTransMatrix.length][];
 
 
@@ -395,9 +398,20 @@ public class Vertex {
     }
 
 
+    /**
+     * Returns the reusable store for windows of this vertex's Felsenstein likelihoods
+     * (or those of its children's columns), allocated on first use.
+     */
+    FelsenStore felsenStore() {
+        if (felsenStore == null)
+            felsenStore = new FelsenStore(owner.felsenKernel());
+        return felsenStore;
+    }
+
     /** Calculates Felsenstein likelihoods of `this' */
     void calcFelsen() {
         if (left != null && right != null) {
+            FelsenKernel kernel = owner.felsenKernel();
             AlignColumn p;
             AlignColumn l = left.first;
             AlignColumn r = right.first;
@@ -417,7 +431,7 @@ public class Vertex {
                     fel2 = r.seq;
                     r = r.next;
                 }
-                Utils.calcFelsen(p.seq, fel1, left.charTransMatrix, fel2, right.charTransMatrix);
+                kernel.calcFelsen(p.seq, fel1, left.charTransFlat, fel2, right.charTransFlat);
             }
         }
     }
@@ -465,9 +479,11 @@ public class Vertex {
         //orphan likelihoods
         orphanLogLike = 0.0;
 
+        FelsenKernel kernel = owner.felsenKernel();
+        double[] equDist = owner.substitutionModel.e;
         for (AlignColumn actual = first; actual != last; actual = actual.next) {
             if (actual.parent == null || actual.orphan) {
-                orphanLogLike += Math.log(Utils.calcEmProb(actual.seq, owner.substitutionModel.e));
+                orphanLogLike += Math.log(kernel.emProb(actual.seq, 0, equDist));
             }
         }
 
@@ -638,7 +654,7 @@ public class Vertex {
         return indelLogLikeUp;
     }
 
-    private double[][][] hmm3ProbMatrix() {
+    private double[] hmm3ProbMatrix() {
         double[] equDist = owner.substitutionModel.e;
         int hmm3Parent[] = owner.hmm3.getStateEmit()[0];
         int hmm3Left[] = owner.hmm3.getStateEmit()[1];
@@ -647,43 +663,43 @@ public class Vertex {
         final int START = owner.hmm3.getStart();
         final int END = owner.hmm3.getEnd();
 
-        double probMatrix[][][];                                                                // DP matrix used for 3-seq HMM alignment
-        probMatrix = new double[leftLen + 1][rightLen + 1][END];        // don't reserve space for end state
+        DPWorkspace dp = owner.dpWorkspace;
+        double probMatrix[] = dp.matrix(leftLen + 1, rightLen + 1, END);  // DP matrix used for 3-seq HMM alignment, no space for end state
+
+        FelsenStore l = left.felsenStore(), r = right.felsenStore();
+        l.load(left.winFirst, leftLen, left.charTransFlat, equDist);
+        r.load(right.winFirst, rightLen, right.charTransFlat, equDist);
 
-        double emissionProb, felsen[] = new double[equDist.length], tr;
-        AlignColumn l = null, r = null;
+        double emissionProb, tr;
         int i, j, k, previ, prevj, prevk;
 
         /* i: left prefix length, j: right prefix length, k: state 
-	   l: left child's actual alignment column, r: that of right child */
+	   l: left child's window columns, r: those of right child (column i-1 and j-1 are the actual ones) */
         for (i = 0; i <= leftLen; i++) {
             for (j = 0; j <= rightLen; j++) {
-                probMatrix[i][j][START] = (i == 0 && j == 0) ? 0.0 : Utils.log0;        // update matrix for start state
+                probMatrix[dp.index(i, j, START)] = (i == 0 && j == 0) ? 0.0 : Utils.log0;        // update matrix for start state
                 for (k = START + 1; k < END; k++) {
                     previ = i - hmm3Left[k];
                     prevj = j - hmm3Right[k];
                     if (previ >= 0 && prevj >= 0) {
                         if (hmm3Parent[k] != 0) {
                             // there's a parent character in alignment column, but still can be an (even double-) deletion
-                            Utils.calcFelsen(felsen, hmm3Left[k] != 0 ? l.seq : null, left.charTransMatrix, hmm3Right[k] != 0 ? r.seq : null, right.charTransMatrix);
-                            emissionProb = Utils.calcEmProb(felsen, equDist);
+                            emissionProb = FelsenStore.emProb(hmm3Left[k] != 0 ? l : null, i - 1, hmm3Right[k] != 0 ? r : null, j - 1, equDist);
                         } else {
                             // no parent, it's an insertion on either of (but never both) branches
-                            emissionProb = Utils.calcEmProb(hmm3Left[k] != 0 ? l.seq : r.seq, equDist);
+                            emissionProb = hmm3Left[k] != 0 ? l.emit[i - 1] : r.emit[j - 1];
                         }
                         if (previ == 0 && prevj == 0)
                             tr = hmm3RedTransMatrix[START][k];
                         else {
                             for (tr = Utils.log0, prevk = START + 1; prevk < END; prevk++)
-                                tr = Utils.logAdd(tr, probMatrix[previ][prevj][prevk] + hmm3RedTransMatrix[prevk][k]);
+                                tr = Utils.logAdd(tr, probMatrix[dp.index(previ, prevj, prevk)] + hmm3RedTransMatrix[prevk][k]);
                         }
-                        probMatrix[i][j][k] = Math.log(emissionProb) + tr;
+                        probMatrix[dp.index(i, j, k)] = Math.log(emissionProb) + tr;
                     } else
-                        probMatrix[i][j][k] = Utils.log0;
+                        probMatrix[dp.index(i, j, k)] = Utils.log0;
                 }
-                r = (j > 0) ? r.next : right.winFirst;
             }
-            l = (i > 0) ? l.next : left.winFirst;
         }
 
         return probMatrix;
@@ -704,7 +720,8 @@ public class Vertex {
         int k, previ, prevj, prevk;
         int pattCode;                                    // alignment column pattern's binary code
 
-        double probMatrix[][][] = hmm3ProbMatrix();
+        DPWorkspace dp = owner.dpWorkspace;
+        double probMatrix[] = hmm3ProbMatrix();
 
         /* backproposal calculation */
 
@@ -738,8 +755,8 @@ public class Vertex {
 
             double bp = Utils.log0;
             for (int bpPrevk = START; bpPrevk < END; bpPrevk++)
-                bp = Utils.logAdd(bp, probMatrix[previ][prevj][bpPrevk] + hmm3RedTransMatrix[bpPrevk][k]);
-            bp = probMatrix[previ][prevj][prevk] - bp;
+                bp = Utils.logAdd(bp, probMatrix[dp.index(previ, prevj, bpPrevk)] + hmm3RedTransMatrix[bpPrevk][k]);
+            bp = probMatrix[dp.index(previ, prevj, prevk)] - bp;
             if (silentNum == 0)            // non-reducated transition, skipping silent state
                 bp += hmm3TransMatrix[prevk][k];
             else                                        // non-reducated transitions, passing through silent state at least once
@@ -821,9 +838,10 @@ public class Vertex {
         final int SILENT = owner.hmm3.getSilent();
 
         int k, previ, prevj, prevk;
-        double probMatrix[][][] = hmm3ProbMatrix();
+        DPWorkspace dp = owner.dpWorkspace;
+        double probMatrix[] = hmm3ProbMatrix();
         MuDouble retVal = new MuDouble(0.0);
-        double prJump[] = new double[END];            // no need to have an element for end state
+        double prJump[] = dp.prJump(END);            // no need to have an element for end state
 
         /* stochastic traceback */
 
@@ -843,7 +861,7 @@ public class Vertex {
 
         for (k = END; k != START; k = prevk) {
             for (prevk = START; prevk < END; prevk++)
-                prJump[prevk] = probMatrix[previ][prevj][prevk] + hmm3RedTransMatrix[prevk][k];
+                prJump[prevk] = probMatrix[dp.index(previ, prevj, prevk)] + hmm3RedTransMatrix[prevk][k];
             prevk = Utils.logWeightedChoose(prJump, retVal);
             //	System.out.println("prevk: "+prevk);
             //if(prevk == START){
@@ -924,9 +942,10 @@ public class Vertex {
         final int SILENT = owner.hmm3.getSilent();
 
         int k, previ, prevj, prevk;
-        double probMatrix[][][] = hmm3ProbMatrix();
+        DPWorkspace dp = owner.dpWorkspace;
+        double probMatrix[] = hmm3ProbMatrix();
         MuDouble retVal = new MuDouble(0.0);
-        double prJump[] = new double[END];            // no need to have an element for end state
+        double prJump[] = dp.prJump(END);            // no need to have an element for end state
 
         /* stochastic traceback */
 
@@ -956,7 +975,7 @@ public class Vertex {
 
         for (k = END; k != START; k = prevk) {
             for (prevk = START; prevk < END; prevk++)
-                prJump[prevk] = probMatrix[previ][prevj][prevk] + hmm3RedTransMatrix[prevk][k];
+                prJump[prevk] = probMatrix[dp.index(previ, prevj, prevk)] + hmm3RedTransMatrix[prevk][k];
             prevk = Utils.logWeightedChoose(prJump, retVal);
             //	System.out.println("prevk: "+prevk);
             //if(prevk == START){
@@ -1049,7 +1068,7 @@ public class Vertex {
         return retVal.value;
     }
 
-    private double[][][] hmm2ProbMatrix() {
+    private double[] hmm2ProbMatrix() {
         double[] equDist = owner.substitutionModel.e;
         int hmm2Parent[] = owner.hmm2.getStateEmit()[0];
         int hmm2Child[] = owner.hmm2.getStateEmit()[1];
@@ -1058,43 +1077,44 @@ public class Vertex {
         final int END = owner.hmm2.getEnd();
         Vertex brother = brother();
 
-        double probMatrix[][][];                                                                    // DP matrix used for 2-seq HMM alignment
-        probMatrix = new double[parentLen + 1][childLen + 1][END];        // don't reserve space for end state
+        DPWorkspace dp = owner.dpWorkspace;
+        double probMatrix[] = dp.matrix(parentLen + 1, childLen + 1, END);  // DP matrix used for 2-seq HMM alignment, no space for end state
+
+        FelsenStore c = felsenStore();                                                // child window
+        c.load(winFirst, childLen, charTransFlat, equDist);
+        FelsenStore b = null;                                                          // brother columns of the parent window
+        if (brother != null) {
+            b = brother.felsenStore();
+            b.loadChildren(parent.winFirst, parentLen, this != parent.left, brother.charTransFlat);
+        }
 
-        double emissionProb, felsen[] = new double[equDist.length], tr;
-        AlignColumn c = null;                // child
-        AlignColumn p = null;                // parent
-        AlignColumn b;                            // brother
+        double emissionProb, tr;
         int i, j, k, previ, prevj, prevk;
 
         /* i: parent prefix length, j: child prefix length, k: state  */
         for (i = 0; i <= parentLen; i++) {
             for (j = 0; j <= childLen; j++) {
-                probMatrix[i][j][START] = (i == 0 && j == 0) ? 0.0 : Utils.log0;        // update matrix for start state
+                probMatrix[dp.index(i, j, START)] = (i == 0 && j == 0) ? 0.0 : Utils.log0;        // update matrix for start state
                 for (k = START + 1; k < END; k++) {
                     previ = i - hmm2Parent[k];
                     prevj = j - hmm2Child[k];
                     if (previ >= 0 && prevj >= 0) {
                         if (hmm2Parent[k] != 0) {                // parent present: substitution (* *) or deletion (* -)
-                            b = (this == parent.left) ? p.right : p.left;
-                            Utils.calcFelsen(felsen, hmm2Child[k] != 0 ? c.seq : null, charTransMatrix, b != null ? b.seq : null, brother.charTransMatrix);
-                            emissionProb = Utils.calcEmProb(felsen, equDist);
+                            emissionProb = FelsenStore.emProb(hmm2Child[k] != 0 ? c : null, j - 1, b != null && b.present[i - 1] ? b : null, i - 1, equDist);
                         } else {                    // insertion (- *)
-                            emissionProb = Utils.calcEmProb(c.seq, equDist);
+                            emissionProb = c.emit[j - 1];
                         }
                         if (previ == 0 && prevj == 0)
                             tr = hmm2PropTransMatrix[START][k];
                         else {
                             for (tr = Utils.log0, prevk = START + 1; prevk < END; prevk++)
-                                tr = Utils.logAdd(tr, probMatrix[previ][prevj][prevk] + hmm2PropTransMatrix[prevk][k]);
+                                tr = Utils.logAdd(tr, probMatrix[dp.index(previ, prevj, prevk)] + hmm2PropTransMatrix[prevk][k]);
                         }
-                        probMatrix[i][j][k] = Math.log(emissionProb) + tr;
+                        probMatrix[dp.index(i, j, k)] = Math.log(emissionProb) + tr;
                     } else
-                        probMatrix[i][j][k] = Utils.log0;
+                        probMatrix[dp.index(i, j, k)] = Utils.log0;
                 }
-                c = (j > 0) ? c.next : winFirst;
             }
-            p = (i > 0) ? p.next : parent.winFirst;
         }
 
         return probMatrix;
@@ -1114,7 +1134,8 @@ public class Vertex {
         int k, previ, prevj, prevk;
         int pattCode;                                    // alignment column pattern's binary code
 
-        double probMatrix[][][] = hmm2ProbMatrix();
+        DPWorkspace dp = owner.dpWorkspace;
+        double probMatrix[] = hmm2ProbMatrix();
 
         /* backproposal calculation */
 
@@ -1137,8 +1158,8 @@ public class Vertex {
 
             double bp = Utils.log0;
             for (int bpPrevk = START; bpPrevk < END; bpPrevk++)
-                bp = Utils.logAdd(bp, probMatrix[previ][prevj][bpPrevk] + hmm2PropTransMatrix[bpPrevk][k]);
-            bp = probMatrix[previ][prevj][prevk] + hmm2PropTransMatrix[prevk][k] - bp;
+                bp = Utils.logAdd(bp, probMatrix[dp.index(previ, prevj, bpPrevk)] + hmm2PropTransMatrix[bpPrevk][k]);
+            bp = probMatrix[dp.index(previ, prevj, prevk)] + hmm2PropTransMatrix[prevk][k] - bp;
 
             retVal += bp;
 
@@ -1171,9 +1192,10 @@ public class Vertex {
         //System.out.println("Aligning "+(isLeft ? "left" : "right")+" in hmm2Align");
 
         int k, previ, prevj, prevk;
-        double probMatrix[][][] = hmm2ProbMatrix();
+        DPWorkspace dp = owner.dpWorkspace;
+        double probMatrix[] = hmm2ProbMatrix();
         MuDouble retVal = new MuDouble(0.0);
-        double prJump[] = new double[END];                        // no need to have an element for end state
+        double prJump[] = dp.prJump(END);                        // no need to have an element for end state
 
         /* stochastic traceback */
 
@@ -1190,7 +1212,7 @@ public class Vertex {
 
         for (k = END; k != START; k = prevk) {
             for (prevk = START; prevk < END; prevk++)
-                prJump[prevk] = probMatrix[previ][prevj][prevk] + hmm2PropTransMatrix[prevk][k];
+                prJump[prevk] = probMatrix[dp.index(previ, prevj, prevk)] + hmm2PropTransMatrix[prevk][k];
             prevk = Utils.logWeightedChoose(prJump, retVal);
 
             if (hmm2Parent[prevk] != 0) {
@@ -1248,9 +1270,10 @@ public class Vertex {
         boolean isLeft = parent.left == this;
 
         int k, previ, prevj, prevk;
-        double probMatrix[][][] = hmm2ProbMatrix();
+        DPWorkspace dp = owner.dpWorkspace;
+        double probMatrix[] = hmm2ProbMatrix();
         MuDouble retVal = new MuDouble(0.0);
-        double prJump[] = new double[END];                        // no need to have an element for end state
+        double prJump[] = dp.prJump(END);                        // no need to have an element for end state
 
         /* stochastic traceback */
 
@@ -1272,7 +1295,7 @@ public class Vertex {
 
         for (k = END; k != START; k = prevk) {
             for (prevk = START; prevk < END; prevk++)
-                prJump[prevk] = probMatrix[previ][prevj][prevk] + hmm2PropTransMatrix[prevk][k];
+                prJump[prevk] = probMatrix[dp.index(previ, prevj, prevk)] + hmm2PropTransMatrix[prevk][k];
             prevk = Utils.logWeightedChoose(prJump, retVal);
 
             if (hmm2Parent[prevk] != 0) {
@@ -6,6 +6,9 @@ import statalign.model.score.SubstitutionScore;
 import statalign.model.subst.SubstitutionModel;
 import statalign.model.subst.plugins.Kimura3;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -37,15 +40,29 @@ public class MainThread extends StoppableThread {
 	public synchronized void run() {
 		try {
 
-			owner.postProcMan.initRun(owner.inputData);
+			MCMCPars pars = owner.inputData.pars;
+			Checkpoint checkpoint = null;
+			if(pars.resumeFile != null) {
+				checkpoint = Checkpoint.read(new File(pars.resumeFile));
+				// the resumed run goes on with the parameters it was started with
+				pars.burnIn = checkpoint.burnIn;
+				pars.cycles = checkpoint.cycles;
+				pars.sampRate = checkpoint.sampRate;
+			}
+
+			owner.postProcMan.initRun(owner.inputData, checkpoint);
 			
 			RawSequences seqs = owner.inputData.seqs;
 			
 			if(owner.frame != null) {
-				owner.frame.statusText.setText(" Generating initial tree and alignment...");
+				owner.frame.statusText.setText(checkpoint != null ? " Restoring tree and alignment..." :
+						" Generating initial tree and alignment...");
 			}
 
-			System.out.println("\nPreparing initial tree and alignment...\n");
+			if(checkpoint == null)
+				System.out.println("\nPreparing initial tree and alignment...\n");
+			else
+				System.out.println("\nResuming from checkpoint "+pars.resumeFile+" after "+checkpoint.samples+" samples...\n");
 
 			// remove gaps and whitespace
 			String[] nongapped = new String[seqs.size()];
@@ -64,27 +81,23 @@ public class MainThread extends StoppableThread {
 				nongapped[i] = builder.toString();
 			}
 
-            Mcmc mcmc;
-            switch (owner.inputData.pars.treeType) {
-                case STEINER:
-                    Tree tree = new Tree(nongapped, seqs.getSeqnames().toArray(new String[seqs.size()]),
-                            owner.inputData.model,
-                            owner.inputData.model.attachedScoringScheme);
-                    mcmc = new Mcmc(new SteinerTreeMCMCStrategy(tree), owner.inputData.pars, owner.postProcMan);
-                    break;
-
-                case SPANNOID:
-                    int componentSize = owner.inputData.pars.componentSize;
-                    Spannoid.BonphyStrategy bonphyStrategy = owner.inputData.pars.bonphyStrategy;
-                    Spannoid spannoid = new Spannoid(componentSize, bonphyStrategy, nongapped,
-                            seqs.getSeqnames().toArray(new String[seqs.size()]),
-                            owner.inputData.model, owner.inputData.model.attachedScoringScheme);
-                    mcmc = new Mcmc(new SpannoidMCMCStrategy(spannoid), owner.inputData.pars, owner.postProcMan);
-                    break;
-
-                default:
-                    throw new RuntimeException("Invalid tree topology!");
-            };
+            String[] names = seqs.getSeqnames().toArray(new String[seqs.size()]);
+            int errorCode;
+            if (checkpoint != null) {
+                if (!Arrays.equals(checkpoint.getLeafNames(), names)) {
+                    throw new IOException("Checkpoint " + pars.resumeFile + " was saved for other sequences");
+                }
+                Mcmc mcmc = new Mcmc(new SteinerTreeMCMCStrategy(new Tree(checkpoint.toState(),
+                        owner.inputData.model, owner.inputData.model.attachedScoringScheme)), pars, owner.postProcMan);
+                mcmc.resume(checkpoint);
+                errorCode = mcmc.doMCMC();
+            } else if (owner.inputData.pars.noOfChains > 1) {
+                errorCode = new ParallelTempering(owner, nongapped, names).run();
+            } else {
+                Mcmc mcmc = new Mcmc(ParallelTempering.createStrategy(owner.inputData.pars, nongapped, names,
+                        owner.inputData.model), owner.inputData.pars, owner.postProcMan);
+                errorCode = mcmc.doMCMC();
+            }
 
             /*
             String newick = "((D:0.1,(F:0.1,(E:0.2,C:0.05):0.2)B:0.1):0.2)A;";
@@ -97,7 +110,6 @@ public class MainThread extends StoppableThread {
                     owner.inputData.model, owner.inputData.model.attachedScoringScheme);
                     */
 
-			int errorCode = mcmc.doMCMC();
 
             /*
             // TODO: Remove this
@@ -8,8 +8,11 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import statalign.postprocess.utils.RNAFoldingTools;
 
@@ -67,210 +70,7 @@ public class Distance {
 	 */
 
 	public static int distance(ArrayList<String>  A, ArrayList<String>  B){
-		ArrayList<String> cloneA = new ArrayList<String>();
-		ArrayList<String> cloneB = new ArrayList<String>();
-
-		for(String i : A){
-			cloneA.add(i);
-		}
-
-		for(String i : B){
-			cloneB.add(i);
-		}
-
-		sortSeq(cloneA,cloneB);
-		String [] tempA = new String[2]; 
-		String [] tempB = new String[2];
-		int d = 0;
-		int k = A.size(); //This says how many sequences the alignments have
-		for(int i=0; i<k-1; ++i){
-			for(int j=i+1; j<k; ++j){
-				tempA[0] = A.get(i);
-				tempA[1] = A.get(j);
-				tempB[0] = B.get(i);
-				tempB[1] = B.get(j);
-				d += Distance.distanceBetweenTwoAlignments(tempA, tempB);
-			}
-		}
-
-		return d;
-	}
-
-	private static void sortSeq(ArrayList<String>  A, ArrayList<String>  B){
-
-		List< Pair < String  , Integer> > seq1 = new ArrayList< Pair < String , Integer> >();
-		List< Pair < String  , Integer> > seq2 = new ArrayList< Pair < String  , Integer> >();
-		ArrayList<String> newA = new ArrayList<String>();
-		ArrayList<String> newB = new ArrayList<String>();
-		for(int i = 0; i<A.size(); ++i){
-			seq1.add( new Pair<String,Integer >  (A.get(i).replaceAll("-",""),i));
-			seq2.add( new Pair<String,Integer >  (B.get(i).replaceAll("-",""),i));
-		}
-		Collections.sort(seq1, new PairCompare());
-		Collections.sort(seq2, new PairCompare());
-
-		for(int i = 0; i<A.size(); ++i){
-			int index1 =seq1.get(i).getRight();
-			int index2 =seq2.get(i).getRight();
-
-			newA.add(A.get(index1));
-			newB.add(B.get(index2));
-		}
-		for(int i = 0; i<A.size(); ++i){
-			A.set(i, newA.get(i));
-			B.set(i, newB.get(i));
-		}
-	}
-
-	private static int distanceBetweenTwoAlignments(String[] A, String[] B){
-		String seqA1 = A[0].replaceAll("-", "");
-		String seqA2 = A[1].replaceAll("-", "");
-
-		int homoSize = Distance.HomoUnionSize(A, B);
-		int delandInsertSize = deletionUnionAndInsertionUnionSize(A,B); 
-
-		int dist = seqA1.length() + seqA2.length() - 2 * homoSize - delandInsertSize;
-		return dist;
-
-	}
-
-	private static int HomoUnionSize(String[] A, String[] B) {
-		ArrayList<Pair<Integer,Integer>> HomoForA = new ArrayList<Pair<Integer,Integer>>();
-		int seqIndex1 = 0;
-		int seqIndex2 = 0;
-		char seq1Char;
-		char seq2Char;
-		for(int i =0; i<A[0].length(); ++i ){
-			seq1Char = A[0].charAt(i);
-			seq2Char = A[1].charAt(i);
-
-			if(seq2Char != '-' && seq1Char != '-') {
-				HomoForA.add( new Pair<Integer,Integer>(seqIndex1,seqIndex2));
-			}
-
-			if(seq1Char != '-'){
-				seqIndex1++;
-			}
-
-
-			if(seq2Char != '-'){
-				seqIndex2++;
-			}
-
-		}
-
-		ArrayList<Pair<Integer,Integer>> HomoForB = new ArrayList<Pair<Integer,Integer>>();
-		seqIndex1 = 0;
-		seqIndex2 = 0;
-		for(int i =0; i<B[0].length(); ++i ){
-			seq1Char = B[0].charAt(i);
-			seq2Char = B[1].charAt(i);
-
-			if(seq2Char != '-' && seq1Char != '-') {
-				HomoForB.add( new Pair<Integer,Integer>(seqIndex1,seqIndex2));
-			}
-
-			if(seq1Char != '-'){
-				seqIndex1++;
-			}
-
-			if(seq2Char != '-'){
-				seqIndex2++;
-			}
-		}
-
-		ArrayList<Pair<Integer,Integer>> HomoUnion = new ArrayList<Pair<Integer,Integer>>();
-		for(int j=0;j<HomoForA.size();++j)
-		{	
-			Pair<Integer,Integer> common = HomoForA.get(j);
-			if(HomoForB.contains(common)){
-				HomoUnion.add(common);
-			}
-		}
-		return HomoUnion.size();
-
-	}
-
-	private static int deletionUnionAndInsertionUnionSize(String[] A, String[] B) {
-		ArrayList<Integer> deletionForA = new ArrayList<Integer>();
-		ArrayList<Integer> insertionForA = new ArrayList<Integer>();
-		char seq1Char;
-		char seq2Char;
-		int seqIndex1 = 0;
-		int seqIndex2 = 0;
-		for(int i =0; i<A[0].length(); ++i ){
-			seq1Char = A[0].charAt(i);
-			seq2Char = A[1].charAt(i);
-
-			if(seq1Char == '-' && seq2Char == '-'){
-				continue;
-			}
-
-			if(seq1Char == '-'){
-				insertionForA.add(seqIndex2);
-			}
-			else{
-				seqIndex1++;
-			}
-
-			if(seq2Char == '-'){
-				deletionForA.add(seqIndex1-1);
-			}
-			else{
-				seqIndex2++;
-			}
-
-
-		}
-
-		seqIndex1=0;
-		seqIndex2=0;
-		ArrayList<Integer> deletionForB = new ArrayList<Integer>();
-		ArrayList<Integer> insertionForB = new ArrayList<Integer>();
-		for(int i =0; i<B[0].length(); ++i ){
-			seq1Char = B[0].charAt(i);
-			seq2Char = B[1].charAt(i);
-
-			if(seq1Char == '-' && seq2Char == '-'){
-				continue;
-			}
-
-
-			if(seq2Char == '-'){
-				deletionForB.add(seqIndex1);
-			}
-			else{
-				seqIndex2++;
-			}
-
-			if(seq1Char == '-'){
-				insertionForB.add(seqIndex2-1);
-			}
-			else{
-				seqIndex1++;
-			}
-		}
-
-
-
-		ArrayList<Integer> deletionUnion = new ArrayList<Integer>();
-		for(int j=0;j<deletionForA.size();++j)
-		{	
-			int common = deletionForA.get(j);
-			if(deletionForB.contains(common)){
-				deletionUnion.add(common);
-			}
-		}
-
-		ArrayList<Integer> insertionUnion = new ArrayList<Integer>();
-		for(int j=0;j<insertionForA.size();++j)
-		{	
-			int common = insertionForA.get(j);
-			if(insertionForB.contains(common)){
-				insertionUnion.add(common);
-			}
-		}
-		return deletionUnion.size() + insertionUnion.size();
+		return EncodedAlignment.distance(new EncodedAlignment(A), new EncodedAlignment(B));
 	}
 	
 	/**
@@ -295,11 +95,7 @@ public class Distance {
 	 * @return		Number between 0 and 1
 	 */
 	public static double AMA(ArrayList<String>  A, ArrayList<String>  B){
-		int sum = 0;
-		for(int i = 0; i<A.size(); ++i){
-			sum += A.get(i).replaceAll("-","").length();
-		}
-		return 1 - Distance.distance(A, B)/ (double)( (A.size()-1) *sum );
+		return EncodedAlignment.AMA(new EncodedAlignment(A), new EncodedAlignment(B));
 	}
 	
 	/**
@@ -351,30 +147,59 @@ public class Distance {
 	 * a much better idea how the MCMC progress behaves that is, how the space looks like
 	 * on average.
 	 * 
+	 * Each alignment is encoded once and the pairs are compared on all processors.
 	 * 
 	 * @param allAlignments	List of alignments
 	 * @return	A list of average similarity between all possible pairs of alignments
 	 */
 
 	public static ArrayList<Double> spaceAMA(ArrayList<String[]> allAlignments){
-		ArrayList<Double> sum = new ArrayList<Double>(allAlignments.size()+1);
-		//Initialising sum
-		for(int i =0; i<allAlignments.size(); ++i){
-			sum.add(0.0);
+		final int n = allAlignments.size();
+		final EncodedAlignment[] encoded = new EncodedAlignment[n];
+		for(int i = 0; i<n; ++i){
+			encoded[i] = new EncodedAlignment(allAlignments.get(i));
+		}
+
+		// rows[i][d] is the similarity of alignments i and i+d
+		final double[][] rows = new double[n][];
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(n);
+			for(int i = 0; i<n-1; ++i){
+				final int first = i;
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						double[] row = new double[n-first];
+						for(int j = first+1; j<n; ++j){
+							row[j-first] = EncodedAlignment.AMA(encoded[first], encoded[j]);
+						}
+						rows[first] = row;
+					}
+				}));
+			}
+			for(Future<?> future : futures){
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdown();
 		}
 
-		for(int i = 0; i<allAlignments.size()-1; ++i){
-			for(int j = i+1; j<allAlignments.size(); ++j){
-				String[] first = allAlignments.get(i);
-				String[] second = allAlignments.get(j);
-				sum.set(j-i, sum.get(j-i)+Distance.AMA(first, second));
+		// summed in the same order as a sequential loop over the pairs
+		double[] sum = new double[n];
+		for(int i = 0; i<n-1; ++i){
+			for(int d = 1; d<n-i; ++d){
+				sum[d] += rows[i][d];
 			}
-		} 
-
-		for(int i = 0; i<allAlignments.size(); ++i){
-			sum.set(i, sum.get(i)/(allAlignments.size() - i  ) );
 		}
-		return sum;
+		ArrayList<Double> result = new ArrayList<Double>(n+1);
+		for(int i = 0; i<n; ++i){
+			result.add(sum[i]/(n - i));
+		}
+		return result;
 	}
 }
-
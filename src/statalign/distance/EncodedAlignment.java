@@ -0,0 +1,133 @@
+package statalign.distance;
+
+import java.util.List;
+
+/**
+ *
+ * An alignment encoded for fast distance calculations: for each sequence, the column
+ * of each of its residues and the residue found in each column.
+ *
+ * Encoding takes linear time in the size of the alignment. Comparing two encoded
+ * alignments of the same sequences takes linear time for each pair of sequences
+ * and allocates nothing, so the same alignment can be compared to many others
+ * cheaply (see {@link Distance#spaceAMA(java.util.ArrayList)}).
+ *
+ * @author Ingolfur
+ *
+ */
+public class EncodedAlignment {
+
+	/** columnOf[i][x] is the column of the x-th residue of sequence i */
+	final int[][] columnOf;
+	/** residueAt[i][c] is the index of the residue of sequence i in column c, -1 for a gap */
+	final int[][] residueAt;
+	/** Total number of residues */
+	final int residues;
+
+	/**
+	 * Encodes an alignment, gaps are denoted by '-'.
+	 * @param alignment the rows of the alignment (without names)
+	 */
+	public EncodedAlignment(List<String> alignment) {
+		this(alignment.toArray(new String[alignment.size()]));
+	}
+
+	/**
+	 * Encodes an alignment, gaps are denoted by '-'.
+	 * @param alignment the rows of the alignment (without names)
+	 */
+	public EncodedAlignment(String[] alignment) {
+		int k = alignment.length;
+		columnOf = new int[k][];
+		residueAt = new int[k][];
+		int total = 0;
+		for(int i = 0; i < k; i++) {
+			String row = alignment[i];
+			int len = row.length();
+			int[] resAt = new int[len];
+			int x = 0;
+			for(int c = 0; c < len; c++) {
+				if(row.charAt(c) == '-') {
+					resAt[c] = -1;
+				} else {
+					resAt[c] = x++;
+				}
+			}
+			int[] colOf = new int[x];
+			for(int c = 0; c < len; c++) {
+				if(resAt[c] >= 0) {
+					colOf[resAt[c]] = c;
+				}
+			}
+			columnOf[i] = colOf;
+			residueAt[i] = resAt;
+			total += x;
+		}
+		residues = total;
+	}
+
+	/** Returns the number of sequences */
+	public int size() {
+		return columnOf.length;
+	}
+
+	/** Returns the total number of residues in the alignment */
+	public int getResidues() {
+		return residues;
+	}
+
+	/**
+	 * Calculates the distance of two alignments of the same sequences, as
+	 * {@link Distance#distance(java.util.ArrayList, java.util.ArrayList)}: for each pair of
+	 * sequences, the number of residues minus twice the homologies shared by the two
+	 * alignments, minus the residues aligned to a gap in both.
+	 */
+	public static int distance(EncodedAlignment a, EncodedAlignment b) {
+		int k = a.size();
+		int d = 0;
+		for(int i = 0; i < k-1; ++i) {
+			for(int j = i+1; j < k; ++j) {
+				d += pairDistance(a, b, i, j);
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * Calculates the AMA similarity of two alignments of the same sequences, as
+	 * {@link Distance#AMA(java.util.ArrayList, java.util.ArrayList)}.
+	 * @return number between 0 and 1, 1 for identical alignments
+	 */
+	public static double AMA(EncodedAlignment a, EncodedAlignment b) {
+		return 1 - distance(a, b) / (double)((a.size()-1) * a.residues);
+	}
+
+	private static int pairDistance(EncodedAlignment a, EncodedAlignment b, int i, int j) {
+		int[] colA = a.columnOf[i], colB = b.columnOf[i];
+		int[] resA = a.residueAt[j], resB = b.residueAt[j];
+		int len1 = Math.min(colA.length, colB.length);
+		int homologies = 0, gapped = 0;
+		for(int x = 0; x < len1; x++) {
+			int partnerA = resA[colA[x]];
+			if(partnerA == resB[colB[x]]) {
+				if(partnerA >= 0) {
+					homologies++;
+				} else {
+					gapped++;
+				}
+			}
+		}
+
+		colA = a.columnOf[j];
+		colB = b.columnOf[j];
+		resA = a.residueAt[i];
+		resB = b.residueAt[i];
+		int len2 = Math.min(colA.length, colB.length);
+		for(int y = 0; y < len2; y++) {
+			if(resA[colA[y]] < 0 && resB[colB[y]] < 0) {
+				gapped++;
+			}
+		}
+		return a.columnOf[i].length + a.columnOf[j].length - 2 * homologies - gapped;
+	}
+}
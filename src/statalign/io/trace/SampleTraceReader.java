@@ -0,0 +1,318 @@
+package statalign.io.trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a binary trace file written by {@link SampleTraceWriter}, either sample by sample
+ * ({@link #next()}) or in any order ({@link #read(int)}). Only the chunk of the sample
+ * requested is read and decoded, the last chunk decoded is kept.
+ *
+ * The chunks are located by the index at the end of the file. If the index is missing
+ * (the run has been stopped abruptly), the chunks are found by skipping through the file,
+ * an incomplete chunk at the end of the file is ignored.
+ *
+ * @author novak, miklos
+ *
+ */
+public class SampleTraceReader implements Closeable {
+
+	private final RandomAccessFile file;
+
+	private boolean compressed;
+	private int nn, nl, nIndel, nSubst;
+	private String[] names;
+
+	/** File offset, number of samples and first sample index of the chunks */
+	private long[] chunkOffset;
+	private int[] chunkCount;
+	private int[] chunkStart;
+	private int chunks;
+	private int samples;
+	/** End of the last chunk */
+	private long dataEnd;
+
+	/** The last chunk decoded */
+	private int cachedChunk = -1;
+	private TraceSample[] cached;
+	private final Inflater inflater = new Inflater();
+
+	/** Index of the sample returned by the next call of {@link #next()} */
+	private int position;
+
+	/**
+	 * Opens a trace file and reads its header and index.
+	 */
+	public SampleTraceReader(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		try {
+			readHeader();
+			readIndex();
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	private void readHeader() throws IOException {
+		if(file.length() < 8 || file.readInt() != SampleTraceWriter.MAGIC)
+			throw new IOException("Not a sample trace file");
+		int version = file.readInt();
+		if(version != SampleTraceWriter.VERSION)
+			throw new IOException("Unsupported sample trace version: "+version);
+		compressed = (file.readByte() & SampleTraceWriter.FLAG_COMPRESSED) != 0;
+		nn = file.readInt();
+		nl = file.readInt();
+		nIndel = file.readInt();
+		nSubst = file.readInt();
+		names = new String[nn];
+		for(int i = 0; i < nn; i++)
+			names[i] = file.readUTF();
+	}
+
+	private void readIndex() throws IOException {
+		long start = file.getFilePointer();
+		long length = file.length();
+		if(length-start >= 16) {
+			file.seek(length-12);
+			long indexOffset = file.readLong();
+			if(file.readInt() == SampleTraceWriter.END_MAGIC && indexOffset >= start && indexOffset <= length-16) {
+				file.seek(indexOffset);
+				int n = file.readInt();
+				allocate(n);
+				for(int c = 0; c < n; c++)
+					addChunk(file.readLong(), file.readInt());
+				dataEnd = indexOffset-4;
+				return;
+			}
+		}
+		// no index: skips through the chunks
+		allocate(16);
+		long offset = start;
+		while(offset+12 <= length) {
+			file.seek(offset);
+			int count = file.readInt();
+			file.readInt();
+			int storedLen = file.readInt();
+			if(count <= 0 || offset+12+storedLen > length)
+				break;
+			addChunk(offset, count);
+			offset += 12+storedLen;
+		}
+		dataEnd = offset;
+	}
+
+	private void allocate(int n) {
+		chunkOffset = new long[n];
+		chunkCount = new int[n];
+		chunkStart = new int[n];
+	}
+
+	private void addChunk(long offset, int count) {
+		if(chunks == chunkOffset.length) {
+			chunkOffset = Arrays.copyOf(chunkOffset, 2*chunks);
+			chunkCount = Arrays.copyOf(chunkCount, 2*chunks);
+			chunkStart = Arrays.copyOf(chunkStart, 2*chunks);
+		}
+		chunkOffset[chunks] = offset;
+		chunkCount[chunks] = count;
+		chunkStart[chunks] = samples;
+		chunks++;
+		samples += count;
+	}
+
+	/** Returns the number of samples in the trace */
+	public int size() {
+		return samples;
+	}
+
+	/** Returns the number of nodes (including the leaves) of the sampled trees */
+	public int getNodeCount() {
+		return nn;
+	}
+
+	/** Returns the number of leaves of the sampled trees */
+	public int getLeafCount() {
+		return nl;
+	}
+
+	/** Returns the names of the nodes */
+	public String[] getNames() {
+		return names.clone();
+	}
+
+	/** Returns whether the chunks of the trace are compressed */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/** Returns the number of indel parameters of the samples */
+	int getIndelParamCount() {
+		return nIndel;
+	}
+
+	/** Returns the number of substitution parameters of the samples */
+	int getSubstParamCount() {
+		return nSubst;
+	}
+
+	/** Returns the number of chunks */
+	int getChunkCount() {
+		return chunks;
+	}
+
+	/** Returns the file offset of a chunk */
+	long getChunkOffset(int c) {
+		return chunkOffset[c];
+	}
+
+	/** Returns the number of samples in a chunk */
+	int getChunkSamples(int c) {
+		return chunkCount[c];
+	}
+
+	/** Returns the file offset of the end of the last chunk that can be read */
+	long getDataEnd() {
+		return dataEnd;
+	}
+
+	/**
+	 * Returns the sample with the given index (0 for the first sample of the trace).
+	 */
+	public TraceSample read(int index) throws IOException {
+		if(index < 0 || index >= samples)
+			throw new IndexOutOfBoundsException("Sample "+index+" of "+samples);
+		int c = Arrays.binarySearch(chunkStart, 0, chunks, index);
+		if(c < 0)
+			c = -c-2;
+		if(c != cachedChunk) {
+			cached = readChunk(c);
+			cachedChunk = c;
+		}
+		return cached[index-chunkStart[c]];
+	}
+
+	/**
+	 * Returns whether {@link #next()} has more samples to return.
+	 */
+	public boolean hasNext() {
+		return position < samples;
+	}
+
+	/**
+	 * Returns the next sample, null if all samples have been read.
+	 */
+	public TraceSample next() throws IOException {
+		return position < samples ? read(position++) : null;
+	}
+
+	/**
+	 * Sets the index of the sample returned by the next call of {@link #next()}.
+	 */
+	public void seek(int index) {
+		if(index < 0 || index > samples)
+			throw new IndexOutOfBoundsException("Sample "+index+" of "+samples);
+		position = index;
+	}
+
+	private TraceSample[] readChunk(int c) throws IOException {
+		file.seek(chunkOffset[c]);
+		int k = file.readInt();
+		int size = file.readInt();
+		int storedLen = file.readInt();
+		byte[] data = new byte[storedLen];
+		file.readFully(data);
+		byte[] raw = data;
+		if(compressed) {
+			raw = new byte[size];
+			inflater.reset();
+			inflater.setInput(data);
+			try {
+				int len = 0;
+				while(len < size && !inflater.finished()) {
+					int n = inflater.inflate(raw, len, size-len);
+					if(n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					len += n;
+				}
+				if(len != size)
+					throw new IOException("Truncated chunk "+c);
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt chunk "+c+": "+e.getMessage());
+			}
+		}
+
+		ByteBuffer buf = ByteBuffer.wrap(raw);
+		TraceSample[] result = new TraceSample[k];
+		for(int s = 0; s < k; s++) {
+			TraceSample sample = result[s] = new TraceSample();
+			sample.nl = nl;
+			sample.name = names;
+			sample.indelParams = new double[nIndel];
+			sample.substParams = new double[nSubst];
+			sample.parent = new int[nn];
+			sample.edgeLen = new double[nn];
+		}
+		for(int s = 0; s < k; s++)
+			result[s].no = buf.getInt();
+		for(int s = 0; s < k; s++)
+			result[s].logLike = buf.getDouble();
+		for(int s = 0; s < k; s++)
+			result[s].root = buf.getInt();
+		for(int s = 0; s < k; s++)
+			for(int i = 0; i < nIndel; i++)
+				result[s].indelParams[i] = buf.getDouble();
+		for(int s = 0; s < k; s++)
+			for(int i = 0; i < nSubst; i++)
+				result[s].substParams[i] = buf.getDouble();
+		for(int s = 0; s < k; s++) {
+			buf.asIntBuffer().get(result[s].parent);
+			buf.position(buf.position()+4*nn);
+		}
+		byte[] rank = new byte[k*nn];
+		buf.get(rank);
+		for(int s = 0; s < k; s++) {
+			buf.asDoubleBuffer().get(result[s].edgeLen);
+			buf.position(buf.position()+8*nn);
+		}
+		int[] alignLen = new int[k];
+		for(int s = 0; s < k; s++)
+			alignLen[s] = buf.getInt();
+		for(int s = 0; s < k; s++) {
+			result[s].columns = new byte[alignLen[s]*nn];
+			buf.get(result[s].columns);
+			result[s].children = children(result[s].parent, rank, s*nn);
+		}
+		return result;
+	}
+
+	/**
+	 * Builds the arrays of children from the parents and the ranks of the nodes.
+	 */
+	private static int[][] children(int[] parent, byte[] rank, int base) {
+		int nn = parent.length;
+		int[] count = new int[nn];
+		for(int i = 0; i < nn; i++)
+			if(parent[i] >= 0)
+				count[parent[i]]++;
+		int[][] children = new int[nn][];
+		for(int i = 0; i < nn; i++)
+			children[i] = new int[count[i]];
+		for(int i = 0; i < nn; i++)
+			if(parent[i] >= 0)
+				children[parent[i]][rank[base+i] & 0xff] = i;
+		return children;
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		file.close();
+	}
+}
@@ -0,0 +1,328 @@
+package statalign.io.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+import statalign.base.State;
+
+/**
+ * Writes the MCMC samples into a binary trace file, as an alternative to the text lines
+ * of the log file. The file can be read back by {@link SampleTraceReader} and converted
+ * to the text format of the log file by {@link TraceConverter}.
+ *
+ * The file starts with a header: magic number, version, flags (bit 0 set if the chunks
+ * are compressed), the number of nodes and leaves, the number of indel and substitution
+ * parameters and the names of the nodes. The samples follow in chunks, each chunk is
+ * framed by the number of samples, the length of its payload and the number of bytes
+ * stored (the length of the payload if it is not compressed). The payload is columnar,
+ * all numbers are big-endian:
+ * <ul>
+ * <li>the sample numbers (int), log-likelihoods (double) and root nodes (int),
+ * <li>the indel and the substitution parameters of the samples (double),
+ * <li>the parent of each node (int, -1 for the root), its rank among the children of
+ * its parent (byte) and the length of the edge above it (double), sample by sample,
+ * <li>the length of the alignment of each sample (int) and the alignments, each one
+ * column by column, one byte for each character of the column.
+ * </ul>
+ * A chunk of 0 samples marks the end of the samples, it is followed by the index of
+ * the chunks (number of chunks, then the offset and the number of samples of each chunk),
+ * the offset of the index and the end magic number. A trace whose run has been stopped
+ * abruptly has no index, but all the chunks flushed so far can be read. Such a trace
+ * can also be reopened to add more samples, e.g. when a run is resumed from a checkpoint.
+ *
+ * @author novak, miklos
+ *
+ */
+public class SampleTraceWriter implements Closeable {
+
+	static final int MAGIC = 0x53415452;
+	static final int END_MAGIC = 0x53415445;
+	static final int VERSION = 1;
+	static final int FLAG_COMPRESSED = 1;
+
+	/** Default number of samples in a chunk */
+	public static final int DEFAULT_CHUNK_SIZE = 64;
+
+	private DataOutputStream out;
+	/** Number of bytes written so far */
+	private long offset;
+	private final boolean compress;
+	private final int chunkSize;
+	private final Deflater deflater;
+
+	private boolean headerWritten;
+	private int nn, nIndel, nSubst;
+
+	/** Columns of the samples in the current chunk */
+	private int count;
+	private int[] no, root, parent, alignLen;
+	private double[] logLike, indelParams, substParams, edgeLen;
+	private byte[] rank;
+	private byte[][] columns;
+
+	private byte[] stored = new byte[0];
+	/** Index entries of the chunks written so far */
+	private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+	private final DataOutputStream indexOut = new DataOutputStream(index);
+	private int chunks;
+
+	/**
+	 * Creates a trace file with the default chunk size.
+	 * @param file the file to (over)write
+	 * @param compress whether to compress the chunks
+	 */
+	public SampleTraceWriter(File file, boolean compress) throws IOException {
+		this(file, compress, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Creates a trace file.
+	 * @param file the file to (over)write
+	 * @param compress whether to compress the chunks
+	 * @param chunkSize number of samples in a chunk
+	 */
+	public SampleTraceWriter(File file, boolean compress, int chunkSize) throws IOException {
+		if(chunkSize < 1)
+			throw new IllegalArgumentException("Chunk size must be positive: "+chunkSize);
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		this.compress = compress;
+		this.chunkSize = chunkSize;
+		deflater = compress ? new Deflater() : null;
+	}
+
+	/**
+	 * Reopens a trace file to add more samples, with the default chunk size. The file is
+	 * cut back to the given length first, which must be the end of a chunk, e.g. the length
+	 * of the file after {@link #flush()}. The compression of the file is kept.
+	 * @param file the file to append to
+	 * @param length the length of the file to keep
+	 */
+	public SampleTraceWriter(File file, long length) throws IOException {
+		if(!file.isFile() || file.length() < length)
+			throw new IOException("Trace file "+file+" is shorter than "+length+" bytes");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+		SampleTraceReader reader = new SampleTraceReader(file);
+		try {
+			if(reader.getDataEnd() != length)
+				throw new IOException("Trace file "+file+" does not end with a chunk at "+length);
+			compress = reader.isCompressed();
+			nn = reader.getNodeCount();
+			nIndel = reader.getIndelParamCount();
+			nSubst = reader.getSubstParamCount();
+			for(int c = 0; c < reader.getChunkCount(); c++) {
+				indexOut.writeLong(reader.getChunkOffset(c));
+				indexOut.writeInt(reader.getChunkSamples(c));
+				chunks++;
+			}
+		} finally {
+			reader.close();
+		}
+		chunkSize = DEFAULT_CHUNK_SIZE;
+		deflater = compress ? new Deflater() : null;
+		allocate();
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16));
+		offset = length;
+		headerWritten = true;
+	}
+
+	private void allocate() {
+		no = new int[chunkSize];
+		root = new int[chunkSize];
+		alignLen = new int[chunkSize];
+		logLike = new double[chunkSize];
+		columns = new byte[chunkSize][];
+		parent = new int[chunkSize*nn];
+		rank = new byte[chunkSize*nn];
+		edgeLen = new double[chunkSize*nn];
+		indelParams = new double[chunkSize*nIndel];
+		substParams = new double[chunkSize*nSubst];
+	}
+
+	private void writeHeader(State state) throws IOException {
+		nn = state == null ? 0 : state.nn;
+		nIndel = state == null || state.indelParams == null ? 0 : state.indelParams.length;
+		nSubst = state == null || state.substParams == null ? 0 : state.substParams.length;
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeByte(compress ? FLAG_COMPRESSED : 0);
+		out.writeInt(nn);
+		out.writeInt(state == null ? 0 : state.nl);
+		out.writeInt(nIndel);
+		out.writeInt(nSubst);
+		for(int i = 0; i < nn; i++)
+			out.writeUTF(state.name[i] == null ? "" : state.name[i]);
+		offset = out.size();
+		allocate();
+		headerWritten = true;
+	}
+
+	/**
+	 * Adds a sample to the trace, the sample is written into the file when its chunk is full.
+	 * The first sample determines the number of nodes and parameters of the trace.
+	 * @param state the sampled state
+	 * @param sampleNo the number of the sample
+	 */
+	public void add(State state, int sampleNo) throws IOException {
+		if(out == null)
+			throw new IllegalStateException("Trace has already been closed");
+		if(!headerWritten)
+			writeHeader(state);
+		if(state.nn != nn || length(state.indelParams) != nIndel || length(state.substParams) != nSubst)
+			throw new IllegalArgumentException("Sample does not match the first sample of the trace");
+
+		int k = count;
+		no[k] = sampleNo;
+		logLike[k] = state.logLike;
+		root[k] = state.root;
+		if(nIndel > 0)
+			System.arraycopy(state.indelParams, 0, indelParams, k*nIndel, nIndel);
+		if(nSubst > 0)
+			System.arraycopy(state.substParams, 0, substParams, k*nSubst, nSubst);
+		int base = k*nn;
+		for(int i = 0; i < nn; i++)
+			parent[base+i] = -1;
+		for(int i = 0; i < nn; i++) {
+			int[] ch = state.children[i];
+			if(ch.length > 256)
+				throw new IllegalArgumentException("Too many children of node "+i);
+			for(int j = 0; j < ch.length; j++) {
+				parent[base+ch[j]] = i;
+				rank[base+ch[j]] = (byte)j;
+			}
+		}
+		System.arraycopy(state.edgeLen, 0, edgeLen, base, nn);
+
+		String[] rows = state.getFullAlign();
+		if(rows.length != nn)
+			throw new IllegalArgumentException("Alignment has "+rows.length+" rows instead of "+nn);
+		int len = nn == 0 ? 0 : rows[0].length();
+		byte[] col = new byte[len*nn];
+		for(int i = 0; i < nn; i++) {
+			String row = rows[i];
+			for(int c = 0; c < len; c++)
+				col[c*nn+i] = (byte)row.charAt(c);
+		}
+		alignLen[k] = len;
+		columns[k] = col;
+
+		if(++count == chunkSize)
+			writeChunk();
+	}
+
+	private static int length(double[] params) {
+		return params == null ? 0 : params.length;
+	}
+
+	/**
+	 * Writes the samples of the current chunk into the file.
+	 */
+	private void writeChunk() throws IOException {
+		if(count == 0)
+			return;
+		int k = count;
+		int size = k*(4+8+4+4) + 8*k*(nIndel+nSubst) + k*nn*(4+1+8);
+		for(int s = 0; s < k; s++)
+			size += columns[s].length;
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.asIntBuffer().put(no, 0, k);
+		buf.position(buf.position()+4*k);
+		buf.asDoubleBuffer().put(logLike, 0, k);
+		buf.position(buf.position()+8*k);
+		buf.asIntBuffer().put(root, 0, k);
+		buf.position(buf.position()+4*k);
+		buf.asDoubleBuffer().put(indelParams, 0, k*nIndel);
+		buf.position(buf.position()+8*k*nIndel);
+		buf.asDoubleBuffer().put(substParams, 0, k*nSubst);
+		buf.position(buf.position()+8*k*nSubst);
+		buf.asIntBuffer().put(parent, 0, k*nn);
+		buf.position(buf.position()+4*k*nn);
+		buf.put(rank, 0, k*nn);
+		buf.asDoubleBuffer().put(edgeLen, 0, k*nn);
+		buf.position(buf.position()+8*k*nn);
+		buf.asIntBuffer().put(alignLen, 0, k);
+		buf.position(buf.position()+4*k);
+		for(int s = 0; s < k; s++) {
+			buf.put(columns[s]);
+			columns[s] = null;
+		}
+		byte[] raw = buf.array();
+
+		byte[] data = raw;
+		int storedLen = size;
+		if(compress) {
+			deflater.reset();
+			deflater.setInput(raw);
+			deflater.finish();
+			if(stored.length < size/2+64)
+				stored = new byte[size/2+64];
+			storedLen = 0;
+			while(!deflater.finished()) {
+				if(storedLen == stored.length) {
+					byte[] larger = new byte[2*stored.length];
+					System.arraycopy(stored, 0, larger, 0, storedLen);
+					stored = larger;
+				}
+				storedLen += deflater.deflate(stored, storedLen, stored.length-storedLen);
+			}
+			data = stored;
+		}
+
+		indexOut.writeLong(offset);
+		indexOut.writeInt(k);
+		chunks++;
+		out.writeInt(k);
+		out.writeInt(size);
+		out.writeInt(storedLen);
+		out.write(data, 0, storedLen);
+		out.flush();
+		offset += 12+storedLen;
+		count = 0;
+	}
+
+	/**
+	 * Writes the pending samples into the file, so that they can be read even if the run
+	 * is stopped abruptly.
+	 */
+	public void flush() throws IOException {
+		if(out != null && headerWritten)
+			writeChunk();
+	}
+
+	/**
+	 * Writes the pending samples and the index of the chunks, and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(out == null)
+			return;
+		try {
+			if(!headerWritten)
+				writeHeader(null);
+			writeChunk();
+			out.writeInt(0);
+			offset += 4;
+			out.writeInt(chunks);
+			index.writeTo(out);
+			out.writeLong(offset);
+			out.writeInt(END_MAGIC);
+		} finally {
+			out.close();
+			out = null;
+			if(deflater != null)
+				deflater.end();
+		}
+	}
+}
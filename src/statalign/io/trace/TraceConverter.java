@@ -0,0 +1,70 @@
+package statalign.io.trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import statalign.base.State;
+
+/**
+ * Converts a binary trace file written by {@link SampleTraceWriter} into the text lines
+ * the sampling plugins write into the log file: the current alignment (in StatAlign
+ * format), the log-likelihood and the tree of each sample.
+ *
+ * Usage: <tt>java statalign.io.trace.TraceConverter TRACEFILE [OUTFILE]</tt>, the lines
+ * are written to the standard output if no output file is given.
+ *
+ * @author novak, miklos
+ *
+ */
+public class TraceConverter {
+
+	/**
+	 * Writes the text lines of all samples of a trace.
+	 */
+	public static void convert(SampleTraceReader reader, Writer out) throws IOException {
+		String[] paddedNames = null;
+		reader.seek(0);
+		TraceSample sample;
+		while((sample = reader.next()) != null) {
+			State state = sample.toState();
+			if(paddedNames == null)
+				paddedNames = state.getPaddedNames();
+			String prefix = "Sample "+sample.no;
+			String[] rows = sample.getFullAlign();
+			for(int i = 0; i < rows.length; i++)
+				out.write(prefix+"\tAlignment:\t"+paddedNames[i]+'\t'+rows[i]+"\n");
+			out.write(prefix+"\tLoglikelihood:\t"+sample.logLike+"\n");
+			out.write(prefix+"\tTree:\t"+state.getNewickString()+"\n");
+		}
+		out.flush();
+	}
+
+	public static void main(String[] args) {
+		if(args.length < 1 || args.length > 2) {
+			System.out.println("Usage: java statalign.io.trace.TraceConverter TRACEFILE [OUTFILE]");
+			System.exit(1);
+		}
+		try {
+			SampleTraceReader reader = new SampleTraceReader(new File(args[0]));
+			try {
+				Writer out = new BufferedWriter(args.length == 2 ? new FileWriter(args[1]) :
+						new OutputStreamWriter(System.out));
+				try {
+					convert(reader, out);
+				} finally {
+					if(args.length == 2)
+						out.close();
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Error converting "+args[0]+": "+e.getMessage());
+			System.exit(2);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package statalign.io.trace;
+
+import statalign.base.State;
+
+/**
+ * A sample read from a binary trace file by {@link SampleTraceReader}: the tree, the
+ * parameters, the log-likelihood and the alignment of all nodes of a sampled state.
+ *
+ * @author novak, miklos
+ *
+ */
+public class TraceSample {
+
+	/** Number of the sample */
+	public int no;
+	/** Log-likelihood of the state */
+	public double logLike;
+	/** Indel and substitution parameters */
+	public double[] indelParams, substParams;
+
+	/** Root node */
+	public int root;
+	/** Parent of each node, -1 for the root */
+	public int[] parent;
+	/** Children of each node, in the order of the sampled state */
+	public int[][] children;
+	/** Length of the edge above each node */
+	public double[] edgeLen;
+	/** Names of the nodes */
+	public String[] name;
+
+	/** Number of leaves */
+	int nl;
+	/** Alignment of all nodes, column by column */
+	byte[] columns;
+
+	/**
+	 * Returns the number of columns of the alignment.
+	 */
+	public int getAlignmentLength() {
+		return parent.length == 0 ? 0 : columns.length / parent.length;
+	}
+
+	/**
+	 * Returns the character of a node in a column of the alignment, '-' for gaps.
+	 */
+	public char getChar(int node, int column) {
+		return (char)(columns[column*parent.length+node] & 0xff);
+	}
+
+	/**
+	 * Returns the multiple alignment of all sequences, including ancestors, as
+	 * {@link State#getFullAlign()}.
+	 */
+	public String[] getFullAlign() {
+		int nn = parent.length;
+		int len = getAlignmentLength();
+		String[] rows = new String[nn];
+		char[] row = new char[len];
+		for(int i = 0; i < nn; i++) {
+			for(int c = 0; c < len; c++)
+				row[c] = (char)(columns[c*nn+i] & 0xff);
+			rows[i] = new String(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Returns a complete {@link State} of the sample: the tree, the parameters, the
+	 * log-likelihood, and the alignments and sequences rebuilt from the alignment of all
+	 * nodes. The Felsenstein likelihoods are not stored in the trace, they are not filled in.
+	 */
+	public State toState() {
+		int nn = parent.length;
+		int len = getAlignmentLength();
+		State state = new State(nn, nl);
+		state.root = root;
+		for(int i = 0; i < nn; i++) {
+			state.children[i] = children[i].clone();
+			state.parent[i] = parent[i];
+			state.name[i] = name[i];
+		}
+		System.arraycopy(edgeLen, 0, state.edgeLen, 0, nn);
+		state.indelParams = indelParams.clone();
+		state.substParams = substParams.clone();
+		state.logLike = logLike;
+
+		StringBuilder sb = new StringBuilder(len);
+		for(int i = 0; i < nn; i++) {
+			sb.setLength(0);
+			for(int c = 0; c < len; c++) {
+				char ch = getChar(i, c);
+				if(ch != '-')
+					sb.append(ch);
+			}
+			state.seq[i] = sb.toString();
+		}
+		// an inserted character is followed by the parent's character it precedes
+		for(int i = 0; i < nn; i++) {
+			int[] al = state.align[i] = new int[state.seq[i].length()];
+			int p = parent[i];
+			if(p < 0)
+				continue;
+			int x = 0, y = 0;
+			for(int c = 0; c < len; c++) {
+				boolean child = getChar(i, c) != '-', par = getChar(p, c) != '-';
+				if(child)
+					al[x++] = par ? y : -y-1;
+				if(par)
+					y++;
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Returns the Newick string representation of the tree, as
+	 * {@link State#getNewickString()}.
+	 */
+	public String getNewickString() {
+		State state = new State(parent.length, nl);
+		state.root = root;
+		state.children = children;
+		state.name = name;
+		state.edgeLen = edgeLen;
+		return state.getNewickString();
+	}
+}
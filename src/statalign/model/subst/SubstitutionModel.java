@@ -122,6 +122,31 @@ public abstract class SubstitutionModel{
 	 */
 	public abstract void restoreParameter();
 	
+	/**
+	 * Sets the model parameters, e.g. to continue a run from a checkpoint. Models whose
+	 * v, w, d and e depend on the parameters must override it to update them.
+	 * 
+	 * @param params the new parameter values, in the order of {@link #params}
+	 */
+	public void setParameters(double[] params){
+		if(this.params != null)
+			System.arraycopy(params, 0, this.params, 0, this.params.length);
+	}
+
+	/**
+	 * Creates an independent model of the same class with the current parameter values,
+	 * e.g. for another chain that samples the parameters on its own.
+	 *
+	 * @return the new model
+	 * @throws Exception if the model class cannot be instantiated
+	 */
+	public SubstitutionModel copy() throws Exception {
+		SubstitutionModel copy = getClass().getConstructor().newInstance();
+		if(params != null)
+			copy.setParameters(params);
+		return copy;
+	}
+
 	/**
 	 * Represents model state as a String (usually parameter values concatenated)
 	 * 
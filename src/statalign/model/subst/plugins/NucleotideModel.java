@@ -164,6 +164,15 @@ public abstract class NucleotideModel extends SubstitutionModel{
 
 	void setDiagonal(){}
 	
+	/**
+	 * Sets the parameters and updates the rate matrix decomposition accordingly.
+	 */
+	@Override
+	public void setParameters(double[] params) {
+		super.setParameters(params);
+		setDiagonal();
+	}
+	
 	/**
 	 * restore the parameters to the old values when a parameter-changing
 	 * proposal is not accepted.
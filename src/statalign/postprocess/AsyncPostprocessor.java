@@ -0,0 +1,172 @@
+package statalign.postprocess;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import statalign.base.McmcStep;
+import statalign.base.State;
+
+/**
+ * Delivers the MCMC events to groups of plugins on worker threads, so that the
+ * sampler is not held up by slow plugins.
+ *
+ * Each group (a plugin together with the plugins depending on it) has its own
+ * worker thread and bounded queue: a group sees the events in the order they were
+ * produced, and within the group the plugins are called in the order of the
+ * {@link PostprocessManager}. When a queue is full the sampler waits (back-pressure),
+ * so at most <tt>capacity</tt> events are pending for any group.
+ *
+ * @author miklos, novak
+ */
+class AsyncPostprocessor {
+
+	/** How often a blocked sampler checks whether a worker has failed (ms) */
+	private static final long POLL_INTERVAL = 200;
+
+	private Lane[] lanes;
+
+	/** First error thrown by a plugin on a worker thread */
+	private volatile RuntimeException error;
+
+	/**
+	 * Starts one worker thread for each group.
+	 * @param groups the plugin groups, each in calling order
+	 * @param capacity maximum number of pending events per group
+	 */
+	AsyncPostprocessor(List<Postprocess[]> groups, int capacity) {
+		lanes = new Lane[groups.size()];
+		for(int i = 0; i < lanes.length; i++) {
+			lanes[i] = new Lane(groups.get(i), capacity);
+			lanes[i].start();
+		}
+	}
+
+	/** An MCMC event, delivered to each plugin of a group in turn */
+	private static abstract class Event {
+		abstract void deliver(Postprocess plugin);
+
+		void process(Postprocess[] plugins) {
+			for(Postprocess plugin : plugins)
+				deliver(plugin);
+		}
+	}
+
+	private class Lane extends Thread {
+		final Postprocess[] plugins;
+		final BlockingQueue<Event> queue;
+
+		Lane(Postprocess[] plugins, int capacity) {
+			this.plugins = plugins;
+			queue = new ArrayBlockingQueue<Event>(capacity);
+			setName("Postprocessing: "+plugins[0].getTabName());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					Event event = queue.take();
+					if(event == STOP)
+						return;
+					event.process(plugins);
+				}
+			} catch (InterruptedException e) {
+			} catch (RuntimeException e) {
+				fail(e);
+			} catch (Error e) {
+				fail(new RuntimeException(e));
+			}
+		}
+
+		void put(Event event) {
+			try {
+				while(!queue.offer(event, POLL_INTERVAL, TimeUnit.MILLISECONDS))
+					checkError();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static final Event STOP = new Event() {
+		@Override
+		void deliver(Postprocess plugin) {
+		}
+	};
+
+	private synchronized void fail(RuntimeException e) {
+		if(error == null)
+			error = e;
+	}
+
+	/**
+	 * Rethrows the first error of the plugins on the sampler's thread.
+	 */
+	void checkError() {
+		if(error != null)
+			throw error;
+	}
+
+	private void put(Event event) {
+		checkError();
+		for(Lane lane : lanes)
+			lane.put(event);
+	}
+
+	/**
+	 * Queues a sample. The state must not change afterwards (it must not be lazy).
+	 */
+	void newSample(final State state, final int no, final int total) {
+		put(new Event() {
+			@Override
+			void deliver(Postprocess plugin) {
+				plugin.newSample(state, no, total);
+			}
+		});
+	}
+
+	/**
+	 * Queues a peek. The state must not change afterwards (it must not be lazy).
+	 */
+	void newPeek(final State state) {
+		put(new Event() {
+			@Override
+			void deliver(Postprocess plugin) {
+				plugin.newPeek(state);
+			}
+		});
+	}
+
+	/**
+	 * Queues a step, <tt>step</tt> is copied as the sampler reuses it.
+	 */
+	void newStep(McmcStep step) {
+		final McmcStep copy = step.copy();
+		put(new Event() {
+			@Override
+			void deliver(Postprocess plugin) {
+				plugin.newStep(copy);
+			}
+		});
+	}
+
+	/**
+	 * Waits for the queued events to be processed and stops the worker threads.
+	 */
+	void shutdown() {
+		for(Lane lane : lanes)
+			lane.put(STOP);
+		for(Lane lane : lanes) {
+			try {
+				lane.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		checkError();
+	}
+}
@@ -90,6 +90,15 @@ public abstract class Postprocess {
 	 */
 	public boolean rnaAssociated;
 	
+	/**
+	 * True if the plugin can process the MCMC events on a worker thread (see
+	 * {@link PostprocessManager#asyncQueueSize}): it only uses the {@link State} and
+	 * {@link McmcStep} objects it is given, not the current state of {@link #mcmc}.
+	 * Plugins writing into the log file are always called on the sampler's thread
+	 * to keep the order of the log entries.
+	 */
+	public boolean asyncCapable;
+	
 	
 	
 	/**
@@ -242,7 +251,9 @@ public abstract class Postprocess {
 	 * {@link #newSample(State, int, int)}. Unlike that method, this one is called both
 	 * during and after the burn-in period.
 	 * 
-	 * @param state A {@link State} object representing the current state of the chain
+	 * @param state A {@link State} object representing the current state of the chain.
+	 *  It may be lazy and is only valid during the call, call {@link State#materialize()}
+	 *  before keeping it.
 	 */
 	public void newPeek(State state) {
 	}
@@ -253,7 +264,9 @@ public abstract class Postprocess {
 	 * by the MCMC sampling parameter set by the user. Unlike {@link #newPeek(State state)},
      * this method is only called after the burn-in period.
 	 * 
-	 * @param state A {@link State} object representing the current state of the chain
+	 * @param state A {@link State} object representing the current state of the chain.
+	 *  It may be lazy and is only valid during the call, call {@link State#materialize()}
+	 *  before keeping it.
 	 * @param no The number of the current sample
 	 * @param total The number of the total samples
 	 */
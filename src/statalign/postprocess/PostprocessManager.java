@@ -3,11 +3,13 @@ package statalign.postprocess;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
+import statalign.base.Checkpoint;
 import statalign.base.InputData;
 import statalign.base.MainManager;
 import statalign.base.Mcmc;
@@ -15,6 +17,9 @@ import statalign.base.McmcStep;
 import statalign.base.State;
 import statalign.base.Utils;
 import statalign.distance.Pair;
+import statalign.io.trace.SampleTraceReader;
+import statalign.io.trace.SampleTraceWriter;
+import statalign.io.trace.TraceSample;
 
 /**
  * This class manages the postprocesses.
@@ -49,6 +54,40 @@ public class PostprocessManager {
 	 */
 	public static boolean rnaMode = false;
 	
+	/**
+	 * If positive, plugins that are {@link Postprocess#asyncCapable} and do not write
+	 * into the log file receive the MCMC events on worker threads, at most this many
+	 * events can be pending for each group of dependent plugins. 0 means that all
+	 * plugins are called on the sampler's thread.
+	 */
+	public int asyncQueueSize = 0;
+	
+	/**
+	 * If true, the samples are also written into a binary trace file (see
+	 * {@link SampleTraceWriter}) next to the log file.
+	 */
+	public boolean writeTrace = false;
+	
+	/** Whether the chunks of the trace file are compressed */
+	public boolean compressTrace = true;
+	
+	/** Writer of the trace file during a run, null if no trace is written */
+	private SampleTraceWriter traceWriter;
+	
+	/** The log file and the trace file of the run */
+	private File logPath, tracePath;
+	
+	/** Reads the samples to replay to the plugins when a run is resumed, null otherwise */
+	private SampleTraceReader replay;
+	/** Number of samples to replay */
+	private int replaySamples;
+	
+	/** Plugins receiving the events on the sampler's thread during a run */
+	private Postprocess[] syncPlugins;
+	
+	/** Delivers the events to the other plugins during a run, null if there are none */
+	private AsyncPostprocessor async;
+	
 	/**
 	 * This constructor recognizes the plugins
 	 * @param mainManager The MainManager that manages the MCMC run.
@@ -136,6 +175,102 @@ public class PostprocessManager {
 				}
 			}
 		}
+		startAsync();
+		if(replay != null) {
+			replaySamples();
+		}
+	}
+	
+	/**
+	 * Feeds the samples taken before the checkpoint of a resumed run to the plugins, so
+	 * that they are in the same state as they were at the checkpoint. The lines they write
+	 * into the log file are dropped, as the log file already contains them.
+	 */
+	private void replaySamples() {
+		File scratch = null;
+		FileWriter sink = null;
+		try {
+			scratch = File.createTempFile("statalign", ".log");
+			sink = new FileWriter(scratch);
+			for(Postprocess plugin : syncPlugins)
+				plugin.file = sink;
+			int total = mcmc.mcmcpars.cycles / mcmc.mcmcpars.sampRate;
+			for(int i = 0; i < replaySamples; i++) {
+				TraceSample sample = replay.read(i);
+				deliverSample(sample.toState(), sample.no, total);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not replay the samples of the checkpoint", e);
+		} finally {
+			for(Postprocess plugin : syncPlugins)
+				plugin.file = logFile;
+			try {
+				replay.close();
+				if(sink != null)
+					sink.close();
+			} catch (IOException e) {
+			}
+			if(scratch != null)
+				scratch.delete();
+			replay = null;
+		}
+	}
+	
+	/**
+	 * Splits the plugins receiving the MCMC events into groups of dependent plugins
+	 * and starts delivering the events of the groups that can run asynchronously
+	 * on worker threads.
+	 */
+	private void startAsync() {
+		ArrayList<Postprocess> receivers = new ArrayList<Postprocess>();
+		for(Postprocess plugin : plugins)
+			if(rnaMode || !plugin.rnaAssociated)
+				receivers.add(plugin);
+		int n = receivers.size();
+		
+		// union-find over the dependences
+		int[] group = new int[n];
+		for(int i = 0; i < n; i++)
+			group[i] = i;
+		for(int i = 0; i < n; i++) {
+			String[] deps = receivers.get(i).getDependences();
+			if(deps == null)
+				continue;
+			for(String dep : deps)
+				for(int j = 0; j < n; j++)
+					if(receivers.get(j).getClass().getName().equals(dep))
+						group[findGroup(group, i)] = findGroup(group, j);
+		}
+		
+		boolean[] sync = new boolean[n];
+		for(int i = 0; i < n; i++) {
+			Postprocess plugin = receivers.get(i);
+			if(asyncQueueSize <= 0 || !plugin.asyncCapable || plugin.sampling)
+				sync[findGroup(group, i)] = true;
+		}
+		
+		ArrayList<Postprocess> syncList = new ArrayList<Postprocess>();
+		ArrayList<Postprocess[]> asyncGroups = new ArrayList<Postprocess[]>();
+		for(int i = 0; i < n; i++) {
+			int g = findGroup(group, i);
+			if(sync[g]) {
+				syncList.add(receivers.get(i));
+			} else if(g == i) {
+				ArrayList<Postprocess> members = new ArrayList<Postprocess>();
+				for(int j = 0; j < n; j++)
+					if(findGroup(group, j) == g)
+						members.add(receivers.get(j));
+				asyncGroups.add(members.toArray(new Postprocess[members.size()]));
+			}
+		}
+		syncPlugins = syncList.toArray(new Postprocess[syncList.size()]);
+		async = asyncGroups.isEmpty() ? null : new AsyncPostprocessor(asyncGroups, asyncQueueSize);
+	}
+	
+	private static int findGroup(int[] group, int i) {
+		while(group[i] != i)
+			i = group[i] = group[group[i]];
+		return i;
 	}
 	
 	/**
@@ -144,18 +279,23 @@ public class PostprocessManager {
 	 * @param total The total number of samples.
 	 */
 	public void newSample(State state, int no, int total) {
-		if(rnaMode) {
-			for(Postprocess plugin : plugins) {
-				plugin.newSample(state, no, total);
+		if(traceWriter != null) {
+			try {
+				traceWriter.add(state, no);
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 		}
-		
-		else {
-			for(Postprocess plugin : plugins) {
-				if(!plugin.rnaAssociated) {
-					plugin.newSample(state, no, total);
-				}
-			}
+		deliverSample(state, no, total);
+	}
+	
+	private void deliverSample(State state, int no, int total) {
+		if(async != null) {
+			state.materialize();
+			async.newSample(state, no, total);
+		}
+		for(Postprocess plugin : syncPlugins) {
+			plugin.newSample(state, no, total);
 		}
 	}
 	
@@ -163,20 +303,11 @@ public class PostprocessManager {
 	 * Calls the plug-ins after an MCMC step.
 	 */
 	public void newStep(McmcStep step) {
-		if(rnaMode) {
-			for(Postprocess plugin : plugins){
-				//if(plugin.selected){
-					plugin.newStep(step);
-				//}
-			}
+		if(async != null) {
+			async.newStep(step);
 		}
-		
-		else {
-			for(Postprocess plugin : plugins){
-				if(!plugin.rnaAssociated){
-					plugin.newStep(step);
-				}
-			}
+		for(Postprocess plugin : syncPlugins){
+			plugin.newStep(step);
 		}
 	}
 	
@@ -185,20 +316,12 @@ public class PostprocessManager {
 	 */
 	public void newPeek() {
 		State state = mcmc.getState();
-		if(rnaMode) {
-			for(Postprocess plugin : plugins){
-				//if(plugin.selected){
-					plugin.newPeek(state);
-				//}
-			}
+		if(async != null) {
+			state.materialize();
+			async.newPeek(state);
 		}
-		
-		else {
-			for(Postprocess plugin : plugins){
-				if(!plugin.rnaAssociated){
-					plugin.newPeek(state);
-				}
-			}
+		for(Postprocess plugin : syncPlugins){
+			plugin.newPeek(state);
 		}
 	}
 	
@@ -207,6 +330,12 @@ public class PostprocessManager {
 	 * It calls plug-ins to finalize their postprocessing activities.
 	 */
 	public void afterLastSample() {
+		if(async != null) {
+			// let the worker threads finish the queued events first
+			AsyncPostprocessor pending = async;
+			async = null;
+			pending.shutdown();
+		}
 		if(rnaMode) {
 			for(Postprocess plugin : plugins)
 				if(plugin.rnaAssociated)
@@ -220,7 +349,41 @@ public class PostprocessManager {
 	}
 	
 	public void initRun(InputData inputData) throws IOException {
-		logFile = new FileWriter(new File(inputData.outputPath, inputData.title + ".log"));
+		initRun(inputData, null);
+	}
+	
+	/**
+	 * Opens the output files of a run.
+	 * @param inputData the input data of the run
+	 * @param checkpoint the checkpoint the run is resumed from, null for a new run. The
+	 *        log and trace files are kept up to the checkpoint and the samples in the
+	 *        trace are replayed to the plugins before the first new sample.
+	 */
+	public void initRun(InputData inputData, Checkpoint checkpoint) throws IOException {
+		logPath = new File(inputData.outputPath, inputData.title + ".log");
+		tracePath = new File(inputData.outputPath, inputData.title + ".trace");
+		if (checkpoint == null) {
+			logFile = new FileWriter(logPath);
+			if (writeTrace) {
+				traceWriter = new SampleTraceWriter(tracePath, compressTrace);
+			}
+		} else {
+			truncate(logPath, checkpoint.logLength);
+			logFile = new FileWriter(logPath, true);
+			if (checkpoint.traceLength == 0) {
+				traceWriter = new SampleTraceWriter(tracePath, compressTrace);
+			} else {
+				traceWriter = new SampleTraceWriter(tracePath, checkpoint.traceLength);
+				replay = new SampleTraceReader(tracePath);
+				replaySamples = checkpoint.samples;
+				int size = replay.size();
+				if (size != replaySamples) {
+					replay.close();
+					replay = null;
+					throw new IOException("Trace file has " + size + " samples instead of " + replaySamples);
+				}
+			}
+		}
 
 		System.out.println();
 		for (Postprocess p : plugins) {
@@ -233,11 +396,42 @@ public class PostprocessManager {
 		}
 	}
 	
+	private static void truncate(File file, long length) throws IOException {
+		if (file.length() < length)
+			throw new IOException("File " + file + " is shorter than " + length + " bytes");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Writes out the samples and log lines pending in the output files, and saves the
+	 * lengths of the log and trace files in a checkpoint.
+	 */
+	public void checkpoint(Checkpoint checkpoint) throws IOException {
+		logFile.flush();
+		checkpoint.logLength = logPath.length();
+		if (traceWriter != null) {
+			traceWriter.flush();
+			checkpoint.traceLength = tracePath.length();
+		}
+	}
+	
 	public void finalizeRun() {
 		try {
 			logFile.close();
 		} catch (IOException e) {
 		}
+		if (traceWriter != null) {
+			try {
+				traceWriter.close();
+			} catch (IOException e) {
+			}
+			traceWriter = null;
+		}
 		for (Postprocess p : plugins) {
 			if (p.postprocessWrite && p.getFileExtension() != null) {
 				try {
@@ -252,6 +446,8 @@ public class PostprocessManager {
 	public List<Pair<String, String>> getFilesCreated() {
 		List<Pair<String, String>> retList = new ArrayList<Pair<String, String>>();
 		retList.add(new Pair<String, String>(mainManager.inputData.title+".log", "Log file with the MCMC samples"));
+		if(writeTrace)
+			retList.add(new Pair<String, String>(mainManager.inputData.title+".trace", "Binary trace of the MCMC samples"));
 		for(Postprocess plugin : plugins) {
 			List<String> files = plugin.getCreatedFileNames();
 			List<String> dsc = plugin.getCreatedFileDescriptions();
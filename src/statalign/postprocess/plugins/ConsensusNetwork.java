@@ -36,6 +36,7 @@ public class ConsensusNetwork extends statalign.postprocess.Postprocess{
 		outputable = true;
 		postprocessable = false;
 		rnaAssociated = false;
+		asyncCapable = true;
 	}
 	
 	/**
@@ -16,7 +16,6 @@ import statalign.postprocess.gui.treeviews.HorizontalPhylogramTreeView;
 import statalign.postprocess.gui.treeviews.TreeView;
 import statalign.postprocess.plugins.contree.CTMain;
 import statalign.postprocess.plugins.contree.CTree;
-import statalign.postprocess.utils.NewickParser;
 
 public class ConsensusTreeVisualizer extends TreeVisualizer {
 
@@ -33,6 +32,7 @@ public class ConsensusTreeVisualizer extends TreeVisualizer {
         postprocessable = true;
         postprocessWrite = true;
         rnaAssociated = false;
+        asyncCapable = true;
     }
     
     @Override
@@ -73,18 +73,13 @@ public class ConsensusTreeVisualizer extends TreeVisualizer {
 
     @Override
     public void newSample(State state, int no, int total) {
-        /*
-        String treeString = state.getNewickString();
-        NewickParser parser = new NewickParser(treeString);
-        TreeNode root = parser.parse();
-        
         // Initialization (only happens in the beginning)
         if (no == 0) { // The first sample has arrived - initialize!
-            main.initialize(root, total);
-            main.addNewTree(root);
+            main.initialize(state, total);
+            main.addNewTree(state);
             return;
         }
-        main.addNewTree(root);
+        main.addNewTree(state);
         CTree output = main.constructMajorityTree();
         // mcmc.getTree().network = main.constructNetwork(output);
         TreeNode outputRoot = output.getRoot();
@@ -107,7 +102,6 @@ public class ConsensusTreeVisualizer extends TreeVisualizer {
 	
 	        refreshGUI();
         }
-        */
     }
 
     @Override
@@ -115,6 +109,14 @@ public class ConsensusTreeVisualizer extends TreeVisualizer {
         super.beforeFirstSample(input); // Mandatory.
 
         main = new CTMain();
+        String maxSplitsParameter = pluginParameters.getParameter("ctreemaxsplits");
+        if (maxSplitsParameter != null) {
+            try {
+                main.setMaxSplits(Math.max(0, Integer.parseInt(maxSplitsParameter.trim())));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid number of consensus tree splits: " + maxSplitsParameter + ", counting all splits");
+            }
+        }
         consensusTrees = new ArrayList<String>();
     }
 
@@ -42,6 +42,7 @@ public class CurrentAlignment extends statalign.postprocess.Postprocess{
 		postprocessable = false;
 		sampling = true;
 		rnaAssociated = false;
+		asyncCapable = true;
 	}
 	
 	/**
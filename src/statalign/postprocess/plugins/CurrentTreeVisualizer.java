@@ -34,6 +34,7 @@ public class CurrentTreeVisualizer extends TreeVisualizer {
         postprocessWrite = true;
         sampling = true;
         rnaAssociated = false;
+        asyncCapable = true;
     }
     
     @Override
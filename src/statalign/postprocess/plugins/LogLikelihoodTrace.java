@@ -49,6 +49,7 @@ public class LogLikelihoodTrace extends statalign.postprocess.Postprocess{
 		sampling = true;
 		postprocessWrite = true;
 		rnaAssociated = false;
+		asyncCapable = true;
 	}
 
 	/**
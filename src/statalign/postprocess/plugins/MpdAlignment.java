@@ -53,6 +53,7 @@ public class MpdAlignment extends statalign.postprocess.Postprocess {
 		postprocessable = true;
 		postprocessWrite = true;
 		rnaAssociated = false;
+		asyncCapable = true;
 	}
 
 	@Override
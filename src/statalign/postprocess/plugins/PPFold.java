@@ -10,11 +10,18 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
@@ -30,11 +37,16 @@ import statalign.postprocess.Postprocess;
 import statalign.postprocess.gui.PPFoldGUI;
 import statalign.postprocess.plugins.benchmarks.Benchmarks;
 import statalign.postprocess.plugins.benchmarks.Dataset;
+import statalign.postprocess.utils.BasePairMatrix;
 import statalign.postprocess.utils.Mapping;
 import statalign.postprocess.utils.RNAFoldingTools;
 import statalign.postprocess.utils.RNAalifold;
 
 import com.ppfold.algo.AlignmentData;
+import com.ppfold.algo.AsynchronousJobExecutor;
+import com.ppfold.algo.AsynchronousJobExecutorRemote;
+import com.ppfold.algo.CYKArithmetic;
+import com.ppfold.algo.FoldingProject;
 import com.ppfold.algo.FuzzyAlignment;
 import com.ppfold.algo.NullProgress;
 import com.ppfold.algo.Parameters;
@@ -116,14 +128,23 @@ public class PPFold extends statalign.postprocess.Postprocess {
 	String refSeq;
 	public String refSeqGapped;
 
-	double[][] summedBasePairProbMatrix;
+	BasePairMatrix summedBasePairProbMatrix;
 	double[] summedSingleBaseProb;
 	public float[][] probMatrix;	
-	double[][] summedBasePairProbRNAalifold;
+	BasePairMatrix summedBasePairProbRNAalifold;
+	/** Two display matrices used in turn, the one shown is not overwritten by the next sample */
+	float[][][] displayMatrices = new float[2][][];
+	int displayMatrix;
+	/** Whether the summed matrices are memory-mapped (plugin parameter <tt>ppfoldmmap</tt>) */
+	boolean mapMatrices = false;
+	/** Directory of the memory-mapped matrices, null for the default temporary directory */
+	File matrixDir;
+	/** Executor of the remote PPfold workers (plugin parameter <tt>ppfoldworkers</tt>), null if folding locally */
+	AsynchronousJobExecutorRemote remoteExecutor;
 
 	int noSamples;
 
-	double [][] weightedBasePairProb;
+	BasePairMatrix weightedBasePairProb;
 	double beta = 10;
 	double weightedSum = 0;
 	double firstLikelihood = 0;
@@ -248,6 +269,58 @@ public class PPFold extends statalign.postprocess.Postprocess {
 			String ppfoldParameter = pluginParameters.getParameter("ppfold");
 			String rnaAlifoldParameter = pluginParameters.getParameter("rnaalifold");
 			String fuzzyParameter = pluginParameters.getParameter("fuzzy");
+			String foldJobsParameter = pluginParameters.getParameter("ppfoldjobs");
+			String mmapParameter = pluginParameters.getParameter("ppfoldmmap");
+			String workersParameter = pluginParameters.getParameter("ppfoldworkers");
+			String threadsParameter = pluginParameters.getParameter("ppfoldthreads");
+			String arithmeticParameter = pluginParameters.getParameter("ppfoldarithmetic");
+			
+			if(foldJobsParameter != null)
+			{
+				try {
+					foldJobs = Math.max(1, Integer.parseInt(foldJobsParameter.trim()));
+				} catch (NumberFormatException e) {
+					System.err.println("Invalid number of PPfold jobs: " + foldJobsParameter + ", using " + foldJobs);
+				}
+			}
+			
+			// the folds run concurrently, so by default they share the processors
+			int foldThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / foldJobs);
+			if(threadsParameter != null)
+			{
+				try {
+					foldThreads = Math.max(1, Integer.parseInt(threadsParameter.trim()));
+				} catch (NumberFormatException e) {
+					System.err.println("Invalid number of PPfold threads: " + threadsParameter + ", using " + foldThreads);
+				}
+			}
+			PPfoldMain.setNrProcessors(foldThreads);
+			
+			if(arithmeticParameter != null)
+			{
+				try {
+					FoldingProject.setArithmetic(CYKArithmetic.parse(arithmeticParameter));
+				} catch (IllegalArgumentException e) {
+					System.err.println("Unknown PPfold arithmetic: " + arithmeticParameter + ", using " + FoldingProject.getArithmetic());
+				}
+			}
+			
+			if(workersParameter != null)
+			{
+				try {
+					remoteExecutor = AsynchronousJobExecutorRemote.create(workersParameter, foldThreads);
+					AsynchronousJobExecutor.setRemoteExecutor(remoteExecutor);
+					System.out.println("Folding with PPfold workers: " + workersParameter);
+				} catch (IOException e) {
+					System.err.println("Could not start PPfold workers " + workersParameter + ", folding locally: " + e.getMessage());
+				}
+			}
+			
+			mapMatrices = mmapParameter != null;
+			if(mapMatrices && mmapParameter.trim().length() > 0)
+			{
+				matrixDir = new File(mmapParameter.trim());
+			}
 			
 			samplingAndAveragingPPfold = ppfoldParameter != null;
 			samplingAndAveragingRNAalifold = rnaAlifoldParameter != null;
@@ -311,6 +384,18 @@ public class PPFold extends statalign.postprocess.Postprocess {
 		// sizeOfAlignments = (mcmc.getTree().vertex.length + 1) / 2;
         sizeOfAlignments = mcmc.getTree().getState().nl;
 		noSamples = 0;
+		noFolded = 0;
+		pendingFolds.clear();
+		if(samplingAndAveragingPPfold) {
+			foldExecutor = Executors.newFixedThreadPool(foldJobs, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PPfold sample folding");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
 
 		t = new String[sizeOfAlignments][];
 		sequences = null;
@@ -483,12 +568,94 @@ public class PPFold extends statalign.postprocess.Postprocess {
 	//double finalEntropyObsReliabilityScore = -1;
 	
 	double [][] averagedPhyloProbs;
-	double [][] summedPhyloProbs;
-	double [][] countPhyloProbs;
+	BasePairMatrix summedPhyloProbs;
+	BasePairMatrix countPhyloProbs;
 	double [] columnCounts;
 	double n;
 	ArrayList<Integer> leftOutColumns = new ArrayList<Integer>();
 	
+	/**
+	 * Creates a summed matrix of dimension {@link #d}, memory-mapped if the
+	 * <tt>ppfoldmmap</tt> parameter is given, falling back to the heap if the file cannot be mapped.
+	 */
+	BasePairMatrix newMatrix(boolean symmetric)
+	{
+		if(mapMatrices)
+		{
+			try {
+				return new BasePairMatrix(d, symmetric, matrixDir);
+			} catch (IOException e) {
+				System.err.println("Could not map base-pairing matrix into a file, keeping it in memory: " + e.getMessage());
+			}
+		}
+		return new BasePairMatrix(d, symmetric);
+	}
+	
+	/**
+	 * Releases the summed matrices of the run.
+	 */
+	void releaseMatrices()
+	{
+		BasePairMatrix[] matrices = { summedBasePairProbMatrix, weightedBasePairProb, summedBasePairProbRNAalifold, summedPhyloProbs, countPhyloProbs };
+		for(BasePairMatrix matrix : matrices)
+		{
+			if(matrix != null)
+			{
+				matrix.close();
+			}
+		}
+		summedBasePairProbMatrix = weightedBasePairProb = summedBasePairProbRNAalifold = summedPhyloProbs = countPhyloProbs = null;
+	}
+	
+	/**
+	 * Returns the display matrix to fill for the current sample, reusing the one displayed
+	 * before the previous sample.
+	 */
+	float[][] nextDisplayMatrix()
+	{
+		displayMatrix = 1 - displayMatrix;
+		if(displayMatrices[displayMatrix] == null || displayMatrices[displayMatrix].length != d)
+		{
+			displayMatrices[displayMatrix] = new float[d][d];
+		}
+		return displayMatrices[displayMatrix];
+	}
+	
+	/**
+	 * Averages the summed phylogenetic base-pairing probabilities over the samples, leaving
+	 * out the columns in {@link #leftOutColumns}.
+	 */
+	double [][] averagePhyloProbs()
+	{
+		boolean [] leftOut = new boolean[d];
+		for(int i = 0 ; i < leftOutColumns.size() ; i++)
+		{
+			leftOut[leftOutColumns.get(i)] = true;
+		}
+		int [] kept = new int[d];
+		int length = 0;
+		for(int i = 0 ; i < d ; i++)
+		{
+			if(!leftOut[i])
+			{
+				kept[length++] = i;
+			}
+		}
+		double [][] averaged = new double[length][length];
+		for(int x = 0 ; x < length ; x++)
+		{
+			for(int y = 0 ; y < length ; y++)
+			{
+				double divider = countPhyloProbs.get(kept[x], kept[y]);
+				if(divider != 0)
+				{
+					averaged[x][y] = summedPhyloProbs.get(kept[x], kept[y])/divider;
+				}
+			}
+		}
+		return averaged;
+	}
+	
 	public static double [][] reconstituteMatrix(double [][] matrix, List<Integer> leftOutColumns)
 	{
 		double [] [] ret = new double[matrix.length+leftOutColumns.size()][matrix.length+leftOutColumns.size()];
@@ -597,15 +764,16 @@ public class PPFold extends statalign.postprocess.Postprocess {
 		
 		if(no == 0)
 		{
+			releaseMatrices();
 			if(samplingAndAveragingPPfold)
 			{
-				summedBasePairProbMatrix = new double[d][d];
-				weightedBasePairProb = new double[d][d];
+				summedBasePairProbMatrix = newMatrix(true);
+				weightedBasePairProb = newMatrix(true);
 				summedSingleBaseProb = new double[d];
 			}
 			if(samplingAndAveragingRNAalifold)
 			{
-				summedBasePairProbRNAalifold = new double[d][d];			
+				summedBasePairProbRNAalifold = newMatrix(true);			
 			}
 		}
 
@@ -640,200 +808,8 @@ public class PPFold extends statalign.postprocess.Postprocess {
 				
 				if(samplingAndAveragingPPfold)
 				{
-					ResultBundle sampleResult = PPfoldMain.fold2(progress, align.getSequences(),	align.getNames(), tree, param, extradata);
-					entropySample = sampleResult.entropyVal;
-					float[][] basePairProb = sampleResult.finalmatrix;
-					float[] singleBaseProb = new float[basePairProb.length];
-					for (int x = 0; x < basePairProb.length; x++) {
-						singleBaseProb[x] = 1;
-						for (int y = 0; y < basePairProb[0].length; y++) {
-							singleBaseProb[x] -= basePairProb[x][y];
-						}
-					}
-
-
-					ArrayList<String> sequences = new ArrayList<String>();
-					for (int k = 0; k < t.length; k++) {
-						sequences.add(t[k][1]);
-					}
-					float[][] projectSample = Mapping.projectMatrix(PPFold.getSequenceByName(t, refSeqName), basePairProb, '-');
-					float[] projectSingleBaseProb = Mapping.projectarray(PPFold.getSequenceByName(t, refSeqName),singleBaseProb, '-');
-
-					// normalise projected matrix
-					for(int x = 0 ; x < projectSample.length ; x++)
-					{
-						double rowMatrSum = 0;
-						for(int y = 0 ; y < projectSample[0].length ; y++)
-						{
-							rowMatrSum += projectSample[x][y];
-						}
-						double factor = rowMatrSum + projectSingleBaseProb[x];
-						factor = 1;
-						for(int y = 0 ; y < projectSample[0].length ; y++)
-						{
-							projectSample[x][y] = (float)(projectSample[x][y] / factor);
-						}
-						projectSingleBaseProb[x] /= factor;
-					}
-
-					
-					double alignmentLogLikelihood = state.logLike;
-					
-					
-					probMatrix = new float[d][d];
-					//float [][] rnaAlifoldProbMatrix = new float[d][d];
-					double weight = Math.pow(firstLikelihood / alignmentLogLikelihood, beta);
-
-					float [] singleMatrix = new float[d];
-					for (int i = 0; i < d; ++i) {
-						summedSingleBaseProb[i] += projectSingleBaseProb[i];
-						singleMatrix[i] = (float)summedSingleBaseProb[i] / (noSamples+1);
-						for (int j = 0; j < d; ++j) {
-							summedBasePairProbMatrix[i][j] += projectSample[i][j];
-							probMatrix[i][j] = (float)(summedBasePairProbMatrix[i][j]/(noSamples+1));
-							weightedBasePairProb[i][j] += projectSample[i][j]*weight;
-						}
-					}
-					weightedSum += weight;
-					
-					if(consensusEvolutionPrediction)
-					{
-						if(no == 0)
-						{
-							//RNAFoldingTools.writeToFile(new File(title+"_entropy.txt"),"",false);
-							summedPhyloProbs = new double[d][d];
-							countPhyloProbs = new double[d][d];
-							columnCounts = new double[d];
-							n = 0;
-						}
-					
-						
-						
-						//RNAFoldingTools.writeToFile(new File(title+"_dimensions.txt"),  sampleResult.phyloProbs.length+"\t"+sampleResult.phyloProbs[0].length+"\t"+PPFold.getSequenceByName(t, refSeqName).length(), true);
-						
-						//RNAFoldingTools.writeMatrix(PPFold.reconstituteMatrix(sampleResult.phyloProbs, sampleResult.leftOutColumns), new File(title+"_phylo_recon.bp"));
-						//double [] [] phyloProbs = PPFold.reconstituteMatrix(sampleResult.phyloProbs, sampleResult.leftOutColumns);
-						double [][] phyloProbs =  Mapping.projectMatrix(PPFold.getSequenceByName(t, refSeqName),PPFold.reconstituteMatrix(sampleResult.phyloProbs, sampleResult.leftOutColumns), '-');
-						
-						
-					
-						//ArrayList<Integer> projectedLeftOutColumns = new ArrayList<Integer>();
-						//projectedLeftOutColumns.addAll(sampleResult.leftOutColumns);
-						String ref = PPFold.getSequenceByName(t, refSeqName);
-						int [] columns = Mapping.getProjectionIndices(ref, '-');
-						/*int [] columns = new int[ref.length()];
-						Arrays.fill(columns, -1);
-						int x = 0;
-						for(int i = 0 ; i < ref.length() ; i++)
-						{
-							if(ref.charAt(i) == '-')
-							{
-							}
-							else
-							{
-								columns[i] = x;
-								x++;
-							}
-						}*/
-						ArrayList<Integer> projectedLeftOutColumns = new ArrayList<Integer>();
-						for(int i = 0 ; i < sampleResult.leftOutColumns.size() ; i++)
-						{
-							int y = sampleResult.leftOutColumns.get(i);
-							if(columns[y] != -1)
-							{
-								projectedLeftOutColumns.add(columns[y]);
-							}
-						}	
-						
-						/*
-						for(int i = 0 ; i < removedIndices.size() ; i++)
-						{
-							projectedLeftOutColumns.remove(removedIndices.get(i));
-						}					
-						
-						Collections.sort(removedIndices);
-						for(int i = 0 ; i < removedIndices.size() ; i++)
-						{
-							for(int j = 0 ; j < projectedLeftOutColumns.size() ; j++)
-							{
-								if(removedIndices.get(i) <= projectedLeftOutColumns.get(j))
-								{
-									projectedLeftOutColumns.set(j, projectedLeftOutColumns.get(j)-1);
-								}
-							}
-						}*/	
-						
-						PPFold.incrementCountMatrix(countPhyloProbs, projectedLeftOutColumns);
-						for(int i = 0 ; i < summedPhyloProbs.length ; i++)
-						{
-							for(int j = 0 ; j < summedPhyloProbs[0].length ; j++)
-							{
-								summedPhyloProbs[i][j] += phyloProbs[i][j];
-							}
-						}
-						//RNAFoldingTools.writeMatrix(countPhyloProbs, new File(title+"_phylo_count.bp"));
-						//RNAFoldingTools.writeMatrix(summedPhyloProbs, new File(title+"_phylo_summed.bp"));
-						for(int i = 0 ; i < columnCounts.length ; i++)
-						{
-							if(!projectedLeftOutColumns.contains(i))
-							{
-								columnCounts[i]++;
-							}
-						}
-
-						n++;
-						averagedPhyloProbs = new double[summedPhyloProbs.length][summedPhyloProbs[0].length];
-						for(int i = 0 ; i < summedPhyloProbs.length ; i++)
-						{
-							for(int j = 0 ; j < summedPhyloProbs[0].length ; j++)
-							{
-								//double divider = (columnCounts[i]+columnCounts[j])/2;
-								double divider = countPhyloProbs[i][j];
-								if(divider != 0)
-								{
-									//averagedPhyloProbs[i][j] = summedPhyloProbs[i][j]/n;
-									averagedPhyloProbs[i][j] = summedPhyloProbs[i][j]/divider;
-								}
-							}
-						}
-						
-						if(no < 25)
-						{
-							leftOutColumns.clear();
-							for(int i = 0 ; i < columnCounts.length ; i++)
-							{
-									if(columnCounts[i]/n <= 0.25)
-									{
-										
-										leftOutColumns.add(i);
-									}
-							}
-						}
-						
-
-						if(no % 5 == 0)
-						{							
-							performConsensusEvolutionPrediction();
-						}
-					}
-					
-					Structure.updateBasePairMatrix(probMatrix);
-					Structure.updateSingleMatrix(singleMatrix);
-					PPfoldMain.setfoldingfinished(true);
-					
-					if(gui != null)
-					{
-						gui.changeDimension(d*PPFoldGUI.OFFSET);
-						gui.setMatrix(probMatrix);
-						gui.repaint();
-					}
-					
-					if(experimental)
-					{
-						dataset.sampledStructures.add(sampleResult.getSmallBundle());
-						int [] samplePairedSitesProjected =  rnaTools.getPosteriorDecodingConsensusStructureMultiThreaded(projectSample);						
-						dataset.pairedSitesProjectedSamples.add(samplePairedSitesProjected);
-					}
+					// fold in the background, the results are merged in sample order
+					pendingFolds.add(foldExecutor.submit(new SampleFold(no, t.clone(), align, tree, state.logLike)));
 				}
 				
 				if(samplingAndAveragingRNAalifold)
@@ -847,28 +823,20 @@ public class PPFold extends statalign.postprocess.Postprocess {
 					}
 
 
-					float[][] rnaAlifoldProjectedSample = Mapping.projectMatrix(PPFold.getSequenceByName(t, refSeqName), RNAFoldingTools.getFloatMatrix(rnaAlifoldMatrixSample), '-');
-					for (int i = 0; i < d; ++i) {
-						for (int j = 0; j < d; ++j) {
-							summedBasePairProbRNAalifold[i][j] += rnaAlifoldProjectedSample[i][j];
-						}
-					}
+					String ref = PPFold.getSequenceByName(t, refSeqName);
+					float[][] rnaAlifoldFloatSample = RNAFoldingTools.getFloatMatrix(rnaAlifoldMatrixSample);
+					summedBasePairProbRNAalifold.add(rnaAlifoldFloatSample, Mapping.getProjectionSources(ref, '-'), 1);
 					
 					System.out.println("RNAalifold over here " + samplingAndAveragingPPfold );
 					if(!samplingAndAveragingPPfold) // if ppfold not running, display RNAalifold on the GUI
 					{
 						System.out.println("HERE");
-						probMatrix = new float[d][d];					
+						probMatrix = summedBasePairProbRNAalifold.toFloatArray(nextDisplayMatrix(), noSamples+1);
 	
-						double [] summedRNAalifoldSingleBaseProb = RNAFoldingTools.getSingleBaseProb(summedBasePairProbRNAalifold);
+						double [] summedRNAalifoldSingleBaseProb = summedBasePairProbRNAalifold.getSingleBaseProb();
 						float [] singleMatrix = new float[d];
 						for (int i = 0; i < d; ++i) {		
-							
 							singleMatrix[i] = (float)summedRNAalifoldSingleBaseProb[i] / (noSamples+1);
-							for (int j = 0; j < d; ++j) {							
-								probMatrix[i][j] = (float)(summedBasePairProbRNAalifold[i][j]/(noSamples+1));
-								
-							}
 						}
 	
 						
@@ -886,6 +854,7 @@ public class PPFold extends statalign.postprocess.Postprocess {
 					
 					if(experimental)
 					{
+						float[][] rnaAlifoldProjectedSample = Mapping.projectMatrix(ref, rnaAlifoldFloatSample, '-');
 						dataset.pairedSitesProjectedRnaAlifoldSamples.add(rnaTools.getPosteriorDecodingConsensusStructureMultiThreaded(rnaAlifoldProjectedSample));
 					}					
 				}				
@@ -898,6 +867,12 @@ public class PPFold extends statalign.postprocess.Postprocess {
 				e.printStackTrace();
 			}
 			
+			if(samplingAndAveragingPPfold)
+			{
+				// outside the try block, so that failed folds reach the MCMC
+				mergeFolds(false);
+			}
+			
 			noSamples += 1;
 		}
 
@@ -1035,9 +1010,249 @@ public class PPFold extends statalign.postprocess.Postprocess {
 		}
 
 	}
+		/** Number of samples folded concurrently by PPfold (plugin parameter <tt>ppfoldjobs</tt>) */
+		int foldJobs = 2;
+		ExecutorService foldExecutor;
+		/** Folds of the samples that have not been merged yet, in sample order */
+		ArrayDeque<Future<SampleFold>> pendingFolds = new ArrayDeque<Future<SampleFold>>();
+		/** Number of folds merged into the summed matrices */
+		int noFolded;
+
+		/**
+		 * PPfold folding of a sample and the index maps projecting the resulting matrices
+		 * to the reference sequence. Runs on the fold executor, it only reads the plugin's
+		 * settings.
+		 */
+		class SampleFold implements Callable<SampleFold> {
+			final int no;
+			final String[][] t;
+			final Alignment align;
+			final Tree tree;
+			final double logLike;
+
+			ResultBundle sampleResult;
+			float[][] basePairProb;
+			float[] singleBaseProb;
+			/** Column of the alignment projected onto each position of the reference sequence */
+			int[] sources;
+			/** The projected base-pairing matrix, only computed in experimental mode */
+			float[][] projectSample;
+			double[][] phyloProbs;
+			/** Row of {@link #phyloProbs} projected onto each position of the reference sequence, -1 if left out */
+			int[] phyloIndex;
+			/** Positions of the reference sequence that left out columns are projected onto */
+			boolean[] projectedLeftOut;
+
+			SampleFold(int no, String[][] t, Alignment align, Tree tree, double logLike) {
+				this.no = no;
+				this.t = t;
+				this.align = align;
+				this.tree = tree;
+				this.logLike = logLike;
+			}
+
+			@Override
+			public SampleFold call() throws Exception {
+				sampleResult = PPfoldMain.fold2(progress, align.getSequences(),	align.getNames(), tree, param, extradata);
+				basePairProb = sampleResult.finalmatrix;
+				singleBaseProb = new float[basePairProb.length];
+				for (int x = 0; x < basePairProb.length; x++) {
+					singleBaseProb[x] = 1;
+					for (int y = 0; y < basePairProb[0].length; y++) {
+						singleBaseProb[x] -= basePairProb[x][y];
+					}
+				}
+
+				String ref = PPFold.getSequenceByName(t, refSeqName);
+				sources = Mapping.getProjectionSources(ref, '-');
+				if(experimental)
+				{
+					projectSample = Mapping.projectMatrix(ref, basePairProb, '-');
+				}
+
+				if(consensusEvolutionPrediction)
+				{
+					phyloProbs = sampleResult.phyloProbs;
+
+					// the phylogenetic matrix has no rows for the left out columns
+					boolean [] leftOut = new boolean[ref.length()];
+					for(int i = 0 ; i < sampleResult.leftOutColumns.size() ; i++)
+					{
+						leftOut[sampleResult.leftOutColumns.get(i)] = true;
+					}
+					int [] rows = new int[ref.length()];
+					int row = 0;
+					for(int i = 0 ; i < rows.length ; i++)
+					{
+						rows[i] = leftOut[i] ? -1 : row++;
+					}
+					phyloIndex = new int[sources.length];
+					for(int i = 0 ; i < sources.length ; i++)
+					{
+						phyloIndex[i] = rows[sources[i]];
+					}
+
+					int [] columns = Mapping.getProjectionIndices(ref, '-');
+					projectedLeftOut = new boolean[sources.length];
+					for(int i = 0 ; i < sampleResult.leftOutColumns.size() ; i++)
+					{
+						int y = sampleResult.leftOutColumns.get(i);
+						if(columns[y] != -1)
+						{
+							projectedLeftOut[columns[y]] = true;
+						}
+					}
+				}
+				return this;
+			}
+		}
+
+		/**
+		 * Merges the finished folds into the summed matrices, in sample order. Waits for
+		 * the oldest fold if <tt>all</tt> is true or if the sampler is more than
+		 * 2*{@link #foldJobs} samples ahead of the folding.
+		 * @throws RuntimeException if the folding of a sample has failed, the remaining
+		 * folds are dropped
+		 */
+		void mergeFolds(boolean all) {
+			while(!pendingFolds.isEmpty()) {
+				Future<SampleFold> next = pendingFolds.peek();
+				if(!all && !next.isDone() && pendingFolds.size() <= 2*foldJobs)
+					return;
+				pendingFolds.poll();
+				SampleFold fold;
+				try {
+					fold = next.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} catch (ExecutionException e) {
+					abortFolds();
+					throw new RuntimeException("PPfold could not fold sample "+(noFolded+1)+": "+e.getCause(), e.getCause());
+				}
+				mergeFold(fold);
+				noFolded++;
+			}
+		}
+
+		/**
+		 * Cancels the pending folds, stops the fold executor and disconnects from the remote
+		 * workers.
+		 */
+		void abortFolds() {
+			for(Future<SampleFold> pending : pendingFolds)
+				pending.cancel(true);
+			pendingFolds.clear();
+			if(foldExecutor != null) {
+				foldExecutor.shutdownNow();
+				foldExecutor = null;
+			}
+			stopRemoteExecutor();
+		}
+
+		/**
+		 * Waits for all pending folds, merges them and stops the fold executor.
+		 */
+		void finishFolds() {
+			mergeFolds(true);
+			if(foldExecutor != null) {
+				foldExecutor.shutdown();
+				foldExecutor = null;
+			}
+		}
+
+		/**
+		 * Adds the matrices of a folded sample to the summed matrices and updates the display.
+		 */
+		void mergeFold(SampleFold fold) {
+			ResultBundle sampleResult = fold.sampleResult;
+			entropySample = sampleResult.entropyVal;
+
+			double weight = Math.pow(firstLikelihood / fold.logLike, beta);
+
+			float [] singleMatrix = new float[d];
+			for (int i = 0; i < d; ++i) {
+				summedSingleBaseProb[i] += fold.singleBaseProb[fold.sources[i]];
+				singleMatrix[i] = (float)summedSingleBaseProb[i] / (noFolded+1);
+			}
+			summedBasePairProbMatrix.add(fold.basePairProb, fold.sources, 1);
+			weightedBasePairProb.add(fold.basePairProb, fold.sources, weight);
+			probMatrix = summedBasePairProbMatrix.toFloatArray(nextDisplayMatrix(), noFolded+1);
+			weightedSum += weight;
+
+			if(consensusEvolutionPrediction)
+			{
+				if(fold.no == 0)
+				{
+					// the phylogenetic matrix is not symmetric, it is summed as a square
+					summedPhyloProbs = newMatrix(false);
+					countPhyloProbs = newMatrix(true);
+					columnCounts = new double[d];
+					n = 0;
+				}
+
+				boolean [] included = new boolean[d];
+				for(int i = 0 ; i < d ; i++)
+				{
+					included[i] = !fold.projectedLeftOut[i];
+				}
+				countPhyloProbs.increment(included);
+				summedPhyloProbs.add(fold.phyloProbs, fold.phyloIndex, 1);
+				for(int i = 0 ; i < columnCounts.length ; i++)
+				{
+					if(included[i])
+					{
+						columnCounts[i]++;
+					}
+				}
+
+				n++;
+
+				if(fold.no < 25)
+				{
+					leftOutColumns.clear();
+					for(int i = 0 ; i < columnCounts.length ; i++)
+					{
+							if(columnCounts[i]/n <= 0.25)
+							{
+								leftOutColumns.add(i);
+							}
+					}
+				}
+
+				if(fold.no % 5 == 0)
+				{
+					performConsensusEvolutionPrediction(fold.t);
+				}
+			}
+
+			Structure.updateBasePairMatrix(probMatrix);
+			Structure.updateSingleMatrix(singleMatrix);
+			PPfoldMain.setfoldingfinished(true);
+
+			if(gui != null)
+			{
+				gui.changeDimension(d*PPFoldGUI.OFFSET);
+				gui.setMatrix(probMatrix);
+				gui.repaint();
+			}
+
+			if(experimental)
+			{
+				dataset.sampledStructures.add(sampleResult.getSmallBundle());
+				int [] samplePairedSitesProjected =  rnaTools.getPosteriorDecodingConsensusStructureMultiThreaded(fold.projectSample);
+				dataset.pairedSitesProjectedSamples.add(samplePairedSitesProjected);
+			}
+		}
+	
 	int stepCounter = 0;
 	
 	public ResultBundle performConsensusEvolutionPrediction()
+	{
+		return performConsensusEvolutionPrediction(t);
+	}
+	
+	ResultBundle performConsensusEvolutionPrediction(String[][] t)
 	{
 		ResultBundle consensusEvolutionResult = null;
 		
@@ -1051,7 +1266,7 @@ public class PPFold extends statalign.postprocess.Postprocess {
 		}
 		
 			AlignmentData projectedAlignment = FuzzyAlignment.projectAlignment(input.sequences, input.names, refSeqName);
-			averagedPhyloProbs = leaveOutColumns(averagedPhyloProbs, leftOutColumns);
+			averagedPhyloProbs = averagePhyloProbs();
 			//RNAFoldingTools.writeMatrix(averagedPhyloProbs, new File(outDir+"/"+title+"_phylo.bp"));
 			//ResultBundle matrixResult = PPfoldMain.foldMatrix(progress, input.sequences,	input.names, sampleResult.phyloProbs, param, extradata);
 			//ResultBundle matrixResult = PPfoldMain.foldMatrix(progress, projectedAlignment.sequences,	projectedAlignment.names,  sampleResult.phyloProbs, param, extradata);
@@ -1125,6 +1340,7 @@ public class PPFold extends statalign.postprocess.Postprocess {
 
 	@Override
 	public void afterLastSample() {
+		finishFolds();
 		fileList = new ArrayList<String>();
 		fileDesc = new ArrayList<String>();
 		String name;
@@ -1132,8 +1348,10 @@ public class PPFold extends statalign.postprocess.Postprocess {
 //		fileList.add(title+".samples");
 //		fileDesc.add("RNA structure samples");
 		
-		if(noSamples == 0)
+		if(noSamples == 0) {
+			stopRemoteExecutor();
 			return;
+		}
 		
 		// calculate posterior avg
 		posteriorProbabilityAvg = 0;
@@ -1154,11 +1372,7 @@ public class PPFold extends statalign.postprocess.Postprocess {
 		double[][] doubleSummedArrayRNAalifold = new double[d][d];
 		if(samplingAndAveragingRNAalifold)
 		{			
-			for (int i = 0; i < d; ++i) {
-				for (int j = 0; j < d; ++j) {
-					doubleSummedArrayRNAalifold[i][j] = summedBasePairProbRNAalifold[i][j] / noSamples;
-				}
-			}
+			doubleSummedArrayRNAalifold = summedBasePairProbRNAalifold.toArray(noSamples);
 
 			int [] pairedSitesRNAalifold = rnaTools.getPosteriorDecodingConsensusStructureMultiThreaded(doubleSummedArrayRNAalifold);
 			dataset.pairedSitesRNAalifold = pairedSitesRNAalifold;
@@ -1181,10 +1395,8 @@ public class PPFold extends statalign.postprocess.Postprocess {
 			double[] doubleSingleBaseProb = new double[d];
 			for (int i = 0; i < d; ++i) {
 				doubleSingleBaseProb[i] = summedSingleBaseProb[i] / noSamples;
-				for (int j = 0; j < d; ++j) {
-					doubleSummedArrayPPfold[i][j] = summedBasePairProbMatrix[i][j] / noSamples;			
-				}
 			}
+			doubleSummedArrayPPfold = summedBasePairProbMatrix.toArray(noSamples);
 			int[] pairedSites = rnaTools.getPosteriorDecodingConsensusStructureMultiThreaded(doubleSummedArrayPPfold);
 			double statalignPpfoldReliablityScore = RNAFoldingTools.calculatePPfoldReliabilityScore(pairedSites, doubleSummedArrayPPfold);
 			RNAFoldingTools.saveCtFile(new File(outDir, name=title+".ppfold.ct"), pairedSites, title, refSeq);
@@ -1196,15 +1408,11 @@ public class PPFold extends statalign.postprocess.Postprocess {
 			
 			//if(experimental)
 			//{
-				for (int i = 0; i < d; ++i) {
-					for (int j = 0; j < d; ++j) {
-						weightedBasePairProb[i][j] = weightedBasePairProb[i][j] / noSamples;			
-					}
-				}
+				double[][] doubleWeightedArray = weightedBasePairProb.toArray(noSamples);
 				
-				dataset.pairedSitesWeighted = RNAFoldingTools.getPosteriorDecodingConsensusStructure(weightedBasePairProb);
-				dataset.ppfoldReliabilityScoreSamplingAndAveragingWeighted = RNAFoldingTools.calculatePPfoldReliabilityScore(dataset.pairedSitesWeighted, weightedBasePairProb);
-				dataset.pairsOnlyReliabilityScoreSamplingAndAveragingWeighted = RNAFoldingTools.calculatePairsOnlyReliabilityScore(dataset.pairedSitesWeighted, weightedBasePairProb);				
+				dataset.pairedSitesWeighted = RNAFoldingTools.getPosteriorDecodingConsensusStructure(doubleWeightedArray);
+				dataset.ppfoldReliabilityScoreSamplingAndAveragingWeighted = RNAFoldingTools.calculatePPfoldReliabilityScore(dataset.pairedSitesWeighted, doubleWeightedArray);
+				dataset.pairsOnlyReliabilityScoreSamplingAndAveragingWeighted = RNAFoldingTools.calculatePairsOnlyReliabilityScore(dataset.pairedSitesWeighted, doubleWeightedArray);				
 				
 				dataset.pairedSites = pairedSites;
 				dataset.ppfoldReliabilityScoreSamplingAndAveraging = statalignPpfoldReliablityScore;
@@ -1215,15 +1423,15 @@ public class PPFold extends statalign.postprocess.Postprocess {
 				
 				for (int i = 0; i < d; ++i) {
 					for (int j = 0; j < d; ++j) {
-						weightedBasePairProb[i][j] /= weightedSum;
+						doubleWeightedArray[i][j] /= weightedSum;
 					}
 				}
 		
-				int [] pairedSitesWeighted= rnaTools.getPosteriorDecodingConsensusStructureMultiThreaded(weightedBasePairProb);
-				double statalignWeightedPpfoldReliablityScore = RNAFoldingTools.calculatePPfoldReliabilityScore(pairedSites, weightedBasePairProb);
+				int [] pairedSitesWeighted= rnaTools.getPosteriorDecodingConsensusStructureMultiThreaded(doubleWeightedArray);
+				double statalignWeightedPpfoldReliablityScore = RNAFoldingTools.calculatePPfoldReliabilityScore(pairedSites, doubleWeightedArray);
 				dataset.pairedSitesWeighted = pairedSitesWeighted;
 				dataset.ppfoldReliabilityScoreSamplingAndAveragingWeighted = statalignWeightedPpfoldReliablityScore;
-				dataset.pairsOnlyReliabilityScoreSamplingAndAveragingWeighted = RNAFoldingTools.calculatePairsOnlyReliabilityScore(pairedSitesWeighted, weightedBasePairProb);
+				dataset.pairsOnlyReliabilityScoreSamplingAndAveragingWeighted = RNAFoldingTools.calculatePairsOnlyReliabilityScore(pairedSitesWeighted, doubleWeightedArray);
 						
 				for(int i = 0 ; i < mpdAlignment.alignment.length && i < dataset.inputAlignment.names.size() ; i++)
 				{					
@@ -1287,6 +1495,8 @@ public class PPFold extends statalign.postprocess.Postprocess {
 			fileList.add(name); fileDesc.add("Consensus RNA base-pairing matrix using RNAalifold and PPfold combined");
 		}
 
+		releaseMatrices();
+
 		if(fuzzyFolding)
 		{		
 			computeFuzzyAlignment();
@@ -1340,6 +1550,18 @@ public class PPFold extends statalign.postprocess.Postprocess {
 		{
 			ex.printStackTrace();
 		}
+		stopRemoteExecutor();
+	}
+	
+	/**
+	 * Disconnects from the remote PPfold workers, if any.
+	 */
+	void stopRemoteExecutor() {
+		if(remoteExecutor != null) {
+			AsynchronousJobExecutor.setRemoteExecutor(null);
+			remoteExecutor.shutDown();
+			remoteExecutor = null;
+		}
 	}
 	
 	@Override
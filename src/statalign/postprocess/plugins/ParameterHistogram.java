@@ -26,6 +26,10 @@ public class ParameterHistogram extends Postprocess {
 
     private int samples = 0;
 
+    public ParameterHistogram() {
+        asyncCapable = true;
+    }
+
     @Override
     public String getTabName() {
         return "Parameter histograms";
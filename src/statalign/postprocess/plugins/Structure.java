@@ -223,7 +223,7 @@ public class Structure extends statalign.postprocess.Postprocess {
 	public void newSample(State state, int no, int total) {
 
 		if(sampling) {
-			if(ppfold.samplingAndAveragingPPfold)
+			if(ppfold.samplingAndAveragingPPfold && probMatrix != null)
 			{
 				updateSequence();			
 				updateStructure();
@@ -232,7 +232,7 @@ public class Structure extends statalign.postprocess.Postprocess {
 		}
 		
 		if(show) {
-			if(ppfold.samplingAndAveragingPPfold)
+			if(ppfold.samplingAndAveragingPPfold && probMatrix != null)
 			{
 				gui.updateAndDraw(currentSequence, currentDotBracketStructure);
 			}			
@@ -6,11 +6,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
+import statalign.base.State;
 import statalign.postprocess.plugins.TreeNode;
 import statalign.postprocess.plugins.contree.hash.HashEntry;
 import statalign.postprocess.plugins.contree.hash.HashTable;
@@ -40,10 +43,14 @@ public class CTMain {
     private int noOfTaxa;                   // Number of taxa.
     private double resPercentage;           // The resolution rate percentage (0 < x <= 100). 
     private long seed;                      // The seed used in the random number generator.
+    private int maxSplits;                  // Maximum number of distinct splits held by the hash table (0 for no limit).
     private TaxaMap taxa;                   // HashMap containing mapping from taxon names -> indices
 
     private HashUtils hashUtils;            // Holds stuff concerning the hashing.
     private HashTable hashTable;            // The hash table.
+    private SplitExtractor splitExtractor;  // Hashes the splits of the trees.
+    private int[] stateTaxa;                // Taxon index of each node of the sampled states (-1 for unlabeled nodes).
+    private Map<String, Integer> stateTaxonIndex; // Taxon index of the names of the sampled states.
 
     private int noOfTrees;                  // Current number of trees.
     private int majorityThreshold;          // Declares in how many trees partitions need to appear to be a majority partition.
@@ -86,20 +93,63 @@ public class CTMain {
      *
      */
     public void initialize(TreeNode root, int noOfSamples) {
+        List<TreeNode> leaves = root.getLeaves();
+        List<String> names = new ArrayList<String>(leaves.size());
+        for (TreeNode leaf : leaves) {
+            names.add(leaf.name);
+        }
+        initialize(names, noOfSamples);
+    }
+    /**
+     * Initialise a CTMain before usage with the tree of a first state, going through and setting up the hash table etc.
+     * The taxa are the named nodes, which are leaves except in spannoids; they are found by name in later states.
+     * 
+     * @param state State with the initial tree to initialise with
+     * @param noOfSamples Current number of samples taken
+     *
+     */
+    public void initialize(State state, int noOfSamples) {
+        // Leaves in the same order as in the parsed Newick string of the state (names lose their spaces there).
+        stateTaxonIndex = new HashMap<String, Integer>();
+        List<String> names = new ArrayList<String>();
+        int[] stack = new int[state.nn];
+        int sp = 0;
+        stack[0] = state.root;
+        while (sp >= 0) {
+            int node = stack[sp--];
+            int[] children = state.children[node];
+            if (isTaxon(state, node)) {
+                stateTaxonIndex.put(state.name[node], names.size());
+                names.add(state.name[node].replaceAll(" ", ""));
+            }
+            for (int i = children.length - 1; i >= 0; i--) {
+                stack[++sp] = children[i];
+            }
+        }
+        initialize(names, noOfSamples);
+    }
+    /**
+     * Sets up the hash table etc. for the given taxa.
+     * 
+     * @param names Names of the taxa, in order of their indices
+     * @param noOfSamples Current number of samples taken
+     *
+     */
+    private void initialize(List<String> names, int noOfSamples) {
         // Parameter initialisation
         this.noOfSamples = noOfSamples;
         noOfTrees = 0;
-        // TaxaMap initialisation
-        List<TreeNode> leaves = root.getLeaves();
-        noOfTaxa = leaves.size();
+        noOfTaxa = names.size();
         // Hash initialisation
         hashUtils = new HashUtils();
         hashUtils.initialize(noOfTaxa, noOfSamples, C, seed);
-        hashTable = new HashTable(hashUtils.m1);
+        hashTable = new HashTable(noOfTaxa);
+        hashTable.setMaxEntries(maxSplits);
+        splitExtractor = new SplitExtractor(noOfTaxa, hashUtils);
         //Taxamap initialisation
         taxa = new TaxaMap(noOfTaxa);
-        for (int i = 0; i < leaves.size(); i++) {
-            taxa.put(leaves.get(i).name, i);
+        for (int i = 0; i < names.size(); i++) {
+            taxa.put(names.get(i), i);
         }
         leafEdgeLengths = new double[noOfTaxa];
         // Adds a single star partition, once and for all.
@@ -119,97 +169,63 @@ public class CTMain {
     	interestThreshold = (double) ((double) noOfTrees * (resPercentage / 100.0d)); 
 	}
     /**
-     * Create partitions from an input tree - recursive so will be called by many nodes, beginning with root but with calculations actually beginning on leaves.
-     *  
-     * @param node Node in tree with above split to add to the hash table
-     *
-     */
-	private BitSet createPartitions(TreeNode node) { 
-		if (node.isLeaf()) { // Leaf node. 
-        	int index = taxa.get(node.name);
-        	// leaf simply has it's keys stored in the hash utilities
-            node.addProperty("tableHashKey", hashUtils.a1[index]);
-            node.addProperty("bucketHashKey", hashUtils.a2[index]);
-            // Updates the edge length array.
-            leafEdgeLengths[index] += node.edgeLength; 
-            // Create a new partition from scratch to represent it
-            BitSet partition = new BitSet(noOfTaxa); 
-            partition.set(index);
-            assert partition.cardinality() == 1 : "There should be exactly a single bit set."; 
-            return partition;
-		} else { // An internal node: Traverses the tree in post order. 
-        	BitSet partition = new BitSet(noOfTaxa);
-        	// Get the node's partition representation from its children
-        	List<TreeNode> children = node.children;
-        	for (TreeNode child : children) {
-                partition.or(createPartitions(child)); 
-        	}
-        	// if this node is NOT to the right side of the root then add it... (Avoid adding splits twice for CNetworks)
-        	// if (node.parent != root) { // || root.getRight() != node) {
-                noOfPartitions++; 
-                long tableKey = 0; 
-                long bucketKey = 0; 
-                long tableKey2 = 0; 
-                long bucketKey2 = 0; 
-                // Calculate the hash keys for this partition
-                for (TreeNode child : children) { 
-                    tableKey += child.getIntProperty("tableHashKey");
-                    bucketKey += child.getIntProperty("bucketHashKey");
-                } 
-                // if first is one then we need to store the flipped version so we store each split in one representation only.
-                if (partition.get(0) == true) { 
-                    // copy to a new partition that is the flipped version
-                    BitSet partitionF = new BitSet(noOfTaxa); 
-                    for(int l=0;l<noOfTaxa;l++){ 
-                    	if(partition.get(l)==false)partitionF.set(l); 
-                    } 
-                    // calculate the hash keys for the flipped partition...
-                    for (int k=0;k<noOfTaxa;k++) { 
-                        if(partitionF.get(k)==true){ 
-                        	tableKey2 += hashUtils.a1[k]; 
-                        	bucketKey2 += hashUtils.a2[k]; 
-                        } 
-                    } 
-                    // store the properties in the node
-                    node.addProperty("tableHashKey", (int) (tableKey2 % hashUtils.m1));  
-                    node.addProperty("bucketHashKey", (int) (bucketKey2 % hashUtils.m2));
-                    if (noOfPartitions < noOfTaxa - 2) { // Avoids the addition of the star partition 
-                            hashTable.put(partitionF, node.edgeLength,node.getIntProperty("tableHashKey"), node.getIntProperty("bucketHashKey"), interestThreshold, partitions); 
-                    } 
-                    // remember to still return the original partition with its appropriate keys...
-                    node.addProperty("tableHashKey", (int) (tableKey % hashUtils.m1));  
-                    node.addProperty("bucketHashKey", (int) (bucketKey % hashUtils.m2)); 
-                    return partition; 
-                } 
-                // if first is zero then simply add the partition, recursively calculating the hash
-                else{ 
-                    node.addProperty("tableHashKey", (int) (tableKey % hashUtils.m1));  
-                    node.addProperty("bucketHashKey", (int) (bucketKey % hashUtils.m2)); 
-                    if (noOfPartitions < noOfTaxa - 2) { // Avoids the addition of the star partition 
-                    	hashTable.put(partition, node.edgeLength, node.getIntProperty("tableHashKey"),node.getIntProperty("bucketHashKey"), interestThreshold, partitions); 
-                    } 
-                    return partition; 
-                } 
-        	// }
-        	// still return the partition even if node was not added as was right of root...
-        	// return partition;
-		} 
-	} 
-	 /**
      * Add a new tree to the hash table
      * 
      * @param root Root of new tree to add
      *
      */
     public void addNewTree(TreeNode root) {
+        this.root = root; 
+        // Numbers the nodes in breadth-first order and copies the tree into arrays.
+        List<TreeNode> nodes = new ArrayList<TreeNode>();
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.addAll(nodes.get(i).children);
+        }
+        int[][] children = new int[nodes.size()][];
+        int[] taxon = new int[nodes.size()];
+        double[] edgeLength = new double[nodes.size()];
+        int next = 1;
+        for (int i = 0; i < nodes.size(); i++) {
+            TreeNode node = nodes.get(i);
+            children[i] = new int[node.children.size()];
+            for (int j = 0; j < children[i].length; j++) {
+                children[i][j] = next++;
+            }
+            taxon[i] = node.isLeaf() ? taxa.get(node.name) : -1;
+            edgeLength[i] = node.edgeLength;
+        }
+        addNewTree(children, 0, taxon, edgeLength);
+    }
+    /**
+     * Add the tree of a new state to the hash table, without going through its Newick string.
+     * The consensus must have been initialised with a state (see {@link #initialize(State, int)}).
+     * 
+     * @param state State with the new tree to add
+     *
+     */
+    public void addNewTree(State state) {
+        if (stateTaxa == null || stateTaxa.length < state.nn) {
+            stateTaxa = new int[state.nn];
+        }
+        for (int i = 0; i < state.nn; i++) {
+            stateTaxa[i] = isTaxon(state, i) ? stateTaxonIndex.get(state.name[i]) : -1;
+        }
+        addNewTree(state.children, state.root, stateTaxa, state.edgeLen);
+    }
+    /**
+     * Whether a node of a state is a taxon: the leaves are, and so are the labeled internal nodes of spannoids.
+     */
+    private static boolean isTaxon(State state, int node) {
+        return state.children[node].length == 0 || (state.name[node] != null && state.name[node].length() > 0);
+    }
+    private void addNewTree(int[][] children, int root, int[] taxon, double[] edgeLength) {
         // Updates the number of trees and the threshold.
         noOfTrees++;
         updateInterestThreshold();
 
         // Hashes the partitions of the trees.
-        noOfPartitions = 0;
-        this.root = root; 
-        createPartitions(root);
+        splitExtractor.addTree(children, root, taxon, edgeLength, hashTable, interestThreshold, partitions, leafEdgeLengths);
     }
     /**
      * Create partitions from an input tree - recursive so will be called by many nodes, beginning with root but with calculations actually beginning on leaves.
@@ -723,6 +739,18 @@ public class CTMain {
         this.resPercentage = resPercentage;
     }
 
+    public int getMaxSplits() {
+        return maxSplits;
+    }
+
+    /**
+     * Bounds the number of distinct splits counted, for long runs. When the bound is reached
+     * the rarest splits that are not of interest are forgotten. 0 (the default) means no bound.
+     */
+    public void setMaxSplits(int maxSplits) {
+        this.maxSplits = maxSplits;
+    }
+
     public long getSeed() {
         return seed;
     }
@@ -748,7 +776,8 @@ public class CTMain {
         // Hash initialisation
         hashUtils = new HashUtils();
         hashUtils.initialize(noOfTaxa, noOfSamples, C, seed);
-        hashTable = new HashTable(hashUtils.m1);
+        hashTable = new HashTable(noOfTaxa);
+        hashTable.setMaxEntries(maxSplits);
         leafEdgeLengths = new double[noOfTaxa];
         taxa = new TaxaMap(noOfTaxa);
         for (int i = 0; i < noOfTaxa; i++) {
@@ -0,0 +1,175 @@
+package statalign.postprocess.plugins.contree;
+
+import java.util.LinkedList;
+
+import statalign.postprocess.plugins.contree.hash.HashEntry;
+import statalign.postprocess.plugins.contree.hash.HashTable;
+import statalign.postprocess.plugins.contree.hash.HashUtils;
+
+/**
+ * Extracts the splits (bi-partitions) of a tree given by arrays of children, and hashes
+ * them into a {@link HashTable}.
+ *
+ * The tree is traversed in post order without recursion. The split below each node is
+ * stored in a bitset of <code>long</code> words, and the hash keys are summed up from
+ * the children. The buffers are reused from tree to tree, the table only copies a
+ * split when it sees it for the first time.
+ *
+ * @author wood, eiriksson
+ */
+public class SplitExtractor {
+
+    // Variables
+
+    private final int noOfTaxa;
+    private final int words;
+    private final long lastWordMask;
+    private final HashUtils hashUtils;
+
+    /** Sums of the table and bucket hash keys of all taxa, modulo the table sizes. */
+    private final long allTableKeys, allBucketKeys;
+
+    private long[] splits;          // split below each node, words per node.
+    private int[] tableKeys;        // table hash key of the split below each node.
+    private int[] bucketKeys;       // bucket hash key of the split below each node.
+    private int[] sizes;            // number of taxa in the split below each node.
+    private int[] stack;            // nodes on the path from the root in the traversal.
+    private int[] nextChild;        // next child to visit for the nodes on the stack.
+    private final long[] flipped;   // complement of the current split.
+
+    // Functions
+
+    /**
+     * @param noOfTaxa number of taxa
+     * @param hashUtils the hash functions of the table
+     */
+    public SplitExtractor(int noOfTaxa, HashUtils hashUtils) {
+        this.noOfTaxa = noOfTaxa;
+        this.hashUtils = hashUtils;
+        words = (noOfTaxa + 63) >>> 6;
+        lastWordMask = noOfTaxa % 64 == 0 ? -1L : (1L << (noOfTaxa % 64)) - 1;
+        long tableSum = 0, bucketSum = 0;
+        for (int k = 0; k < noOfTaxa; k++) {
+            tableSum += hashUtils.a1[k];
+            bucketSum += hashUtils.a2[k];
+        }
+        allTableKeys = tableSum % hashUtils.m1;
+        allBucketKeys = bucketSum % hashUtils.m2;
+        flipped = new long[words];
+        ensureCapacity(2 * noOfTaxa - 1);
+    }
+
+    private void ensureCapacity(int nodes) {
+        if (tableKeys != null && tableKeys.length >= nodes) {
+            return;
+        }
+        splits = new long[nodes * words];
+        tableKeys = new int[nodes];
+        bucketKeys = new int[nodes];
+        sizes = new int[nodes];
+        stack = new int[nodes];
+        nextChild = new int[nodes];
+    }
+
+    /**
+     * Hashes all splits of a tree into the hash table, as seen from the root: the split
+     * below each internal node is stored in the representation that does not contain
+     * taxon 0. The trivial splits (the root's, and those separating a single taxon) are
+     * left out, and so is the split of the second child of an unlabeled root with two
+     * children, as it repeats the split of the first child.
+     *
+     * Internal nodes may also be taxa, as the labeled internal nodes of spannoids: their
+     * taxon is added to the split below them.
+     *
+     * @param children the children of each node, empty for the leaves
+     * @param root the root node
+     * @param taxon the taxon index of each node, -1 for the unlabeled internal nodes
+     * @param edgeLength the length of the edge above each node (ignored for the root)
+     * @param hashTable the table to add the splits to
+     * @param resRate how many trees a split has to be in to be of interest
+     * @param partitions the list of splits of interest
+     * @param leafEdgeLengths the leaf edge lengths are added to this array, by taxon index
+     */
+    public void addTree(int[][] children, int root, int[] taxon, double[] edgeLength,
+                        HashTable hashTable, double resRate, LinkedList<HashEntry> partitions,
+                        double[] leafEdgeLengths) {
+        ensureCapacity(children.length);
+        int sp = 0;
+        stack[0] = root;
+        nextChild[0] = 0;
+        while (sp >= 0) {
+            int node = stack[sp];
+            int[] ch = children[node];
+            if (nextChild[sp] < ch.length) {          // Descends to the next child.
+                int child = ch[nextChild[sp]++];
+                sp++;
+                stack[sp] = child;
+                nextChild[sp] = 0;
+                continue;
+            }
+            sp--;
+            int offset = node * words;
+            int index = taxon[node];
+            if (ch.length == 0) {                     // Leaf node.
+                for (int w = 0; w < words; w++) {
+                    splits[offset + w] = 0;
+                }
+                splits[offset + (index >>> 6)] = 1L << index;
+                tableKeys[node] = hashUtils.a1[index];
+                bucketKeys[node] = hashUtils.a2[index];
+                sizes[node] = 1;
+                leafEdgeLengths[index] += node == root ? 0 : edgeLength[node];
+                continue;
+            }
+            // An internal node: the union of the children's splits, and its own taxon.
+            long tableKey = 0;
+            long bucketKey = 0;
+            int size = 0;
+            for (int w = 0; w < words; w++) {
+                splits[offset + w] = 0;
+            }
+            if (index != -1) {
+                splits[offset + (index >>> 6)] = 1L << index;
+                tableKey = hashUtils.a1[index];
+                bucketKey = hashUtils.a2[index];
+                size = 1;
+            }
+            for (int child : ch) {
+                int childOffset = child * words;
+                for (int w = 0; w < words; w++) {
+                    splits[offset + w] |= splits[childOffset + w];
+                }
+                tableKey += tableKeys[child];
+                bucketKey += bucketKeys[child];
+                size += sizes[child];
+            }
+            tableKeys[node] = (int) (tableKey % hashUtils.m1);
+            bucketKeys[node] = (int) (bucketKey % hashUtils.m2);
+            sizes[node] = size;
+            if (node == root || size <= 1 || size >= noOfTaxa - 1) { // Avoids the addition of the star partition.
+                continue;
+            }
+            if (sp == 0 && taxon[root] == -1 && children[root].length == 2 && nextChild[0] == 2) {
+                continue;                             // The complement of the root's other child.
+            }
+            double length = node == root ? 0 : edgeLength[node];
+            if ((splits[offset] & 1L) != 0) {
+                // The flipped version is stored, so each split has only one representation.
+                for (int w = 0; w < words; w++) {
+                    flipped[w] = ~splits[offset + w];
+                }
+                flipped[words - 1] &= lastWordMask;
+                int flippedTableKey = (int) ((allTableKeys - tableKeys[node] + hashUtils.m1) % hashUtils.m1);
+                int flippedBucketKey = (int) ((allBucketKeys - bucketKeys[node] + hashUtils.m2) % hashUtils.m2);
+                if (!hashTable.update(length, flippedTableKey, flippedBucketKey, resRate, partitions)) {
+                    hashTable.add(flipped, 0, length, flippedTableKey, flippedBucketKey, resRate, partitions);
+                }
+            } else {
+                if (!hashTable.update(length, tableKeys[node], bucketKeys[node], resRate, partitions)) {
+                    hashTable.add(splits, offset, length, tableKeys[node], bucketKeys[node], resRate, partitions);
+                }
+            }
+        }
+    }
+
+}
@@ -1,24 +1,88 @@
 package statalign.postprocess.plugins.contree.hash;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.LinkedList;
 
+/**
+ * The table of bi-partitions, indexed by the universal hash keys of {@link HashUtils}: two
+ * bi-partitions are the same if both their table keys (modulo <code>m1</code>) and their
+ * bucket keys (modulo <code>m2</code>) are the same.
+ *
+ * The table is open addressed with linear probing and the entries are kept in parallel
+ * primitive arrays (keys, counts, edge length sums), the bi-partitions themselves are
+ * packed into a single <code>long</code> array with a fixed number of words per entry.
+ * The memory used grows with the number of distinct bi-partitions only. A {@link HashEntry}
+ * is only created for the bi-partitions that become of interest, and it is kept up to date
+ * by the table.
+ *
+ * The number of entries can be bounded (see {@link #setMaxEntries(int)}): when the table is
+ * full, the rarest bi-partitions that are not of interest are dropped, so their counts
+ * restart if they are seen again.
+ */
 public class HashTable {
 
+    // Constants
+
+    private static final int INITIAL_CAPACITY = 64;
+
     // Variables
 
-    /** The main hash table. */
-    private ArrayList<HashEntry>[] hashTable;
+    private final int noOfTaxa;
+    private final int words;
+
+    /** The open addressed table: entry index + 1, 0 for empty slots. */
+    private int[] slots;
+    private int mask;
+
+    /** The entries: keys, counts, edge length sums and the packed bi-partitions. */
+    private int[] tableKeys;
+    private int[] bucketKeys;
+    private int[] counts;
+    private double[] edgeLengthsSums;
+    private long[] bits;
+    /** Index of the entry's {@link HashEntry} in <code>views</code>, -1 if it has none. */
+    private int[] viewOf;
+    private ArrayList<HashEntry> views = new ArrayList<HashEntry>();
+
+    private int size;
+    private int maxEntries;
+    /** Entries seen at most this many times are dropped when the table is full. */
+    private int pruneCount = 1;
 
     // Functions
 
-    @SuppressWarnings({"unchecked"})
-    public HashTable(int size) {
-        hashTable = (ArrayList<HashEntry>[]) new ArrayList[size]; // Jeez - Java generics => horrible.
-        for (int i = 0; i < size; i++) {
-            hashTable[i] = new ArrayList<HashEntry>();
-        }
+    /**
+     * @param noOfTaxa the number of taxa, the length of the bi-partitions.
+     */
+    public HashTable(int noOfTaxa) {
+        this.noOfTaxa = noOfTaxa;
+        words = Math.max((noOfTaxa + 63) >>> 6, 1);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        tableKeys = new int[capacity];
+        bucketKeys = new int[capacity];
+        counts = new int[capacity];
+        edgeLengthsSums = new double[capacity];
+        bits = new long[capacity * words];
+        viewOf = new int[capacity];
+        slots = new int[2 * capacity];
+        mask = slots.length - 1;
+    }
+
+    /**
+     * Bounds the number of distinct bi-partitions held (0 for no bound, the default).
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /** Returns the number of distinct bi-partitions held. */
+    public int size() {
+        return size;
     }
 
     /**
@@ -33,35 +97,173 @@ public class HashTable {
     public void put(BitSet partition, double edgeLength,
                     int tableKey, int bucketKey, double resRate,
                     LinkedList<HashEntry> partitions) {
-        if (hashTable[tableKey].isEmpty()) {                        // No entry exists for this key (1): Create.
-            HashEntry entry = new HashEntry(bucketKey, partition, edgeLength);
-            if (1.0 > resRate && !entry.isMajority) {   // A new partition of interest!
-                entry.isMajority = true;  // is majority if is of interest at this point...!
-                partitions.add(entry);
+        if (!update(edgeLength, tableKey, bucketKey, resRate, partitions)) {
+            long[] split = new long[words];
+            for (int i = partition.nextSetBit(0); i >= 0 && i < noOfTaxa; i = partition.nextSetBit(i + 1)) {
+                split[i >>> 6] |= 1L << i;
             }
-            hashTable[tableKey].add(entry);
-        } else {
-            boolean found = false;
-            for (HashEntry entry : hashTable[tableKey]) {           // Searches the bucket.
-                if (entry.hashKey2 == bucketKey) {                  // An entry was found.
-                    entry.count++;                                      // Increase the occurrence of the entry.
-                    entry.edgeLengthsSum += edgeLength;
-                    if ((double)entry.count > resRate && !entry.isMajority) {   // A new partition of interest!
-                        entry.isMajority = true;  // is majority if is of interest at this point...!
-                        partitions.add(entry);
-                    }
-                    found = true;
-                    break;
+            add(split, 0, edgeLength, tableKey, bucketKey, resRate, partitions);
+        }
+    }
+
+    /**
+     * Counts one more occurrence of a bi-partition if it is already in the hash table, so
+     * that the bi-partition itself is only needed (see {@link #add}) when it is new.
+     * @param tableKey the key that indexes the actual hash table.
+     * @param bucketKey the bucket key which is kept in each entry.
+     * @param resRate how many trees a bi-partition has to be in, to be a majority bi-partition.
+     * @param partitions a {@link LinkedList} containing the majority partitions.
+     * @return true if the bi-partition was found, false otherwise.
+     */
+    public boolean update(double edgeLength, int tableKey, int bucketKey, double resRate,
+                          LinkedList<HashEntry> partitions) {
+        int id = find(tableKey, bucketKey);
+        if (id < 0) {
+            return false;
+        }
+        counts[id]++;                                   // Increase the occurrence of the entry.
+        edgeLengthsSums[id] += edgeLength;
+        HashEntry entry = viewOf[id] < 0 ? null : views.get(viewOf[id]);
+        if (entry != null) {
+            entry.count = counts[id];
+            entry.edgeLengthsSum = edgeLengthsSums[id];
+        }
+        if ((double)counts[id] > resRate && (entry == null || !entry.isMajority)) {   // A new partition of interest!
+            interesting(id, entry, partitions);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a bi-partition that is not in the hash table yet.
+     * @param split the bi-partition, as bits of <code>long</code> words.
+     * @param offset the index of the first word of the bi-partition in <code>split</code>.
+     * @param tableKey the key that indexes the actual hash table.
+     * @param bucketKey the bucket key which is kept in each entry.
+     * @param resRate how many trees a bi-partition has to be in, to be a majority bi-partition.
+     * @param partitions a {@link LinkedList} containing the majority partitions.
+     */
+    public void add(long[] split, int offset, double edgeLength,
+                    int tableKey, int bucketKey, double resRate,
+                    LinkedList<HashEntry> partitions) {
+        if (maxEntries > 0 && size >= maxEntries) {
+            prune();
+        }
+        if (size == tableKeys.length) {
+            resize(2 * tableKeys.length);
+        }
+        int id = size++;
+        tableKeys[id] = tableKey;
+        bucketKeys[id] = bucketKey;
+        counts[id] = 1;
+        edgeLengthsSums[id] = edgeLength;
+        System.arraycopy(split, offset, bits, id * words, words);
+        viewOf[id] = -1;
+        insert(id);
+        if (1.0 > resRate) {   // A new partition of interest!
+            interesting(id, null, partitions);
+        }
+    }
+
+    /** The entry has become a partition of interest: puts its view into <code>partitions</code>. */
+    private void interesting(int id, HashEntry entry, LinkedList<HashEntry> partitions) {
+        if (entry == null) {
+            BitSet partition = new BitSet(noOfTaxa);
+            int offset = id * words;
+            for (int w = 0; w < words; w++) {
+                long word = bits[offset + w];
+                while (word != 0) {
+                    partition.set((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
                 }
             }
-            if (!found) {                                               // No entry exists for this key (2): Create.
-                HashEntry entry = new HashEntry(bucketKey, partition, edgeLength);
-                if (1.0 > resRate && !entry.isMajority) {   // A new partition of interest!
-                    entry.isMajority = true;  // is majority if is of interest at this point...!
-                    partitions.add(entry);
+            entry = new HashEntry(bucketKeys[id], partition, 0.0d);
+            entry.count = counts[id];
+            entry.edgeLengthsSum = edgeLengthsSums[id];
+            viewOf[id] = views.size();
+            views.add(entry);
+        }
+        entry.isMajority = true;  // is majority if is of interest at this point...!
+        partitions.add(entry);
+    }
+
+    private static int hash(int tableKey) {
+        int h = tableKey * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Returns the index of the entry with the given keys, -1 if there is none. */
+    private int find(int tableKey, int bucketKey) {
+        for (int s = hash(tableKey) & mask; ; s = (s + 1) & mask) {
+            int id = slots[s] - 1;
+            if (id < 0) {
+                return -1;
+            }
+            if (tableKeys[id] == tableKey && bucketKeys[id] == bucketKey) {
+                return id;
+            }
+        }
+    }
+
+    private void insert(int id) {
+        int s = hash(tableKeys[id]) & mask;
+        while (slots[s] != 0) {
+            s = (s + 1) & mask;
+        }
+        slots[s] = id + 1;
+    }
+
+    private void resize(int capacity) {
+        int[] oldTableKeys = tableKeys, oldBucketKeys = bucketKeys, oldCounts = counts, oldViewOf = viewOf;
+        double[] oldEdgeLengthsSums = edgeLengthsSums;
+        long[] oldBits = bits;
+        allocate(capacity);
+        System.arraycopy(oldTableKeys, 0, tableKeys, 0, size);
+        System.arraycopy(oldBucketKeys, 0, bucketKeys, 0, size);
+        System.arraycopy(oldCounts, 0, counts, 0, size);
+        System.arraycopy(oldViewOf, 0, viewOf, 0, size);
+        System.arraycopy(oldEdgeLengthsSums, 0, edgeLengthsSums, 0, size);
+        System.arraycopy(oldBits, 0, bits, 0, size * words);
+        for (int id = 0; id < size; id++) {
+            insert(id);
+        }
+    }
+
+    /**
+     * Drops the rarest entries that are not of interest, until at least a quarter of the
+     * table is free, and rebuilds the table.
+     */
+    private void prune() {
+        int target = size - Math.max(maxEntries / 4, 1);
+        int kept;
+        while (true) {
+            kept = 0;
+            for (int id = 0; id < size; id++) {
+                if (viewOf[id] >= 0 || counts[id] > pruneCount) {
+                    kept++;
                 }
-                hashTable[tableKey].add(entry);
             }
+            if (kept <= target || kept == views.size()) {
+                break;
+            }
+            pruneCount++;
+        }
+        int next = 0;
+        for (int id = 0; id < size; id++) {
+            if (viewOf[id] >= 0 || counts[id] > pruneCount) {
+                tableKeys[next] = tableKeys[id];
+                bucketKeys[next] = bucketKeys[id];
+                counts[next] = counts[id];
+                edgeLengthsSums[next] = edgeLengthsSums[id];
+                viewOf[next] = viewOf[id];
+                System.arraycopy(bits, id * words, bits, next * words, words);
+                next++;
+            }
+        }
+        size = next;
+        Arrays.fill(slots, 0);
+        for (int id = 0; id < size; id++) {
+            insert(id);
         }
     }
 
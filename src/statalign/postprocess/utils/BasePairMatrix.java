@@ -0,0 +1,245 @@
+package statalign.postprocess.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A square matrix of doubles that sums base-pairing probabilities (or counts) of the
+ * samples, projected onto the reference sequence.
+ *
+ * A symmetric matrix only stores its upper triangle with the diagonal, which halves the
+ * memory of the summed base-pairing matrices. The values are either kept on the heap or
+ * in a temporary memory-mapped file, so that the matrices of long sequences need not fit
+ * into the heap; they are updated in place either way.
+ *
+ * @author miklos, novak
+ *
+ */
+public class BasePairMatrix {
+
+	/** Number of doubles in a memory-mapped segment (1 GB) */
+	private static final int SEGMENT_BITS = 27;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+	/** Dimension of the matrix */
+	private final int d;
+	/** Whether only the upper triangle is stored */
+	private final boolean symmetric;
+
+	/** Values on the heap, null if memory-mapped */
+	private double[] values;
+	/** Memory-mapped segments of the values, null if on the heap */
+	private DoubleBuffer[] segments;
+	private File file;
+	private RandomAccessFile raf;
+
+	/**
+	 * Creates a matrix of zeros on the heap.
+	 * @param d dimension of the matrix
+	 * @param symmetric whether the matrix is symmetric, only the upper triangle is stored if so
+	 */
+	public BasePairMatrix(int d, boolean symmetric) {
+		this.d = d;
+		this.symmetric = symmetric;
+		long size = size();
+		if(size > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Matrix of dimension "+d+" does not fit into an array, map it into a file");
+		values = new double[(int)size];
+	}
+
+	/**
+	 * Creates a matrix of zeros, memory-mapped into a temporary file that is deleted when
+	 * the matrix is closed.
+	 * @param d dimension of the matrix
+	 * @param symmetric whether the matrix is symmetric, only the upper triangle is stored if so
+	 * @param dir directory of the temporary file, null for the default temporary directory
+	 */
+	public BasePairMatrix(int d, boolean symmetric, File dir) throws IOException {
+		this.d = d;
+		this.symmetric = symmetric;
+		file = File.createTempFile("basepairs", ".mat", dir);
+		file.deleteOnExit();
+		raf = new RandomAccessFile(file, "rw");
+		long size = size();
+		raf.setLength(size*8);		// the file is filled with zeros
+		FileChannel channel = raf.getChannel();
+		segments = new DoubleBuffer[(int)((size+SEGMENT_SIZE-1) >> SEGMENT_BITS)];
+		for(int s = 0; s < segments.length; s++) {
+			long start = (long)s << SEGMENT_BITS;
+			long len = Math.min(SEGMENT_SIZE, size-start);
+			segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, start*8, len*8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		}
+	}
+
+	/**
+	 * Returns the dimension of the matrix.
+	 */
+	public int getDimension() {
+		return d;
+	}
+
+	/** Number of stored values */
+	private long size() {
+		return symmetric ? (long)d*(d+1)/2 : (long)d*d;
+	}
+
+	/** Position of the first stored value of row i (from column i if symmetric) */
+	private long rowStart(int i) {
+		return symmetric ? (long)i*(2*d-i+1)/2 - i : (long)i*d;
+	}
+
+	/** Position of the value at i, j */
+	private long index(int i, int j) {
+		if(symmetric && i > j) {
+			int t = i;
+			i = j;
+			j = t;
+		}
+		return rowStart(i) + j;
+	}
+
+	private double load(long k) {
+		if(values != null)
+			return values[(int)k];
+		return segments[(int)(k >> SEGMENT_BITS)].get((int)(k & (SEGMENT_SIZE-1)));
+	}
+
+	private void store(long k, double v) {
+		if(values != null)
+			values[(int)k] = v;
+		else
+			segments[(int)(k >> SEGMENT_BITS)].put((int)(k & (SEGMENT_SIZE-1)), v);
+	}
+
+	public double get(int i, int j) {
+		return load(index(i, j));
+	}
+
+	public void set(int i, int j, double v) {
+		store(index(i, j), v);
+	}
+
+	public void add(int i, int j, double v) {
+		long k = index(i, j);
+		store(k, load(k)+v);
+	}
+
+	/**
+	 * Adds a matrix projected by an index map: adds <tt>weight*m[index[i]][index[j]]</tt>
+	 * to the value at i, j, skipping the rows and columns with index -1. Of a symmetric
+	 * matrix, only the upper triangle of <tt>m</tt> is read.
+	 * @param m the matrix to add, indexed by the values of <tt>index</tt>
+	 * @param index the row (and column) of <tt>m</tt> for each row of this matrix
+	 * @param weight the factor of the values added
+	 */
+	public void add(float[][] m, int[] index, double weight) {
+		for(int i = 0; i < d; i++) {
+			if(index[i] == -1)
+				continue;
+			float[] row = m[index[i]];
+			long k = rowStart(i);
+			for(int j = symmetric ? i : 0; j < d; j++) {
+				if(index[j] != -1)
+					store(k+j, load(k+j)+weight*row[index[j]]);
+			}
+		}
+	}
+
+	/**
+	 * Adds a matrix projected by an index map, as {@link #add(float[][], int[], double)}.
+	 */
+	public void add(double[][] m, int[] index, double weight) {
+		for(int i = 0; i < d; i++) {
+			if(index[i] == -1)
+				continue;
+			double[] row = m[index[i]];
+			long k = rowStart(i);
+			for(int j = symmetric ? i : 0; j < d; j++) {
+				if(index[j] != -1)
+					store(k+j, load(k+j)+weight*row[index[j]]);
+			}
+		}
+	}
+
+	/**
+	 * Increments the values whose row and column are both included.
+	 */
+	public void increment(boolean[] included) {
+		for(int i = 0; i < d; i++) {
+			if(!included[i])
+				continue;
+			long k = rowStart(i);
+			for(int j = symmetric ? i : 0; j < d; j++) {
+				if(included[j])
+					store(k+j, load(k+j)+1);
+			}
+		}
+	}
+
+	/**
+	 * Returns the probability of each base being unpaired, one minus the sum of its row,
+	 * as {@link RNAFoldingTools#getSingleBaseProb(double[][])}.
+	 */
+	public double[] getSingleBaseProb() {
+		double[] single = new double[d];
+		for(int i = 0; i < d; i++) {
+			single[i] = 1;
+			for(int j = 0; j < d; j++)
+				single[i] -= get(i, j);
+		}
+		return single;
+	}
+
+	/**
+	 * Returns the matrix as a full square array, each value divided by <tt>divisor</tt>.
+	 */
+	public double[][] toArray(double divisor) {
+		double[][] m = new double[d][d];
+		for(int i = 0; i < d; i++) {
+			long k = rowStart(i);
+			for(int j = symmetric ? i : 0; j < d; j++)
+				m[i][j] = load(k+j) / divisor;
+			for(int j = 0; symmetric && j < i; j++)
+				m[i][j] = m[j][i];
+		}
+		return m;
+	}
+
+	/**
+	 * Fills a full square array with the values of the matrix divided by <tt>divisor</tt>,
+	 * used for displaying the matrix without allocating a new array for each sample.
+	 * @return <tt>into</tt>
+	 */
+	public float[][] toFloatArray(float[][] into, double divisor) {
+		for(int i = 0; i < d; i++) {
+			long k = rowStart(i);
+			for(int j = symmetric ? i : 0; j < d; j++)
+				into[i][j] = (float)(load(k+j) / divisor);
+			for(int j = 0; symmetric && j < i; j++)
+				into[i][j] = into[j][i];
+		}
+		return into;
+	}
+
+	/**
+	 * Releases the values, deleting the memory-mapped file if any. The matrix cannot be
+	 * used afterwards.
+	 */
+	public void close() {
+		values = null;
+		segments = null;
+		if(raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+			}
+			raf = null;
+			// the file may only be deleted once the mapping is garbage collected on some platforms
+			file.delete();
+		}
+	}
+}
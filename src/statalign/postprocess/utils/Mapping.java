@@ -25,41 +25,46 @@ public class Mapping {
         return ungappedPos;
     }
     
+    /**
+     * Returns the position of each column of a gapped sequence in the sequence without
+     * gaps, as {@link #getUngappedPosition(String, int, char)} with '-' as gap: gap
+     * columns get the position of the preceding character, -1 if there is none.
+     * Linear in the length of the sequence.
+     */
+    private static int [] gappedToUngapped(String alignedSequence) {
+        int [] gappedToUngapped = new int[alignedSequence.length()];
+        int ungappedPos = -1;
+        for (int i = 0; i < gappedToUngapped.length; i++) {
+            if (alignedSequence.charAt(i) != '-') {
+                ungappedPos++;
+            }
+            gappedToUngapped[i] = ungappedPos;
+        }
+        return gappedToUngapped;
+    }
+    
+    /**
+     * Returns, for each position of the sequence without gaps, the column of the gapped
+     * sequence whose values {@link #projectMatrix(String, float[][], char)} projects onto
+     * that position: as gap columns are projected onto the preceding character and the
+     * later columns overwrite the earlier ones, this is the last column before the next
+     * character. Linear in the length of the sequence.
+     */
+    public static int [] getProjectionSources(String alignedSequence, char gapChar) {
+        int [] gappedToUngapped = gappedToUngapped(alignedSequence);
+        int [] sources = new int[gappedToUngapped.length == 0 ? 0 : gappedToUngapped[gappedToUngapped.length-1]+1];
+        for (int i = 0; i < gappedToUngapped.length; i++) {
+            if (gappedToUngapped[i] != -1) {
+                sources[gappedToUngapped[i]] = i;
+            }
+        }
+        return sources;
+    }
+    
     public static float [][] projectMatrix (String alignedSequence, float [][] matrix, char gapChar)
 	{		
-		String ungappedSequence = alignedSequence.replaceAll("-", "");
-		int projectedLength = ungappedSequence.length();
-		int [] gappedToUngapped = new int[alignedSequence.length()];
-		int [] ungappedToGapped = new int[projectedLength];
-		Arrays.fill(gappedToUngapped, -1);
-		Arrays.fill(ungappedToGapped, -1);
-		for(int i = 0 ; i < gappedToUngapped.length ; i++)
-		{			
-			if(gappedToUngapped[i] == -1)
-			{
-				int x = getUngappedPosition(alignedSequence, i, '-');
-				gappedToUngapped[i] = x;
-			}
-		}
-		
-		for(int i = 0 ; i < gappedToUngapped.length ; i++)
-		{	
-			if(gappedToUngapped[i] != -1 && ungappedToGapped[gappedToUngapped[i]] == -1)
-			{
-				ungappedToGapped[gappedToUngapped[i]] = i;
-			}
-		}
-		
-		/*
-		for(int i = 0 ; i < gappedToUngapped.length ; i++)
-		{	
-			System.out.println(i + " -> " + gappedToUngapped[i]);
-		}
-		System.out.println();
-		for(int i = 0 ; i < ungappedToGapped.length ; i++)
-		{	
-			System.out.println(i + " -> " + ungappedToGapped[i]);
-		}*/
+		int [] gappedToUngapped = gappedToUngapped(alignedSequence);
+		int projectedLength = gappedToUngapped.length == 0 ? 0 : gappedToUngapped[gappedToUngapped.length-1]+1;
 		
 		float [][] projectedMatrix = new float[projectedLength][projectedLength];
 		for(int i = 0 ; i < matrix.length ; i++)
@@ -112,67 +117,13 @@ public class Mapping {
     
     public static int [] getProjectionIndices(String alignedSequence, char gapChar)
     {
-    	String ungappedSequence = alignedSequence.replaceAll("-", "");
-   		int projectedLength = ungappedSequence.length();
-   		int [] gappedToUngapped = new int[alignedSequence.length()];
-   		int [] ungappedToGapped = new int[projectedLength];
-   		Arrays.fill(gappedToUngapped, -1);
-   		Arrays.fill(ungappedToGapped, -1);
-   		for(int i = 0 ; i < gappedToUngapped.length ; i++)
-   		{			
-   			if(gappedToUngapped[i] == -1)
-   			{
-   				int x = getUngappedPosition(alignedSequence, i, '-');
-   				gappedToUngapped[i] = x;
-   			}
-   		}
-   		
-   		for(int i = 0 ; i < gappedToUngapped.length ; i++)
-   		{	
-   			if(gappedToUngapped[i] != -1 && ungappedToGapped[gappedToUngapped[i]] == -1)
-   			{
-   				ungappedToGapped[gappedToUngapped[i]] = i;
-   			}
-   		}
-   		
-   		return gappedToUngapped;
+    	return gappedToUngapped(alignedSequence);
     }
     
     public static double [][] projectMatrix (String alignedSequence, double [][] matrix, char gapChar)
    	{		
-   		String ungappedSequence = alignedSequence.replaceAll("-", "");
-   		int projectedLength = ungappedSequence.length();
-   		int [] gappedToUngapped = new int[alignedSequence.length()];
-   		int [] ungappedToGapped = new int[projectedLength];
-   		Arrays.fill(gappedToUngapped, -1);
-   		Arrays.fill(ungappedToGapped, -1);
-   		for(int i = 0 ; i < gappedToUngapped.length ; i++)
-   		{			
-   			if(gappedToUngapped[i] == -1)
-   			{
-   				int x = getUngappedPosition(alignedSequence, i, '-');
-   				gappedToUngapped[i] = x;
-   			}
-   		}
-   		
-   		for(int i = 0 ; i < gappedToUngapped.length ; i++)
-   		{	
-   			if(gappedToUngapped[i] != -1 && ungappedToGapped[gappedToUngapped[i]] == -1)
-   			{
-   				ungappedToGapped[gappedToUngapped[i]] = i;
-   			}
-   		}
-   		
-   		/*
-   		for(int i = 0 ; i < gappedToUngapped.length ; i++)
-   		{	
-   			System.out.println(i + " -> " + gappedToUngapped[i]);
-   		}
-   		System.out.println();
-   		for(int i = 0 ; i < ungappedToGapped.length ; i++)
-   		{	
-   			System.out.println(i + " -> " + ungappedToGapped[i]);
-   		}*/
+   		int [] gappedToUngapped = gappedToUngapped(alignedSequence);
+   		int projectedLength = gappedToUngapped.length == 0 ? 0 : gappedToUngapped[gappedToUngapped.length-1]+1;
    		
    		double [][] projectedMatrix = new double[projectedLength][projectedLength];
    		for(int i = 0 ; i < matrix.length ; i++)
@@ -283,39 +234,8 @@ public class Mapping {
 	
 	 public static float [] projectarray (String alignedSequence, float [] array, char gapChar)
 	 {		
-		String ungappedSequence = alignedSequence.replaceAll("-", "");
-		int projectedLength = ungappedSequence.length();
-		int [] gappedToUngapped = new int[alignedSequence.length()];
-		int [] ungappedToGapped = new int[projectedLength];
-		Arrays.fill(gappedToUngapped, -1);
-		Arrays.fill(ungappedToGapped, -1);
-		for(int i = 0 ; i < gappedToUngapped.length ; i++)
-		{			
-			if(gappedToUngapped[i] == -1)
-			{
-				int x = getUngappedPosition(alignedSequence, i, '-');
-				gappedToUngapped[i] = x;
-			}
-		}
-		
-		for(int i = 0 ; i < gappedToUngapped.length ; i++)
-		{	
-			if(gappedToUngapped[i] != -1 && ungappedToGapped[gappedToUngapped[i]] == -1)
-			{
-				ungappedToGapped[gappedToUngapped[i]] = i;
-			}
-		}
-		
-		/*
-		for(int i = 0 ; i < gappedToUngapped.length ; i++)
-		{	
-			System.out.println(i + " -> " + gappedToUngapped[i]);
-		}
-		System.out.println();
-		for(int i = 0 ; i < ungappedToGapped.length ; i++)
-		{	
-			System.out.println(i + " -> " + ungappedToGapped[i]);
-		}*/
+		int [] gappedToUngapped = gappedToUngapped(alignedSequence);
+		int projectedLength = gappedToUngapped.length == 0 ? 0 : gappedToUngapped[gappedToUngapped.length-1]+1;
 		
 		float [] projectedArray = new float[projectedLength];
 		for(int i = 0 ; i < array.length ; i++)
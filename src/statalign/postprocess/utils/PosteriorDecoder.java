@@ -0,0 +1,221 @@
+package statalign.postprocess.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Posterior (maximum expected accuracy) decoding of a base-pairing probability matrix.
+ *
+ * E(i,j), the best expected accuracy of a structure of the positions i..j, is the
+ * probability that i is unpaired if i = j, and otherwise the largest of E(i+1,j-1) +
+ * 2 P(i,j) (i pairs with j) and E(i,k) + E(k+1,j) for i &lt;= k &lt; j (which covers i or j
+ * being unpaired). A cell only depends on shorter windows, so the matrix is filled
+ * anti-diagonal by anti-diagonal, and the long diagonals are split between the threads of
+ * a shared pool. The upper triangle is stored packed, by rows and again by columns, so
+ * that the sums over k read consecutive values. Neither the filling nor the trace back
+ * recurses, so long sequences need no deep stack.
+ */
+public class PosteriorDecoder {
+
+	/** Work of a diagonal (cells times window length) below which it is not split */
+	private static final int MIN_PARALLEL_WORK = 1 << 16;
+
+	/** Daemon threads shared by all decodings, started on first use */
+	private static ExecutorService pool;
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	// split of a window: paired ends, or first position unpaired, or last position unpaired
+	private static final int PAIRED = -3;
+	private static final int FIRST_UNPAIRED = -1;
+	private static final int LAST_UNPAIRED = -2;
+
+	private final double[][] basePairProb;
+	private final double[] singleBaseProb;
+	private final int n;
+
+	/** Index of row i in byRow and split is rowStart[i]+j, of column j in byColumn colStart[j]+i */
+	private final int[] rowStart;
+	private final int[] colStart;
+	private final double[] byRow;
+	private final double[] byColumn;
+	/** The choice made in each window: PAIRED, FIRST_UNPAIRED, LAST_UNPAIRED or the last position k of the left part */
+	private final int[] split;
+
+	/**
+	 * Fills the dynamic programming matrix of the posterior decoding.
+	 * @param basePairProb a NxN matrix of base-pairing probabilities
+	 * @param singleBaseProb an array of length N of the probabilities of the bases being unpaired
+	 * @param parallel whether the long diagonals are computed on several threads
+	 */
+	public PosteriorDecoder(double[][] basePairProb, double[] singleBaseProb, boolean parallel) {
+		this.basePairProb = basePairProb;
+		this.singleBaseProb = singleBaseProb;
+		n = singleBaseProb.length;
+		long size = (long)n * (n + 1) / 2;
+		if(size > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Sequence of length "+n+" is too long to decode");
+		rowStart = new int[n];
+		colStart = new int[n];
+		for(int i = 0; i < n; i++) {
+			rowStart[i] = (int)((long)i * n - (long)i * (i - 1) / 2 - i);
+			colStart[i] = (int)((long)i * (i + 1) / 2);
+		}
+		byRow = new double[(int)size];
+		byColumn = new double[(int)size];
+		split = new int[(int)size];
+
+		for(int i = 0; i < n; i++) {
+			byRow[rowStart[i] + i] = singleBaseProb[i];
+			byColumn[colStart[i] + i] = singleBaseProb[i];
+		}
+		for(int d = 1; d < n; d++) {
+			long work = (long)(n - d) * d;
+			if(parallel && THREADS > 1 && work >= MIN_PARALLEL_WORK)
+				fillDiagonalInParallel(d);
+			else
+				fillDiagonal(d, 0, n - d);
+		}
+	}
+
+	/**
+	 * Returns the expected accuracy of the decoded structure, E(0,N-1).
+	 */
+	public double getExpectedAccuracy() {
+		return n == 0 ? 0 : byRow[rowStart[0] + n - 1];
+	}
+
+	/**
+	 * Traces back the decoded structure.
+	 * @return an array of paired positions, where (i, array[i]) represents a pairing between
+	 * nucleotides (i+1, array[i]); if array[i] = 0, then (i+1) is unpaired
+	 */
+	public int[] getPairedSites() {
+		int[] pairedWith = new int[n];
+		// the windows left to trace back are disjoint and at least 2 long
+		int[] stack = new int[n + 2];
+		int top = 0;
+		if(n > 1) {
+			stack[top++] = 0;
+			stack[top++] = n - 1;
+		}
+		while(top > 0) {
+			int j = stack[--top];
+			int i = stack[--top];
+			int s = split[rowStart[i] + j];
+			int i1 = i, j1 = j, i2 = 0, j2 = -1;
+			if(s == PAIRED) {
+				pairedWith[i] = j + 1;
+				pairedWith[j] = i + 1;
+				i1 = i + 1;
+				j1 = j - 1;
+			} else if(s == FIRST_UNPAIRED) {
+				i1 = i + 1;
+			} else if(s == LAST_UNPAIRED) {
+				j1 = j - 1;
+			} else {
+				j1 = s;
+				i2 = s + 1;
+				j2 = j;
+			}
+			if(i1 < j1) {
+				stack[top++] = i1;
+				stack[top++] = j1;
+			}
+			if(i2 < j2) {
+				stack[top++] = i2;
+				stack[top++] = j2;
+			}
+		}
+		return pairedWith;
+	}
+
+	private double get(int i, int j) {
+		return i > j ? 0 : byRow[rowStart[i] + j];
+	}
+
+	/**
+	 * Computes the windows (i, i+d) of a diagonal for from &lt;= i &lt; to.
+	 */
+	private void fillDiagonal(int d, int from, int to) {
+		for(int i = from; i < to; i++) {
+			int j = i + d;
+			double u1 = get(i + 1, j) + singleBaseProb[i];
+			double p1 = get(i + 1, j - 1) + 2 * basePairProb[i][j];
+			double u2 = get(i, j - 1) + singleBaseProb[j];
+			double p2 = 0;
+			int maxK = i;
+			for(int k = i, r = rowStart[i] + i, c = colStart[j] + i + 1; k < j; k++, r++, c++) {
+				double p2k = byRow[r] + byColumn[c];
+				if(p2k > p2) {
+					p2 = p2k;
+					maxK = k;
+				}
+			}
+
+			double max;
+			int s;
+			if(u1 > p1 && u1 > p2 && u1 > u2) {
+				max = u1;
+				s = FIRST_UNPAIRED;
+			} else if(u2 > p1 && u2 > p2) {
+				max = u2;
+				s = LAST_UNPAIRED;
+			} else if(p1 > p2) {
+				max = p1;
+				s = PAIRED;
+			} else {
+				max = p2;
+				s = maxK;
+			}
+			byRow[rowStart[i] + j] = max;
+			byColumn[colStart[j] + i] = max;
+			split[rowStart[i] + j] = s;
+		}
+	}
+
+	private void fillDiagonalInParallel(final int d) {
+		int cells = n - d;
+		int chunks = Math.min(cells, 4 * THREADS);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks);
+		for(int c = 0; c < chunks; c++) {
+			final int from = (int)((long)cells * c / chunks);
+			final int to = (int)((long)cells * (c + 1) / chunks);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					fillDiagonal(d, from, to);
+					return null;
+				}
+			});
+		}
+		try {
+			for(Future<Void> result : getPool().invokeAll(tasks))
+				result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Posterior decoding interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Posterior decoding failed", e.getCause());
+		}
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if(pool == null) {
+			pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Posterior decoding");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+}
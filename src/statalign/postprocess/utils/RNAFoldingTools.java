@@ -14,8 +14,6 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Stack;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  *
@@ -115,25 +113,7 @@ public class RNAFoldingTools {
      * @return an array of paired positions. Where (i, array[i]) represents a nucleotide pairing between nucleotides (i+1, array[i]), if array[i] = 0, then (i+1) is unpaired.
      */
     public static int [] getPosteriorDecodingConsensusStructure(double[][] basePairProb, double[] singleBaseProb) {
-        double[][] eMatrix = new double[basePairProb.length][basePairProb[0].length];
-        for (int i = 0; i < eMatrix.length; i++) {
-            for (int j = 0; j < eMatrix.length; j++) {
-                eMatrix[i][j] = RNAFoldingTools.emptyValue;
-            }
-        }
-        
-        int[] pairedWith = new int[eMatrix.length];
-        int[][] S = new int[basePairProb.length][basePairProb[0].length];
-        recursePosteriorDecoding(basePairProb, singleBaseProb, eMatrix, S, 0, eMatrix.length-1);
-
-        //printMatrix(eMatrix);
-        //System.out.println();
-        //printMatrix(S);
-       // writeMatrix(S, new File("e.matrix"));
-        //writeMatrix(S, new File("s.matrix"));
-        traceBack(S, 0, eMatrix.length - 1, pairedWith);
-        
-        return pairedWith;
+        return new PosteriorDecoder(basePairProb, singleBaseProb, false).getPairedSites();
     }
 
     /**
@@ -196,170 +176,6 @@ public class RNAFoldingTools {
     	return performPosteriorDecodingMultiThreaded(basePairProb).pairedWith;
     }
 
-    /**
-     * A recursive method that fills the dynamic programming matrix for generating the posterior decoding structure.
-     * @param basePairProb a NxN matrix of base-pairing probabilities.
-     * @param singleBaseProb a vector of length N representing the probability that a base at a position is unpaired.
-     * @param eMatrix the dynamic programming matrix for the posterior-decoding.
-     * @param i the start position of the window.
-     * @param j the end position of the window.
-     * @param pairedWith an array of paired positions. Where (i, array[i]) represents a pairing between nucleotides (i+1, array[i]), if array[i] = 0, then (i+1) is unpaired.
-     * @return the value of the eMatrix at position (i, j).
-     */
-    private static double recursePosteriorDecoding(double[][] basePairProb, double[] singleBaseProb, double[][] eMatrix, int i, int j, int[] pairedWith) {
-        if (i > j) {
-            return 0;
-        }
-
-        if (eMatrix[i][j] != RNAFoldingTools.emptyValue) {
-            return eMatrix[i][j];
-        }
-
-        if (i == j) {
-            eMatrix[i][j] = singleBaseProb[i];
-            return eMatrix[i][j];
-        }
-
-        
-        double u1 = recursePosteriorDecoding(basePairProb, singleBaseProb, eMatrix, i + 1, j, pairedWith) + singleBaseProb[i];
-        double p1 = recursePosteriorDecoding(basePairProb, singleBaseProb, eMatrix, i + 1, j - 1, pairedWith) + basePairProb[i][j]; // * 2
-        double u2 = recursePosteriorDecoding(basePairProb, singleBaseProb, eMatrix, i, j - 1, pairedWith) + singleBaseProb[j];
-        double p2 = 0;
-        for (int k = i; k < j; k++) {
-        	// remember K
-            p2 = Math.max(p2, recursePosteriorDecoding(basePairProb, singleBaseProb, eMatrix, i, k, pairedWith) + recursePosteriorDecoding(basePairProb, singleBaseProb, eMatrix, k + 1, j, pairedWith));
-        }
-
-        eMatrix[i][j] = Math.max(u1, Math.max(p1, Math.max(u2, p2)));
-
-        if (p1 > u1 && p1 > u2 && p1 > p2 && pairedWith != null) {
-        	
-        	// if(pairedWith[i] == 0 && pairedWith[j] == 0)
-        	 //{
-	            pairedWith[i] = j + 1;
-	            pairedWith[j] = i + 1;
-        	 //}
-	            System.out.println("B"+i+"\t"+j);
-        }
-
-        return eMatrix[i][j];
-    }
-    
-    /**
-     * A recursive method that fills the dynamic programming matrix for generating the posterior decoding structure.
-     * @param basePairProb a NxN matrix of base-pairing probabilities.
-     * @param singleBaseProb a vector of length N representing the probability that a base at a position is unpaired.
-     * @param eMatrix the dynamic programming matrix for the posterior-decoding.
-     * @param i the start position of the window.
-     * @param j the end position of the window.
-     * @param pairedWith an array of paired positions. Where (i, array[i]) represents a pairing between nucleotides (i+1, array[i]), if array[i] = 0, then (i+1) is unpaired.
-     * @return the value of the eMatrix at position (i, j).
-     */
-    private static double recursePosteriorDecoding(double[][] basePairProb, double[] singleBaseProb, double[][] eMatrix, int [][] S, int i, int j) {
-        if (i > j) {
-            return 0;
-        }
-
-        if (eMatrix[i][j] != RNAFoldingTools.emptyValue) {
-            return eMatrix[i][j];
-        }
-
-        if (i == j) {
-            eMatrix[i][j] = singleBaseProb[i];
-            return eMatrix[i][j];
-        }
-
-        
-        double u1 = recursePosteriorDecoding(basePairProb, singleBaseProb, eMatrix, S, i + 1, j) + singleBaseProb[i];
-        double p1 = recursePosteriorDecoding(basePairProb, singleBaseProb, eMatrix, S, i + 1, j - 1) + 2*basePairProb[i][j]; // * 2
-        double u2 = recursePosteriorDecoding(basePairProb, singleBaseProb, eMatrix, S, i, j - 1) + singleBaseProb[j];
-        double p2 = 0;
-        int max_k = i;
-        for (int k = i; k < j; k++) {
-        	double p2k =  recursePosteriorDecoding(basePairProb, singleBaseProb, eMatrix, S, i, k) + recursePosteriorDecoding(basePairProb, singleBaseProb, eMatrix, S, k + 1, j);
-        	// remember K
-            if(p2k > p2)
-            {
-            	p2 = p2k;
-            	max_k = k;
-            }
-        }
-
-        /*
-        double max = 0;
-        if(p1 > u1 && p1 > p2 && p1 > u2)
-        {
-        	max = p1;
-        	S[i][j] = -3;
-        }
-        else
-        if(u1 > p2 && u1 > u2)
-        {
-        	max = u1;
-        	S[i][j] = -1;
-        }
-        else
-        if(p2 > u2)
-        {
-        	max = p2;
-        	S[i][j] = max_k;
-        }
-        else
-        {
-        	max = u2;
-        	S[i][j] = -2;
-        }*/
-        
-       
-        double max = 0;
-        if(u1 > p1 && u1 > p2 && u1 > u2)
-        {
-        	max = u1;
-        	S[i][j] = -1;
-        }
-        else
-    	if(u2 > p1 && u2 > p2)
-        {
-        	max = u2;
-        	S[i][j] = -2;
-        }
-        else
-        if(p1 > p2)
-        {
-        	max = p1;
-        	S[i][j] = -3; // paired
-        }
-        else
-        {
-        	max = p2;
-        	S[i][j] = max_k;
-        }
-        
-        eMatrix[i][j] = max;
-        
-        return eMatrix[i][j];
-    }
-    
-    public static void traceBack(int [][] S, int i, int j, int [] pairedWith)
-    {
-    	if(i >= j)
-    	{
-    		// do nothing
-    	}
-    	else
-    	if(S[i][j] == -3)
-    	{
-    		pairedWith[i] = j + 1;
-    		pairedWith[j] = i + 1;
-    		traceBack(S, i+1, j-1, pairedWith);    
-    	}
-    	else
-    	{
-    		traceBack(S, i, S[i][j], pairedWith);
-    		traceBack(S, S[i][j]+1, j, pairedWith);
-    	}
-    }
-
     /**
      * Given a String array of dot-bracket structures, fills a vector which
      * counts the number of times a specific nucleotide position is unpaired.
@@ -508,12 +324,9 @@ public class RNAFoldingTools {
 
             //getPosteriorDecodingConsensusStructure(basePairCount, singleBaseCount);
             long startTime1 = System.currentTimeMillis();
-            int divisionSize = 0;
             for (int i = 0; i < repeats; i++) {
                 //getPosteriorDecodingConsensusStructure(basePairCount, singleBaseCount);
-                MultiThreadedPosteriorDecoding m = new MultiThreadedPosteriorDecoding(basePairCount, singleBaseCount);
-                m.compute();
-                divisionSize = m.divisionSize;
+                new MultiThreadedPosteriorDecoding(basePairCount, singleBaseCount);
             }
             long endTime1 = System.currentTimeMillis();
             long elapsed1 = endTime1 - startTime1;
@@ -527,7 +340,7 @@ public class RNAFoldingTools {
             double rate1 = (double) repeats / (double) elapsed1;
             double rate2 = (double) repeats / (double) elapsed2;
             double ratio = rate1 / rate2;
-            System.out.println((size + 4) + "\t" + elapsed1 + "\t" + elapsed2 + "\t" + divisionSize + "\t" + rate1 + "\t" + rate2 + "\t" + ratio);
+            System.out.println((size + 4) + "\t" + elapsed1 + "\t" + elapsed2 + "\t" + rate1 + "\t" + rate2 + "\t" + ratio);
             if (elapsed2 > 5000) {
                 repeats = Math.max(1, repeats / 2);
             }
@@ -538,184 +351,24 @@ public class RNAFoldingTools {
      * A class, which given a base-pairing probability matrix and an array 
      * representing the probabilities of a single nucleotides being unpaired, 
      * performs a multi-threaded posterior-decoding and returns the MPD consensus structure.
+     * @see PosteriorDecoder
      */
     public class MultiThreadedPosteriorDecoding {
 
-        double[][] basePairProb;
-        double[] singleBaseProb;
         int[] pairedWith;
-        final Integer lock = new Integer(0);
-        final Integer waitLock = new Integer(0);
-        int maxThreads = Runtime.getRuntime().availableProcessors();
-        int threadsUsed = 0;
-        int currentBlockY = 0;
-        int currentX = 0;
-        int currentY = 0;
-        int length;
-        int startingDivisionSize;
-        int divisionSize;
-        int blockIncrement;
-        double[][] eMatrix;
-        int[][] S;
+        double expectedAccuracy;
 
         public MultiThreadedPosteriorDecoding(double[][] basePairCount, double[] singleBaseCount) {
-            this.length = singleBaseCount.length;
-            this.pairedWith = new int[this.length];
-            this.basePairProb = basePairCount;
-            this.singleBaseProb = singleBaseCount;
-            //this.divisionSize = Math.max(length / 75, Math.min(length / maxThreads, maxThreads * maxThreads));
-            this.divisionSize = Math.max(this.length / this.maxThreads, 10);
-            this.blockIncrement = this.divisionSize;
-
-            // this.divisionSize  = Math.max(this.length / this.maxThreads / 5,40);
-            this.startingDivisionSize = this.divisionSize;
-            //System.out.println(divisionSize);
-            this.eMatrix = new double[length][length];
-            for (int i = 0; i < eMatrix.length; i++) {
-                for (int j = 0; j < eMatrix.length; j++) {
-                    eMatrix[i][j] = RNAFoldingTools.emptyValue;
-                }
-            }
-            this.S = new int[length][length];
-            compute();
+            PosteriorDecoder decoder = new PosteriorDecoder(basePairCount, singleBaseCount, true);
+            this.pairedWith = decoder.getPairedSites();
+            this.expectedAccuracy = decoder.getExpectedAccuracy();
         }
 
         /**
-         * Initializes the posterior-decoding procedure by launching a specified
-         * number of threads.
-         * @see MultiThreadedPosteriorDecoding#computeNextSection() 
          * @return the value of the dynamic programming matrix at (0, N).
          */
         public double compute() {
-            try {
-                synchronized (waitLock) {
-
-                    for (int i = 0; i < this.maxThreads; i++) {
-                        computeNextSection();
-                    }
-                    waitLock.wait();
-                }
-            } catch (InterruptedException ex) {
-                Logger.getLogger(RNAFoldingTools.class.getName()).log(Level.SEVERE, null, ex);
-            }
-
-            // recurse one last time *just* in case missed the 0,N case,
-            RNAFoldingTools.recursePosteriorDecoding(basePairProb, singleBaseProb, eMatrix, 0, eMatrix.length - 1, pairedWith);
-            
-            RNAFoldingTools.traceBack(S, 0, eMatrix.length-1, pairedWith);
-            return eMatrix[0][eMatrix.length-1];
-        }
-
-        /**
-         * Launches new threads until no more sections are available.
-         * The thread class itself recursively calls computeNextSection() each time it completes,
-         * ensuring that the number of threads running at any one time is less than number of
-         * available processing cores.
-         */
-        public void computeNextSection() {
-            synchronized (lock) {
-                Pair p = getNextSection();
-                if (p.x != -1) {
-                    new PosteriorDecodingThread(p.x, p.y).start();
-                }
-            }
-        }
-
-        /**
-         * Generates a sequence of coordinates of windows on which posterior-decoding can
-         * be performed independently in parallel.
-         * @return the positions of the next window to perform posterior-decoding.
-         */
-        public Pair getNextSection() {
-            Pair p = getNextSectionRecursive();
-            if (p.x == -1) {
-                return p;
-            } else {
-                return new Pair(Math.min(p.x, this.length - 1), Math.min(p.y, this.length - 1));
-            }
-        }
-
-        /**
-         * @see MultiThreadedPosteriorDecoding#getNextSection() 
-         */
-        private Pair getNextSectionRecursive() {
-            int newX = this.currentX;
-            int newY = this.currentY;
-
-            synchronized (lock) {
-                if (newX == -1 && newY == -1) {
-                    return new Pair(-1, -1);
-                } else if (newX == 0 && newY == 0) {
-                    newX = 0;
-                    newY = divisionSize;
-                } else {
-                    newX += divisionSize;
-                    newY += divisionSize;
-
-
-                    if (currentBlockY >= this.length) {
-                        newX = -1;
-                        newY = -1;
-                    } else if (newX >= this.length) {
-                        currentBlockY += this.blockIncrement;
-
-                        //int j = 
-                        //
-                        //divisionSize = (int)Math.max(Math.sqrt(2*Math.pow(length - currentBlockY,2))/ (double)maxThreads, 10);
-                        divisionSize = (int) Math.max((double) (length - currentBlockY) / (double) maxThreads, 10);
-                        //System.out.println(currentBlockY+"\t"+divisionSize);
-                        //System.out.println(length+"\t"+currentBlockY+"\t"+divisionSize);
-                        // start back at the first row of the matrix
-                        //System.out.println(length+"\t"+startingDivisionSize);                        
-                        //this.divisionSize = (int)Math.max((double) this.divisionSize - ((double)this.divisionSize / ((double)this.length / (double)this.divisionSize)), 1);
-                        //System.out.println(this.divisionSize);
-
-                        newX = 0;
-                        newY = currentBlockY + divisionSize;
-                    }
-                }
-            }
-
-            this.currentX = newX;
-            //this.currentX = this.currentY;
-            /*
-             * if(newX != 0) { this.currentX = this.currentY;
-            }
-             */
-            this.currentY = newY;
-
-            if (newY - divisionSize > length) {
-                return getNextSection();
-            }
-
-            return new Pair(newX, newY);
-        }
-
-        /**
-         * A single thread which performs posterior-decoding on a specified window.
-         */
-        class PosteriorDecodingThread extends Thread {
-
-            int x;
-            int y;
-
-            public PosteriorDecodingThread(int x, int y) {
-                this.x = x;
-                this.y = y;
-            }
-
-            @Override
-			public void run() {
-                RNAFoldingTools.recursePosteriorDecoding(basePairProb, singleBaseProb, eMatrix, S, this.x, this.y);
-                computeNextSection();
-
-                if (this.x == 0 && this.y == MultiThreadedPosteriorDecoding.this.length - 1) {
-                    // complete, so notify
-                    synchronized (waitLock) {
-                        waitLock.notify();
-                    }
-                }
-            }
+            return expectedAccuracy;
         }
     }
     